@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -64,6 +64,7 @@ import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerBuilder;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.images.servers.ImageServers;
+import qupath.lib.plugins.ProjectTaskScheduler;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectIO;
 import qupath.lib.scripting.QP;
@@ -317,6 +318,11 @@ class ScriptCommand implements Runnable {
 	@Option(names = {"-s", "--save"}, description = "Request that data files are updated for each image in the project.", paramLabel = "save")
 	private boolean save;
 	
+	@Option(names = {"-n", "--parallel-images"}, description = {"Maximum number of project images to process in parallel (default 1).",
+			"All images share the same threads for running tasks. Use 0 to choose automatically based upon the number of processors."},
+			paramLabel = "images")
+	private int parallelImages = 1;
+	
 	@Option(names = {"-a", "--args"}, description = "Arguments to pass to the script, stored in an 'args' array variable. "
 			+ "Multiple args can be passed by using --args multiple times, or by using a \"[quoted,comma,separated,list]\".", paramLabel = "arguments")
 	private String[] args;
@@ -367,26 +373,25 @@ class ScriptCommand implements Runnable {
 					
 				int batchSize = imageList.size();
 				
-				for (int batchIndex = 0; batchIndex < batchSize; batchIndex++) {
-					var entry = imageList.get(batchIndex);
-					logger.info("Running script for {} ({}/{})", entry.getImageName(), batchIndex, batchSize);
-					imageData = entry.readImageData();
+				var scheduler = ProjectTaskScheduler.builder()
+						.maxConcurrentImages(parallelImages)
+						.build();
+				var summary = scheduler.run(imageList, (entry, batchIndex) -> {
+					var entryImageData = entry.readImageData();
 					try {
-						Object result = runBatchScript(project, imageData, batchIndex, batchSize, save);
+						Object result = runBatchScript(project, entryImageData, batchIndex, batchSize, save);
 						if (result != null)
-							logger.info("Script result: {}", result);
+							logger.info("Script result for {}: {}", entry.getImageName(), result);
 						if (save)
-							entry.saveImageData(imageData);
-					} catch (Exception e) {
-						logger.error("Error running script for image: " + entry.getImageName(), e);
-						// Throw an exception if we have a single image
-						// Otherwise, try to recover and continue processing images
-						if (imagePath != null && imagePath.equals(entry.getImageName()))
-							throw new RuntimeException(e);
+							entry.saveImageData(entryImageData);
 					} finally {
-						imageData.getServer().close();						
+						entryImageData.getServer().close();
 					}
-				}
+				});
+				// Throw an exception if we have a single image
+				// Otherwise, errors are logged and the remaining images processed
+				if (imagePath != null && !summary.getFailedImageNames().isEmpty())
+					throw new RuntimeException("Error running script for image: " + imagePath);
 			} else if (imagePath != null && !imagePath.equals("")) {
 				String path = QuPath.getEncodedPath(imagePath);
 				URI uri = GeneralTools.toURI(path);
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.opencv.tools.OpenCVTools;
+
+/**
+ * Compare predicting tiles from concurrent threads with and without a {@link BatchingDnnModel},
+ * using a small ONNX model bundled with the tests.
+ * <p>
+ * Run with {@code ./gradlew :qupath-core-processing:jmh}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1)
+public class BatchingDnnModelBenchmark {
+
+	/**
+	 * Maximum batch size.
+	 */
+	@Param({"4", "16"})
+	public int batchSize;
+
+	/**
+	 * Number of tiles to predict for each invocation.
+	 */
+	private static final int N_TILES = 64;
+
+	/**
+	 * Number of threads requesting predictions, similar to tiles requested from an ImageOpServer.
+	 */
+	private static final int N_THREADS = 8;
+
+	private DnnModel model;
+	private BatchingDnnModel batchingModel;
+	private ExecutorService pool;
+	private Mat tile;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		var path = Paths.get(BatchingDnnModelBenchmark.class.getResource("conv-relu.onnx").toURI());
+		model = DnnTools.builder(path.toString()).build();
+		batchingModel = BatchingDnnModel.wrap(model, batchSize, 5);
+		pool = Executors.newFixedThreadPool(N_THREADS);
+		tile = new Mat(64, 64, opencv_core.CV_32FC3, Scalar.ZERO);
+		OpenCVTools.addNoise(tile, 0, 1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		System.out.println(batchingModel.getStatistics());
+		pool.shutdown();
+		batchingModel.close();
+	}
+
+	private int predictAll(DnnModel model) throws Exception {
+		var futures = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < N_TILES; i++) {
+			futures.add(pool.submit(() -> {
+				try (var scope = new PointerScope()) {
+					var output = model.predict(Map.of(DnnModel.DEFAULT_INPUT_NAME, tile));
+					return output.values().iterator().next().channels();
+				}
+			}));
+		}
+		int count = 0;
+		for (var f : futures)
+			count += f.get();
+		return count;
+	}
+
+	@Benchmark
+	public int predictSeparately() throws Exception {
+		return predictAll(model);
+	}
+
+	@Benchmark
+	public int predictBatched() throws Exception {
+		return predictAll(batchingModel);
+	}
+
+}
@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -24,11 +24,13 @@
 package qupath.lib.plugins.objects;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -217,7 +219,7 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 		int nObjects = pathObjects.size();
 		//		int counter = 0;
 
-		// Sort by x-coordinate - this gives us a method of breaking early
+		// Sort by x-coordinate - this determines the order in which values are summed, and so must be retained for consistent results
 		Collections.sort(pathObjects, new Comparator<>() {
             @Override
             public int compare(PathObject o1, PathObject o2) {
@@ -247,16 +249,16 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 		}
 		
 
-		System.currentTimeMillis();
-		
+		int nMeasurements = measurements.size();
 		float[] xCentroids = new float[nObjects];
 		float[] yCentroids = new float[nObjects];
 		PathClass[] pathClasses = new PathClass[nObjects];
 		int[] nearbyDetectionCounts = new int[nObjects];
-		float[][] measurementsWeighted = new float[nObjects][measurements.size()];
-		float[][] measurementDenominators = new float[nObjects][measurements.size()];
-		float[][] measurementValues = new float[nObjects][measurements.size()];
-		for (int i = 0; i < nObjects; i++) {
+		// Measurements are stored in flat arrays, with all the measurements for one object stored together
+		float[] measurementsWeighted = new float[nObjects * nMeasurements];
+		float[] measurementDenominators = new float[nObjects * nMeasurements];
+		float[] measurementValues = new float[nObjects * nMeasurements];
+		IntStream.range(0, nObjects).parallel().forEach(i -> {
 			PathObject pathObject = pathObjects.get(i);
 			if (withinClass)
 				pathClasses[i] = pathObject.getPathClass() == null ? null : pathObject.getPathClass().getBaseClass();
@@ -264,16 +266,16 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 			xCentroids[i] = (float)roi.getCentroidX();
 			yCentroids[i] = (float)roi.getCentroidY();
 			MeasurementList measurementList = pathObject.getMeasurementList();
-			int ind = 0;
+			int ind = i * nMeasurements;
 			for (String name : measurements) {
 				float value = (float)measurementList.get(name);
 				
-				measurementValues[i][ind] = value;   // Used to cache values
-				measurementsWeighted[i][ind] = value; // Based on distances and measurements
-				measurementDenominators[i][ind] = 1; // Based on distances along
+				measurementValues[ind] = value;   // Used to cache values
+				measurementsWeighted[ind] = value; // Based on distances and measurements
+				measurementDenominators[ind] = 1; // Based on distances along
 				ind++;
 			}
-		}
+		});
 
 		String prefix, postfix, denomName, countsName;
 		
@@ -292,100 +294,188 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 //			countsName = prefix + "Nearby detection counts";
 		}
 		
-		// Loop through objects, computing predominant class based on distance weighting
-		for (int i = 0; i < nObjects; i++) {
-			// Extract the current class index
-			PathObject pathObject = pathObjects.get(i);
-			PathClass pathClass = pathClasses[i];
-			MeasurementList measurementList = pathObject.getMeasurementList();
-			float[] mValues = measurementValues[i];
-			float[] mWeighted = measurementsWeighted[i];
-			float[] mDenominator = measurementDenominators[i];
-			
-			// Compute centroid distances
-			double xi = xCentroids[i];
-			double yi = yCentroids[i];
-			for (int j = i+1; j < nObjects; j++) {
-				
-				double xj = xCentroids[j];
-				double yj = yCentroids[j];
-				//				counter++;
-				// Break early if we are already too far away
-				if (Math.abs(xj - xi) > maxDist) {
-					break;
-				}
-
-				double distSq = (xj - xi)*(xj - xi) + (yj - yi)*(yj - yi);
-//				// Check if we are close enough to have an influence
-				if (distSq > maxDistSq || Double.isNaN(distSq))
-					continue;
-				
-				// Check if the class is ok, if check needed
-				if (withinClass && pathClass != pathClasses[j])
-					continue;
-				
-				// Update the counts, if close enough
-				if (distSq < fwhmPixels2) {
-					nearbyDetectionCounts[i]++;
-					nearbyDetectionCounts[j]++;
-				}
-
-				// Update the class weights for both objects currently being tested
-				// Compute weight based on centroid distances
-//				double weight = Math.exp(-distSq/sigma2);
-				double weight = distanceWeights[(int)(Math.sqrt(distSq) + .5)];// * pathObjects.get(j).getClassProbability();
-				float [] temp = measurementValues[j];
-				float [] tempWeighted = measurementsWeighted[j];
-				float [] tempDenominator = measurementDenominators[j];
-				for (int ind = 0; ind < measurements.size(); ind++) {
-					float tempVal = temp[ind];
-					if (Float.isNaN(tempVal))
+		// Find nearby objects using a grid, and accumulate the weighted measurements for each grid cell in parallel.
+		// Each object only updates its own values, and nearby objects are visited in order of their index 
+		// so that the (float) sums are identical to comparing all pairs of objects sorted by x-coordinate.
+		var grid = new NeighborGrid(xCentroids, yCentroids, maxDist);
+		IntStream.range(0, grid.nCells()).parallel().forEach(cell -> {
+			int[] candidates = grid.getCandidates(cell);
+			for (int i : grid.getIndices(cell)) {
+				PathClass pathClass = pathClasses[i];
+				int offset = i * nMeasurements;
+				double xi = xCentroids[i];
+				double yi = yCentroids[i];
+				for (int j : candidates) {
+					if (j == i)
+						continue;
+					
+					double xj = xCentroids[j];
+					double yj = yCentroids[j];
+					double distSq = (xj - xi)*(xj - xi) + (yj - yi)*(yj - yi);
+					// Check if we are close enough to have an influence
+					if (distSq > maxDistSq || Double.isNaN(distSq))
 						continue;
-					mWeighted[ind] += tempVal * weight;
-					mDenominator[ind] += weight;
 					
-					float tempVal2 = mValues[ind];
-					if (Float.isNaN(tempVal2))
+					// Check if the class is ok, if check needed
+					if (withinClass && pathClass != pathClasses[j])
 						continue;
-					tempWeighted[ind] += tempVal2 * weight;
-					tempDenominator[ind] += weight;
+					
+					// Update the counts, if close enough
+					if (distSq < fwhmPixels2)
+						nearbyDetectionCounts[i]++;
+
+					// Compute weight based on centroid distances
+					double weight = distanceWeights[(int)(Math.sqrt(distSq) + .5)];
+					int offsetJ = j * nMeasurements;
+					for (int ind = 0; ind < nMeasurements; ind++) {
+						float tempVal = measurementValues[offsetJ + ind];
+						if (Float.isNaN(tempVal))
+							continue;
+						// Objects earlier in the list only contribute if this object's value isn't NaN
+						// (this matches the behavior of previous versions, which updated both objects together)
+						if (j < i && Float.isNaN(measurementValues[offset + ind]))
+							continue;
+						measurementsWeighted[offset + ind] += tempVal * weight;
+						measurementDenominators[offset + ind] += weight;
+					}
 				}
 			}
-			
-			// Store the measurements
-			int ind = 0;
+		});
+		
+		// Store the measurements
+		for (int i = 0; i < nObjects; i++) {
+			PathObject pathObject = pathObjects.get(i);
+			MeasurementList measurementList = pathObject.getMeasurementList();
+			int ind = i * nMeasurements;
 			float maxDenominator = Float.NEGATIVE_INFINITY;
 			for (String name : measurements) {
-//				if (name.contains(" - Smoothed (FWHM ") || name.startsWith("Smoothed denominator (local density, ") || name.startsWith("Nearby detection counts"))
-//					continue;
-				float denominator = mDenominator[ind];
+				float denominator = measurementDenominators[ind];
 				if (denominator > maxDenominator)
 					maxDenominator = denominator;
 				
 				String nameToAdd = prefix + name + postfix;
-				measurementList.put(nameToAdd, mWeighted[ind] / denominator);
+				measurementList.put(nameToAdd, measurementsWeighted[ind] / denominator);
 				
-//				measurementsAdded.add(nameToAdd);
 //				measurementList.putMeasurement(name + " - weighted sum", mWeighted[ind]); // TODO: Support optionally providing weighted sums
-				
-//				measurementList.addMeasurement(name + " - smoothed", mWeighted[ind] / mDenominator[ind]);
 				ind++;
 			}
 			if (pathObject instanceof PathDetectionObject && denomName != null) {
 				measurementList.put(denomName, maxDenominator);
-//				measurementsAdded.add(denomName);
 			}
 			if (pathObject instanceof PathDetectionObject && countsName != null) {
 				measurementList.put(countsName, nearbyDetectionCounts[i]);
-//				measurementsAdded.add(countsName);
 			}
 			measurementList.close();
 		}
 		
-		System.currentTimeMillis();
-		
 //		return measurementsAdded;
 	}
+	
+	
+	/**
+	 * Grid of cells containing object indices, used to find nearby objects without comparing all pairs.
+	 * Cells are at least as large as the maximum distance, so nearby objects are always within the 3x3 surrounding cells.
+	 * Objects with non-finite centroids are put in an extra cell, and have no nearby objects.
+	 */
+	private static class NeighborGrid {
+		
+		private int nx = 1, ny = 1;
+		private double minX, minY;
+		private double cellSize = Double.POSITIVE_INFINITY;
+		
+		private int[] cellOffsets;
+		private int[] cellIndices;
+		
+		private NeighborGrid(float[] x, float[] y, double maxDist) {
+			int n = x.length;
+			minX = Double.POSITIVE_INFINITY;
+			minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY;
+			double maxY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				if (isFinite(x[i], y[i])) {
+					minX = Math.min(minX, x[i]);
+					minY = Math.min(minY, y[i]);
+					maxX = Math.max(maxX, x[i]);
+					maxY = Math.max(maxY, y[i]);
+				}
+			}
+			// Use a single cell if the distance is too large to help, otherwise limit the number of cells
+			if (maxDist > 0 && Double.isFinite(maxDist) && maxX > minX && maxY > minY) {
+				// Add a little to the cell size to avoid rounding errors when computing cells
+				cellSize = maxDist * (1 + 1e-6);
+				while ((maxX - minX) / cellSize * (maxY - minY) / cellSize > 4.0 * n)
+					cellSize *= 2;
+				nx = (int)((maxX - minX) / cellSize) + 1;
+				ny = (int)((maxY - minY) / cellSize) + 1;
+			}
+			
+			// Sort indices by cell; because we loop through objects in order, indices are also sorted within each cell
+			int nCells = nx * ny + 1;
+			int[] cells = new int[n];
+			cellOffsets = new int[nCells + 1];
+			for (int i = 0; i < n; i++) {
+				cells[i] = getCell(x[i], y[i]);
+				cellOffsets[cells[i]+1]++;
+			}
+			for (int c = 0; c < nCells; c++)
+				cellOffsets[c+1] += cellOffsets[c];
+			cellIndices = new int[n];
+			int[] inds = Arrays.copyOf(cellOffsets, nCells);
+			for (int i = 0; i < n; i++)
+				cellIndices[inds[cells[i]]++] = i;
+		}
+		
+		private static boolean isFinite(float x, float y) {
+			return Float.isFinite(x) && Float.isFinite(y);
+		}
+		
+		private int getCell(float x, float y) {
+			if (!isFinite(x, y))
+				return nx * ny;
+			if (!Double.isFinite(cellSize))
+				return 0;
+			int cx = Math.min(nx - 1, (int)((x - minX) / cellSize));
+			int cy = Math.min(ny - 1, (int)((y - minY) / cellSize));
+			return cy * nx + cx;
+		}
+		
+		private int nCells() {
+			return nx * ny + 1;
+		}
+		
+		private int[] getIndices(int cell) {
+			return Arrays.copyOfRange(cellIndices, cellOffsets[cell], cellOffsets[cell+1]);
+		}
+		
+		/**
+		 * Get the indices of all objects in the 3x3 cells around a cell, in ascending order.
+		 */
+		private int[] getCandidates(int cell) {
+			if (cell == nx * ny)
+				return new int[0];
+			int cx = cell % nx;
+			int cy = cell / nx;
+			int count = 0;
+			for (int y = Math.max(0, cy-1); y <= Math.min(ny-1, cy+1); y++) {
+				for (int x = Math.max(0, cx-1); x <= Math.min(nx-1, cx+1); x++)
+					count += cellOffsets[y*nx+x+1] - cellOffsets[y*nx+x];
+			}
+			int[] candidates = new int[count];
+			count = 0;
+			for (int y = Math.max(0, cy-1); y <= Math.min(ny-1, cy+1); y++) {
+				for (int x = Math.max(0, cx-1); x <= Math.min(nx-1, cx+1); x++) {
+					int c = y*nx+x;
+					int len = cellOffsets[c+1] - cellOffsets[c];
+					System.arraycopy(cellIndices, cellOffsets[c], candidates, count, len);
+					count += len;
+				}
+			}
+			Arrays.sort(candidates);
+			return candidates;
+		}
+		
+	}
 
 	@Override
 	public ParameterList getDefaultParameterList(final ImageData<T> imageData) {
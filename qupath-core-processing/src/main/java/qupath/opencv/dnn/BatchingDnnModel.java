@@ -0,0 +1,487 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.opencv.dnn;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.io.UriResource;
+
+/**
+ * A {@link DnnModel} that combines inputs from concurrent calls to {@link #predict(Map)} into batches.
+ * <p>
+ * Tiles are often processed in parallel (e.g. by an {@link qupath.opencv.ops.ImageOpServer}), with each tile
+ * passed to the model separately. This is inefficient for many models, which can process a batch of inputs
+ * in a single call with much less overhead per input.
+ * <p>
+ * Here, each input is converted to a blob using the wrapped model's {@link BlobFunction} in the calling thread.
+ * Blobs with the same shape are then collected until either the maximum batch size is reached, or the first blob
+ * has waited for the maximum latency. The batch is passed to the {@link PredictionFunction} in a single call,
+ * and the output is split and returned to the calling threads.
+ * <p>
+ * Batching is only possible if the wrapped model is an {@link AbstractDnnModel} using OpenCV Mats,
+ * and only for calls with a single input. Otherwise, calls are passed directly to the wrapped model.
+ *
+ * @since v0.5.1
+ */
+public class BatchingDnnModel implements DnnModel, UriResource {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchingDnnModel.class);
+
+	private DnnModel model;
+	private int maxBatchSize;
+	private long maxLatencyMillis;
+
+	private transient volatile ReentrantLock lock;
+	private transient Condition available;
+	private transient LinkedList<BatchRequest> pending;
+	private transient Thread dispatcher;
+	private transient boolean closed;
+
+	private transient BatchStatistics statistics;
+
+	private BatchingDnnModel(DnnModel model, int maxBatchSize, long maxLatencyMillis) {
+		this.model = model;
+		this.maxBatchSize = maxBatchSize;
+		this.maxLatencyMillis = maxLatencyMillis;
+	}
+
+	/**
+	 * Wrap a model so that inputs from concurrent calls can be predicted in batches.
+	 * @param model the model to wrap
+	 * @param maxBatchSize the maximum number of inputs to combine in a batch
+	 * @param maxLatencyMillis the maximum time to wait for a batch to be filled, in milliseconds
+	 * @return
+	 * @throws IllegalArgumentException if the batch size is less than 1 or the latency is negative
+	 */
+	public static BatchingDnnModel wrap(DnnModel model, int maxBatchSize, long maxLatencyMillis) throws IllegalArgumentException {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Maximum batch size must be at least 1, but was " + maxBatchSize);
+		if (maxLatencyMillis < 0)
+			throw new IllegalArgumentException("Maximum latency must be >= 0, but was " + maxLatencyMillis);
+		return new BatchingDnnModel(model, maxBatchSize, maxLatencyMillis);
+	}
+
+	/**
+	 * Get the wrapped model.
+	 * @return
+	 */
+	public DnnModel getWrappedModel() {
+		return model;
+	}
+
+	/**
+	 * Get the maximum number of inputs that will be combined in a batch.
+	 * @return
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Get the maximum time to wait for a batch to be filled, in milliseconds.
+	 * @return
+	 */
+	public long getMaxLatencyMillis() {
+		return maxLatencyMillis;
+	}
+
+	/**
+	 * Get statistics summarizing the batches that have been predicted so far.
+	 * @return
+	 */
+	public BatchStatistics getStatistics() {
+		ensureInitialized();
+		return statistics;
+	}
+
+	@Override
+	public Map<String, Mat> predict(Map<String, Mat> blobs) {
+		if (blobs.size() != 1 || !(model instanceof AbstractDnnModel<?>))
+			return model.predict(blobs);
+
+		@SuppressWarnings("unchecked")
+		var dnn = (AbstractDnnModel<Mat>)model;
+		var entry = blobs.entrySet().iterator().next();
+		var inputName = entry.getKey();
+
+		var blob = getBlobFunction(dnn, inputName).toBlob(entry.getValue());
+		// We can only combine blobs where the first dimension is the batch
+		if (blob.dims() < 2 || blob.size(0) != 1) {
+			var prediction = dnn.getPredictionFunction().predict(Map.of(inputName, blob));
+			var output = new LinkedHashMap<String, Mat>();
+			for (var e : prediction.entrySet())
+				output.put(e.getKey(), getBlobFunction(dnn, e.getKey()).fromBlob(e.getValue()).get(0));
+			return output;
+		}
+
+		var request = new BatchRequest(inputName, blob);
+		submit(request);
+		try {
+			var output = request.result.get();
+			// The output was created in another thread, and holds a reference so that it wasn't deallocated there.
+			// If we have a scope, transfer the reference to it so that the output is deallocated with it.
+			var scope = PointerScope.getInnerScope();
+			if (scope != null) {
+				for (var mat : output.values()) {
+					scope.attach(mat);
+					mat.releaseReference();
+				}
+			}
+			return output;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for prediction", e);
+		} catch (ExecutionException e) {
+			var cause = e.getCause();
+			if (cause instanceof RuntimeException runtimeException)
+				throw runtimeException;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Get the blob function for a named input or output, falling back to the default if needed.
+	 */
+	private static BlobFunction<Mat> getBlobFunction(AbstractDnnModel<Mat> dnn, String name) {
+		var blobFun = dnn.getBlobFunction(name);
+		return blobFun == null ? dnn.getBlobFunction() : blobFun;
+	}
+
+	private void ensureInitialized() {
+		if (lock == null) {
+			synchronized (this) {
+				if (lock == null) {
+					pending = new LinkedList<>();
+					statistics = new BatchStatistics();
+					var newLock = new ReentrantLock();
+					available = newLock.newCondition();
+					lock = newLock;
+				}
+			}
+		}
+	}
+
+	private void submit(BatchRequest request) {
+		ensureInitialized();
+		lock.lock();
+		try {
+			if (closed)
+				throw new IllegalStateException("Model has been closed");
+			if (dispatcher == null) {
+				dispatcher = ThreadTools.createThreadFactory("dnn-batch", true).newThread(this::dispatch);
+				dispatcher.start();
+			}
+			pending.add(request);
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Repeatedly collect and predict batches, until the model is closed.
+	 */
+	private void dispatch() {
+		while (true) {
+			List<BatchRequest> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException e) {
+				logger.debug("Batch dispatcher interrupted");
+				return;
+			}
+			if (batch == null)
+				return;
+			predictBatch(batch);
+		}
+	}
+
+	/**
+	 * Wait for the next batch.
+	 * This contains the oldest pending request, and any other requests with the same blob shape,
+	 * up to the maximum batch size.
+	 * @return the batch, or null if the model has been closed
+	 * @throws InterruptedException
+	 */
+	private List<BatchRequest> nextBatch() throws InterruptedException {
+		lock.lock();
+		try {
+			while (pending.isEmpty() && !closed)
+				available.await();
+			if (closed)
+				return null;
+			var first = pending.getFirst();
+			long deadline = first.timestamp + TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+			long remaining = deadline - System.nanoTime();
+			while (countCompatible(first) < maxBatchSize && remaining > 0 && !closed)
+				remaining = available.awaitNanos(remaining);
+			if (closed)
+				return null;
+			var batch = new ArrayList<BatchRequest>();
+			Iterator<BatchRequest> iter = pending.iterator();
+			while (iter.hasNext() && batch.size() < maxBatchSize) {
+				var request = iter.next();
+				if (request.isCompatible(first)) {
+					batch.add(request);
+					iter.remove();
+				}
+			}
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int countCompatible(BatchRequest first) {
+		int count = 0;
+		for (var request : pending) {
+			if (request.isCompatible(first))
+				count++;
+		}
+		return count;
+	}
+
+	private void predictBatch(List<BatchRequest> batch) {
+		@SuppressWarnings("unchecked")
+		var dnn = (AbstractDnnModel<Mat>)model;
+		var inputName = batch.get(0).inputName;
+		long startTime = System.nanoTime();
+		try {
+			Map<String, List<Mat>> outputs = new LinkedHashMap<>();
+			try (var scope = new PointerScope()) {
+				var blob = concatenate(batch);
+				var prediction = dnn.getPredictionFunction().predict(Map.of(inputName, blob));
+				for (var e : prediction.entrySet()) {
+					var mats = getBlobFunction(dnn, e.getKey()).fromBlob(e.getValue());
+					if (mats.size() != batch.size())
+						throw new IllegalStateException(
+								String.format("Expected %d outputs for '%s', but got %d", batch.size(), e.getKey(), mats.size()));
+					// Make sure the outputs are available after the scope is closed
+					var list = new ArrayList<Mat>();
+					for (var mat : mats) {
+						var output = mat.clone();
+						output.retainReference();
+						list.add(output);
+					}
+					outputs.put(e.getKey(), list);
+				}
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				var result = new LinkedHashMap<String, Mat>();
+				for (var e : outputs.entrySet()) {
+					result.put(e.getKey(), e.getValue().get(i));
+				}
+				batch.get(i).result.complete(result);
+			}
+		} catch (Throwable t) {
+			logger.debug("Error predicting batch: {}", t.getLocalizedMessage());
+			for (var request : batch)
+				request.result.completeExceptionally(t);
+		}
+		statistics.addBatch(batch, startTime, System.nanoTime());
+	}
+
+	/**
+	 * Concatenate blobs along the first dimension.
+	 * @param batch
+	 * @return
+	 */
+	private static Mat concatenate(List<BatchRequest> batch) {
+		var first = batch.get(0).blob;
+		if (batch.size() == 1)
+			return first;
+		int[] shape = batch.get(0).shape.clone();
+		shape[0] = batch.size();
+		// Each blob becomes a single row, so that they can be concatenated easily
+		var rows = new Mat[batch.size()];
+		for (int i = 0; i < rows.length; i++) {
+			var blob = batch.get(i).blob;
+			if (!blob.isContinuous())
+				blob = blob.clone();
+			rows[i] = blob.reshape(1, new int[] {1, (int)blob.total()});
+		}
+		var merged = new Mat();
+		opencv_core.vconcat(new MatVector(rows), merged);
+		return merged.reshape(1, shape);
+	}
+
+	/**
+	 * Close the wrapped model, and stop batching.
+	 * Any pending predictions will fail.
+	 */
+	@Override
+	public void close() throws Exception {
+		if (lock != null) {
+			lock.lock();
+			try {
+				closed = true;
+				available.signalAll();
+				for (var request : pending)
+					request.result.completeExceptionally(new IllegalStateException("Model has been closed"));
+				pending.clear();
+			} finally {
+				lock.unlock();
+			}
+		}
+		model.close();
+	}
+
+	@Override
+	public Collection<URI> getURIs() throws IOException {
+		if (model instanceof UriResource resource)
+			return resource.getURIs();
+		return Collections.emptyList();
+	}
+
+	@Override
+	public boolean updateURIs(Map<URI, URI> replacements) throws IOException {
+		if (model instanceof UriResource resource)
+			return resource.updateURIs(replacements);
+		return false;
+	}
+
+
+	private static class BatchRequest {
+
+		private final String inputName;
+		private final Mat blob;
+		private final int[] shape;
+		private final int type;
+		private final long timestamp = System.nanoTime();
+		private final CompletableFuture<Map<String, Mat>> result = new CompletableFuture<>();
+
+		private BatchRequest(String inputName, Mat blob) {
+			this.inputName = inputName;
+			this.blob = blob;
+			this.type = blob.type();
+			this.shape = new int[blob.dims()];
+			for (int i = 0; i < shape.length; i++)
+				shape[i] = blob.size(i);
+		}
+
+		private boolean isCompatible(BatchRequest request) {
+			return type == request.type && inputName.equals(request.inputName) && Arrays.equals(shape, request.shape);
+		}
+
+	}
+
+
+	/**
+	 * Statistics summarizing the batches predicted by a {@link BatchingDnnModel}.
+	 * Values are updated as new batches are predicted.
+	 */
+	public static class BatchStatistics {
+
+		private final AtomicLong batchCount = new AtomicLong();
+		private final AtomicLong inputCount = new AtomicLong();
+		private final AtomicLong predictNanos = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+
+		private BatchStatistics() {}
+
+		private void addBatch(List<BatchRequest> batch, long startTime, long endTime) {
+			batchCount.incrementAndGet();
+			inputCount.addAndGet(batch.size());
+			predictNanos.addAndGet(endTime - startTime);
+			long wait = 0;
+			for (var request : batch)
+				wait += startTime - request.timestamp;
+			waitNanos.addAndGet(wait);
+		}
+
+		/**
+		 * Get the number of batches that have been predicted.
+		 * @return
+		 */
+		public long getBatchCount() {
+			return batchCount.get();
+		}
+
+		/**
+		 * Get the total number of inputs that have been predicted.
+		 * @return
+		 */
+		public long getInputCount() {
+			return inputCount.get();
+		}
+
+		/**
+		 * Get the mean number of inputs per batch.
+		 * @return
+		 */
+		public double getMeanBatchSize() {
+			long n = batchCount.get();
+			return n == 0 ? Double.NaN : inputCount.get() / (double)n;
+		}
+
+		/**
+		 * Get the mean time each input waited before its batch was predicted, in milliseconds.
+		 * @return
+		 */
+		public double getMeanWaitMillis() {
+			long n = inputCount.get();
+			return n == 0 ? Double.NaN : waitNanos.get() / (n * 1e6);
+		}
+
+		/**
+		 * Get the number of inputs predicted per second, excluding any time spent waiting for batches.
+		 * @return
+		 */
+		public double getInputsPerSecond() {
+			long nanos = predictNanos.get();
+			return nanos == 0 ? Double.NaN : inputCount.get() / (nanos * 1e-9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Batches: %d, inputs: %d, mean batch size: %.2f, mean wait: %.2f ms, inputs/s: %.1f",
+					getBatchCount(), getInputCount(), getMeanBatchSize(), getMeanWaitMillis(), getInputsPerSecond());
+		}
+
+	}
+
+}
@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -25,7 +25,11 @@ import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
 
 import qupath.lib.images.ImageData;
 import qupath.lib.measurements.MeasurementList;
@@ -40,16 +44,71 @@ import qupath.lib.objects.PathObject;
  */
 class DefaultFeatureExtractor<T> implements FeatureExtractor<T> {
 	
+	/**
+	 * Number of objects handled together when extracting features in parallel.
+	 */
+	private static final int CHUNK_SIZE = 4096;
+	
 	private List<String> measurements = new ArrayList<>();
 	
 	DefaultFeatureExtractor(final Collection<String> measurements) {
 		this.measurements.addAll(measurements);
 	}
 	
+	/**
+	 * Extract features for all objects, writing directly to the buffer without changing its position 
+	 * until the end.
+	 * <p>
+	 * Closed measurement lists with the same measurements share the same list of names, therefore the 
+	 * indices of the features are only looked up once for each distinct list of names, rather than 
+	 * once per object and feature. Large numbers of objects are handled in parallel.
+	 */
 	@Override
 	public void extractFeatures(ImageData<T> imageData, Collection<? extends PathObject> pathObjects, FloatBuffer buffer) {
-		for (var pathObject : pathObjects)
-			extractFeatures(pathObject, buffer);
+		var list = pathObjects instanceof List<? extends PathObject> l ? l : new ArrayList<>(pathObjects);
+		int n = list.size();
+		int nFeatures = measurements.size();
+		int pos = buffer.position();
+		int nChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		var chunks = IntStream.range(0, nChunks);
+		if (nChunks > 1)
+			chunks = chunks.parallel();
+		chunks.forEach(c -> {
+			Map<List<String>, int[]> indexCache = new IdentityHashMap<>();
+			List<String> lastNames = null;
+			int[] lastIndices = null;
+			int end = Math.min(n, (c + 1) * CHUNK_SIZE);
+			for (int i = c * CHUNK_SIZE; i < end; i++) {
+				var ml = list.get(i).getMeasurementList();
+				var names = ml.getMeasurementNames();
+				if (names != lastNames) {
+					lastIndices = indexCache.computeIfAbsent(names, this::getFeatureIndices);
+					lastNames = names;
+				}
+				int ind = pos + i * nFeatures;
+				for (int f = 0; f < nFeatures; f++) {
+					int mInd = lastIndices[f];
+					double value = mInd < 0 ? Double.NaN : ml.getMeasurementValue(mInd);
+					buffer.put(ind + f, (float)value);
+				}
+			}
+		});
+		buffer.position(pos + n * nFeatures);
+	}
+	
+	/**
+	 * Get the index of each feature within a list of measurement names.
+	 * @param names
+	 * @return an array with the index of each feature, or -1 if the feature is missing
+	 */
+	private int[] getFeatureIndices(List<String> names) {
+		Map<String, Integer> map = new HashMap<>();
+		for (int i = names.size()-1; i >= 0; i--)
+			map.put(names.get(i), i);
+		var indices = new int[measurements.size()];
+		for (int f = 0; f < indices.length; f++)
+			indices[f] = map.getOrDefault(measurements.get(f), -1);
+		return indices;
 	}
 	
 	@Override
@@ -62,14 +121,6 @@ class DefaultFeatureExtractor<T> implements FeatureExtractor<T> {
 		return measurements.size();
 	}
 	
-	private void extractFeatures(final PathObject pathObject, FloatBuffer buffer) {
-		var measurementList = pathObject.getMeasurementList();
-		for (var m : measurements) {
-			double value = measurementList.get(m);
-			buffer.put((float)value);
-		}
-	}
-	
 	@Override
 	public Collection<String> getMissingFeatures(ImageData<T> imageData, PathObject pathObject) {
 		List<String> missing = null;
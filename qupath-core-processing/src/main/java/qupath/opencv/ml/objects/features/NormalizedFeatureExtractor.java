@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -24,6 +24,7 @@ package qupath.opencv.ml.objects.features;
 import java.nio.FloatBuffer;
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathObject;
@@ -48,21 +49,45 @@ class NormalizedFeatureExtractor<T> implements FeatureExtractor<T> {
 		return featureExtractor.nFeatures();
 	}
 
+	/**
+	 * Minimum number of values to normalize before using multiple threads.
+	 */
+	private static final int MIN_PARALLEL_VALUES = 1 << 16;
+
+	/**
+	 * Normalize the features in place, after they have been written to the buffer by the wrapped extractor.
+	 */
 	@Override
 	public void extractFeatures(ImageData<T> imageData, Collection<? extends PathObject> pathObjects, FloatBuffer buffer) {
 		int pos = buffer.position();
 		featureExtractor.extractFeatures(imageData, pathObjects, buffer);
 		int n = nFeatures();
-		assert (buffer.position() - pos) == pathObjects.size() * n;
-		int ind = pos;
-		for (int i = 0; i < pathObjects.size(); i++) {
+		int nObjects = pathObjects.size();
+		assert (buffer.position() - pos) == nObjects * n;
+		
+		// Get the parameters once, rather than for every value
+		boolean isIdentity = normalizer.isIdentity();
+		double missingValue = normalizer.getMissingValue();
+		var offsets = new double[n];
+		var scales = new double[n];
+		for (int j = 0; j < n; j++) {
+			offsets[j] = isIdentity ? 0 : normalizer.getOffset(j);
+			scales[j] = isIdentity ? 1 : normalizer.getScale(j);
+		}
+		
+		var rows = IntStream.range(0, nObjects);
+		if ((long)nObjects * n >= MIN_PARALLEL_VALUES)
+			rows = rows.parallel();
+		rows.forEach(i -> {
+			int ind = pos + i * n;
 			for (int j = 0; j < n; j++) {
-				double val = buffer.get(ind);
-				val = normalizer.normalizeFeature(j, val);				
+				double val = (buffer.get(ind) + offsets[j]) * scales[j];
+				if (!Double.isFinite(val))
+					val = missingValue;
 				buffer.put(ind, (float)val);
 				ind++;
 			}
-		}
+		});
 	}
 	
 	@Override
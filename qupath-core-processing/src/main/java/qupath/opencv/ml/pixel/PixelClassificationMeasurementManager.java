@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -33,9 +33,11 @@ import java.awt.image.DataBuffer;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -43,10 +45,13 @@ import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 
@@ -84,6 +89,9 @@ public class PixelClassificationMeasurementManager {
 	
 	private static final Map<ImageServer<BufferedImage>, Map<ROI, MeasurementList>> measuredROIs = Collections.synchronizedMap(new WeakHashMap<>());
 	
+	private static ThreadPoolExecutor sharedObjectPool;
+	private static ThreadPoolExecutor sharedTilePool;
+	
 	private final ImageServer<BufferedImage> classifierServer;
 	private List<String> measurementNames = null;
 	
@@ -268,45 +276,45 @@ public class PixelClassificationMeasurementManager {
 		// If we have few large objects, we want to parallelize at the tile request level.
 		// If we parallelize heavily at both levels, we risk problems with memory use, or regions having to wait a long
 		// time to be able to complete their tile requests.
-		// The awkward workaround here is to use two thread pools, with some guesses about sensible sizes.
+		// The awkward workaround here is to use two thread pools, with some guesses about how many objects to measure in parallel.
+		// The pools are shared across calls, so that repeated measurements don't need to create new threads every time.
 		// TODO: Possible use for virtual threads?
 		int maxParallelism = calculatePreferredParallelism();
 		int nObjectThreads = 1;
-		int nTileThreads = maxParallelism;
 		if (objectsToMeasure.size() > 1 && maxParallelism > 2) {
 			if (objectsToMeasure.size() > maxParallelism) {
 				// Many objects - expected to be small
 				nObjectThreads = maxParallelism - 1;
-				nTileThreads = 2; // May not be used if all objects are single-tiled
 			} else {
 				// Few objects - may well be large
 				nObjectThreads = 2;
-				nTileThreads = maxParallelism - 1;
 			}
 		}
-		logger.debug("Measuring {} objects (object threads={}, tile threads={})",
-				objectsToMeasure.size(), nObjectThreads, nTileThreads);
+		logger.debug("Measuring {} objects (object threads={}, max tile threads={})",
+				objectsToMeasure.size(), nObjectThreads, maxParallelism);
 
-		var factoryObjects = ThreadTools.createThreadFactory("pixel-classification-objects", true, Thread.NORM_PRIORITY+1);
-		var factoryTiles = ThreadTools.createThreadFactory("pixel-classification-tiles", true, Thread.NORM_PRIORITY);
-		ExecutorService poolObjects = Executors.newFixedThreadPool(nObjectThreads, factoryObjects);
-		ExecutorService poolTiles = Executors.newFixedThreadPool(nTileThreads, factoryTiles);
+		var poolObjects = getSharedPool(true, maxParallelism);
+		var poolTiles = getSharedPool(false, maxParallelism);
 
 		String measurementIdFinal = measurementID;
+		var queue = new ConcurrentLinkedQueue<PathObject>(objectsToMeasure);
 		List<Future<?>> tasks = new ArrayList<>();
-		for (var pathObject : objectsToMeasure) {
-			tasks.add(poolObjects.submit(() -> measureObject(pathObject, measurementIdFinal, poolTiles)));
+		for (int i = 0; i < nObjectThreads; i++) {
+			tasks.add(poolObjects.submit(() -> {
+				PathObject pathObject;
+				while ((pathObject = queue.poll()) != null)
+					measureObject(pathObject, measurementIdFinal, poolTiles);
+			}));
 		}
-		poolObjects.shutdown();
 		try {
 			// Not necessary - but it lets us see if there has been an exception
 			for (var t : tasks) {
 				t.get();
 			}
 		} catch (Exception e) {
+			// Stop any other workers
+			queue.clear();
 			throw new RuntimeException(e);
-		} finally {
-			poolTiles.shutdown();
 		}
 
 		// The simpler (slower) sequential version of the above
@@ -342,6 +350,32 @@ public class PixelClassificationMeasurementManager {
 	}
 
 
+	/**
+	 * Get a shared pool for measuring objects or requesting tiles, ensuring that it has at least the specified number of threads.
+	 * Idle threads are allowed to time out, so the pools don't consume resources when they are not in use.
+	 * @param forObjects true if the pool is for objects, false if it is for tiles
+	 * @param nThreads minimum number of threads
+	 * @return
+	 */
+	private static synchronized ExecutorService getSharedPool(boolean forObjects, int nThreads) {
+		var pool = forObjects ? sharedObjectPool : sharedTilePool;
+		if (pool == null) {
+			var factory = forObjects ?
+					ThreadTools.createThreadFactory("pixel-classification-objects", true, Thread.NORM_PRIORITY+1) :
+					ThreadTools.createThreadFactory("pixel-classification-tiles", true, Thread.NORM_PRIORITY);
+			pool = new ThreadPoolExecutor(nThreads, nThreads, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+			pool.allowCoreThreadTimeOut(true);
+			if (forObjects)
+				sharedObjectPool = pool;
+			else
+				sharedTilePool = pool;
+		} else if (pool.getMaximumPoolSize() < nThreads) {
+			pool.setMaximumPoolSize(nThreads);
+			pool.setCorePoolSize(nThreads);
+		}
+		return pool;
+	}
+
 	private ExecutorService getDefaultPool() {
 		return ForkJoinPool.commonPool();
 	}
@@ -457,13 +491,32 @@ public class PixelClassificationMeasurementManager {
         }
         
 
+        // Tiles that are completely inside the ROI can be counted using stored histograms (if available),
+        // while all other tiles need to be counted pixel by pixel
+        var tileStore = PixelClassificationTileStore.getInstance(classifierServer);
+        boolean storeLabels = type == ChannelType.CLASSIFICATION;
+        Set<TileRequest> fullTiles = new HashSet<>();
+        for (TileRequest request : requests) {
+        	if (roi == rootROI || (shape != null && roi.isArea() && completelyContainsTile(shape, request, request.getDownsample())))
+        		fullTiles.add(request);
+        }
+
         // Try to get all cached tiles - if this fails, we need to return quickly if cachedOnly==true
 		// Otherwise, submit parallel tile requests with an auto-estimated pool size
         Map<TileRequest, BufferedImage> localCache = new HashMap<>();
         List<TileRequest> tilesToRequest = new ArrayList<>();
-		List<TileRequest> missingTiles = new ArrayList<>();
+		Set<TileRequest> missingTiles = new LinkedHashSet<>();
 		for (TileRequest request : requests) {
+			if (fullTiles.contains(request)) {
+				var histogram = tileStore.getHistogram(request);
+				if (histogram != null) {
+					counts = addCounts(counts, histogram);
+					continue;
+				}
+			}
         	BufferedImage tile = classifierServer.getCachedTile(request);
+        	if (tile == null && storeLabels)
+        		tile = tileStore.readLabels(request);
 			// If we only accept cached tiles, and we don't have one, return immediately
 			if (cachedOnly && tile == null) {
 				return null;
@@ -528,6 +581,9 @@ public class PixelClassificationMeasurementManager {
         	if (tile == null)
         		return null;
         	
+        	if (storeLabels && missingTiles.contains(region))
+        		tileStore.writeLabels(region, tile);
+        	
         	// Create a binary mask that is at least as big as the current tile 
         	if (imgMask == null || imgMask.getWidth() < tile.getWidth() || imgMask.getHeight() < tile.getHeight() || imgMask.getType() != BufferedImage.TYPE_BYTE_GRAY) {
         		imgMask = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
@@ -538,7 +594,7 @@ public class PixelClassificationMeasurementManager {
     		// Check if the entire image is within the mask
     		boolean fullMask = false;
 
-        	if (shape != null && completelyContainsTile(shape, region, region.getDownsample())) {
+        	if (fullTiles.contains(region)) {
         		// Quickly test if the entire image is masked
         		// If so, we can save time by avoiding creating and testing the mask
         		fullMask = true;
@@ -618,31 +674,13 @@ public class PixelClassificationMeasurementManager {
 			int nChannels = tile.getSampleModel().getNumBands();
 			
 			try {
-				switch (type) {
-					case CLASSIFICATION:
-						// Calculate histogram to get labelled image counts
-						counts = BufferedImageTools.computeUnsignedIntHistogram(tile.getRaster(), counts, fullMask ? null : imgMask.getRaster(), bounds);
-						break;
-					case PROBABILITY:
-						// Take classification from the channel with the highest value
-						if (nChannels > 1) {
-							counts = BufferedImageTools.computeArgMaxHistogram(tile.getRaster(), counts, fullMask ? null : imgMask.getRaster(), bounds);
-							break;
-						}
-						// For one channel, fall through & treat as multiclass
-					case MULTICLASS_PROBABILITY:
-						// For multiclass, count
-						if (counts == null)
-							counts = new long[nChannels];
-						double threshold = getProbabilityThreshold(tile.getRaster());
-						for (int c = 0; c < nChannels; c++)
-							counts[c] += BufferedImageTools.computeAboveThresholdCounts(tile.getRaster(), c, threshold, fullMask ? null : imgMask.getRaster(), bounds);
-					case DEFAULT:
-					case FEATURE:
-					default:
-						// TODO: Consider handling other OutputTypes?
-						return updateMeasurements(classificationLabels, counts, pixelArea, pixelAreaUnits);
-				}
+				var tileCounts = countPixels(tile.getRaster(), type, fullMask ? null : imgMask.getRaster(), bounds);
+				// TODO: Consider handling other OutputTypes?
+				if (tileCounts == null)
+					return updateMeasurements(classificationLabels, counts, pixelArea, pixelAreaUnits);
+				if (fullMask)
+					tileStore.putHistogram(region, tileCounts);
+				counts = addCounts(counts, tileCounts);
 			} catch (Exception e) {
 				logger.error("Error calculating classification areas", e);
 				if (nChannels > 1 && type == ChannelType.CLASSIFICATION)
@@ -658,6 +696,55 @@ public class PixelClassificationMeasurementManager {
 
     	return updateMeasurements(classificationLabels, counts, pixelArea, pixelAreaUnits);
     }
+	
+	/**
+	 * Count the pixels in a raster corresponding to each classification.
+	 * @param raster the raster containing the classification
+	 * @param type the channel type of the classification
+	 * @param rasterMask optional mask; pixels with a value of 0 in the mask will be skipped
+	 * @param bounds bounding box of the pixels to count
+	 * @return the counts, or null if the channel type is not supported
+	 */
+	private static long[] countPixels(WritableRaster raster, ChannelType type, WritableRaster rasterMask, Rectangle bounds) {
+		int nChannels = raster.getNumBands();
+		switch (type) {
+			case CLASSIFICATION:
+				// Calculate histogram to get labelled image counts
+				return BufferedImageTools.computeUnsignedIntHistogram(raster, null, rasterMask, bounds);
+			case PROBABILITY:
+				// Take classification from the channel with the highest value
+				if (nChannels > 1)
+					return BufferedImageTools.computeArgMaxHistogram(raster, null, rasterMask, bounds);
+				// For one channel, fall through & treat as multiclass
+			case MULTICLASS_PROBABILITY:
+				// For multiclass, count
+				var counts = new long[nChannels];
+				double threshold = getProbabilityThreshold(raster);
+				for (int c = 0; c < nChannels; c++)
+					counts[c] = BufferedImageTools.computeAboveThresholdCounts(raster, c, threshold, rasterMask, bounds);
+				return counts;
+			case DEFAULT:
+			case FEATURE:
+			default:
+				return null;
+		}
+	}
+	
+	/**
+	 * Add counts to an existing array, which is expanded if necessary.
+	 * @param counts the existing counts (may be null)
+	 * @param toAdd the counts to add
+	 * @return the updated counts
+	 */
+	private static long[] addCounts(long[] counts, long[] toAdd) {
+		if (counts == null)
+			return toAdd.clone();
+		if (counts.length < toAdd.length)
+			counts = Arrays.copyOf(counts, toAdd.length);
+		for (int i = 0; i < toAdd.length; i++)
+			counts[i] += toAdd[i];
+		return counts;
+	}
 
 
 	/**
@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml.pixel;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.classifiers.pixel.PixelClassificationImageServer;
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerProvider;
+import qupath.lib.images.servers.PersistentTileCache;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.io.GsonTools;
+
+/**
+ * Store of pixel classification results for individual tiles, used to avoid reclassifying an image whenever
+ * area measurements are requested.
+ * <p>
+ * Two kinds of information are stored:
+ * <ul>
+ *   <li>a histogram of the pixel counts for each tile, which is sufficient to measure any region that completely
+ *       contains the tile</li>
+ *   <li>a labelled image for each tile, which is needed for regions that only partially overlap the tile</li>
+ * </ul>
+ * Histograms are always retained in memory. If the classification is fully determined by the image and classifier,
+ * and a {@link PersistentTileCache} is available (typically because a project is open), histograms are also written
+ * to a small file alongside the cache, and labels are written to the cache itself as 8-bit images.
+ * The file name is derived from a hash of the image and classifier, so that results can be reused across sessions.
+ */
+class PixelClassificationTileStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(PixelClassificationTileStore.class);
+
+	private static final int FILE_MAGIC = 0x51504348; // QPCH
+	private static final int RECORD_MAGIC = 0x51504852; // QPHR
+	private static final int VERSION = 1;
+
+	private static final Map<ImageServer<BufferedImage>, PixelClassificationTileStore> stores = Collections.synchronizedMap(new WeakHashMap<>());
+	// Persistent stores are shared by servers with the same ID, but only while at least one of those servers is in use
+	private static final Map<Path, WeakReference<PixelClassificationTileStore>> persistentStores = new HashMap<>();
+
+	private final String id;
+	private final Path file;
+	private final Map<String, long[]> histograms = new ConcurrentHashMap<>();
+
+	private PixelClassificationTileStore(String id, Path file) {
+		this.id = id;
+		this.file = file;
+	}
+
+	/**
+	 * Get the store to use with a specified classification server.
+	 * The store is persistent if possible, otherwise it exists only in memory.
+	 * In either case, the store is only retained while a server using it is still referenced.
+	 * @param server
+	 * @return
+	 */
+	static PixelClassificationTileStore getInstance(ImageServer<BufferedImage> server) {
+		synchronized (stores) {
+			var store = stores.get(server);
+			var dir = getStoreDirectory();
+			// Check if the store location has changed (e.g. because a new project has been opened)
+			if (store != null && (store.file == null ? dir == null : store.file.getParent().equals(dir)))
+				return store;
+			String id = dir == null ? null : createID(server);
+			if (id == null)
+				store = new PixelClassificationTileStore(null, null);
+			else
+				store = getPersistentStore(id, dir.resolve(id + ".qphist"));
+			stores.put(server, store);
+			return store;
+		}
+	}
+
+	/**
+	 * Get the persistent store for a file, reusing the existing store if it is still referenced by a server.
+	 * This should only be called while synchronized on {@link #stores}.
+	 */
+	private static PixelClassificationTileStore getPersistentStore(String id, Path file) {
+		persistentStores.values().removeIf(ref -> ref.get() == null);
+		var ref = persistentStores.get(file);
+		var store = ref == null ? null : ref.get();
+		if (store == null) {
+			store = open(id, file);
+			persistentStores.put(file, new WeakReference<>(store));
+		}
+		return store;
+	}
+
+	private static Path getStoreDirectory() {
+		var cache = ImageServerProvider.getPersistentTileCache();
+		if (cache == null)
+			return null;
+		return cache.getDirectory().resolveSibling("pixel-classification");
+	}
+
+	/**
+	 * Create an ID from the image and classifier, if the classification server output depends upon nothing else.
+	 * @param server
+	 * @return the ID, or null if the output cannot be persisted
+	 */
+	static String createID(ImageServer<BufferedImage> server) {
+		// A custom ID indicates that the output may depend upon something other than the image & classifier
+		if (!(server instanceof PixelClassificationImageServer pcs) || !server.getPath().startsWith(PixelClassificationImageServer.class.getName()))
+			return null;
+		try {
+			var imageData = pcs.getImageData();
+			var imageServer = imageData.getServer();
+			var sb = new StringBuilder(imageServer.getPath());
+			for (var uri : imageServer.getURIs()) {
+				if ("file".equals(uri.getScheme())) {
+					var path = Paths.get(uri);
+					sb.append("|").append(Files.getLastModifiedTime(path).toMillis())
+						.append("|").append(Files.size(path));
+				}
+			}
+			sb.append("|").append(imageData.getImageType());
+			var stains = imageData.getColorDeconvolutionStains();
+			if (stains != null)
+				sb.append("|").append(ColorDeconvolutionStains.getColorDeconvolutionStainsAsString(stains, 5));
+			sb.append("|").append(GsonTools.getInstance().toJson(pcs.getClassifier()));
+			var digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest);
+		} catch (Exception e) {
+			logger.debug("Unable to create ID for pixel classification store: {}", e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Open a store from a file, reading any histograms that it already contains.
+	 * @param id the ID for the store, or null if labels should not be stored
+	 * @param file the histogram file
+	 * @return
+	 */
+	static PixelClassificationTileStore open(String id, Path file) {
+		var store = new PixelClassificationTileStore(id, file);
+		if (Files.isRegularFile(file)) {
+			try (var stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				if (stream.readInt() != FILE_MAGIC || stream.readInt() != VERSION) {
+					logger.warn("Unsupported pixel classification store {} - will be replaced", file);
+					Files.delete(file);
+				} else
+					store.readRecords(stream);
+			} catch (IOException e) {
+				logger.warn("Error reading pixel classification store {}: {}", file, e.getLocalizedMessage());
+			}
+		}
+		logger.debug("Opened pixel classification store with {} tiles ({})", store.histograms.size(), file);
+		return store;
+	}
+
+	private void readRecords(DataInputStream stream) throws IOException {
+		try {
+			while (true) {
+				if (stream.readInt() != RECORD_MAGIC)
+					break;
+				var keyBytes = new byte[stream.readInt()];
+				stream.readFully(keyBytes);
+				var counts = new long[stream.readInt()];
+				for (int i = 0; i < counts.length; i++)
+					counts[i] = stream.readLong();
+				long checksum = stream.readLong();
+				// Stop at the first invalid record (e.g. an incomplete write)
+				if (checksum != checksum(keyBytes, counts))
+					break;
+				histograms.put(new String(keyBytes, StandardCharsets.UTF_8), counts);
+			}
+		} catch (EOFException e) {
+			logger.trace("Reached end of pixel classification store");
+		}
+	}
+
+	/**
+	 * Query whether the store is written to disk.
+	 * @return
+	 */
+	boolean isPersistent() {
+		return file != null;
+	}
+
+	/**
+	 * Get the histogram of all pixels in a tile, if available.
+	 * @param request
+	 * @return the histogram, or null if the tile has not been stored
+	 */
+	long[] getHistogram(TileRequest request) {
+		return histograms.get(getKey(request));
+	}
+
+	/**
+	 * Store the histogram of all pixels in a tile.
+	 * Trailing zeros are removed before the histogram is stored.
+	 * @param request
+	 * @param counts
+	 */
+	void putHistogram(TileRequest request, long[] counts) {
+		String key = getKey(request);
+		int n = counts.length;
+		while (n > 0 && counts[n-1] == 0)
+			n--;
+		var trimmed = Arrays.copyOf(counts, n);
+		if (histograms.putIfAbsent(key, trimmed) != null || file == null)
+			return;
+		try {
+			writeRecord(key, trimmed);
+		} catch (IOException e) {
+			logger.warn("Unable to write to pixel classification store: {}", e.getLocalizedMessage());
+			logger.debug(e.getLocalizedMessage(), e);
+		}
+	}
+
+	private synchronized void writeRecord(String key, long[] counts) throws IOException {
+		var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new DataOutputStream(bytes)) {
+			if (!Files.exists(file)) {
+				Files.createDirectories(file.getParent());
+				stream.writeInt(FILE_MAGIC);
+				stream.writeInt(VERSION);
+			}
+			stream.writeInt(RECORD_MAGIC);
+			stream.writeInt(keyBytes.length);
+			stream.write(keyBytes);
+			stream.writeInt(counts.length);
+			for (long c : counts)
+				stream.writeLong(c);
+			stream.writeLong(checksum(keyBytes, counts));
+		}
+		Files.write(file, bytes.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Read the labels for a tile from the persistent tile cache, if available.
+	 * @param request
+	 * @return a single-channel 8-bit image containing the labels, or null if the labels are not available
+	 */
+	BufferedImage readLabels(TileRequest request) {
+		var cache = id == null ? null : ImageServerProvider.getPersistentTileCache();
+		if (cache == null)
+			return null;
+		return cache.readTile(getLabelKey(request), null);
+	}
+
+	/**
+	 * Write the labels for a tile to the persistent tile cache, if available.
+	 * Labels are only written if they can be stored as an 8-bit image.
+	 * @param request
+	 * @param img a single-channel image containing classification labels
+	 */
+	void writeLabels(TileRequest request, BufferedImage img) {
+		var cache = id == null ? null : ImageServerProvider.getPersistentTileCache();
+		if (cache == null)
+			return;
+		var raster = img.getRaster();
+		if (raster.getNumBands() != 1)
+			return;
+		int w = img.getWidth();
+		int h = img.getHeight();
+		var labels = img;
+		if (img.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+			var samples = raster.getSamples(0, 0, w, h, 0, (int[])null);
+			if (raster.getTransferType() != DataBuffer.TYPE_BYTE) {
+				for (int v : samples) {
+					if (v < 0 || v > 255)
+						return;
+				}
+			}
+			labels = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+			labels.getRaster().setSamples(0, 0, w, h, 0, samples);
+		}
+		cache.writeTile(getLabelKey(request), labels);
+	}
+
+	private String getLabelKey(TileRequest request) {
+		return "pixel-classification|" + id + "|" + getKey(request);
+	}
+
+	private static String getKey(TileRequest request) {
+		return request.getDownsample() + "|" +
+				request.getImageX() + "|" + request.getImageY() + "|" + request.getImageWidth() + "|" + request.getImageHeight() + "|" +
+				request.getZ() + "|" + request.getT();
+	}
+
+	private static long checksum(byte[] keyBytes, long[] counts) {
+		var crc = new CRC32();
+		crc.update(keyBytes);
+		for (long c : counts) {
+			for (int i = 0; i < 8; i++)
+				crc.update((int)(c >>> (i * 8)));
+		}
+		return crc.getValue();
+	}
+
+}
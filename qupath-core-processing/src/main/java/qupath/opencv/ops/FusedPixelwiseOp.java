@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ops;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.PixelType;
+
+/**
+ * Apply a sequence of {@link PixelwiseOp}s in a single pass.
+ * <p>
+ * This is used internally when applying ops sequentially, and is not serialized.
+ * Values are rounded to the precision of the image after every op, so that the result is the same as applying the
+ * ops one after the other.
+ * <p>
+ * Only continuous {@code CV_32F} and {@code CV_64F} images are processed in a single pass;
+ * for anything else, the ops are applied one at a time.
+ */
+class FusedPixelwiseOp implements ImageOp {
+
+	private final List<PixelwiseOp> ops;
+
+	FusedPixelwiseOp(Collection<? extends PixelwiseOp> ops) {
+		this.ops = new ArrayList<>(ops);
+	}
+
+	/**
+	 * Get the ops that are fused.
+	 * @return
+	 */
+	List<PixelwiseOp> getOps() {
+		return ops;
+	}
+
+	@Override
+	public Mat apply(Mat input) {
+		if (input.empty())
+			return input;
+		int depth = input.depth();
+		if (!input.isContinuous() || (depth != opencv_core.CV_32F && depth != opencv_core.CV_64F)) {
+			for (var op : ops) {
+				var output = op.apply(input);
+				if (output != input) {
+					input.put(output);
+					output.close();
+				}
+			}
+			return input;
+		}
+
+		int nChannels = input.channels();
+		var functions = new DoubleUnaryOperator[nChannels];
+		for (int c = 0; c < nChannels; c++)
+			functions[c] = createFunction(c, nChannels, depth);
+
+		if (depth == opencv_core.CV_32F) {
+			FloatBuffer buffer = input.createBuffer();
+			int n = buffer.limit();
+			for (int i = 0; i < n; i++)
+				buffer.put(i, (float)functions[i % nChannels].applyAsDouble(buffer.get(i)));
+		} else {
+			DoubleBuffer buffer = input.createBuffer();
+			int n = buffer.limit();
+			for (int i = 0; i < n; i++)
+				buffer.put(i, functions[i % nChannels].applyAsDouble(buffer.get(i)));
+		}
+		return input;
+	}
+
+	private DoubleUnaryOperator createFunction(int channel, int nChannels, int depth) {
+		boolean isFloat32 = depth == opencv_core.CV_32F;
+		DoubleUnaryOperator function = null;
+		for (var op : ops) {
+			var next = op.getFunction(channel, nChannels, depth);
+			// Round intermediate values in the same way as if the ops were applied separately
+			if (isFloat32) {
+				var unrounded = next;
+				next = v -> (float)unrounded.applyAsDouble(v);
+			}
+			function = function == null ? next : function.andThen(next);
+		}
+		return function;
+	}
+
+	@Override
+	public List<ImageChannel> getChannels(List<ImageChannel> channels) {
+		for (var op : ops)
+			channels = op.getChannels(channels);
+		return channels;
+	}
+
+	@Override
+	public PixelType getOutputType(PixelType inputType) {
+		for (var op : ops)
+			inputType = op.getOutputType(inputType);
+		return inputType;
+	}
+
+}
@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -37,6 +37,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.DoubleUnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -79,6 +80,7 @@ import qupath.opencv.ml.OpenCVClassifiers.OpenCVStatModel;
 import qupath.opencv.tools.LocalNormalization;
 import qupath.opencv.tools.MultiscaleFeatures.MultiscaleFeature;
 import qupath.opencv.tools.MultiscaleFeatures.MultiscaleResultsBuilder;
+import qupath.opencv.tools.MultiscaleFeatures.ScaleSpace;
 import qupath.opencv.tools.OpenCVTools;
 
 /**
@@ -617,7 +619,7 @@ public class ImageOps {
 		 * @since v0.3.1
 		 */
 		@OpType("sigmoid")
-		static class SigmoidOp implements ImageOp {
+		static class SigmoidOp implements PixelwiseOp {
 
 			@Override
 			public Mat apply(Mat input) {
@@ -625,6 +627,11 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				return ImageOps.Normalize::sigmoid;
+			}
+			
 		}
 		
 		private static double sigmoid(double input) {
@@ -1095,6 +1102,51 @@ public class ImageOps {
 				return (int)(Math.ceil(Math.max(sigmaX, sigmaY) * 4) * 2 + 1);
 			}
 			
+			/**
+			 * Apply multiple multiscale ops to the same input, sharing intermediate images where possible.
+			 * <p>
+			 * This gives the same result as applying each op to a copy of the input cropped to remove any padding 
+			 * it does not need, but avoids splitting the channels and computing scale-independent images for every op.
+			 * 
+			 * @param ops the ops to apply
+			 * @param input the input, padded by the maximum padding required by any op
+			 * @param padding the padding of the input
+			 * @return a list containing the output for each op, with its padding removed; each Mat holds a 
+			 *         reference (see {@link Mat#retainReference()})
+			 */
+			static List<Mat> applyShared(List<MultiscaleFeatureOp> ops, Mat input, Padding padding) {
+				var output = new ArrayList<Mat>();
+				try (var scope = new PointerScope()) {
+					var channels = OpenCVTools.splitChannels(input);
+					var opFeatures = new ArrayList<List<Mat>>();
+					for (int i = 0; i < ops.size(); i++)
+						opFeatures.add(new ArrayList<>());
+					for (var mat : channels) {
+						try (var scaleSpace = new ScaleSpace(mat)) {
+							int i = 0;
+							for (var op : ops) {
+								var padExtra = padding.subtract(op.getPadding());
+								var cropped = padExtra.isEmpty() ? scaleSpace : scaleSpace.crop(
+										padExtra.getX1(), padExtra.getY1(),
+										input.cols()-padExtra.getXSum(), input.rows()-padExtra.getYSum());
+								var results = op.getBuilder().build(cropped);
+								for (var f : op.features)
+									opFeatures.get(i).add(stripPadding(results.get(f), op.getPadding()));
+								if (cropped != scaleSpace)
+									cropped.close();
+								i++;
+							}
+						}
+					}
+					for (var features : opFeatures) {
+						var merged = OpenCVTools.mergeChannels(features, new Mat());
+						merged.retainReference();
+						output.add(merged);
+					}
+				}
+				return output;
+			}
+			
 			private MultiscaleResultsBuilder getBuilder() {
 				if (builder == null) {
 					var b = new MultiscaleResultsBuilder(features);
@@ -1790,7 +1842,7 @@ public class ImageOps {
 		}
 		
 		@OpType("constant")
-		static class FixedThresholdOp extends AbstractThresholdOp {
+		static class FixedThresholdOp extends AbstractThresholdOp implements PixelwiseOp {
 			
 			private double[] thresholds;
 			
@@ -1803,6 +1855,13 @@ public class ImageOps {
 				return thresholds[Math.min(channel, thresholds.length-1)];
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				// OpenCV uses a threshold with the same precision as the image
+				double threshold = PixelwiseOp.toDepth(thresholds[Math.min(channel, thresholds.length-1)], depth);
+				return v -> v > threshold ? 1 : 0;
+			}
+			
 		}
 
 		
@@ -2112,7 +2171,7 @@ public class ImageOps {
 		 * @since v0.3.1
 		 */
 		@OpType("clip")
-		static class ClipOp implements ImageOp {
+		static class ClipOp implements PixelwiseOp {
 			
 			private double min, max;
 			
@@ -2127,6 +2186,11 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				return v -> GeneralTools.clipValue(v, min, max);
+			}
+			
 		}
 		
 		
@@ -2153,7 +2217,7 @@ public class ImageOps {
 		}
 		
 		@OpType("multiply")
-		static class MultiplyOp implements ImageOp {
+		static class MultiplyOp implements PixelwiseOp {
 
 			private double[] values;
 			
@@ -2178,6 +2242,12 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				double value = PixelwiseOp.toDepth(PixelwiseOp.getChannelValue("Multiply", values, channel, nChannels), depth);
+				return v -> v * value;
+			}
+			
 		}
 		
 		@OpType("replace-values")
@@ -2199,7 +2269,7 @@ public class ImageOps {
 		}
 		
 		@OpType("replace-nans")
-		static class ReplaceNaNsOp implements ImageOp {
+		static class ReplaceNaNsOp implements PixelwiseOp {
 			
 			private double value;
 			
@@ -2213,11 +2283,17 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				double replace = PixelwiseOp.toDepth(value, depth);
+				return v -> Double.isNaN(v) ? replace : v;
+			}
+			
 		}
 		
 		
 		@OpType("round")
-		static class RoundOp implements ImageOp {
+		static class RoundOp implements PixelwiseOp {
 
 			@Override
 			public Mat apply(Mat input) {
@@ -2225,10 +2301,15 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				return v -> Double.isFinite(v) ? Math.round(v) : v;
+			}
+			
 		}
 		
 		@OpType("ceil")
-		static class CeilOp implements ImageOp {
+		static class CeilOp implements PixelwiseOp {
 
 			@Override
 			public Mat apply(Mat input) {
@@ -2236,10 +2317,15 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				return v -> Double.isFinite(v) ? Math.ceil(v) : v;
+			}
+			
 		}
 		
 		@OpType("floor")
-		static class FloorOp implements ImageOp {
+		static class FloorOp implements PixelwiseOp {
 
 			@Override
 			public Mat apply(Mat input) {
@@ -2247,10 +2333,15 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				return v -> Double.isFinite(v) ? Math.floor(v) : v;
+			}
+			
 		}
 		
 		@OpType("divide")
-		static class DivideOp implements ImageOp {
+		static class DivideOp implements PixelwiseOp {
 
 			private double[] values;
 			
@@ -2275,10 +2366,17 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				// OpenCV implements division by a constant as multiplication by the reciprocal
+				double value = PixelwiseOp.toDepth(1.0 / PixelwiseOp.getChannelValue("Divide", values, channel, nChannels), depth);
+				return v -> v * value;
+			}
+			
 		}
 		
 		@OpType("add")
-		static class AddOp implements ImageOp {
+		static class AddOp implements PixelwiseOp {
 
 			private double[] values;
 			
@@ -2303,10 +2401,16 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				double value = PixelwiseOp.toDepth(PixelwiseOp.getChannelValue("Add", values, channel, nChannels), depth);
+				return v -> v + value;
+			}
+			
 		}
 		
 		@OpType("subtract")
-		static class SubtractOp implements ImageOp {
+		static class SubtractOp implements PixelwiseOp {
 
 			private double[] values;
 			
@@ -2331,6 +2435,12 @@ public class ImageOps {
 				return input;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				double value = PixelwiseOp.toDepth(PixelwiseOp.getChannelValue("Subtract", values, channel, nChannels), depth);
+				return v -> v - value;
+			}
+			
 		}
 		
 		@OpType("sqrt")
@@ -2346,10 +2456,15 @@ public class ImageOps {
 		
 		
 		@OpType("log")
-		static class LogOp implements ImageOp {
+		static class LogOp implements PixelwiseOp {
 			
 			LogOp() {}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				return d -> FastMath.log(d);
+			}
+			
 			@Override
 			public Mat apply(Mat input) {
 				// Use FastMath - there are too many caveats with OpenCV's log implementation
@@ -2391,7 +2506,7 @@ public class ImageOps {
 		}
 		
 		@OpType("pow")
-		static class PowerOp implements ImageOp {
+		static class PowerOp implements PixelwiseOp {
 			
 			private double power;
 			
@@ -2399,6 +2514,11 @@ public class ImageOps {
 				this.power = power;
 			}
 			
+			@Override
+			public DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) {
+				return d -> FastMath.pow(d, power);
+			}
+			
 			@Override
 			public Mat apply(Mat input) {
 				// Use FastMath - there are too many caveats with OpenCV's pow implementation
@@ -2437,9 +2557,65 @@ public class ImageOps {
 			
 			private List<ImageOp> ops;
 			
+			/**
+			 * Ops that are actually applied, after flattening nested sequences and fusing pixelwise ops.
+			 */
+			private transient volatile List<ImageOp> plan;
+			
 			SequentialMultiOp(Collection<? extends ImageOp> ops) {
 				this.ops = new ArrayList<>(ops);
 			}
+			
+			private List<ImageOp> getPlan() {
+				var plan = this.plan;
+				if (plan == null) {
+					plan = createPlan(ops);
+					this.plan = plan;
+				}
+				return plan;
+			}
+			
+			/**
+			 * Create the list of ops to apply, giving the same result as applying the original ops sequentially.
+			 * Nested sequential ops are flattened, and consecutive {@link PixelwiseOp}s are fused into a single op
+			 * so that they are applied in one pass without intermediate images.
+			 * @param ops
+			 * @return
+			 */
+			static List<ImageOp> createPlan(List<? extends ImageOp> ops) {
+				var flattened = new ArrayList<ImageOp>();
+				flatten(ops, flattened);
+				var plan = new ArrayList<ImageOp>();
+				var pixelwise = new ArrayList<PixelwiseOp>();
+				for (var op : flattened) {
+					if (op instanceof PixelwiseOp pixelwiseOp) {
+						pixelwise.add(pixelwiseOp);
+					} else {
+						addPixelwiseOps(pixelwise, plan);
+						plan.add(op);
+					}
+				}
+				addPixelwiseOps(pixelwise, plan);
+				logger.trace("Created plan with {} ops from {} ops", plan.size(), flattened.size());
+				return plan;
+			}
+			
+			private static void flatten(List<? extends ImageOp> ops, List<ImageOp> output) {
+				for (var op : ops) {
+					if (op instanceof SequentialMultiOp sequential)
+						flatten(sequential.ops, output);
+					else
+						output.add(op);
+				}
+			}
+			
+			private static void addPixelwiseOps(List<PixelwiseOp> pixelwise, List<ImageOp> plan) {
+				if (pixelwise.size() == 1)
+					plan.add(pixelwise.get(0));
+				else if (pixelwise.size() > 1)
+					plan.add(new FusedPixelwiseOp(pixelwise));
+				pixelwise.clear();
+			}
 
 			@Override
 			protected Padding calculatePadding() {
@@ -2451,7 +2627,7 @@ public class ImageOps {
 
 			@Override
 			public Mat apply(Mat input) {
-				for (var t : ops) {
+				for (var t : getPlan()) {
 					var output = t.apply(input);
 					// Effectively work in-place, deallocating quickly to avoid 
 					// accumulating a lot of references and relying on the garbage collector
@@ -2527,7 +2703,14 @@ public class ImageOps {
 
 			@Override
 			public Mat apply(Mat input) {
-				return OpenCVTools.mergeChannels(transformPadded(input), input);
+				var mats = transformPadded(input);
+				var output = OpenCVTools.mergeChannels(mats, input);
+				// With more than one op, all the mats are temporary copies that can be reused
+				if (ops.size() > 1) {
+					for (var mat : mats)
+						ScratchMats.release(mat);
+				}
+				return output;
 			}
 			
 			@Override
@@ -2553,6 +2736,12 @@ public class ImageOps {
 				if (ops.size() == 1)
 					return Collections.singletonList(ops.get(0).apply(input));
 
+				// Multiscale features can share intermediate images across scales
+				if (ops.stream().allMatch(Filters.MultiscaleFeatureOp.class::isInstance)) {
+					var multiscaleOps = ops.stream().map(Filters.MultiscaleFeatureOp.class::cast).toList();
+					return Filters.MultiscaleFeatureOp.applyShared(multiscaleOps, input, getPadding());
+				}
+
 				try (var scope = new PointerScope()) {
 					var mats = new ArrayList<Mat>();
 					// Remember we padded all branches the same - but some may have needed more or less than others
@@ -2561,17 +2750,19 @@ public class ImageOps {
 						// The input is padded to the maximum required for all ops.
 						// This may be more than we need here, so strip the extra padding now to save memory & computation
 						// (This changed in v0.5.0 - previously we stripped padding after applying the op)
+						// Use a temporary copy from the pool, to avoid allocating new memory for every tile
 						Mat temp;
 						var padExtra = padding.subtract(op.getPadding());
 						if (!padExtra.isEmpty()) {
-							temp = stripPadding(input, padExtra);
+							temp = ScratchMats.copyOf(input.apply(new Rect(
+									padExtra.getX1(), padExtra.getY1(),
+									input.cols()-padExtra.getXSum(), input.rows()-padExtra.getYSum())));
 						} else {
-							temp = input.clone();
+							temp = ScratchMats.copyOf(input);
 						}
 						// Apply the op
 						temp.put(op.apply(temp));
 
-						temp.retainReference();
 						mats.add(temp);
 					}
 					return mats;
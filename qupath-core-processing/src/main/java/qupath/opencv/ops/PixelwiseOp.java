@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ops;
+
+import java.util.function.DoubleUnaryOperator;
+
+import org.bytedeco.opencv.global.opencv_core;
+
+/**
+ * An {@link ImageOp} that transforms each value independently, without changing the number of channels or the pixel type.
+ * <p>
+ * Consecutive pixelwise ops can be fused, so that they are applied in a single pass over the image without
+ * creating any intermediate images.
+ *
+ * @see FusedPixelwiseOp
+ */
+interface PixelwiseOp extends ImageOp {
+
+	/**
+	 * Get a function that gives the same result as applying this op to a single value.
+	 * <p>
+	 * Only floating point images are fused, therefore the depth will be either {@code CV_32F} or {@code CV_64F}.
+	 * Implementations should take care to replicate the precision used by OpenCV for the same depth.
+	 *
+	 * @param channel the channel containing the value
+	 * @param nChannels the total number of channels
+	 * @param depth the OpenCV depth
+	 * @return
+	 * @throws IllegalArgumentException if the op does not support the number of channels
+	 */
+	DoubleUnaryOperator getFunction(int channel, int nChannels, int depth) throws IllegalArgumentException;
+
+	/**
+	 * Convert a constant to the precision that OpenCV would use for an image with the specified depth.
+	 * @param value
+	 * @param depth
+	 * @return
+	 */
+	static double toDepth(double value, int depth) {
+		return depth == opencv_core.CV_32F ? (float)value : value;
+	}
+
+	/**
+	 * Get the value from an array of per-channel values, checking that the length is compatible with the number of channels.
+	 * @param name the name of the operation, used for any exception message
+	 * @param values either a single value, or one value per channel
+	 * @param channel the channel
+	 * @param nChannels the number of channels
+	 * @return
+	 * @throws IllegalArgumentException if the number of values does not match the number of channels
+	 */
+	static double getChannelValue(String name, double[] values, int channel, int nChannels) throws IllegalArgumentException {
+		if (values.length == 1)
+			return values[0];
+		if (values.length == nChannels)
+			return values[channel];
+		throw new IllegalArgumentException(name + " requires " + values.length + " channels, but Mat has " + nChannels);
+	}
+
+}
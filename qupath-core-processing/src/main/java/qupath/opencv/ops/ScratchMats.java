@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ops;
+
+import java.util.ArrayDeque;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+/**
+ * Per-thread pool of {@link Mat}s used for temporary copies while applying ops.
+ * <p>
+ * Tiles processed by the same thread usually have the same size and type, so reusing a Mat
+ * avoids allocating new native memory for every tile.
+ * <p>
+ * Mats obtained from the pool hold a reference (see {@link Mat#retainReference()}), so that they are not deallocated
+ * when any enclosing {@link org.bytedeco.javacpp.PointerScope} is closed. They should be returned with {@link #release(Mat)}
+ * once they are no longer needed.
+ */
+class ScratchMats {
+
+	/**
+	 * Maximum number of Mats to retain for each thread.
+	 */
+	private static final int MAX_POOL_SIZE = 4;
+
+	private static final ThreadLocal<ArrayDeque<Mat>> pool = ThreadLocal.withInitial(ArrayDeque::new);
+
+	/**
+	 * Get a Mat from the pool containing a copy of the input.
+	 * @param input
+	 * @return
+	 */
+	static Mat copyOf(Mat input) {
+		var mat = pool.get().pollFirst();
+		if (mat == null || mat.isNull()) {
+			mat = new Mat();
+			mat.retainReference();
+		}
+		input.copyTo(mat);
+		return mat;
+	}
+
+	/**
+	 * Return a Mat to the pool, or deallocate it if the pool is full.
+	 * @param mat a Mat previously returned by {@link #copyOf(Mat)}
+	 */
+	static void release(Mat mat) {
+		var deque = pool.get();
+		if (deque.size() < MAX_POOL_SIZE)
+			deque.addFirst(mat);
+		else
+			mat.releaseReference();
+	}
+
+}
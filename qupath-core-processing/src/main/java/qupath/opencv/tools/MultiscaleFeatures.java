@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -38,6 +38,7 @@ import org.bytedeco.opencv.global.opencv_imgproc;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.bytedeco.opencv.opencv_core.MatExpr;
 import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
 
 import qupath.lib.images.servers.PixelCalibration;
 
@@ -560,188 +561,142 @@ public class MultiscaleFeatures {
 		
 		
 		private List<FeatureMap> build2D(List<Mat> mats) {
-			
 			List<FeatureMap> results = new ArrayList<>();
-//			List<Mat> resultMats = new ArrayList<>();
+			int depth = mats.stream().allMatch(m -> m.depth() == opencv_core.CV_64F) ? opencv_core.CV_64F : opencv_core.CV_32F;
+			for (Mat mat : mats) {
+				try (var scaleSpace = new ScaleSpace(mat, depth)) {
+					results.add(build(scaleSpace));
+				}
+			}
+			return results;
+		}
+		
+		/**
+		 * Calculate 2D features using a {@link ScaleSpace}.
+		 * This makes it possible to share intermediate images when calculating features with different builders 
+		 * (e.g. for different scales) from the same image.
+		 * @param scaleSpace
+		 * @return
+		 * @since v0.5.1
+		 */
+		public FeatureMap build(ScaleSpace scaleSpace) {
 			
-//			try (var scope = new PointerScope()) {
+			double sigmaX = this.sigmaX;
+			double sigmaY = this.sigmaY;
+			if (pixelCalibration.hasPixelSizeMicrons()) {
+				sigmaX /= pixelCalibration.getPixelWidthMicrons() * downsampleXY;
+				sigmaY /= pixelCalibration.getPixelHeightMicrons() * downsampleXY;
+			}
 			
-				double sigmaX = this.sigmaX;
-				double sigmaY = this.sigmaY;
-				if (pixelCalibration.hasPixelSizeMicrons()) {
-					sigmaX /= pixelCalibration.getPixelWidthMicrons() * downsampleXY;
-					sigmaY /= pixelCalibration.getPixelHeightMicrons() * downsampleXY;
-				}
-				
-				Mat kx0 = OpenCVTools.getGaussianDerivKernel(sigmaX, 0, false);
-				Mat kx1 = OpenCVTools.getGaussianDerivKernel(sigmaX, 1, false);
-				Mat kx2 = OpenCVTools.getGaussianDerivKernel(sigmaX, 2, false);
+			// Check if we do Hessian or Structure Tensor-based features
+			boolean doSmoothed = weightedStdDev || gaussianSmoothed;
+			boolean doHessian = hessianDeterminant || hessianEigenvalues || laplacianOfGaussian; // || hessianEigenvectors;
+			
+			// TODO: Consder if some calculations need to be done in 64-bit
+			int depth = scaleSpace.getDepth();
+			Mat mat = scaleSpace.getMat();
+			
+			Map<MultiscaleFeature, Mat> features = new LinkedHashMap<>();
+			Hessian2D hessian = null;
+			
+			// Derivatives share the first (row) pass of the separable filters
+			try (var derivatives = new GaussianDerivatives(mat, sigmaX, sigmaY, depth, border)) {
 				
-				Mat ky0 = OpenCVTools.getGaussianDerivKernel(sigmaY, 0, true);
-				Mat ky1 = OpenCVTools.getGaussianDerivKernel(sigmaY, 1, true);
-				Mat ky2 = OpenCVTools.getGaussianDerivKernel(sigmaY, 2, true);
+				Mat matSmooth = null;
+				if (doSmoothed) {
+					if (sigmaX > 0 || sigmaY > 0)
+						matSmooth = derivatives.filter(0, 0, new Mat());
+					else
+						matSmooth = mat.clone();
+					
+					stripPadding(matSmooth);
+					if (gaussianSmoothed)
+						features.put(MultiscaleFeature.GAUSSIAN, matSmooth);
+					
+					if (weightedStdDev) {
+						Mat matSquaredSmoothed = new Mat();
+						derivatives.filterOther(scaleSpace.getSquared(), matSquaredSmoothed);
+						stripPadding(matSquaredSmoothed);
+						matSquaredSmoothed.put(opencv_core.subtract(matSquaredSmoothed, matSmooth.mul(matSmooth)));
+						opencv_core.sqrt(matSquaredSmoothed, matSquaredSmoothed);
+						features.put(MultiscaleFeature.WEIGHTED_STD_DEV, matSquaredSmoothed);					
+					}
+				}
 				
 				// Calculate image derivatives
 				Mat dxx = new Mat();
 				Mat dxy = new Mat();
 				Mat dyy = new Mat();
 				
-				// Check if we do Hessian or Structure Tensor-based features
-				boolean doSmoothed = weightedStdDev || gaussianSmoothed;
-	//			boolean doStructureTensor = structureTensorEigenvalues;
-				boolean doHessian = hessianDeterminant || hessianEigenvalues || laplacianOfGaussian; // || hessianEigenvectors;
+				if (structureTensorEigenvalues) {
+					// Products of the image gradients don't depend upon the scale, and so can be shared
+					var gradients = scaleSpace.getGradientProducts();
+					derivatives.filterOther(gradients.get(0), dxx);
+					derivatives.filterOther(gradients.get(1), dxy);
+					derivatives.filterOther(gradients.get(2), dyy);
 					
-				Hessian2D hessian = null;
-				
-	//			double scaleT = sigmaX * sigmaY;
+					var temp = new EigenSymm2(dxx, dxy, dyy, false);
+					var stMax = stripPadding(temp.eigvalMax);
+					var stMin = stripPadding(temp.eigvalMin);
+					var coherence = calculateCoherence(stMax, stMin);
+					
+					features.put(MultiscaleFeature.STRUCTURE_TENSOR_EIGENVALUE_MAX, stMax);
+					features.put(MultiscaleFeature.STRUCTURE_TENSOR_EIGENVALUE_MIN, stMin);
+					features.put(MultiscaleFeature.STRUCTURE_TENSOR_COHERENCE, coherence);
+				}
 				
-				// TODO: Consder if some calculations need to be done in 64-bit
-	//			int depth = structureTensorEigenvalues || doHessian ? opencv_core.CV_64F : opencv_core.CV_32F;
+				if (gradientMagnitude) {
+					derivatives.filter(1, 0, dxx);
+					derivatives.filter(0, 1, dyy);
+					Mat magnitude = new Mat();
+					opencv_core.magnitude(dxx, dyy, magnitude);
+					features.put(MultiscaleFeature.GRADIENT_MAGNITUDE, stripPadding(magnitude));
+				}
 				
-				int depth = mats.stream().allMatch(m -> m.depth() == opencv_core.CV_64F) ? opencv_core.CV_64F : opencv_core.CV_32F;
-	
-				for (Mat mat : mats) {
-					
-					Map<MultiscaleFeature, Mat> features = new LinkedHashMap<>();
+				if (doHessian) {
+					derivatives.filter(2, 0, dxx);
+					derivatives.filter(0, 2, dyy);
+					derivatives.filter(1, 1, dxy);
 					
-					Mat matSmooth = null;
-					if (doSmoothed) {
-						if (sigmaX > 0 || sigmaY > 0) {
-							matSmooth = new Mat();
-							opencv_imgproc.sepFilter2D(mat, matSmooth, depth, kx0, ky0, null, 0.0, border);
-						} else
-							matSmooth = mat.clone();
-						
-						stripPadding(matSmooth);
-						if (gaussianSmoothed)
-							features.put(MultiscaleFeature.GAUSSIAN, matSmooth);
-						
-						if (weightedStdDev) {
-							Mat matSquaredSmoothed = mat.mul(mat).asMat();
-							opencv_imgproc.sepFilter2D(matSquaredSmoothed, matSquaredSmoothed, depth, kx0, ky0, null, 0.0, border);
-							stripPadding(matSquaredSmoothed);
-							matSquaredSmoothed.put(opencv_core.subtract(matSquaredSmoothed, matSmooth.mul(matSmooth)));
-							opencv_core.sqrt(matSquaredSmoothed, matSquaredSmoothed);
-							features.put(MultiscaleFeature.WEIGHTED_STD_DEV, matSquaredSmoothed);					
-						}
-					}
-									
-					if (structureTensorEigenvalues) {
-						// Allow use of the same Mats as we might need for derivatives later
-						opencv_imgproc.Sobel(mat, dxx, depth, 1, 0);
-						opencv_imgproc.Sobel(mat, dyy, depth, 0, 1);
-						dxy.put(dxx.mul(dyy));
-						dxx.put(dxx.mul(dxx));
-						dyy.put(dyy.mul(dyy));
-						opencv_imgproc.sepFilter2D(dxx, dxx, depth, kx0, ky0, null, 0.0, border);
-						opencv_imgproc.sepFilter2D(dyy, dyy, depth, kx0, ky0, null, 0.0, border);					
-						opencv_imgproc.sepFilter2D(dxy, dxy, depth, kx0, ky0, null, 0.0, border);
-						
-						var temp = new EigenSymm2(dxx, dxy, dyy, false);
-						var stMax = stripPadding(temp.eigvalMax);
-						var stMin = stripPadding(temp.eigvalMin);
-						var coherence = calculateCoherence(stMax, stMin);
-						
-						features.put(MultiscaleFeature.STRUCTURE_TENSOR_EIGENVALUE_MAX, stMax);
-						features.put(MultiscaleFeature.STRUCTURE_TENSOR_EIGENVALUE_MIN, stMin);
-						features.put(MultiscaleFeature.STRUCTURE_TENSOR_COHERENCE, coherence);
-					}
+					// Strip padding now to reduce necessary calculations
+					stripPadding(dxx);
+					stripPadding(dxy);
+					stripPadding(dyy);
 					
-					if (gradientMagnitude) {
-						opencv_imgproc.sepFilter2D(mat, dxx, depth, kx1, ky0, null, 0.0, border);
-						opencv_imgproc.sepFilter2D(mat, dyy, depth, kx0, ky1, null, 0.0, border);					
-						Mat magnitude = new Mat();
-						opencv_core.magnitude(dxx, dyy, magnitude);
-						features.put(MultiscaleFeature.GRADIENT_MAGNITUDE, stripPadding(magnitude));
+					hessian = new Hessian2D(dxx, dxy, dyy, retainHessian);
+					if (laplacianOfGaussian) {
+						Mat temp = hessian.getLaplacian();
+						features.put(MultiscaleFeature.LAPLACIAN, temp);
 					}
 					
-					if (doHessian) {
-						opencv_imgproc.sepFilter2D(mat, dxx, depth, kx2, ky0, null, 0.0, border);
-						opencv_imgproc.sepFilter2D(mat, dyy, depth, kx0, ky2, null, 0.0, border);
-						opencv_imgproc.sepFilter2D(mat, dxy, depth, kx1, ky1, null, 0.0, border);
-						
-						// Strip padding now to reduce necessary calculations
-						stripPadding(dxx);
-						stripPadding(dxy);
-						stripPadding(dyy);
-						
-						hessian = new Hessian2D(dxx, dxy, dyy, retainHessian);
-						if (laplacianOfGaussian) {
-							Mat temp = hessian.getLaplacian();
-	//						if (scaleNormalize)
-	//							opencv_core.multiplyPut(temp, scaleT);
-							features.put(MultiscaleFeature.LAPLACIAN, temp);
-						}
-						
-						if (hessianDeterminant) {
-							Mat temp = hessian.getDeterminant();
-	//						if (scaleNormalize)
-	//							opencv_core.multiplyPut(temp, scaleT * scaleT);
-							features.put(MultiscaleFeature.HESSIAN_DETERMINANT, temp);
-						}
-						
-						if (hessianEigenvalues) {
-							List<Mat> eigenvalues = hessian.getEigenvalues(false);
-							assert eigenvalues.size() == 2;
-							features.put(MultiscaleFeature.HESSIAN_EIGENVALUE_MAX, eigenvalues.get(0));
-							features.put(MultiscaleFeature.HESSIAN_EIGENVALUE_MIN, eigenvalues.get(1));
-						}
-						
+					if (hessianDeterminant) {
+						Mat temp = hessian.getDeterminant();
+						features.put(MultiscaleFeature.HESSIAN_DETERMINANT, temp);
 					}
 					
-					// Ensure our output is 32-bit
-					if (depth != opencv_core.CV_32F) {
-						for (var matFeature : features.values()) {
-							matFeature.convertTo(matFeature, opencv_core.CV_32F);
-						}
+					if (hessianEigenvalues) {
+						List<Mat> eigenvalues = hessian.getEigenvalues(false);
+						assert eigenvalues.size() == 2;
+						features.put(MultiscaleFeature.HESSIAN_EIGENVALUE_MAX, eigenvalues.get(0));
+						features.put(MultiscaleFeature.HESSIAN_EIGENVALUE_MIN, eigenvalues.get(1));
 					}
-					
-					results.add(new FeatureMap(features, retainHessian ? hessian : null));
 				}
 				
-//				// Make sure we retain the Mats that we need
-//				for (var r : results) {
-//					for (var m : r.features.values()) {
-//						m.retainReference();
-//						resultMats.add(m);
-//						if (r.getHessian() != null) {
-//							// TODO: Retain Hessian!
-//						}
-//					}
-//				}
-//				
-//			}
-			
-//			var currentScope = PointerScope.getInnerScope();
-//			if (currentScope != null) {
-//				for (var m : resultMats) {
-//					currentScope.attach(m);
-//				}
-//			}
-			
-			
-//			if (hessian != null && !retainHessian) {
-//				hessian.dxx.close();
-//				hessian.dxy.close();
-//				hessian.dyy.close();
-//			}//				hessian.close();
-//
-			if (dxx != null)
-				dxx.close();
-			if (dxy != null)
-				dxy.close();
-			if (dyy != null)
-				dyy.close();
+				if (!(doHessian && retainHessian)) {
+					dxx.close();
+					dxy.close();
+					dyy.close();
+				}
+			}
 			
-			kx0.close();
-			kx1.close();
-			kx2.close();
-			ky0.close();
-			ky1.close();
-			ky2.close();
+			// Ensure our output is 32-bit
+			if (depth != opencv_core.CV_32F) {
+				for (var matFeature : features.values()) {
+					matFeature.convertTo(matFeature, opencv_core.CV_32F);
+				}
+			}
 			
-			return results;
-
+			return new FeatureMap(features, retainHessian ? hessian : null);
 		}
 		
 		
@@ -1045,6 +1000,209 @@ public class MultiscaleFeatures {
 		
 	}
 	
+	/**
+	 * Intermediate images that are needed to calculate features from the same image at multiple scales.
+	 * <p>
+	 * Some intermediate images (the squared image, and products of image gradients) don't depend upon the scale.
+	 * These are computed once when first needed, and then shared for all scales.
+	 * <p>
+	 * A scale space can also be cropped, so that features needing less padding can be calculated from the central 
+	 * region of the image without copying any pixels. Filtering a cropped scale space uses the surrounding pixels 
+	 * where available, rather than the border strategy, but this only influences pixels that would be removed 
+	 * as padding.
+	 * 
+	 * @since v0.5.1
+	 * @see MultiscaleResultsBuilder#build(ScaleSpace)
+	 */
+	public static class ScaleSpace implements AutoCloseable {
+		
+		private final ScaleSpace root;
+		private final Rect rect;
+		private final Mat mat;
+		private final int depth;
+		
+		// Only used for the root
+		private Mat matSquared;
+		private List<Mat> gradientProducts;
+		
+		/**
+		 * Create a scale space for a single-channel image.
+		 * @param mat the image; features will be calculated with 64-bit precision if this is 64-bit, 
+		 *            or 32-bit precision otherwise
+		 */
+		public ScaleSpace(Mat mat) {
+			this(mat, mat.depth() == opencv_core.CV_64F ? opencv_core.CV_64F : opencv_core.CV_32F);
+		}
+		
+		ScaleSpace(Mat mat, int depth) {
+			this.root = this;
+			this.rect = null;
+			this.mat = mat;
+			this.depth = depth;
+		}
+		
+		private ScaleSpace(ScaleSpace root, Rect rect) {
+			this.root = root;
+			this.rect = rect;
+			this.mat = root.mat.apply(rect);
+			this.depth = root.depth;
+		}
+		
+		/**
+		 * Get a scale space for a rectangular region of this one.
+		 * Intermediate images are shared with this scale space.
+		 * @param x
+		 * @param y
+		 * @param width
+		 * @param height
+		 * @return
+		 */
+		public ScaleSpace crop(int x, int y, int width, int height) {
+			int x0 = rect == null ? 0 : rect.x();
+			int y0 = rect == null ? 0 : rect.y();
+			return new ScaleSpace(root, new Rect(x0 + x, y0 + y, width, height));
+		}
+		
+		/**
+		 * Get the image.
+		 * @return
+		 */
+		Mat getMat() {
+			return mat;
+		}
+		
+		/**
+		 * Get the depth that should be used for filtering.
+		 * @return
+		 */
+		int getDepth() {
+			return depth;
+		}
+		
+		/**
+		 * Get the image multiplied by itself.
+		 * @return
+		 */
+		Mat getSquared() {
+			if (root.matSquared == null)
+				root.matSquared = root.mat.mul(root.mat).asMat();
+			return view(root.matSquared);
+		}
+		
+		/**
+		 * Get the products of the image gradients computed with a Sobel filter, as required for the structure tensor.
+		 * @return a list containing dx*dx, dx*dy and dy*dy
+		 */
+		List<Mat> getGradientProducts() {
+			if (root.gradientProducts == null) {
+				Mat dx = new Mat();
+				Mat dy = new Mat();
+				opencv_imgproc.Sobel(root.mat, dx, depth, 1, 0);
+				opencv_imgproc.Sobel(root.mat, dy, depth, 0, 1);
+				var dxy = dx.mul(dy).asMat();
+				dx.put(dx.mul(dx));
+				dy.put(dy.mul(dy));
+				root.gradientProducts = Arrays.asList(dx, dxy, dy);
+			}
+			return root.gradientProducts.stream().map(m -> view(m)).toList();
+		}
+		
+		private Mat view(Mat m) {
+			return rect == null ? m : m.apply(rect);
+		}
+
+		/**
+		 * Close any intermediate images.
+		 * The image used to create the scale space is not closed.
+		 */
+		@Override
+		public void close() {
+			if (root != this) {
+				mat.close();
+				return;
+			}
+			if (matSquared != null) {
+				matSquared.close();
+				matSquared = null;
+			}
+			if (gradientProducts != null) {
+				for (var m : gradientProducts)
+					m.close();
+				gradientProducts = null;
+			}
+		}
+		
+	}
+	
+	
+	/**
+	 * Helper class to calculate Gaussian derivatives for an image, using separable filters.
+	 * The result of filtering the rows is retained, so that it can be reused for derivatives requiring 
+	 * the same filter in the x direction.
+	 */
+	private static class GaussianDerivatives implements AutoCloseable {
+		
+		private final Mat mat;
+		private final int depth;
+		private final int border;
+		
+		private final Mat[] kx = new Mat[3];
+		private final Mat[] ky = new Mat[3];
+		private final Mat[] rows = new Mat[3];
+		private final Mat kernelIdentity;
+		
+		GaussianDerivatives(Mat mat, double sigmaX, double sigmaY, int depth, int border) {
+			this.mat = mat;
+			this.depth = depth;
+			this.border = border;
+			for (int order = 0; order < 3; order++) {
+				kx[order] = OpenCVTools.getGaussianDerivKernel(sigmaX, order, false);
+				ky[order] = OpenCVTools.getGaussianDerivKernel(sigmaY, order, true);
+			}
+			kernelIdentity = new Mat(1, 1, opencv_core.CV_64F, Scalar.all(1.0));
+		}
+		
+		/**
+		 * Filter the image to calculate a Gaussian derivative.
+		 * @param orderX order of the derivative in the x direction (0, 1 or 2)
+		 * @param orderY order of the derivative in the y direction (0, 1 or 2)
+		 * @param output the output image
+		 * @return the output image
+		 */
+		Mat filter(int orderX, int orderY, Mat output) {
+			if (rows[orderX] == null) {
+				rows[orderX] = new Mat();
+				opencv_imgproc.sepFilter2D(mat, rows[orderX], depth, kx[orderX], kernelIdentity, null, 0.0, border);
+			}
+			opencv_imgproc.sepFilter2D(rows[orderX], output, depth, kernelIdentity, ky[orderY], null, 0.0, border);
+			return output;
+		}
+		
+		/**
+		 * Apply Gaussian smoothing to a different image of the same size, without reusing any intermediate results.
+		 * @param input
+		 * @param output
+		 * @return the output image
+		 */
+		Mat filterOther(Mat input, Mat output) {
+			opencv_imgproc.sepFilter2D(input, output, depth, kx[0], ky[0], null, 0.0, border);
+			return output;
+		}
+
+		@Override
+		public void close() {
+			for (int i = 0; i < 3; i++) {
+				kx[i].close();
+				ky[i].close();
+				if (rows[i] != null)
+					rows[i].close();
+			}
+			kernelIdentity.close();
+		}
+		
+	}
+	
+	
 	/**
 	 * Calculate coherence from the max/min eigenvalues of the structure tensor.
 	 * @param stMax
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins.objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestSmoothFeaturesPlugin {
+
+	private static final List<String> MEASUREMENTS = Arrays.asList("A", "B", "C");
+
+	private static List<PathObject> createDetections(long seed) {
+		var random = new Random(seed);
+		var pathClasses = new PathClass[] {null, PathClass.fromString("Tumor"), PathClass.fromString("Stroma")};
+		var list = new ArrayList<PathObject>();
+		for (int i = 0; i < 2000; i++) {
+			// Use some repeated x-coordinates, since the order of ties matters
+			double x = random.nextInt(100) < 10 ? 500 : random.nextDouble() * 1000;
+			double y = random.nextDouble() * 800;
+			var pathObject = PathObjects.createDetectionObject(
+					ROIs.createRectangleROI(x - 2, y - 2, 4, 4, ImagePlane.getDefaultPlane()),
+					pathClasses[random.nextInt(pathClasses.length)]);
+			try (var ml = pathObject.getMeasurementList()) {
+				for (var name : MEASUREMENTS) {
+					// Include some missing values
+					ml.put(name, random.nextInt(10) == 0 ? Double.NaN : random.nextGaussian() * 100);
+				}
+			}
+			list.add(pathObject);
+		}
+		return list;
+	}
+
+	@Test
+	public void test_smoothMeasurements() {
+		for (boolean withinClass : new boolean[] {false, true}) {
+			for (double fwhm : new double[] {5, 25, 100}) {
+				var expected = createDetections(100);
+				var actual = createDetections(100);
+				smoothMeasurementsPairwise(expected, MEASUREMENTS, fwhm, "test", withinClass);
+				SmoothFeaturesPlugin.smoothMeasurements(actual, MEASUREMENTS, fwhm, "test", withinClass, false);
+				assertEquals(expected.size(), actual.size());
+				int nNearby = 0;
+				for (int i = 0; i < expected.size(); i++) {
+					var mlExpected = expected.get(i).getMeasurementList();
+					var mlActual = actual.get(i).getMeasurementList();
+					assertEquals(mlExpected.getMeasurementNames(), mlActual.getMeasurementNames());
+					for (var name : mlExpected.getMeasurementNames()) {
+						// Values should be identical, not just close
+						assertEquals(mlExpected.get(name), mlActual.get(name), 0.0, name);
+					}
+					nNearby += (int)mlActual.get("Smoothed: test: Nearby detection counts");
+				}
+				assertTrue(nNearby > 0);
+			}
+		}
+	}
+
+	/**
+	 * Previous implementation of {@link SmoothFeaturesPlugin#smoothMeasurements(List, List, double, String, boolean, boolean)},
+	 * which compares all pairs of objects sorted by x-coordinate.
+	 */
+	private static void smoothMeasurementsPairwise(List<PathObject> pathObjects, List<String> measurements, double fwhmPixels, String fwhmString, boolean withinClass) {
+		double fwhmPixels2 = fwhmPixels * fwhmPixels;
+		double sigmaPixels = fwhmPixels / Math.sqrt(8 * Math.log(2));
+		double sigma2 = 2 * sigmaPixels * sigmaPixels;
+		double maxDist = sigmaPixels * 3;
+		double maxDistSq = maxDist * maxDist;
+
+		int nObjects = pathObjects.size();
+		pathObjects.sort(Comparator.comparingDouble(p -> p.getROI().getCentroidX()));
+
+		double[] distanceWeights = new double[(int)(maxDist + .5) + 1];
+		for (int i = 0; i < distanceWeights.length; i++) {
+			distanceWeights[i] = Math.exp(-(i * i)/sigma2);
+		}
+
+		float[] xCentroids = new float[nObjects];
+		float[] yCentroids = new float[nObjects];
+		PathClass[] pathClasses = new PathClass[nObjects];
+		int[] nearbyDetectionCounts = new int[nObjects];
+		float[][] measurementsWeighted = new float[nObjects][measurements.size()];
+		float[][] measurementDenominators = new float[nObjects][measurements.size()];
+		float[][] measurementValues = new float[nObjects][measurements.size()];
+		for (int i = 0; i < nObjects; i++) {
+			PathObject pathObject = pathObjects.get(i);
+			if (withinClass)
+				pathClasses[i] = pathObject.getPathClass() == null ? null : pathObject.getPathClass().getBaseClass();
+			xCentroids[i] = (float)pathObject.getROI().getCentroidX();
+			yCentroids[i] = (float)pathObject.getROI().getCentroidY();
+			for (int ind = 0; ind < measurements.size(); ind++) {
+				float value = (float)pathObject.getMeasurementList().get(measurements.get(ind));
+				measurementValues[i][ind] = value;
+				measurementsWeighted[i][ind] = value;
+				measurementDenominators[i][ind] = 1;
+			}
+		}
+
+		String prefix = String.format("Smoothed: %s: ", fwhmString);
+		String countsName = prefix + "Nearby detection counts";
+
+		for (int i = 0; i < nObjects; i++) {
+			PathClass pathClass = pathClasses[i];
+			float[] mValues = measurementValues[i];
+			float[] mWeighted = measurementsWeighted[i];
+			float[] mDenominator = measurementDenominators[i];
+			double xi = xCentroids[i];
+			double yi = yCentroids[i];
+			for (int j = i+1; j < nObjects; j++) {
+				double xj = xCentroids[j];
+				double yj = yCentroids[j];
+				if (Math.abs(xj - xi) > maxDist)
+					break;
+				double distSq = (xj - xi)*(xj - xi) + (yj - yi)*(yj - yi);
+				if (distSq > maxDistSq || Double.isNaN(distSq))
+					continue;
+				if (withinClass && pathClass != pathClasses[j])
+					continue;
+				if (distSq < fwhmPixels2) {
+					nearbyDetectionCounts[i]++;
+					nearbyDetectionCounts[j]++;
+				}
+				double weight = distanceWeights[(int)(Math.sqrt(distSq) + .5)];
+				float [] temp = measurementValues[j];
+				float [] tempWeighted = measurementsWeighted[j];
+				float [] tempDenominator = measurementDenominators[j];
+				for (int ind = 0; ind < measurements.size(); ind++) {
+					float tempVal = temp[ind];
+					if (Float.isNaN(tempVal))
+						continue;
+					mWeighted[ind] += tempVal * weight;
+					mDenominator[ind] += weight;
+					float tempVal2 = mValues[ind];
+					if (Float.isNaN(tempVal2))
+						continue;
+					tempWeighted[ind] += tempVal2 * weight;
+					tempDenominator[ind] += weight;
+				}
+			}
+			try (var ml = pathObjects.get(i).getMeasurementList()) {
+				for (int ind = 0; ind < measurements.size(); ind++)
+					ml.put(prefix + measurements.get(ind), mWeighted[ind] / mDenominator[ind]);
+				ml.put(countsName, nearbyDetectionCounts[i]);
+			}
+		}
+	}
+
+}
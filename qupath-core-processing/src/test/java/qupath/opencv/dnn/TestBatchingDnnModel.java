@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.junit.jupiter.api.Test;
+
+import qupath.opencv.tools.OpenCVTools;
+
+@SuppressWarnings("javadoc")
+public class TestBatchingDnnModel {
+
+	@Test
+	public void test_batching() throws Exception {
+		var prediction = new DoublingFunction();
+		var model = new DefaultDnnModel<>(new DefaultBlobFunction(null, null, false), prediction);
+		int n = 16;
+		try (var batching = BatchingDnnModel.wrap(model, 8, 1000)) {
+			var outputs = predictConcurrently(batching, n, 32);
+			for (int i = 0; i < n; i++) {
+				assertEquals(32, outputs.get(i).rows());
+				assertEquals(3, outputs.get(i).channels());
+				assertEquals(i * 2.0, opencv_core.mean(outputs.get(i)).get(0), 1e-6);
+			}
+			var stats = batching.getStatistics();
+			assertEquals(n, stats.getInputCount());
+			assertTrue(stats.getBatchCount() < n);
+			assertTrue(prediction.batchSizes.stream().allMatch(s -> s <= 8));
+			assertEquals(n, prediction.batchSizes.stream().mapToInt(i -> i).sum());
+		}
+		assertThrows(IllegalArgumentException.class, () -> BatchingDnnModel.wrap(model, 0, 10));
+	}
+
+	@Test
+	public void test_onnx() throws Exception {
+		var path = Paths.get(TestBatchingDnnModel.class.getResource("conv-relu.onnx").toURI());
+		var model = DnnTools.builder(path.toString()).build();
+		int n = 8;
+		var expected = new ArrayList<Mat>();
+		for (int i = 0; i < n; i++)
+			expected.add(model.predict(createInput(i, 64)).clone());
+		try (var batching = BatchingDnnModel.wrap(model, 4, 1000)) {
+			var outputs = predictConcurrently(batching, n, 64);
+			for (int i = 0; i < n; i++) {
+				assertEquals(2, outputs.get(i).channels());
+				var diff = new Mat();
+				opencv_core.absdiff(expected.get(i), outputs.get(i), diff);
+				assertEquals(0.0, OpenCVTools.maximum(diff), 1e-5);
+			}
+			assertEquals(n, batching.getStatistics().getInputCount());
+		}
+	}
+
+	private static List<Mat> predictConcurrently(DnnModel model, int n, int size) throws Exception {
+		var pool = Executors.newFixedThreadPool(n);
+		var barrier = new CyclicBarrier(n);
+		try {
+			var futures = new ArrayList<Future<Mat>>();
+			for (int i = 0; i < n; i++) {
+				int value = i;
+				futures.add(pool.submit(() -> {
+					barrier.await();
+					var result = new Mat();
+					try (var scope = new PointerScope()) {
+						var output = model.predict(Map.of(DnnModel.DEFAULT_INPUT_NAME, createInput(value, size)));
+						assertEquals(1, output.size());
+						result.put(output.values().iterator().next());
+					}
+					return result;
+				}));
+			}
+			var outputs = new ArrayList<Mat>();
+			for (var f : futures)
+				outputs.add(f.get());
+			return outputs;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static Mat createInput(int value, int size) {
+		return new Mat(size, size, opencv_core.CV_32FC3, Scalar.all(value));
+	}
+
+	/**
+	 * Prediction function that multiplies the input by 2, and records the batch size.
+	 */
+	private static class DoublingFunction implements PredictionFunction<Mat> {
+
+		private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public Mat predict(Mat input) {
+			batchSizes.add(input.size(0));
+			return opencv_core.multiply(input, 2.0).asMat();
+		}
+
+		@Override
+		public Map<String, DnnShape> getInputs() {
+			return Map.of(DEFAULT_INPUT_NAME, DnnShape.UNKNOWN_SHAPE);
+		}
+
+		@Override
+		public Map<String, DnnShape> getOutputs(DnnShape... inputShapes) {
+			return Map.of(DEFAULT_OUTPUT_NAME, DnnShape.UNKNOWN_SHAPE);
+		}
+
+	}
+
+}
@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml.objects.features;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestFeatureExtractors {
+
+	private static final List<String> NAMES = Arrays.asList("A", "B", "C", "D", "E");
+
+	@Test
+	public void test_extractFeatures() {
+		var pathObjects = createObjects(10_000);
+		var features = Arrays.asList("D", "B", "Missing", "A");
+		FeatureExtractor<Object> extractor = FeatureExtractors.createMeasurementListFeatureExtractor(features);
+
+		// Leave some space before the features, to check the position is used
+		int offset = 7;
+		var buffer = FloatBuffer.allocate(offset + pathObjects.size() * features.size());
+		buffer.position(offset);
+		extractor.extractFeatures(null, pathObjects, buffer);
+		assertEquals(buffer.capacity(), buffer.position());
+
+		int ind = offset;
+		for (var pathObject : pathObjects) {
+			var ml = pathObject.getMeasurementList();
+			for (var name : features) {
+				assertEquals((float)ml.get(name), buffer.get(ind), 0f);
+				ind++;
+			}
+		}
+	}
+
+	@Test
+	public void test_normalizeFeatures() {
+		var pathObjects = createObjects(20_000);
+		var features = Arrays.asList("A", "C", "E");
+		FeatureExtractor<Object> extractor = FeatureExtractors.createMeasurementListFeatureExtractor(features);
+		var normalizer = Normalizer.createNormalizer(new double[] {1, -2, 0.5}, new double[] {0.5, 2, -1}, -1);
+		var normalized = FeatureExtractors.createNormalizingFeatureExtractor(extractor, normalizer);
+
+		var buffer = FloatBuffer.allocate(pathObjects.size() * features.size());
+		normalized.extractFeatures(null, pathObjects, buffer);
+
+		int ind = 0;
+		for (var pathObject : pathObjects) {
+			var ml = pathObject.getMeasurementList();
+			for (int j = 0; j < features.size(); j++) {
+				double expected = normalizer.normalizeFeature(j, (float)ml.get(features.get(j)));
+				assertEquals((float)expected, buffer.get(ind), 0f);
+				ind++;
+			}
+		}
+	}
+
+	/**
+	 * Create objects with a mixture of closed lists (which share names), open lists, 
+	 * missing measurements and NaNs.
+	 */
+	private static List<PathObject> createObjects(int n) {
+		var random = new Random(100);
+		var list = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++) {
+			var pathObject = PathObjects.createDetectionObject(
+					ROIs.createRectangleROI(i, i, 10, 10, ImagePlane.getDefaultPlane()));
+			var ml = pathObject.getMeasurementList();
+			var names = NAMES;
+			if (i % 5 == 0) {
+				names = new ArrayList<>(NAMES);
+				names.remove(random.nextInt(names.size()));
+			}
+			if (i % 7 == 0) {
+				names = new ArrayList<>(names);
+				Collections.reverse(names);
+			}
+			for (var name : names)
+				ml.put(name, i % 11 == 0 ? Double.NaN : random.nextGaussian() * 100);
+			if (i % 3 != 0)
+				ml.close();
+			list.add(pathObject);
+		}
+		return list;
+	}
+
+}
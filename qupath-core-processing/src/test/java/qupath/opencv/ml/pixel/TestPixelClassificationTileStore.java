@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml.pixel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.ImageServerMetadata.ChannelType;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestPixelClassificationTileStore {
+
+	@Test
+	public void test_persistence(@TempDir Path dir) throws IOException {
+		var file = dir.resolve("store.qphist");
+		var tile1 = TileRequest.createInstance("test", 0, 1.0, ImageRegion.createInstance(0, 0, 256, 256, 0, 0));
+		var tile2 = TileRequest.createInstance("test", 0, 1.0, ImageRegion.createInstance(256, 0, 256, 256, 0, 0));
+		var tile3 = TileRequest.createInstance("test", 0, 1.0, ImageRegion.createInstance(512, 0, 256, 256, 0, 0));
+
+		var store = PixelClassificationTileStore.open(null, file);
+		assertNull(store.getHistogram(tile1));
+		store.putHistogram(tile1, new long[] {10, 20, 0, 0});
+		store.putHistogram(tile2, new long[] {0, 5, 7});
+		// Trailing zeros are removed
+		assertArrayEquals(new long[] {10, 20}, store.getHistogram(tile1));
+
+		// Histograms should be available after reopening
+		store = PixelClassificationTileStore.open(null, file);
+		assertArrayEquals(new long[] {10, 20}, store.getHistogram(tile1));
+		assertArrayEquals(new long[] {0, 5, 7}, store.getHistogram(tile2));
+		assertNull(store.getHistogram(tile3));
+
+		// An incomplete record should be ignored, without losing earlier records
+		Files.write(file, new byte[] {0x51, 0x50, 0x48}, StandardOpenOption.APPEND);
+		store = PixelClassificationTileStore.open(null, file);
+		assertArrayEquals(new long[] {0, 5, 7}, store.getHistogram(tile2));
+	}
+
+	@Test
+	public void test_measurements() throws Exception {
+		int w = 500, h = 400;
+		var img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		var random = new Random(100);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++)
+				raster.setSample(x, y, 0, random.nextInt(3));
+		}
+		var classificationLabels = new LinkedHashMap<Integer, PathClass>();
+		for (int i = 0; i < 3; i++)
+			classificationLabels.put(i, PathClass.getInstance("Class " + i));
+
+		ImageServer<BufferedImage> server = new WrappedBufferedImageServer(UUID.randomUUID().toString(), img);
+		server.setMetadata(
+				new ImageServerMetadata.Builder(server.getOriginalMetadata())
+				.channelType(ChannelType.CLASSIFICATION)
+				.classificationLabels(classificationLabels)
+				.build()
+				);
+		var serverTiled = ImageServers.pyramidalizeTiled(server, 64, 64, 1.0);
+
+		// Region containing complete and partial tiles
+		int rx = 30, ry = 50, rw = 400, rh = 300;
+		long expected = 0;
+		for (int y = ry; y < ry + rh; y++) {
+			for (int x = rx; x < rx + rw; x++) {
+				if (raster.getSample(x, y, 0) == 1)
+					expected++;
+			}
+		}
+
+		var manager = new PixelClassificationMeasurementManager(serverTiled);
+		String name = "Class 1 area px^2";
+		var roi = ROIs.createRectangleROI(rx, ry, rw, rh, ImagePlane.getDefaultPlane());
+		assertEquals(expected, manager.getMeasurementValue(roi, name).doubleValue(), 1e-6);
+
+		// A new ROI requires a new measurement, which should use the stored histograms for complete tiles
+		var roi2 = ROIs.createRectangleROI(rx, ry, rw, rh, ImagePlane.getDefaultPlane());
+		assertEquals(expected, manager.getMeasurementValue(roi2, name).doubleValue(), 1e-6);
+		var store = PixelClassificationTileStore.getInstance(serverTiled);
+		var fullTile = TileRequest.createInstance(serverTiled.getPath(), 0, 1.0, ImageRegion.createInstance(128, 128, 64, 64, 0, 0));
+		assertEquals(3, store.getHistogram(fullTile).length);
+
+		server.close();
+		serverTiled.close();
+	}
+
+}
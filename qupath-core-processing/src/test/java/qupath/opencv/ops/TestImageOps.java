@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -43,7 +43,9 @@ import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.bytedeco.opencv.opencv_core.Scalar;
 import org.junit.jupiter.api.Test;
+import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.io.GsonTools;
+import qupath.opencv.tools.MultiscaleFeatures.MultiscaleFeature;
 import qupath.opencv.tools.OpenCVTools;
 
 @SuppressWarnings("javadoc")
@@ -461,6 +463,97 @@ public class TestImageOps {
 	
 	
 	
+	/**
+	 * Check that fusing pixelwise ops gives the same result as applying them one at a time.
+	 */
+	@Test
+	public void testFusedPixelwise() {
+		var log = ImageOps.Core.log();
+		var replaceNaNs = ImageOps.Core.replaceNaNs(-1);
+		var ops = Arrays.asList(
+				ImageOps.Core.multiply(2.5),
+				ImageOps.Core.add(1, -2, 3),
+				ImageOps.Core.sequential(log, replaceNaNs),
+				ImageOps.Core.divide(3),
+				ImageOps.Core.subtract(0.1),
+				ImageOps.Core.power(2),
+				ImageOps.Normalize.sigmoid(),
+				ImageOps.Core.clip(0.55, 0.95),
+				ImageOps.Threshold.threshold(0.6, 0.7, 0.8)
+				);
+		
+		var plan = ImageOps.Core.SequentialMultiOp.createPlan(ops);
+		assertEquals(1, plan.size());
+		assertTrue(plan.get(0) instanceof FusedPixelwiseOp);
+		assertEquals(10, ((FusedPixelwiseOp)plan.get(0)).getOps().size());
+		
+		var planWithFilter = ImageOps.Core.SequentialMultiOp.createPlan(
+				Arrays.asList(ImageOps.Core.multiply(2), ImageOps.Core.add(1), ImageOps.Filters.gaussianBlur(1), ImageOps.Core.sqrt()));
+		assertEquals(3, planWithFilter.size());
+		
+		try (var scope = new PointerScope()) {
+			for (int type : new int[] {opencv_core.CV_32FC3, opencv_core.CV_64FC3}) {
+				var mat = new Mat(64, 64, type, Scalar.ZERO);
+				OpenCVTools.addNoise(mat, 0, 2.0);
+				// Apply the ops one at a time, without any nested sequence
+				var matSequential = mat.clone();
+				for (var op : ops) {
+					if (op == ops.get(2)) {
+						matSequential.put(log.apply(matSequential));
+						matSequential.put(replaceNaNs.apply(matSequential));
+					} else
+						matSequential.put(op.apply(matSequential));
+				}
+				var matFused = ImageOps.Core.sequential(ops).apply(mat.clone());
+				assertTrue(matsEqual(matSequential, matFused, 1e-6));
+			}
+			
+			// Check per-channel values are validated
+			var mat = new Mat(8, 8, opencv_core.CV_32FC2, Scalar.ZERO);
+			var op = ImageOps.Core.sequential(ImageOps.Core.multiply(1, 2, 3), ImageOps.Core.add(1));
+			assertThrows(IllegalArgumentException.class, () -> op.apply(mat));
+		}
+	}
+	
+	
+	/**
+	 * Check that sharing intermediate images between multiscale ops gives the same result as applying them separately.
+	 */
+	@Test
+	public void testSharedMultiscale() {
+		var features = Arrays.stream(MultiscaleFeature.values())
+				.filter(MultiscaleFeature::supports2D)
+				.toList();
+		var ops = Arrays.asList(
+				ImageOps.Filters.features(features, 1.0, 1.0),
+				ImageOps.Filters.features(Arrays.asList(MultiscaleFeature.GAUSSIAN, MultiscaleFeature.HESSIAN_DETERMINANT), 2.0, 2.0),
+				ImageOps.Filters.features(features, 4.0, 2.0)
+				);
+		var op = ImageOps.Core.splitMerge(ops);
+		var padding = op.getPadding();
+		
+		try (var scope = new PointerScope()) {
+			for (int type : new int[] {opencv_core.CV_32FC2, opencv_core.CV_64FC2}) {
+				var mat = new Mat(80 + padding.getYSum(), 90 + padding.getXSum(), type, Scalar.ZERO);
+				addNoise(mat, 100);
+				// Apply each op separately, after removing any padding that it doesn't need
+				var expected = new ArrayList<Mat>();
+				for (var op2 : ops) {
+					var padExtra = padding.subtract(op2.getPadding());
+					var temp = ImageOps.stripPadding(mat, padExtra);
+					expected.add(op2.apply(temp.clone()));
+				}
+				var matExpected = OpenCVTools.mergeChannels(expected, null);
+				var matShared = op.apply(mat.clone());
+				assertEquals(80, matShared.rows());
+				assertEquals(90, matShared.cols());
+				assertEquals(op.getChannels(ImageChannel.getDefaultChannelList(2)).size(), matShared.channels());
+				assertTrue(matsEqual(matExpected, matShared, 1e-4));
+			}
+		}
+	}
+	
+	
 	/**
 	 * Compare if two Mats are equal in terms of dimensions and values.
 	 * @param m1
@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.SpatialIndex;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare building & querying a {@link PackedRTree} with a JTS {@link Quadtree}, 
+ * using cell-sized envelopes spread across a whole slide image.
+ * <p>
+ * Run with {@code ./gradlew :qupath-core:jmh}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8G"})
+public class SpatialIndexBenchmark {
+	
+	/**
+	 * Number of cells.
+	 */
+	@Param({"100000", "1000000", "3000000"})
+	public int nCells;
+	
+	/**
+	 * Approximate dimensions of a 40x whole slide image.
+	 */
+	private static final double IMAGE_WIDTH = 100_000;
+	private static final double IMAGE_HEIGHT = 80_000;
+	
+	/**
+	 * Size of a viewer region to query, similar to panning at high magnification.
+	 */
+	private static final double QUERY_SIZE = 2048;
+	
+	private List<Envelope> envelopes;
+	private List<Envelope> queries;
+	private SpatialIndex quadtree;
+	private SpatialIndex packed;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		var random = new Random(42);
+		envelopes = new ArrayList<>(nCells);
+		for (int i = 0; i < nCells; i++) {
+			double x = random.nextDouble() * IMAGE_WIDTH;
+			double y = random.nextDouble() * IMAGE_HEIGHT;
+			double w = 8 + random.nextDouble() * 16;
+			double h = 8 + random.nextDouble() * 16;
+			envelopes.add(new Envelope(x, x + w, y, y + h));
+		}
+		queries = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			double x = random.nextDouble() * (IMAGE_WIDTH - QUERY_SIZE);
+			double y = random.nextDouble() * (IMAGE_HEIGHT - QUERY_SIZE);
+			queries.add(new Envelope(x, x + QUERY_SIZE, y, y + QUERY_SIZE));
+		}
+		quadtree = buildQuadtree();
+		packed = buildPacked();
+	}
+	
+	private SpatialIndex buildQuadtree() {
+		var index = new Quadtree();
+		for (var env : envelopes)
+			index.insert(env, env);
+		return index;
+	}
+	
+	private SpatialIndex buildPacked() {
+		return PackedRTree.bulkLoad(envelopes, e -> e);
+	}
+	
+	private static int queryAll(SpatialIndex index, List<Envelope> queries) {
+		int count = 0;
+		for (var q : queries)
+			count += index.query(q).size();
+		return count;
+	}
+	
+	@Benchmark
+	public SpatialIndex buildQuadtreeIndex() {
+		return buildQuadtree();
+	}
+	
+	@Benchmark
+	public SpatialIndex buildPackedRTreeIndex() {
+		return buildPacked();
+	}
+	
+	@Benchmark
+	public int queryQuadtreeIndex() {
+		return queryAll(quadtree, queries);
+	}
+	
+	@Benchmark
+	public int queryPackedRTreeIndex() {
+		return queryAll(packed, queries);
+	}
+
+}
@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -207,6 +207,8 @@ public class DelaunayTools {
 		
 		private Function<PathObject, Collection<Coordinate>> coordinateExtractor;
 		
+		private int pointsPerTile = 10_000;
+		
 		
 		private Builder(Collection<PathObject> pathObjects) {
 			ImagePlane plane = null;
@@ -286,6 +288,17 @@ public class DelaunayTools {
 			return this;
 		}
 		
+		/**
+		 * Specify the approximate number of points to triangulate in each tile when building a {@link NeighborGraph}.
+		 * This is intended for testing.
+		 * @param pointsPerTile
+		 * @return this builder
+		 */
+		Builder pointsPerTile(int pointsPerTile) {
+			this.pointsPerTile = pointsPerTile;
+			return this;
+		}
+		
 		/**
 		 * Build the {@link Subdivision} with the current parameters.
 		 * @return
@@ -296,31 +309,75 @@ public class DelaunayTools {
 			
 			var coords = new HashMap<Coordinate, PathObject>();
 			
+			var extractor = createExtractor();
+			for (var pathObject : pathObjects) {
+				for (var c : extractor.apply(pathObject)) {
+					coords.put(c, pathObject);
+				}
+			}
+			
+			return new Subdivision(createSubdivision(coords.keySet(), getTolerance()), pathObjects, coords, plane);
+		}
+		
+		/**
+		 * Build a {@link NeighborGraph} with the current parameters.
+		 * <p>
+		 * This gives the same neighbors as {@link Subdivision#getAllNeighbors()}, with two exceptions:
+		 * <ul>
+		 *   <li>where points are co-circular (e.g. on a regular grid) the triangulation isn't unique, and a different 
+		 *   (but equally valid) diagonal may be chosen</li>
+		 *   <li>the {@link Subdivision} can omit very thin triangles along the convex hull, because it is computed inside 
+		 *   a finite frame; these may be included here, giving extra neighbors between points very close to the hull</li>
+		 * </ul>
+		 * However, the triangulation is split into tiles that are computed in parallel, and the neighbors 
+		 * are stored in compact arrays. This makes it much faster and less memory-hungry when there are very many objects.
+		 * @return
+		 * @since v0.5.1
+		 */
+		public NeighborGraph buildNeighborGraph() {
+			
+			logger.debug("Creating neighbor graph for {} objects", pathObjects.size());
+			
+			var list = new ArrayList<>(pathObjects);
+			var extractor = createExtractor();
+			var coords = list.parallelStream().map(extractor).collect(Collectors.toList());
+			
+			int n = coords.stream().mapToInt(Collection::size).sum();
+			double[] x = new double[n];
+			double[] y = new double[n];
+			int[] labels = new int[n];
+			int i = 0;
+			for (int label = 0; label < coords.size(); label++) {
+				for (var c : coords.get(label)) {
+					x[i] = c.x;
+					y[i] = c.y;
+					labels[i] = label;
+					i++;
+				}
+			}
+			
+			var neighbors = TiledDelaunay.computeNeighbors(x, y, labels, list.size(), getTolerance(), pointsPerTile);
+			return new NeighborGraph(list, neighbors[0], neighbors[1]);
+		}
+		
+		private Function<PathObject, Collection<Coordinate>> createExtractor() {
 			double densify = densifyFactor;
 			if (!Double.isFinite(densify))
 				densify = cal.getAveragedPixelSize().doubleValue() * 4.0;
 			
-			var extractor = coordinateExtractor;
 			switch (extractorType) {
 			case CENTROIDS:
-				extractor = createCentroidExtractor(cal, preferNucleusROI);
-				break;
+				return createCentroidExtractor(cal, preferNucleusROI);
 			case ROI:
-				extractor = createGeometryExtractor(cal, preferNucleusROI, densify, erosion);
-				break;
+				return createGeometryExtractor(cal, preferNucleusROI, densify, erosion);
 			default:
 			case CUSTOM:
-				break;
-			}
-			
-			for (var pathObject : pathObjects) {
-				for (var c : extractor.apply(pathObject)) {
-					coords.put(c, pathObject);
-				}
+				return coordinateExtractor;
 			}
-			
-			double tolerance = cal.getAveragedPixelSize().doubleValue() / 1000.0;
-			return new Subdivision(createSubdivision(coords.keySet(), tolerance), pathObjects, coords, plane);
+		}
+		
+		private double getTolerance() {
+			return cal.getAveragedPixelSize().doubleValue() / 1000.0;
 		}
 		
 	}
@@ -418,7 +475,7 @@ public class DelaunayTools {
 	}
 	
 	
-	private static QuadEdgeSubdivision createSubdivision(Collection<Coordinate> coords, double tolerance) {
+	static QuadEdgeSubdivision createSubdivision(Collection<Coordinate> coords, double tolerance) {
 		var envelope = DelaunayTriangulationBuilder.envelope(coords);
 		var subdiv = new QuadEdgeSubdivision(envelope, tolerance);
 		var triangulator = new IncrementalDelaunayTriangulator(subdiv);
@@ -996,6 +1053,139 @@ public class DelaunayTools {
 	}
 	
 	
+	/**
+	 * Neighbors computed from a Delaunay triangulation of {@linkplain PathObject PathObjects}, stored in compact arrays.
+	 * <p>
+	 * Objects are identified by their index in {@link #getPathObjects()}. Neighbors can be queried by index 
+	 * without creating any new collections, which makes this suitable for very large numbers of objects.
+	 * 
+	 * @since v0.5.1
+	 * @see Builder#buildNeighborGraph()
+	 */
+	public static class NeighborGraph {
+		
+		private List<PathObject> pathObjects;
+		private int[] offsets;
+		private int[] neighbors;
+		
+		private transient Map<PathObject, Integer> indices;
+		
+		private NeighborGraph(List<PathObject> pathObjects, int[] offsets, int[] neighbors) {
+			this.pathObjects = Collections.unmodifiableList(pathObjects);
+			this.offsets = offsets;
+			this.neighbors = neighbors;
+		}
+		
+		/**
+		 * Get all the objects associated with this graph.
+		 * @return
+		 */
+		public List<PathObject> getPathObjects() {
+			return pathObjects;
+		}
+		
+		/**
+		 * Get the number of objects associated with this graph.
+		 * @return
+		 */
+		public int size() {
+			return pathObjects.size();
+		}
+		
+		/**
+		 * Get the index of an object.
+		 * @param pathObject
+		 * @return the index, or -1 if the object is not associated with this graph
+		 */
+		public int getIndex(PathObject pathObject) {
+			if (indices == null) {
+				synchronized (this) {
+					if (indices == null) {
+						var map = new HashMap<PathObject, Integer>();
+						for (int i = 0; i < pathObjects.size(); i++)
+							map.put(pathObjects.get(i), i);
+						indices = map;
+					}
+				}
+			}
+			return indices.getOrDefault(pathObject, -1);
+		}
+		
+		/**
+		 * Get the number of neighbors of an object.
+		 * @param index index of the object
+		 * @return
+		 */
+		public int getNeighborCount(int index) {
+			return offsets[index+1] - offsets[index];
+		}
+		
+		/**
+		 * Get the index of a neighbor of an object.
+		 * Neighbors are sorted by distance, so that n = 0 gives the nearest neighbor.
+		 * @param index index of the object
+		 * @param n the neighbor number, from 0 (inclusive) to {@link #getNeighborCount(int)} (exclusive)
+		 * @return index of the neighbor
+		 */
+		public int getNeighborIndex(int index, int n) {
+			if (n < 0 || n >= getNeighborCount(index))
+				throw new IndexOutOfBoundsException("Neighbor " + n + " out of bounds for object with " + getNeighborCount(index) + " neighbors");
+			return neighbors[offsets[index] + n];
+		}
+		
+		/**
+		 * Get all neighbors for a specified object, sorted by distance.
+		 * @param pathObject object for which neighbors are requested
+		 * @return list of neighbors
+		 */
+		public List<PathObject> getNeighbors(PathObject pathObject) {
+			int index = getIndex(pathObject);
+			if (index < 0)
+				return Collections.emptyList();
+			var list = new ArrayList<PathObject>(getNeighborCount(index));
+			for (int k = offsets[index]; k < offsets[index+1]; k++)
+				list.add(pathObjects.get(neighbors[k]));
+			return list;
+		}
+		
+		/**
+		 * Get clusters of connected objects, where connections are made between neighboring objects that meet the specified predicate.
+		 * @param predicate predicate used to determine if two otherwise neighboring objects are considered connected; may be null
+		 * @return a list of clusters, where each cluster is a collection of connected objects
+		 * @see Subdivision#getClusters(BiPredicate)
+		 */
+		public List<Collection<PathObject>> getClusters(BiPredicate<PathObject, PathObject> predicate) {
+			int n = size();
+			var clustered = new boolean[n];
+			var stack = new int[n];
+			var output = new ArrayList<Collection<PathObject>>();
+			for (int i = 0; i < n; i++) {
+				if (clustered[i])
+					continue;
+				var cluster = new ArrayList<PathObject>();
+				int size = 0;
+				stack[size++] = i;
+				clustered[i] = true;
+				while (size > 0) {
+					int ind = stack[--size];
+					var pathObject = pathObjects.get(ind);
+					cluster.add(pathObject);
+					for (int k = offsets[ind]; k < offsets[ind+1]; k++) {
+						int neighbor = neighbors[k];
+						if (!clustered[neighbor] && (predicate == null || predicate.test(pathObject, pathObjects.get(neighbor)))) {
+							clustered[neighbor] = true;
+							stack[size++] = neighbor;
+						}
+					}
+				}
+				output.add(cluster);
+			}
+			return output;
+		}
+		
+	}
+	
+	
 	/**
 	 * {@link QuadEdgeLocator} that simply starts from the first valid vertex.
 	 * This appears to work much faster than the default {@link LastFoundQuadEdgeLocator}.
@@ -0,0 +1,477 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.algorithm.ConvexHull;
+import org.locationtech.jts.algorithm.Distance;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Triangle;
+import org.locationtech.jts.triangulate.quadedge.QuadEdge;
+import org.locationtech.jts.triangulate.quadedge.QuadEdgeSubdivision;
+import org.locationtech.jts.triangulate.quadedge.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper class to find the edges of a Delaunay triangulation by splitting the points into tiles,
+ * which are triangulated in parallel.
+ * <p>
+ * Each tile is triangulated along with the points inside a surrounding margin.
+ * A triangle is only accepted if its circumcircle cannot contain any point outside the tile and margin,
+ * in which case it must also be a triangle of the triangulation of all the points.
+ * If any triangle touching a point inside the tile can't be accepted (or the point is on the border of
+ * the local triangulation, but not on the convex hull of all points), the margin is doubled and the tile
+ * is triangulated again.
+ * <p>
+ * Each triangle is then only added by the tile containing its lowest-index point.
+ * Where points are co-circular (e.g. on a regular grid) the triangulation isn't unique, and neighboring tiles
+ * may choose different diagonals. Adjacent triangles that share a circumcircle are therefore grouped, and each
+ * group is added by the tile containing its lowest-index point. This ensures edges from different tiles never cross.
+ * <p>
+ * Points have an integer label (e.g. an object index), and edges are returned between labels in a
+ * compressed sparse row format.
+ */
+class TiledDelaunay {
+
+	private static final Logger logger = LoggerFactory.getLogger(TiledDelaunay.class);
+
+	private final double[] x, y;
+	private final double tolerance;
+
+	private double minX, minY, maxX, maxY;
+	private int nTilesX = 1, nTilesY = 1;
+	private double tileWidth, tileHeight;
+	private double initialMargin;
+
+	private int[] pointTiles;
+	private int[] tileOffsets;
+	private int[] tilePoints;
+
+	private Coordinate[] hull;
+	private double hullTolerance;
+
+	private TiledDelaunay(double[] x, double[] y, double tolerance, int pointsPerTile) {
+		this.x = x;
+		this.y = y;
+		this.tolerance = tolerance;
+
+		int n = x.length;
+		minX = Double.POSITIVE_INFINITY;
+		minY = Double.POSITIVE_INFINITY;
+		maxX = Double.NEGATIVE_INFINITY;
+		maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		if (n == 0) {
+			minX = minY = maxX = maxY = 0;
+		}
+		double width = maxX - minX;
+		double height = maxY - minY;
+		int nTiles = (int)Math.ceil(n / (double)Math.max(1, pointsPerTile));
+		if (nTiles > 1 && width > 0 && height > 0) {
+			// We need the convex hull to tell if points are on the border of the full triangulation
+			var coords = new Coordinate[n];
+			for (int i = 0; i < n; i++)
+				coords[i] = new Coordinate(x[i], y[i]);
+			var hullGeometry = new ConvexHull(coords, new GeometryFactory()).getConvexHull();
+			if (hullGeometry instanceof Polygon) {
+				hull = hullGeometry.getCoordinates();
+				hullTolerance = Math.max(tolerance, (width + height) * 1e-9);
+				nTilesX = (int)Math.max(1, Math.min(nTiles, Math.round(Math.sqrt(nTiles * width / height))));
+				nTilesY = (int)Math.max(1, Math.ceil(nTiles / (double)nTilesX));
+			}
+		}
+		tileWidth = width / nTilesX;
+		tileHeight = height / nTilesY;
+		// Start with a margin a few times larger than the typical spacing between points
+		if (n > 0)
+			initialMargin = Math.sqrt(width * height / n) * 3;
+
+		// Assign points to tiles
+		pointTiles = new int[n];
+		tileOffsets = new int[nTilesX * nTilesY + 1];
+		for (int i = 0; i < n; i++) {
+			int tile = getTileY(y[i]) * nTilesX + getTileX(x[i]);
+			pointTiles[i] = tile;
+			tileOffsets[tile+1]++;
+		}
+		for (int t = 0; t < nTilesX * nTilesY; t++)
+			tileOffsets[t+1] += tileOffsets[t];
+		tilePoints = new int[n];
+		int[] inds = Arrays.copyOf(tileOffsets, tileOffsets.length - 1);
+		for (int i = 0; i < n; i++)
+			tilePoints[inds[pointTiles[i]]++] = i;
+	}
+
+	/**
+	 * Compute the neighbors of labels from the Delaunay triangulation of points.
+	 * Edges between points with the same label are ignored.
+	 *
+	 * @param x x-coordinates of the points
+	 * @param y y-coordinates of the points
+	 * @param labels label for each point, in the range 0 (inclusive) to nLabels (exclusive)
+	 * @param nLabels the number of labels
+	 * @param tolerance snapping tolerance for the triangulation; points closer than this may be merged
+	 * @param pointsPerTile approximate number of points in each tile
+	 * @return a two-element array, where the first array gives offsets into the second (with length nLabels + 1),
+	 *         and the second contains the neighbors of each label sorted by distance
+	 */
+	static int[][] computeNeighbors(double[] x, double[] y, int[] labels, int nLabels, double tolerance, int pointsPerTile) {
+		var tiled = new TiledDelaunay(x, y, tolerance, pointsPerTile);
+		logger.debug("Computing Delaunay triangulation for {} points with {}x{} tiles", x.length, tiled.nTilesX, tiled.nTilesY);
+		int[][] pairs = IntStream.range(0, tiled.nTilesX * tiled.nTilesY)
+				.parallel()
+				.mapToObj(tiled::computeTileEdges)
+				.toArray(int[][]::new);
+		return createNeighborArrays(x, y, labels, nLabels, pairs);
+	}
+
+	private int getTileX(double x) {
+		if (nTilesX == 1)
+			return 0;
+		return Math.max(0, Math.min(nTilesX - 1, (int)((x - minX) / tileWidth)));
+	}
+
+	private int getTileY(double y) {
+		if (nTilesY == 1)
+			return 0;
+		return Math.max(0, Math.min(nTilesY - 1, (int)((y - minY) / tileHeight)));
+	}
+
+	/**
+	 * Compute the Delaunay edges of the triangles owned by a tile.
+	 * @param tile
+	 * @return pairs of point indices
+	 */
+	private int[] computeTileEdges(int tile) {
+		if (tileOffsets[tile] == tileOffsets[tile+1])
+			return new int[0];
+
+		int tx = tile % nTilesX;
+		int ty = tile / nTilesX;
+		double x1 = minX + tx * tileWidth;
+		double y1 = minY + ty * tileHeight;
+		double x2 = tx == nTilesX - 1 ? maxX : x1 + tileWidth;
+		double y2 = ty == nTilesY - 1 ? maxY : y1 + tileHeight;
+
+		double margin = initialMargin;
+		while (true) {
+			var env = new Envelope(x1 - margin, x2 + margin, y1 - margin, y2 + margin);
+			var subdiv = DelaunayTools.createSubdivision(getCoordinates(env), tolerance);
+			// If we have all the points, the local triangulation is the full triangulation
+			boolean isComplete = env.getMinX() <= minX && env.getMinY() <= minY && env.getMaxX() >= maxX && env.getMaxY() >= maxY;
+			if (isComplete || isAccepted(subdiv, tile, env))
+				return getOwnedEdges(subdiv, tile);
+			margin *= 2;
+		}
+	}
+
+	/**
+	 * Check if all the triangles touching any point within a tile must belong to the full triangulation.
+	 */
+	private boolean isAccepted(QuadEdgeSubdivision subdiv, int tile, Envelope env) {
+		@SuppressWarnings("unchecked")
+		var triangles = (List<Vertex[]>)subdiv.getTriangleVertices(false);
+		for (var tri : triangles) {
+			if (pointTiles[getIndex(tri[0])] != tile && pointTiles[getIndex(tri[1])] != tile && pointTiles[getIndex(tri[2])] != tile)
+				continue;
+			if (!isAccepted(tri, env))
+				return false;
+		}
+		// Points on the border of the local triangulation must also be on the border of the full triangulation
+		@SuppressWarnings("unchecked")
+		var allEdges = (List<QuadEdge>)subdiv.getPrimaryEdges(false);
+		for (var edge : allEdges) {
+			if (pointTiles[getIndex(edge.orig())] != tile && pointTiles[getIndex(edge.dest())] != tile)
+				continue;
+			if (subdiv.isFrameBorderEdge(edge) && !isHullEdge(edge.orig().getCoordinate(), edge.dest().getCoordinate()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the edges of all triangles owned by a tile, along with any border edges touching a point within the tile 
+	 * (which might not belong to any triangle if the points are collinear).
+	 * @param subdiv the local triangulation, which must already have been accepted
+	 * @param tile
+	 * @return pairs of point indices
+	 */
+	private int[] getOwnedEdges(QuadEdgeSubdivision subdiv, int tile) {
+		@SuppressWarnings("unchecked")
+		var triangles = (List<Vertex[]>)subdiv.getTriangleVertices(false);
+		int n = triangles.size();
+		int[] inds = new int[n * 3];
+		for (int t = 0; t < n; t++) {
+			var tri = triangles.get(t);
+			for (int k = 0; k < 3; k++)
+				inds[t*3+k] = getIndex(tri[k]);
+		}
+
+		// Group adjacent triangles that share a circumcircle
+		int[] groups = IntStream.range(0, n).toArray();
+		var edgeTriangles = new HashMap<Long, Integer>();
+		for (int t = 0; t < n; t++) {
+			for (int k = 0; k < 3; k++) {
+				int a = inds[t*3+k];
+				int b = inds[t*3+(k+1)%3];
+				long key = ((long)Math.min(a, b) << 32) | Math.max(a, b);
+				Integer other = edgeTriangles.putIfAbsent(key, t);
+				if (other != null && isOnCircumcircle(inds[other*3], inds[other*3+1], inds[other*3+2], inds[t*3+(k+2)%3]))
+					groups[findGroup(groups, other)] = findGroup(groups, t);
+			}
+		}
+
+		// Each group belongs to the tile containing its lowest-index point
+		int[] lowest = new int[n];
+		Arrays.fill(lowest, Integer.MAX_VALUE);
+		for (int t = 0; t < n; t++) {
+			int g = findGroup(groups, t);
+			lowest[g] = Math.min(lowest[g], Math.min(inds[t*3], Math.min(inds[t*3+1], inds[t*3+2])));
+		}
+		var edges = new EdgeList();
+		for (int t = 0; t < n; t++) {
+			if (pointTiles[lowest[findGroup(groups, t)]] != tile)
+				continue;
+			edges.add(inds[t*3], inds[t*3+1]);
+			edges.add(inds[t*3+1], inds[t*3+2]);
+			edges.add(inds[t*3+2], inds[t*3]);
+		}
+
+		// Border edges are on the convex hull, so can't be crossed by any other edge
+		@SuppressWarnings("unchecked")
+		var allEdges = (List<QuadEdge>)subdiv.getPrimaryEdges(false);
+		for (var edge : allEdges) {
+			int a = getIndex(edge.orig());
+			int b = getIndex(edge.dest());
+			if ((pointTiles[a] == tile || pointTiles[b] == tile) && subdiv.isFrameBorderEdge(edge))
+				edges.add(a, b);
+		}
+		return edges.toArray();
+	}
+
+	private static int findGroup(int[] groups, int t) {
+		while (groups[t] != t) {
+			groups[t] = groups[groups[t]];
+			t = groups[t];
+		}
+		return t;
+	}
+
+	/**
+	 * Check if point d is on (or very close to) the circumcircle of the triangle abc, in which case either 
+	 * diagonal of the quadrilateral abcd could be part of the triangulation.
+	 * The tolerance is relative to the magnitude of the terms of the in-circle determinant, 
+	 * so that the result doesn't depend upon which triangle is tested.
+	 */
+	private boolean isOnCircumcircle(int a, int b, int c, int d) {
+		double adx = x[a] - x[d], ady = y[a] - y[d];
+		double bdx = x[b] - x[d], bdy = y[b] - y[d];
+		double cdx = x[c] - x[d], cdy = y[c] - y[d];
+		double alift = adx*adx + ady*ady;
+		double blift = bdx*bdx + bdy*bdy;
+		double clift = cdx*cdx + cdy*cdy;
+		double det = alift * (bdx*cdy - cdx*bdy) + blift * (cdx*ady - adx*cdy) + clift * (adx*bdy - bdx*ady);
+		double permanent = alift * (Math.abs(bdx*cdy) + Math.abs(cdx*bdy)) +
+				blift * (Math.abs(cdx*ady) + Math.abs(adx*cdy)) +
+				clift * (Math.abs(adx*bdy) + Math.abs(bdx*ady));
+		return Math.abs(det) <= permanent * 1e-12;
+	}
+
+	private static int getIndex(Vertex vertex) {
+		return (int)vertex.getZ();
+	}
+
+	private List<Coordinate> getCoordinates(Envelope env) {
+		var coords = new ArrayList<Coordinate>();
+		int tx1 = getTileX(env.getMinX());
+		int tx2 = getTileX(env.getMaxX());
+		int ty1 = getTileY(env.getMinY());
+		int ty2 = getTileY(env.getMaxY());
+		for (int ty = ty1; ty <= ty2; ty++) {
+			for (int tx = tx1; tx <= tx2; tx++) {
+				int tile = ty * nTilesX + tx;
+				for (int k = tileOffsets[tile]; k < tileOffsets[tile+1]; k++) {
+					int i = tilePoints[k];
+					// Store the index as the z-coordinate, so we can get it back from the vertex
+					if (env.contains(x[i], y[i]))
+						coords.add(new Coordinate(x[i], y[i], i));
+				}
+			}
+		}
+		return coords;
+	}
+
+	/**
+	 * Check if a triangle must belong to the full triangulation, because its circumcircle
+	 * doesn't intersect any part of the full bounds that is outside the envelope used for the local triangulation.
+	 */
+	private boolean isAccepted(Vertex[] tri, Envelope env) {
+		var p = tri[0].getCoordinate();
+		var center = Triangle.circumcentre(p, tri[1].getCoordinate(), tri[2].getCoordinate());
+		double dx = center.x - p.x;
+		double dy = center.y - p.y;
+		double r2 = dx*dx + dy*dy;
+		if (!Double.isFinite(r2))
+			return false;
+		if (env.getMinX() > minX && intersects(center, r2, minX, minY, env.getMinX(), maxY))
+			return false;
+		if (env.getMaxX() < maxX && intersects(center, r2, env.getMaxX(), minY, maxX, maxY))
+			return false;
+		if (env.getMinY() > minY && intersects(center, r2, minX, minY, maxX, env.getMinY()))
+			return false;
+		if (env.getMaxY() < maxY && intersects(center, r2, minX, env.getMaxY(), maxX, maxY))
+			return false;
+		return true;
+	}
+
+	private static boolean intersects(Coordinate center, double r2, double x1, double y1, double x2, double y2) {
+		double dx = Math.max(Math.max(x1 - center.x, 0), center.x - x2);
+		double dy = Math.max(Math.max(y1 - center.y, 0), center.y - y2);
+		return dx*dx + dy*dy <= r2;
+	}
+
+	private boolean isHullEdge(Coordinate p1, Coordinate p2) {
+		return isOnHull(p1) && isOnHull(p2) && isOnHull(new Coordinate((p1.x + p2.x)/2, (p1.y + p2.y)/2));
+	}
+
+	private boolean isOnHull(Coordinate p) {
+		if (hull == null)
+			return true;
+		for (int i = 0; i < hull.length-1; i++) {
+			if (Distance.pointToSegment(p, hull[i], hull[i+1]) <= hullTolerance)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Combine edges from all tiles into neighbor arrays, removing duplicates and sorting by distance.
+	 * Edges are duplicated when they are shared by triangles owned by different tiles.
+	 */
+	private static int[][] createNeighborArrays(double[] x, double[] y, int[] labels, int nLabels, int[][] pairs) {
+		int[] start = new int[nLabels + 1];
+		for (var tilePairs : pairs) {
+			for (int k = 0; k < tilePairs.length; k += 2) {
+				int l1 = labels[tilePairs[k]];
+				int l2 = labels[tilePairs[k+1]];
+				if (l1 != l2) {
+					start[l1+1]++;
+					start[l2+1]++;
+				}
+			}
+		}
+		for (int l = 0; l < nLabels; l++)
+			start[l+1] += start[l];
+
+		int[] neighbors = new int[start[nLabels]];
+		double[] distances = new double[neighbors.length];
+		int[] inds = Arrays.copyOf(start, nLabels);
+		for (var tilePairs : pairs) {
+			for (int k = 0; k < tilePairs.length; k += 2) {
+				int i = tilePairs[k];
+				int j = tilePairs[k+1];
+				int l1 = labels[i];
+				int l2 = labels[j];
+				if (l1 == l2)
+					continue;
+				double d = Math.hypot(x[i] - x[j], y[i] - y[j]);
+				neighbors[inds[l1]] = l2;
+				distances[inds[l1]++] = d;
+				neighbors[inds[l2]] = l1;
+				distances[inds[l2]++] = d;
+			}
+		}
+
+		// Sort by distance, and keep only the first (closest) occurrence of each neighbor
+		int[] offsets = new int[nLabels + 1];
+		int[] lastSeen = new int[nLabels];
+		Arrays.fill(lastSeen, -1);
+		int count = 0;
+		for (int l = 0; l < nLabels; l++) {
+			sortByDistance(neighbors, distances, start[l], start[l+1]);
+			offsets[l] = count;
+			for (int k = start[l]; k < start[l+1]; k++) {
+				int neighbor = neighbors[k];
+				if (lastSeen[neighbor] == l)
+					continue;
+				lastSeen[neighbor] = l;
+				neighbors[count++] = neighbor;
+			}
+		}
+		offsets[nLabels] = count;
+		return new int[][] {offsets, Arrays.copyOf(neighbors, count)};
+	}
+
+	/**
+	 * Insertion sort, since we usually have very few neighbors.
+	 */
+	private static void sortByDistance(int[] neighbors, double[] distances, int from, int to) {
+		for (int i = from + 1; i < to; i++) {
+			int n = neighbors[i];
+			double d = distances[i];
+			int j = i - 1;
+			while (j >= from && (distances[j] > d || (distances[j] == d && neighbors[j] > n))) {
+				neighbors[j+1] = neighbors[j];
+				distances[j+1] = distances[j];
+				j--;
+			}
+			neighbors[j+1] = n;
+			distances[j+1] = d;
+		}
+	}
+
+	/**
+	 * Growable array of edges, stored as pairs of point indices.
+	 */
+	private static class EdgeList {
+
+		private int[] pairs = new int[1024];
+		private int size = 0;
+
+		private void add(int i, int j) {
+			if (size + 2 > pairs.length)
+				pairs = Arrays.copyOf(pairs, pairs.length * 2);
+			pairs[size++] = i;
+			pairs[size++] = j;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(pairs, size);
+		}
+
+	}
+
+}
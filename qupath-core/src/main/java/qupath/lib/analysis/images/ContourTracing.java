@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2020 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -26,18 +26,16 @@ import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -51,16 +49,7 @@ import java.util.stream.Stream;
 
 import javax.imageio.ImageIO;
 
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.LineString;
-import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.geom.util.AffineTransformation;
-import org.locationtech.jts.geom.util.PolygonExtracter;
-import org.locationtech.jts.index.quadtree.Quadtree;
-import org.locationtech.jts.operation.polygonize.Polygonizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -96,10 +85,9 @@ public class ContourTracing {
 	 * @throws IOException if there is an error reading the images
 	 */
 	public static List<PathObject> labelsToDetections(Collection<Path> paths, boolean mergeByLabel) throws IOException {
-		var list = paths.parallelStream().flatMap(p -> labelsToDetectionsStream(p)).toList();
 		if (mergeByLabel)
-			return mergeByName(list);
-		return list;
+			return labelsToMergedObjects(paths, createNumberedObjectFunction(r -> PathObjects.createDetectionObject(r)));
+		return paths.parallelStream().flatMap(p -> labelsToDetectionsStream(p)).toList();
 	}
 	
 	/**
@@ -120,6 +108,95 @@ public class ContourTracing {
 		return PathObjectTools.mergeObjects(pathObjects, p -> p.getName());
 	}
 	
+	/**
+	 * Convert labeled images to objects, merging all the regions that have the same label.
+	 * <p>
+	 * If the images are non-overlapping tiles from the same resolution and plane, contours are traced in parallel
+	 * and then stitched together along the tile boundaries. Otherwise, objects are created separately for each image
+	 * and merged by their name.
+	 * @param paths paths to image files (e.g. PNGs)
+	 * @param creator function used to convert a ROI and numeric label to an object
+	 * @return a list of objects generated from the labels
+	 */
+	private static List<PathObject> labelsToMergedObjects(Collection<Path> paths, BiFunction<ROI, Number, PathObject> creator) {
+		var images = paths.parallelStream().flatMap(p -> readImageStream(p)).toList();
+		if (!canStitch(images)) {
+			logger.debug("Labeled images cannot be stitched - objects will be merged by label instead");
+			var list = images.parallelStream()
+					.flatMap(r -> createObjects(r.getImage().getRaster(), 0, r.getRequest(), 1, -1, creator).stream())
+					.toList();
+			return mergeByName(list);
+		}
+		var request = images.get(0).getRequest();
+		double downsample = request.getDownsample();
+		var chainMap = images.parallelStream()
+				.flatMap(r -> traceChains(r).entrySet().stream())
+				.collect(Collectors.groupingBy(e -> e.getKey(), TreeMap::new, 
+						Collectors.flatMapping(e -> e.getValue().stream(), Collectors.toList())));
+		var factory = GeometryTools.getDefaultFactory();
+		return chainMap.entrySet().parallelStream()
+				.map(e -> {
+					var geometry = LabelTracer.createGeometry(LabelTracer.stitch(e.getValue()), 0, 0, downsample, factory);
+					if (geometry == null)
+						return null;
+					return creator.apply(GeometryTools.geometryToROI(geometry, request.getImagePlane()), e.getKey());
+				})
+				.filter(Objects::nonNull)
+				.toList();
+	}
+	
+	private static Stream<RequestImage> readImageStream(Path path) {
+		try {
+			return Stream.of(readImage(path, null));
+		} catch (IOException e) {
+			logger.error("Error reading labels from " + path + ": " + e.getLocalizedMessage(), e);
+			return Stream.empty();
+		}
+	}
+	
+	/**
+	 * Check whether contours traced from labeled images can be stitched together.
+	 * This requires that all images have the same downsample and plane, and are non-overlapping tiles 
+	 * aligned to the pixel grid at that downsample.
+	 * @param images
+	 * @return
+	 */
+	private static boolean canStitch(List<RequestImage> images) {
+		if (images.isEmpty())
+			return false;
+		var first = images.get(0).getRequest();
+		List<int[]> bounds = new ArrayList<>();
+		for (var image : images) {
+			var request = image.getRequest();
+			if (request.getDownsample() != first.getDownsample() || request.getZ() != first.getZ() || request.getT() != first.getT())
+				return false;
+			double x = request.getX() / request.getDownsample();
+			double y = request.getY() / request.getDownsample();
+			if (x != Math.rint(x) || y != Math.rint(y))
+				return false;
+			var img = image.getImage();
+			bounds.add(new int[] {(int)x, (int)y, (int)x + img.getWidth(), (int)y + img.getHeight()});
+		}
+		bounds.sort(Comparator.comparingInt(b -> b[0]));
+		for (int i = 0; i < bounds.size(); i++) {
+			var b1 = bounds.get(i);
+			for (int j = i + 1; j < bounds.size() && bounds.get(j)[0] < b1[2]; j++) {
+				var b2 = bounds.get(j);
+				if (b2[1] < b1[3] && b1[1] < b2[3])
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	private static Map<Float, List<LabelTracer.Chain>> traceChains(RequestImage image) {
+		var request = image.getRequest();
+		var labels = LabelTracer.selectLabels(extractBand(image.getImage().getRaster(), 0), 1, Double.POSITIVE_INFINITY, false);
+		int x = (int)Math.round(request.getX() / request.getDownsample());
+		int y = (int)Math.round(request.getY() / request.getDownsample());
+		return LabelTracer.traceChains(labels, image.getImage().getWidth(), image.getImage().getHeight(), x, y, true);
+	}
+	
 	private static Stream<PathObject> labelsToDetectionsStream(Path path) {
 		try {
 			return labelsToDetections(path, null).stream();
@@ -180,10 +257,9 @@ public class ContourTracing {
 	 * @throws IOException if there is an error reading the images
 	 */
 	public static List<PathObject> labelsToAnnotations(Collection<Path> paths, boolean mergeByLabel) throws IOException {
-		var list = paths.parallelStream().flatMap(p -> labelsToAnnotationsStream(p)).toList();
 		if (mergeByLabel)
-			return mergeByName(list);
-		return list;
+			return labelsToMergedObjects(paths, createNumberedObjectFunction(r -> PathObjects.createAnnotationObject(r)));
+		return paths.parallelStream().flatMap(p -> labelsToAnnotationsStream(p)).toList();
 	}
 	
 	private static Stream<PathObject> labelsToAnnotationsStream(Path path) {
@@ -598,29 +674,32 @@ public class ContourTracing {
 			}
 			maxLabel = (int)maxValue;
 		}
-		// We don't want to search for all possible labels, since they might not be present in the image
-		// Therefore we loop through pixels & search only for labels that haven't previously been handled
+		// Trace all labels in a single pass
+		var labels = LabelTracer.selectLabels(image, minLabel, maxLabel, false);
+		var geometries = traceLabels(labels, image.getWidth(), image.getHeight(), region);
+		var plane = region == null ? ImagePlane.getDefaultPlane() : region.getImagePlane();
 		Map<Number, ROI> rois = new TreeMap<>();
-		if (maxLabel > minLabel) {
-			float lastLabel = Float.NaN;
-			for (float p : pixels) {
-				if (p >= minLabel && p <= maxLabel && p != lastLabel && !rois.containsKey(p)) {
-					var roi = createTracedROI(image, p, p, region);
-					if (roi != null && !roi.isEmpty())
-						rois.put(p, roi);
-					lastLabel = p;
-				}
-			}
-		} else {
-			for (int i = minLabel; i <= maxLabel; i++) {
-				var roi = createTracedROI(image, i, i, region);
-				if (roi != null && !roi.isEmpty())
-					rois.put(i, roi);
-			}
+		for (var entry : geometries.entrySet()) {
+			var roi = GeometryTools.geometryToROI(entry.getValue(), plane);
+			if (roi.isEmpty())
+				continue;
+			if (maxLabel > minLabel)
+				rois.put(entry.getKey(), roi);
+			else
+				rois.put(minLabel, roi);
 		}
 		return rois;
 	}
 	
+	/**
+	 * Trace labels, translating and rescaling using a region request (if available).
+	 */
+	private static Map<Float, Geometry> traceLabels(float[] labels, int width, int height, RegionRequest request) {
+		if (request == null)
+			return LabelTracer.traceLabels(labels, width, height, 0, 0, 1, GeometryTools.getDefaultFactory());
+		return LabelTracer.traceLabels(labels, width, height, request.getX(), request.getY(), request.getDownsample(), GeometryTools.getDefaultFactory());
+	}
+	
 	/**
 	 * Create a traced ROI from a raster.
 	 * 
@@ -655,60 +734,6 @@ public class ContourTracing {
 	}
 	
 	
-	/**
-	 * Create traced geometry from tile.
-	 * Note that it is important to use this version with tiles, rather than {@link #createTracedGeometry(Raster, double, double, int, RegionRequest)},
-	 * to avoid accumulating rounding errors.
-	 * 
-	 * @param raster
-	 * @param minThresholdInclusive
-	 * @param maxThresholdInclusive
-	 * @param band
-	 * @param request
-	 * @return
-	 */
-	private static Geometry createTracedGeometry(Raster raster, double minThresholdInclusive, double maxThresholdInclusive, int band, TileRequest request) {
-		var image = extractBand(raster, band);
-		return createTracedGeometry(image, minThresholdInclusive, maxThresholdInclusive, request);
-	}
-	
-	
-	/**
-	 * Create traced geometry from tile.
-	 * Note that it is important to use this version with tiles, rather than {@link #createTracedGeometry(SimpleImage, double, double, RegionRequest)},
-	 * to avoid accumulating rounding errors.
-	 * 
-	 * @param image
-	 * @param minThresholdInclusive
-	 * @param maxThresholdInclusive
-	 * @param tile
-	 * @return
-	 */
-	private static Geometry createTracedGeometry(SimpleImage image, double minThresholdInclusive, double maxThresholdInclusive, TileRequest tile) {
-		
-		// If we are translating but not rescaling, we can do this during tracing
-		double xOffset = 0;
-		double yOffset = 0;
-		if (tile != null && tile.getDownsample() == 1) {
-			xOffset = tile.getTileX() * tile.getDownsample();
-			yOffset = tile.getTileY() * tile.getDownsample();
-		}
-		
-		var geom = traceGeometry(image, minThresholdInclusive, maxThresholdInclusive, xOffset, yOffset);
-		
-		// Handle rescaling if needed
-		if (tile != null && tile.getDownsample() != 1 && geom != null) {
-			double scale = tile.getDownsample();
-			var transform = AffineTransformation.scaleInstance(scale, scale);
-			transform = transform.translate(tile.getTileX() * tile.getDownsample(), tile.getTileY() * tile.getDownsample());
-			if (!transform.isIdentity())
-				geom = transform.transform(geom);
-		}
-		
-		return geom;
-		
-	}
-	
 	/**
 	 * Create a traced geometry from a {@link SimpleImage}.
 	 * 
@@ -719,27 +744,8 @@ public class ContourTracing {
 	 * @return a polygonal geometry created by tracing pixel values &ge; minThresholdInclusive and &le; maxThresholdInclusive
 	 */
 	public static Geometry createTracedGeometry(SimpleImage image, double minThresholdInclusive, double maxThresholdInclusive, RegionRequest request) {
-		
-		// If we are translating but not rescaling, we can do this during tracing
-		double xOffset = 0;
-		double yOffset = 0;
-		if (request != null && request.getDownsample() == 1) {
-			xOffset = request.getX();
-			yOffset = request.getY();
-		}
-		
-		var geom = traceGeometry(image, minThresholdInclusive, maxThresholdInclusive, xOffset, yOffset);
-		
-		// Handle rescaling if needed
-		if (request != null && request.getDownsample() != 1 && geom != null) {
-			double scale = request.getDownsample();
-			var transform = AffineTransformation.scaleInstance(scale, scale);
-			transform = transform.translate(request.getX(), request.getY());
-			if (!transform.isIdentity())
-				geom = transform.transform(geom);
-		}
-		
-		return geom;
+		var labels = LabelTracer.selectLabels(image, minThresholdInclusive, maxThresholdInclusive, true);
+		return traceLabels(labels, image.getWidth(), image.getHeight(), request).get(1f);
 	}
 	
 	
@@ -1007,49 +1013,42 @@ public class ContourTracing {
 	}
 	
 	
-	@SuppressWarnings("unchecked")
 	private static Map<Integer, Geometry> traceGeometriesImpl(ImageServer<BufferedImage> server, Collection<TileRequest> tiles, Geometry clipArea, ChannelThreshold... thresholds) throws IOException {
 		
 		if (thresholds.length == 0)
 			return Collections.emptyMap();
 				
 		Map<Integer, Geometry> output = new LinkedHashMap<>();
-
 		
 		var pool = Executors.newFixedThreadPool(ThreadTools.getParallelism());
 		try {
 			
-			List<List<GeometryWrapper>> wrappers = invokeAll(pool, tiles, t -> traceGeometries(server, t, clipArea, thresholds));
-			var geometryMap =  wrappers.stream()
-					.flatMap(p -> p.stream())
-					.collect(Collectors.groupingBy(g -> g.label));
-			
+			// Trace each tile, cutting contours at the tile boundaries
+			List<Map<Integer, List<LabelTracer.Chain>>> tileChains = invokeAll(pool, tiles, t -> traceChains(server, t, thresholds));
 			
-			// Determine 'inter-tile boundaries' - union operations can be very slow, so we want to restrict them 
-			// only to geometries that really require them.
-			var xBoundsSet = new TreeSet<Integer>();
-			var yBoundsSet = new TreeSet<Integer>();
-			for (var t : tiles) {
-				xBoundsSet.add(t.getImageX());
-				xBoundsSet.add(t.getImageX() + t.getImageWidth());
-				yBoundsSet.add(t.getImageY());
-				yBoundsSet.add(t.getImageY() + t.getImageHeight());
+			Map<Integer, List<LabelTracer.Chain>> chainMap = new LinkedHashMap<>();
+			for (var threshold : thresholds)
+				chainMap.putIfAbsent(threshold.getChannel(), new ArrayList<>());
+			for (var map : tileChains) {
+				for (var entry : map.entrySet())
+					chainMap.get(entry.getKey()).addAll(entry.getValue());
 			}
-			int[] xBounds = xBoundsSet.stream().mapToInt(x -> x).toArray(); 
-			int[] yBounds = yBoundsSet.stream().mapToInt(y -> y).toArray(); 
 			
+			// Stitch contours along tile boundaries, rather than computing (expensive) unions
+			double downsample = tiles.iterator().next().getDownsample();
 			var futures = new LinkedHashMap<Integer, Future<Geometry>>();
-			
-			// Merge objects with the same classification
-			for (var entry : geometryMap.entrySet()) {
-				var list = entry.getValue();
-				if (list.isEmpty())
+			for (var entry : chainMap.entrySet()) {
+				var chains = entry.getValue();
+				if (chains.isEmpty())
 					continue;
-				futures.put(entry.getKey(), pool.submit(() -> mergeGeometryWrappers(list, xBounds, yBounds)));
+				futures.put(entry.getKey(), pool.submit(() -> stitchGeometry(chains, downsample, clipArea)));
 			}
 			
-			for (var entry : futures.entrySet())
-				output.put(entry.getKey(), entry.getValue().get());			
+			for (var entry : futures.entrySet()) {
+				var geometry = entry.getValue().get();
+				if (geometry != null)
+					output.put(entry.getKey(), geometry);
+			}
 			
 		} catch (Exception e) {
 			throw new IOException(e);
@@ -1062,97 +1061,44 @@ public class ContourTracing {
 	
 	
 	/**
-	 * Merge together geometries.
-	 * @param list
-	 * @param xBounds x tile boundaries; unioning is only applied over boundaries
-	 * @param yBounds y tile boundaries; unioning is only applied over boundaries
-	 * @return
+	 * Create a geometry by stitching together chains traced from tiles.
+	 * @param chains the chains for a single label
+	 * @param downsample downsample used to convert tile coordinates to full resolution coordinates
+	 * @param clipArea optional clip region, intersected with the geometry
+	 * @return the geometry, or null if the geometry has no area
 	 */
-	private static Geometry mergeGeometryWrappers(List<GeometryWrapper> list, int[] xBounds, int[] yBounds) {
-		
-		// Shouldn't happy (since we should have filtered out empty lists before calling this)
-		if (list.isEmpty())
-			return GeometryTools.getDefaultFactory().createEmpty(2);
-		
-		// If we just have one tile, that's what we need
-		if (list.size() == 1)
-			return list.get(0).geometry;
-		
-		var factory = list.get(0).geometry.getFactory();
-		
-		// Merge everything quickly into a single geometry
-		var allPolygons = new ArrayList<Polygon>();
-		for (var temp : list)
-			PolygonExtracter.getPolygons(temp.geometry, allPolygons);
-		
-		// TODO: Explore where buffering is faster than union; if we can get rules for this it can be used instead
-		boolean onlyBuffer = false;
-		
-		Geometry geometry;
-		
-		if (onlyBuffer) {
-			var singleGeometry = factory.buildGeometry(allPolygons);
-			geometry = singleGeometry.buffer(0);
-		} else {
-			
-			// Unioning is expensive, so we just want to do it where really needed
-			var tree = new Quadtree();
-			for (var p : allPolygons) {
-				tree.insert(p.getEnvelopeInternal(), p);
-			}
-			var env = new Envelope();
-			
-			var toMerge = new HashSet<Polygon>();
-			for (int yi = 1; yi < yBounds.length-1; yi++) {
-				env.init(xBounds[0]-1, xBounds[xBounds.length-1]+1, yBounds[yi]-1, yBounds[yi]+1);
-				var items = tree.query(env);
-				if (items.size() > 1)
-					toMerge.addAll(items);
-			}
-			for (int xi = 1; xi < xBounds.length-1; xi++) {
-				env.init(xBounds[xi]-1, xBounds[xi]+1, yBounds[0]-1, yBounds[yBounds.length-1]+1);
-				var items = tree.query(env);
-				if (items.size() > 1)
-					toMerge.addAll(items);
-			}
-			if (!toMerge.isEmpty()) {
-				logger.debug("Computing union for {}/{} polygons", toMerge.size(), allPolygons.size());
-				var mergedGeometry = GeometryTools.union(toMerge);
-//				System.err.println("To merge: " + toMerge.size());
-//				var mergedGeometry = factory.buildGeometry(toMerge).buffer(0);
-				var iter = allPolygons.iterator();
-				while (iter.hasNext()) {
-					if (toMerge.contains(iter.next()))
-						iter.remove();
-				}
-				allPolygons.removeAll(toMerge);
-				var newPolygons = new ArrayList<Polygon>();
-				PolygonExtracter.getPolygons(mergedGeometry, newPolygons);
-				allPolygons.addAll(newPolygons);
-			}
-			geometry = factory.buildGeometry(allPolygons);				
-			geometry.normalize();
+	private static Geometry stitchGeometry(List<LabelTracer.Chain> chains, double downsample, Geometry clipArea) {
+		var rings = LabelTracer.stitch(chains);
+		var geometry = LabelTracer.createGeometry(rings, 0, 0, downsample, GeometryTools.getDefaultFactory());
+		if (geometry == null)
+			return null;
+		if (clipArea != null) {
+			geometry = GeometryTools.attemptOperation(geometry, g -> g.intersection(clipArea));
+			geometry = GeometryTools.homogenizeGeometryCollection(geometry);
 		}
+		// Exclude lines/points that can sometimes arise
+		if (geometry.isEmpty() || geometry.getArea() == 0)
+			return null;
+		geometry.normalize();
 		return geometry;
 	}
 	
-	
 
-	private static List<GeometryWrapper> traceGeometries(ImageServer<BufferedImage> server, TileRequest tile, Geometry clipArea, ChannelThreshold... thresholds) {
+	private static Map<Integer, List<LabelTracer.Chain>> traceChains(ImageServer<BufferedImage> server, TileRequest tile, ChannelThreshold... thresholds) {
 		try {
-			return traceGeometriesImpl(server, tile, clipArea, thresholds);
+			return traceChainsImpl(server, tile, thresholds);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
 	
-	private static List<GeometryWrapper> traceGeometriesImpl(ImageServer<BufferedImage> server, TileRequest tile, Geometry clipArea, ChannelThreshold... thresholds) throws IOException {
+	private static Map<Integer, List<LabelTracer.Chain>> traceChainsImpl(ImageServer<BufferedImage> server, TileRequest tile, ChannelThreshold... thresholds) throws IOException {
 		if (thresholds.length == 0)
-			return Collections.emptyList();
+			return Collections.emptyMap();
 		
 		var request = tile.getRegionRequest();
-		var list = new ArrayList<GeometryWrapper>();
+		Map<Integer, List<LabelTracer.Chain>> output = new LinkedHashMap<>();
 
 		var img = server.readRegion(request);
 		// Get an image to threshold
@@ -1165,12 +1111,12 @@ public class ContourTracing {
 		// If we have classifications, then the 'true' classification is the value of the pixel (which is expected to have a single band).
 		boolean doClassification = (channelType == ImageServerMetadata.ChannelType.PROBABILITY && nChannels > 1) || channelType == ImageServerMetadata.ChannelType.CLASSIFICATION;
 		if (doClassification) {
-			SimpleImage image;
+			float[] pixels;
 			// If we have probability & more than one channel, we take the channel with the highest probability (i.e. softmax)
 			if (channelType == ImageServerMetadata.ChannelType.PROBABILITY) {
 				// Convert probabilities to classifications
 				var raster = img.getRaster();
-				float[] output = new float[w * h];
+				pixels = new float[w * h];
 				for (int y = 0; y < h; y++) {
 					for (int x = 0; x < w; x++) {
 						int maxInd = 0;
@@ -1181,468 +1127,53 @@ public class ContourTracing {
 								maxInd = c;
 								maxVal = val;
 							}
-							output[y*w+x] = (float)maxInd;
 						}
+						pixels[y*w+x] = (float)maxInd;
 					}
 				}
-				image = SimpleImages.createFloatImage(output, w, h);
 			} else {
 				// Handle classifications
 				var raster = img.getRaster();
-				var pixels = raster.getSamples(0, 0, w, h, 0, (float[])null);
-				image = SimpleImages.createFloatImage(pixels, w, h);
+				pixels = raster.getSamples(0, 0, w, h, 0, (float[])null);
 			}
+			// Trace all the requested classifications in a single pass
+			int maxChannel = Arrays.stream(thresholds).mapToInt(t -> t.getChannel()).max().orElse(-1);
+			boolean[] selected = new boolean[maxChannel + 1];
 			for (var threshold : thresholds) {
-				int c = threshold.getChannel();
-				Geometry geometry = ContourTracing.createTracedGeometry(image, c, c, tile);
-				if (geometry != null && !geometry.isEmpty()) {
-					if (clipArea != null) {
-						geometry = GeometryTools.attemptOperation(geometry, g -> g.intersection(clipArea));
-						geometry = GeometryTools.homogenizeGeometryCollection(geometry);
-					}
-					if (!geometry.isEmpty() && geometry.getArea() > 0) {
-						// Exclude lines/points that can sometimes arise
-						list.add(new GeometryWrapper(geometry, c));
-					}
-				}
+				if (threshold.getChannel() >= 0)
+					selected[threshold.getChannel()] = true;
+			}
+			for (int i = 0; i < pixels.length; i++) {
+				int c = (int)pixels[i];
+				if (c != pixels[i] || c < 0 || c >= selected.length || !selected[c])
+					pixels[i] = Float.NaN;
 			}
+			var chains = LabelTracer.traceChains(pixels, w, h, tile.getTileX(), tile.getTileY(), true);
+			for (var entry : chains.entrySet())
+				output.put(entry.getKey().intValue(), entry.getValue());
 		} else {
-			// Apply the provided threshold to all channels
+			// Apply the provided thresholds to each channel, combining thresholds for the same channel
 			var raster = img.getRaster();
-			for (var threshold : thresholds) {
-				Geometry geometry = ContourTracing.createTracedGeometry(
-						raster, threshold.getMinThreshold(), threshold.getMaxThreshold(), threshold.getChannel(), tile);
-				if (geometry != null) {
-					if (clipArea != null) {
-						geometry = GeometryTools.attemptOperation(geometry, g -> g.intersection(clipArea));
-						geometry = GeometryTools.homogenizeGeometryCollection(geometry);
-					}
-					if (!geometry.isEmpty() && geometry.getArea() > 0) {
-						// Exclude lines/points that can sometimes arise
-						list.add(new GeometryWrapper(geometry, threshold.getChannel()));
-					}
-				}
-			}
-			
-		}
-		return list;
-	}
-	
-
-	/**
-	 * Simple wrapper for a geometry and a label (usually a channel number or classification).
-	 */
-	private static class GeometryWrapper {
-		
-		final Geometry geometry;
-		final int label;
-		
-		private GeometryWrapper(Geometry geometry, int label) {
-			this.geometry = geometry;
-			this.label = label;
-		}
-		
-	}
-	
-	
-	
-	
-	private static boolean selected(double v, double min, double max) {
-		return v >= min && v <= max;
-	}
-	
-	
-	
-	/**
-	 * This is adapted from ImageJ's ThresholdToSelection.java (public domain) written by Johannes E. Schindelin 
-	 * based on a proposal by Tom Larkworthy.
-	 * <p>
-	 * See https://github.com/imagej/imagej1/blob/573ab799ae8deb0f4feb79724a5a6f82f60cd2d6/ij/plugin/filter/ThresholdToSelection.java
-	 * <p>
-	 * The code has been substantially rewritten to enable more efficient use within QuPath and to use Java Topology Suite.
-	 * 
-	 * @param image
-	 * @param min
-	 * @param max
-	 * @param xOffset
-	 * @param yOffset
-	 * @return
-	 */
-	private static Geometry traceGeometry(SimpleImage image, double min, double max, double xOffset, double yOffset) {
-		
-		int w = image.getWidth();
-		int h = image.getHeight();
-		
-		boolean[] prevRow, thisRow;
-		var manager = new GeometryManager(GeometryTools.getDefaultFactory());
-
-		// Cache for the current and previous thresholded rows
-		prevRow = new boolean[w + 2];
-		thisRow = new boolean[w + 2];
-		
-		// Current outlines
-		Outline[] movingDown = new Outline[w + 1];
-		Outline movingRight = null;
-		
-		int pixelCount = 0;
-		
-		for (int y = 0; y <= h; y++) {
-			
-			// Swap this and previous rows (this row data will be overwritten as we go)
-			boolean[] tempSwap = prevRow;
-			prevRow = thisRow;
-			thisRow = tempSwap;
-			
-//			thisRow[1] = y < h ? selected(raster, 0, y, min, max) : false;
-			thisRow[1] = y < h ? selected(image.getValue(0, y), min, max) : false;
-			
-			for (int x = 0; x <= w; x++) {
-				
-				int left = x;
-				int center = x + 1;
-				int right = x + 2;
-				
-				if (y < h && x < w - 1)
-					thisRow[right] = selected(image.getValue(x+1, y), min, max);  //we need to read one pixel ahead
-//					thisRow[right] = selected(raster, center, y, min, max);  //we need to read one pixel ahead
-				else if (x < w - 1)
-					thisRow[right] = false;
-				
-				if (thisRow[center])
-					pixelCount++;
-									
-				/*
-				 * Pixels are considered in terms of a 2x2 square.
-				 * ----0----
-				 * | A | B |
-				 * 0---X====
-				 * | C | D |
-				 * ----=====
-				 * 
-				 * The current focus is on D, which is considered the 'center' (since subsequent 
-				 * pixels matter too for the pattern, but we don't need them during this iteration).
-				 * 
-				 * In each case, the question is whether or not an outline will be created,
-				 * or moved for a location 0 to location X - possibly involving merges or completion of 
-				 * an outline.
-				 * 
-				 * Note that outlines are always drawn so that the 'on' pixels are on the left, 
-				 * from the point of view of the directed line.
-				 * Therefore shells are anticlockwise whereas holes are clockwise.
-				 */
-				
-				// Extract the local 2x2 binary pattern
-				// This represented by a value between 0 and 15, where bits indicate if a pixel is selected or not
-				int pattern = (prevRow[left] ? 8 : 0) 
-								+ (prevRow[center] ? 4 : 0) 
-								+ (thisRow[left] ? 2 : 0)
-								+ (thisRow[center] ? 1 : 0);
-
-				
-				switch (pattern) {
-				case 0: 
-					// Nothing selected
-//					assert movingDown[x] == null;
-//					assert movingRight == null;
-					break;
-				case 1: 
-					// Selected D
-//					assert movingDown[x] == null;
-//					assert movingRight == null;
-					// Create new shell
-					movingRight = new Outline(xOffset, yOffset);
-					movingRight.append(x, y);
-					movingDown[x] = movingRight;
-					break;
-				case 2: 
-					// Selected C
-//					assert movingDown[x] == null;
-					movingRight.prepend(x, y);
-					movingDown[x] = movingRight;
-					movingRight = null;
-					break;
-				case 3: 
-					// Selected C, D
-//					assert movingDown[x] == null;
-//					assert movingRight != null;
-					break;
-				case 4: 
-					// Selected B
-//					assert movingRight == null;
-					movingDown[x].append(x, y);
-					movingRight = movingDown[x];
-					movingDown[x] = null;
-					break;
-				case 5: 
-					// Selected B, D
-//					assert movingRight == null;
-//					assert movingDown[x] != null;
-					break;
-				case 6: 
-					// Selected B, C
-//					assert movingDown[x] != null;
-//					assert movingRight != null;
-					movingRight.prepend(x, y);
-					if (Objects.equals(movingRight, movingDown[x])) {
-						// Hole completed!
-						manager.addHole(movingRight);
-						movingRight = new Outline(xOffset, yOffset);
-						movingRight.append(x, y);
-						movingDown[x] = movingRight;
-					} else {
-						movingDown[x].append(x, y);
-						var temp = movingRight;
-						movingRight = movingDown[x];
-						movingDown[x] = temp;
-					}
-					break;
-				case 7: 
-					// Selected B, C, D
-//					assert movingDown[x] != null;
-//					assert movingRight != null;
-					movingDown[x].append(x, y);
-					if (Objects.equals(movingRight, movingDown[x])) {
-						// Hole completed!
-						manager.addHole(movingRight);
-					} else {
-						movingRight.prepend(movingDown[x]);
-						replace(movingDown, movingDown[x], movingRight);
-					}
-					movingRight = null;
-					movingDown[x] = null;
-					break;
-				case 8: 
-					// Selected A
-//					assert movingDown[x] != null;
-//					assert movingRight != null;
-					movingRight.append(x, y);
-					if (Objects.equals(movingRight, movingDown[x])) {
-						// Shell completed!
-						manager.addShell(movingRight);
-					} else {
-						movingDown[x].prepend(movingRight);
-						replace(movingDown, movingRight, movingDown[x]);
-					}
-					movingRight = null;
-					movingDown[x] = null;
-					break;
-				case 9: 
-					// Selected A, D
-//					assert movingDown[x] != null;
-//					assert movingRight != null;
-					movingRight.append(x, y);
-					if (Objects.equals(movingRight, movingDown[x])) {
-						// Shell completed!
-						manager.addShell(movingRight);
-						movingRight = new Outline(xOffset, yOffset);
-						movingRight.append(x, y);
-						movingDown[x] = movingRight;
-					} else {
-						movingDown[x].prepend(x, y);
-						var temp = movingRight;
-						movingRight = movingDown[x];
-						movingDown[x] = temp;
+			var channelThresholds = Arrays.stream(thresholds).collect(Collectors.groupingBy(t -> t.getChannel(), LinkedHashMap::new, Collectors.toList()));
+			for (var entry : channelThresholds.entrySet()) {
+				float[] pixels = raster.getSamples(0, 0, w, h, entry.getKey(), (float[])null);
+				for (int i = 0; i < pixels.length; i++) {
+					float val = pixels[i];
+					boolean isSelected = false;
+					for (var threshold : entry.getValue()) {
+						if (val >= threshold.getMinThreshold() && val <= threshold.getMaxThreshold()) {
+							isSelected = true;
+							break;
+						}
 					}
-					break;
-				case 10: 
-					// Selected A, C
-//					assert movingRight == null;
-//					assert movingDown[x] != null;
-					break;
-				case 11: 
-					// Selected A, C, D
-//					assert movingRight == null;
-//					assert movingDown[x] != null;
-					movingDown[x].prepend(x, y);
-					movingRight = movingDown[x];
-					movingDown[x] = null;
-					break;
-				case 12: 
-					// Selected A, B
-//					assert movingDown[x] == null;
-//					assert movingRight != null;
-					break;
-				case 13: 
-					// Selected A, B, D
-//					assert movingDown[x] == null;
-//					assert movingRight != null;
-					movingRight.append(x, y);
-					movingDown[x] = movingRight;
-					movingRight = null;
-					break;
-				case 14: 
-					// Selected A, B, C
-//					assert movingRight == null;
-//					assert movingDown[x] == null;
-					// Create new hole
-					movingRight = new Outline(xOffset, yOffset);
-					movingRight.append(x, y);
-					movingDown[x] = movingRight;
-					break;
-				case 15: 
-					// Selected A, B, C, D
-//					assert movingDown[x] == null;
-//					assert movingRight == null;
-					break;
+					pixels[i] = isSelected ? 1f : Float.NaN;
 				}
+				var chains = LabelTracer.traceChains(pixels, w, h, tile.getTileX(), tile.getTileY(), true).get(1f);
+				if (chains != null)
+					output.put(entry.getKey(), chains);
 			}
 		}
-		
-		var geom = manager.getFinalGeometry();
-		if (geom == null)
-			return null;
-		
-		var area = geom.getArea();
-		if (pixelCount != area) {
-			logger.warn("Pixel count {} is not equal to geometry area {}", pixelCount, area);
-		}
-		
-		return geom;
-
-	}
-	
-	
-	private static void replace(Outline[] outlines, Outline original, Outline replacement) {
-		for (int i = 0; i < outlines.length; i++) {
-			if (outlines[i] == original)
-				outlines[i] = replacement;
-		}
-	}
-	
-	
-	private static class GeometryManager {
-
-		private Polygonizer polygonizer = new Polygonizer(true);
-		private GeometryFactory factory;
-		
-		private List<LineString> lines = new ArrayList<>();
-
-		GeometryManager(GeometryFactory factory) {
-			this.factory = factory;
-		}
-
-		public void addHole(Outline outline) {
-			addOutline(outline, true);
-		}
-
-		public void addShell(Outline outline) {
-			addOutline(outline, false);
-		}
-
-		private void addOutline(Outline outline, boolean isHole) {
-			lines.add(factory.createLineString(outline.getRing()));
-		}
-
-		public Geometry getFinalGeometry() {
-			if (lines.isEmpty())
-				return null;//factory.createEmpty(2);
-			var geomTemp = factory.buildGeometry(lines).union();
-			polygonizer.add(geomTemp);
-			return polygonizer.getGeometry();
-		}
-
-	}
-
-	
-	
-
-	private static class Outline {
-
-		private Deque<Coordinate> coords = new ArrayDeque<>();
-
-		private double xOffset, yOffset;
-
-		/**
-		 * Initialize an output. Optional x and y offsets may be provided, in which case
-		 * these will be added to coordinates. The reason for this is to help support 
-		 * working with tiled images, where the tile origin is not 0,0 but we don't want to 
-		 * have to handle this elsewhere.
-		 * 
-		 * @param xOffset
-		 * @param yOffset
-		 */
-		public Outline(double xOffset, double yOffset) {
-			this.xOffset = xOffset;
-			this.yOffset = yOffset;
-		}
-
-		public void append(int x, int y) {
-			append(new Coordinate(xOffset + x, yOffset + y));
-		}
-
-		public void append(Coordinate c) {
-			// Don't add repeating coordinate
-			if (!coords.isEmpty() && coords.getLast().equals(c))
-				return;
-			coords.addLast(c);
-		}
-
-
-		public void prepend(int x, int y) {
-			prepend(new Coordinate(xOffset + x, yOffset + y));
-		}
-
-		public void prepend(Coordinate c) {
-			// Don't add repeating coordinate
-			if (!coords.isEmpty() && coords.getFirst().equals(c))
-				return;
-			coords.addFirst(c);
-		}
-
-		public void prepend(Outline outline) {
-			outline.coords.descendingIterator().forEachRemaining(c -> prepend(c));
-			// Update the coordinate array for the other - since they are now part of the same outline
-			outline.coords = coords;
-		}
-
-		public Coordinate[] getRing() {
-			if (!coords.getFirst().equals(coords.getLast()))
-				coords.add(coords.getFirst());
-			return coords.toArray(Coordinate[]::new);
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + ((coords == null) ? 0 : coords.hashCode());
-			long temp;
-			temp = Double.doubleToLongBits(xOffset);
-			result = prime * result + (int) (temp ^ (temp >>> 32));
-			temp = Double.doubleToLongBits(yOffset);
-			result = prime * result + (int) (temp ^ (temp >>> 32));
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			Outline other = (Outline) obj;
-			if (coords == null) {
-				if (other.coords != null)
-					return false;
-			} else if (!coords.equals(other.coords))
-				return false;
-			if (Double.doubleToLongBits(xOffset) != Double.doubleToLongBits(other.xOffset))
-				return false;
-			if (Double.doubleToLongBits(yOffset) != Double.doubleToLongBits(other.yOffset))
-				return false;
-			return true;
-		}
-
-		@Override
-		public String toString() {
-			return "[" + coords.stream()
-			.map(c -> "(" + GeneralTools.formatNumber(c.x, 2) + ", " + GeneralTools.formatNumber(c.y, 2) + ")")
-			.collect(Collectors.joining(", ")) + "]";
-		}
-
-
+		return output;
 	}
 
 }
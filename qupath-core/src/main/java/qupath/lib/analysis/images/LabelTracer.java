@@ -0,0 +1,692 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis.images;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trace the contours of all labels in an image with a single raster scan.
+ * <p>
+ * Contours follow the pixel edges, and are directed so that the labeled pixels are on the right
+ * (using image coordinates, where y increases downwards).
+ * Where two diagonally-adjacent pixels share a label that their other neighbors do not have, the contour
+ * turns to keep following the same pixel - so that labeled regions are 4-connected.
+ * <p>
+ * Contours may also be traced for tiles, in which case they are cut into 'chains' wherever they reach
+ * the tile boundary. Chains from adjacent tiles can be stitched together using only their end points,
+ * which avoids the need to compute (potentially very expensive) geometry unions.
+ * <p>
+ * All coordinates are integer pixel corners within a shared grid, and are only converted to
+ * {@link Geometry} objects (with an optional translation and scaling) at the end.
+ */
+class LabelTracer {
+
+	private static final Logger logger = LoggerFactory.getLogger(LabelTracer.class);
+
+	/*
+	 * Directions, ordered by clockwise rotation in image coordinates.
+	 * Turning right means adding 1, turning left means adding 3.
+	 */
+	private static final int RIGHT = 0, DOWN = 1, LEFT = 2, UP = 3;
+
+	private static final int[] DX = {1, 0, -1, 0};
+	private static final int[] DY = {0, 1, 0, -1};
+
+	/**
+	 * Order in which to check turns when choosing the next direction: right, straight, then left.
+	 */
+	private static final int[] TURNS = {1, 0, 3};
+
+
+	/**
+	 * A directed sequence of pixel corners, traced along the boundary of a single label.
+	 * Only the end points and the points where the direction changes are stored.
+	 */
+	static class Chain {
+
+		private final float label;
+		private final int[] xy;
+		private final boolean closed;
+
+		private Chain(float label, int[] xy, boolean closed) {
+			this.label = label;
+			this.xy = xy;
+			this.closed = closed;
+		}
+
+		/**
+		 * Get the label of the pixels on the right of the chain.
+		 * @return
+		 */
+		float getLabel() {
+			return label;
+		}
+
+		/**
+		 * Query whether the chain is a closed ring. If not, it should be stitched to other chains
+		 * using {@link LabelTracer#stitch(Collection)}.
+		 * @return
+		 */
+		boolean isClosed() {
+			return closed;
+		}
+
+		private int nPoints() {
+			return xy.length / 2;
+		}
+
+		private long startKey() {
+			return key(xy[0], xy[1]);
+		}
+
+		private long endKey() {
+			return key(xy[xy.length-2], xy[xy.length-1]);
+		}
+
+		private int startDirection() {
+			return direction(xy[0], xy[1], xy[2], xy[3]);
+		}
+
+		private int endDirection() {
+			int n = xy.length;
+			return direction(xy[n-4], xy[n-3], xy[n-2], xy[n-1]);
+		}
+
+	}
+
+
+	/**
+	 * Create an array of labels from an image, where all pixels outside the selected range are NaN.
+	 * @param image the labeled image
+	 * @param minLabel minimum label value (inclusive)
+	 * @param maxLabel maximum label value (inclusive)
+	 * @param binary if true, all selected pixels are given the label 1 - so that they are traced as a single region
+	 * @return
+	 */
+	static float[] selectLabels(SimpleImage image, double minLabel, double maxLabel, boolean binary) {
+		var pixels = SimpleImages.getPixels(image, true);
+		var labels = new float[pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			float val = pixels[i];
+			if (val >= minLabel && val <= maxLabel)
+				labels[i] = binary ? 1f : val;
+			else
+				labels[i] = Float.NaN;
+		}
+		return labels;
+	}
+
+
+	/**
+	 * Trace the contours of all labels in an image.
+	 * @param labels pixel labels; NaN values are treated as background
+	 * @param width image width
+	 * @param height image height
+	 * @param xOrigin x-coordinate of the image origin in the output space
+	 * @param yOrigin y-coordinate of the image origin in the output space
+	 * @param scale scale factor to convert pixel coordinates into the output space (i.e. the downsample)
+	 * @param factory factory used to create geometries
+	 * @return a map of labels and their geometries, sorted by label
+	 */
+	static Map<Float, Geometry> traceLabels(float[] labels, int width, int height, double xOrigin, double yOrigin, double scale, GeometryFactory factory) {
+		var chainMap = traceChains(labels, width, height, 0, 0, false);
+		var output = new TreeMap<Float, Geometry>();
+		for (var entry : chainMap.entrySet()) {
+			var rings = entry.getValue().stream().map(c -> c.xy).toList();
+			var geometry = createGeometry(rings, xOrigin, yOrigin, scale, factory);
+			if (geometry != null)
+				output.put(entry.getKey(), geometry);
+		}
+		return output;
+	}
+
+
+	/**
+	 * Trace the contours of all labels in an image, returning them as chains.
+	 * @param labels pixel labels; NaN values are treated as background
+	 * @param width image width
+	 * @param height image height
+	 * @param xOffset x-offset of the image in the grid used for stitching (e.g. the tile x-coordinate)
+	 * @param yOffset y-offset of the image in the grid used for stitching (e.g. the tile y-coordinate)
+	 * @param isTile if true, cut contours where they meet the image boundary so that they can be stitched to
+	 *               contours from adjacent tiles; if false, all chains will be closed
+	 * @return a map of labels and their chains, sorted by label
+	 */
+	static Map<Float, List<Chain>> traceChains(float[] labels, int width, int height, int xOffset, int yOffset, boolean isTile) {
+		if (labels.length != width * height)
+			throw new IllegalArgumentException("Number of labels " + labels.length + " does not match image size " + width + "x" + height);
+		return new Tracer(labels, width, height, xOffset, yOffset, isTile).trace();
+	}
+
+
+	/**
+	 * Stitch chains with the same label into closed rings.
+	 * <p>
+	 * Chains traced along both sides of a tile boundary are removed, since these are inside the labeled region.
+	 * The remaining chains are then joined where one ends and another begins, using the same rule for
+	 * choosing the next direction as is used for tracing.
+	 *
+	 * @param chains the chains for a single label, possibly from multiple tiles
+	 * @return closed rings, as arrays of interleaved x and y coordinates (without repeating the first point)
+	 */
+	static List<int[]> stitch(Collection<Chain> chains) {
+		List<int[]> rings = new ArrayList<>();
+		List<Chain> open = new ArrayList<>();
+		Map<Long, List<Chain>> starts = new HashMap<>();
+		for (var chain : chains) {
+			if (chain.closed)
+				rings.add(chain.xy);
+			else {
+				open.add(chain);
+				starts.computeIfAbsent(chain.startKey(), k -> new ArrayList<>(2)).add(chain);
+			}
+		}
+		if (open.isEmpty())
+			return rings;
+
+		Set<Chain> used = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		// Remove straight edges that were traced in both directions
+		for (var chain : open) {
+			if (chain.nPoints() != 2 || used.contains(chain))
+				continue;
+			var candidates = starts.getOrDefault(chain.endKey(), Collections.emptyList());
+			for (var other : candidates) {
+				if (other.nPoints() == 2 && other.endKey() == chain.startKey() && !used.contains(other)) {
+					used.add(chain);
+					used.add(other);
+					break;
+				}
+			}
+		}
+
+		// Join chains where they meet
+		for (var first : open) {
+			if (used.contains(first))
+				continue;
+			used.add(first);
+			var ring = new IntArray(first.xy.length * 2);
+			var current = first;
+			while (true) {
+				// Add all but the last point, since this is the first point of the next chain
+				ring.add(current.xy, current.xy.length - 2);
+				var next = findNext(starts.get(current.endKey()), current.endDirection(), first, used);
+				if (next == first)
+					break;
+				if (next == null) {
+					int n = current.xy.length;
+					logger.warn("Unable to stitch contour at ({}, {})", current.xy[n-2], current.xy[n-1]);
+					ring.add(current.xy[n-2], current.xy[n-1]);
+					break;
+				}
+				used.add(next);
+				current = next;
+			}
+			rings.add(ring.toArray());
+		}
+		return rings;
+	}
+
+
+	private static Chain findNext(List<Chain> candidates, int direction, Chain first, Set<Chain> used) {
+		if (candidates == null)
+			return null;
+		for (int turn : TURNS) {
+			int d = (direction + turn) & 3;
+			for (var chain : candidates) {
+				if ((chain == first || !used.contains(chain)) && chain.startDirection() == d)
+					return chain;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Create a polygonal geometry from closed rings traced around the same label.
+	 * @param rings the rings, as arrays of interleaved x and y coordinates
+	 * @param xOrigin x-coordinate of the grid origin in the output space
+	 * @param yOrigin y-coordinate of the grid origin in the output space
+	 * @param scale scale factor to convert grid coordinates into the output space
+	 * @param factory factory used to create the geometry
+	 * @return a polygon or multipolygon, or null if there are no rings
+	 */
+	static Geometry createGeometry(Collection<int[]> rings, double xOrigin, double yOrigin, double scale, GeometryFactory factory) {
+		// Shells go clockwise (in image coordinates) and holes anticlockwise
+		List<Ring> shells = new ArrayList<>();
+		List<Ring> holes = new ArrayList<>();
+		for (var xy : rings) {
+			for (var split : splitRing(xy)) {
+				var ring = new Ring(removeCollinear(split));
+				if (ring.area > 0)
+					shells.add(ring);
+				else if (ring.area < 0)
+					holes.add(ring);
+			}
+		}
+		if (shells.isEmpty()) {
+			if (!holes.isEmpty())
+				logger.warn("Found {} holes without any shells", holes.size());
+			return null;
+		}
+
+		// Assign each hole to the smallest shell that contains it
+		if (shells.size() == 1) {
+			shells.get(0).holes.addAll(holes);
+		} else if (!holes.isEmpty()) {
+			var tree = new STRtree();
+			for (var shell : shells)
+				tree.insert(shell.getEnvelope(), shell);
+			for (var hole : holes) {
+				// Use the center of a pixel inside the labeled region, which can't be on the boundary of any ring
+				double x = hole.xy[0] + 0.5, y = hole.xy[1] + 0.5;
+				switch (direction(hole.xy[0], hole.xy[1], hole.xy[2], hole.xy[3])) {
+				case DOWN:
+					x -= 1;
+					break;
+				case LEFT:
+					x -= 1;
+					y -= 1;
+					break;
+				case UP:
+					y -= 1;
+					break;
+				default:
+					break;
+				}
+				Ring parent = null;
+				for (var item : tree.query(new Envelope(x, x, y, y))) {
+					var shell = (Ring)item;
+					if ((parent == null || shell.area < parent.area) && shell.contains(x, y))
+						parent = shell;
+				}
+				if (parent == null)
+					logger.warn("Unable to find shell for hole at ({}, {})", hole.xy[0], hole.xy[1]);
+				else
+					parent.holes.add(hole);
+			}
+		}
+
+		var polygons = new ArrayList<Polygon>();
+		for (var shell : shells) {
+			var shellRing = shell.toLinearRing(xOrigin, yOrigin, scale, factory);
+			var holeRings = shell.holes.stream()
+					.map(h -> h.toLinearRing(xOrigin, yOrigin, scale, factory))
+					.toArray(LinearRing[]::new);
+			polygons.add(factory.createPolygon(shellRing, holeRings));
+		}
+		return factory.buildGeometry(polygons);
+	}
+
+
+	/**
+	 * Split a ring wherever it passes through the same point more than once, since JTS does not permit
+	 * self-touching rings.
+	 * This can occur when a region touches itself diagonally.
+	 * @param xy
+	 * @return
+	 */
+	private static List<int[]> splitRing(int[] xy) {
+		int n = xy.length / 2;
+		var seen = new HashSet<Long>();
+		boolean hasRepeats = false;
+		for (int i = 0; i < n; i++) {
+			if (!seen.add(key(xy[i*2], xy[i*2+1]))) {
+				hasRepeats = true;
+				break;
+			}
+		}
+		if (!hasRepeats)
+			return Collections.singletonList(xy);
+
+		List<int[]> output = new ArrayList<>();
+		var stack = new IntArray(xy.length);
+		var positions = new HashMap<Long, Integer>();
+		for (int i = 0; i < n; i++) {
+			int x = xy[i*2];
+			int y = xy[i*2+1];
+			long key = key(x, y);
+			var pos = positions.get(key);
+			if (pos == null) {
+				positions.put(key, stack.size() / 2);
+				stack.add(x, y);
+			} else {
+				// Remove the loop since we last visited this point
+				output.add(Arrays.copyOfRange(stack.array, pos * 2, stack.size()));
+				for (int j = pos + 1; j < stack.size() / 2; j++)
+					positions.remove(key(stack.array[j*2], stack.array[j*2+1]));
+				stack.truncate((pos + 1) * 2);
+			}
+		}
+		output.add(stack.toArray());
+		return output;
+	}
+
+
+	/**
+	 * Remove points from a closed ring that are on a straight line between the previous and next points.
+	 * @param xy
+	 * @return
+	 */
+	private static int[] removeCollinear(int[] xy) {
+		int n = xy.length / 2;
+		var output = new IntArray(xy.length);
+		for (int i = 0; i < n; i++) {
+			int prev = ((i + n - 1) % n) * 2;
+			int next = ((i + 1) % n) * 2;
+			int x = xy[i*2];
+			int y = xy[i*2+1];
+			// All edges are horizontal or vertical
+			if ((xy[prev] == x && xy[next] == x) || (xy[prev+1] == y && xy[next+1] == y))
+				continue;
+			output.add(x, y);
+		}
+		return output.toArray();
+	}
+
+
+	private static int direction(int x1, int y1, int x2, int y2) {
+		if (x2 > x1)
+			return RIGHT;
+		if (x2 < x1)
+			return LEFT;
+		if (y2 > y1)
+			return DOWN;
+		return UP;
+	}
+
+	private static long key(int x, int y) {
+		return ((long)x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+
+	/**
+	 * Helper class to trace all the contours in a single image or tile.
+	 */
+	private static class Tracer {
+
+		private final float[] labels;
+		private final int width, height;
+		private final int xOffset, yOffset;
+		private final boolean isTile;
+
+		// Bits indicating the edges leaving each pixel corner, and those that haven't yet been traced
+		private final byte[] edges;
+		private final byte[] remaining;
+
+		private final Map<Float, List<Chain>> chains = new TreeMap<>();
+
+		private Tracer(float[] labels, int width, int height, int xOffset, int yOffset, boolean isTile) {
+			this.labels = labels;
+			this.width = width;
+			this.height = height;
+			this.xOffset = xOffset;
+			this.yOffset = yOffset;
+			this.isTile = isTile;
+			this.edges = new byte[(width + 1) * (height + 1)];
+			this.remaining = new byte[edges.length];
+		}
+
+		private Map<Float, List<Chain>> trace() {
+			findEdges();
+			int w1 = width + 1;
+			// For tiles, we need to start with all the chains that begin on the boundary
+			if (isTile) {
+				for (int y = 0; y <= height; y++) {
+					for (int x = 0; x <= width; x++) {
+						if (remaining[y * w1 + x] != 0 && isBoundary(x, y))
+							traceAll(x, y);
+					}
+				}
+			}
+			// Any other contours are closed
+			for (int y = 0; y <= height; y++) {
+				for (int x = 0; x <= width; x++) {
+					if (remaining[y * w1 + x] != 0)
+						traceAll(x, y);
+				}
+			}
+			return chains;
+		}
+
+		/**
+		 * Identify all edges with a single scan through the pixels.
+		 * Each pixel can contribute an edge on each side where its neighbor has a different label.
+		 */
+		private void findEdges() {
+			int w1 = width + 1;
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int ind = y * width + x;
+					float val = labels[ind];
+					if (Float.isNaN(val))
+						continue;
+					// Note that comparisons with NaN neighbors always return true
+					if (y == 0 || labels[ind - width] != val)
+						edges[y * w1 + x] |= 1 << RIGHT;
+					if (x == width - 1 || labels[ind + 1] != val)
+						edges[y * w1 + x + 1] |= 1 << DOWN;
+					if (y == height - 1 || labels[ind + width] != val)
+						edges[(y + 1) * w1 + x + 1] |= 1 << LEFT;
+					if (x == 0 || labels[ind - 1] != val)
+						edges[(y + 1) * w1 + x] |= 1 << UP;
+				}
+			}
+			System.arraycopy(edges, 0, remaining, 0, edges.length);
+		}
+
+		private boolean isBoundary(int x, int y) {
+			return x == 0 || y == 0 || x == width || y == height;
+		}
+
+		private void traceAll(int x, int y) {
+			int ind = y * (width + 1) + x;
+			for (int d = 0; d < 4; d++) {
+				if ((remaining[ind] & (1 << d)) != 0) {
+					var chain = traceChain(x, y, d);
+					chains.computeIfAbsent(chain.label, k -> new ArrayList<>()).add(chain);
+				}
+			}
+		}
+
+		/**
+		 * Get the label of the pixel to the right of an edge leaving a pixel corner.
+		 */
+		private float getLabel(int x, int y, int direction) {
+			switch (direction) {
+			case RIGHT:
+				return labels[y * width + x];
+			case DOWN:
+				return labels[y * width + x - 1];
+			case LEFT:
+				return labels[(y - 1) * width + x - 1];
+			case UP:
+			default:
+				return labels[(y - 1) * width + x];
+			}
+		}
+
+		private Chain traceChain(int startX, int startY, int startDirection) {
+			float label = getLabel(startX, startY, startDirection);
+			int w1 = width + 1;
+			var points = new IntArray(16);
+			points.add(startX + xOffset, startY + yOffset);
+			remaining[startY * w1 + startX] &= ~(1 << startDirection);
+			int x = startX;
+			int y = startY;
+			int direction = startDirection;
+			while (true) {
+				x += DX[direction];
+				y += DY[direction];
+				if (isTile && isBoundary(x, y)) {
+					points.add(x + xOffset, y + yOffset);
+					return new Chain(label, points.toArray(), false);
+				}
+				int next = nextDirection(x, y, direction, label);
+				if (x == startX && y == startY && next == startDirection)
+					return new Chain(label, points.toArray(), true);
+				int ind = y * w1 + x;
+				if ((remaining[ind] & (1 << next)) == 0)
+					throw new IllegalStateException("Contour tracing failed at (" + (x + xOffset) + ", " + (y + yOffset) + ")");
+				remaining[ind] &= ~(1 << next);
+				if (next != direction)
+					points.add(x + xOffset, y + yOffset);
+				direction = next;
+			}
+		}
+
+		private int nextDirection(int x, int y, int direction, float label) {
+			int mask = edges[y * (width + 1) + x];
+			for (int turn : TURNS) {
+				int d = (direction + turn) & 3;
+				if ((mask & (1 << d)) != 0 && getLabel(x, y, d) == label)
+					return d;
+			}
+			throw new IllegalStateException("Contour tracing failed at (" + (x + xOffset) + ", " + (y + yOffset) + ")");
+		}
+
+	}
+
+
+	/**
+	 * A closed ring, with its signed area (positive for shells).
+	 */
+	private static class Ring {
+
+		private final int[] xy;
+		private final double area;
+		private final List<Ring> holes = new ArrayList<>();
+
+		private Ring(int[] xy) {
+			this.xy = xy;
+			int n = xy.length / 2;
+			long sum = 0;
+			for (int i = 0; i < n; i++) {
+				int j = (i + 1) % n;
+				sum += (long)xy[i*2] * xy[j*2+1] - (long)xy[j*2] * xy[i*2+1];
+			}
+			this.area = sum / 2.0;
+		}
+
+		private Envelope getEnvelope() {
+			var envelope = new Envelope();
+			for (int i = 0; i < xy.length; i += 2)
+				envelope.expandToInclude(xy[i], xy[i+1]);
+			return envelope;
+		}
+
+		/**
+		 * Test if a point is inside the ring, using the even-odd rule.
+		 * The point should not be on the boundary.
+		 */
+		private boolean contains(double x, double y) {
+			int n = xy.length / 2;
+			boolean inside = false;
+			for (int i = 0, j = n - 1; i < n; j = i++) {
+				double yi = xy[i*2+1];
+				double yj = xy[j*2+1];
+				if ((yi > y) != (yj > y)) {
+					double xi = xy[i*2];
+					double xj = xy[j*2];
+					if (x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+						inside = !inside;
+				}
+			}
+			return inside;
+		}
+
+		private LinearRing toLinearRing(double xOrigin, double yOrigin, double scale, GeometryFactory factory) {
+			int n = xy.length / 2;
+			var coords = new Coordinate[n + 1];
+			for (int i = 0; i < n; i++)
+				coords[i] = new Coordinate(xOrigin + xy[i*2] * scale, yOrigin + xy[i*2+1] * scale);
+			coords[n] = coords[0].copy();
+			return factory.createLinearRing(coords);
+		}
+
+	}
+
+
+	/**
+	 * Minimal growable int array.
+	 */
+	private static class IntArray {
+
+		private int[] array;
+		private int size;
+
+		private IntArray(int capacity) {
+			array = new int[Math.max(capacity, 4)];
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > array.length)
+				array = Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+		}
+
+		private void add(int x, int y) {
+			ensureCapacity(size + 2);
+			array[size++] = x;
+			array[size++] = y;
+		}
+
+		private void add(int[] values, int n) {
+			ensureCapacity(size + n);
+			System.arraycopy(values, 0, array, size, n);
+			size += n;
+		}
+
+		private void truncate(int n) {
+			size = n;
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(array, size);
+		}
+
+	}
+
+}
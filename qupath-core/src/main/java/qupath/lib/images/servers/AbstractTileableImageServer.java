@@ -28,6 +28,8 @@ import java.awt.image.ColorModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -70,6 +72,9 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	
 	// Maintain a record of tiles that could not be cached, so we warn for each only once
 	private transient Set<RegionRequest> failedCacheTiles = new HashSet<>();
+	
+	// Key prefix for the persistent tile cache, if required
+	private transient String persistentCacheKey;
 		
 	protected AbstractTileableImageServer() {
 		super(BufferedImage.class);
@@ -210,7 +215,7 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 		logger.trace("Reading tile: {}", request);
 		
 		BufferedImage imgCached;
-		var futureTask = pendingTiles.computeIfAbsent(tileRequest, t -> new TileTask(Thread.currentThread(), () -> readTile(t)));
+		var futureTask = pendingTiles.computeIfAbsent(tileRequest, t -> new TileTask(Thread.currentThread(), () -> readTileWithPersistentCache(t)));
 		var myTask = futureTask.thread == Thread.currentThread();
 		try {
 			if (myTask)
@@ -246,6 +251,73 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 		return imgCached;
 	}
 	
+	/**
+	 * Read a tile from the persistent tile cache, if available, or else read it using {@link #readTile(TileRequest)}
+	 * and add it to the persistent cache.
+	 * @param tileRequest
+	 * @return
+	 * @throws IOException
+	 */
+	private BufferedImage readTileWithPersistentCache(final TileRequest tileRequest) throws IOException {
+		var persistentCache = supportsPersistentTileCache() ? ImageServerProvider.getPersistentTileCache() : null;
+		if (persistentCache == null)
+			return readTile(tileRequest);
+		
+		String key = getPersistentTileCacheKey(tileRequest.getRegionRequest());
+		var img = persistentCache.readTile(key, getDefaultColorModel());
+		if (img != null) {
+			logger.trace("Returning tile from persistent cache: {}", tileRequest.getRegionRequest());
+			return img;
+		}
+		img = readTile(tileRequest);
+		if (img != null && !isEmptyTile(img))
+			persistentCache.writeTile(key, img);
+		return img;
+	}
+	
+	/**
+	 * Query whether tiles read by this server may be stored in a {@link PersistentTileCache}, and reused across sessions.
+	 * <p>
+	 * This should only return true if tiles are expensive to decode, and the pixels for a tile are fully determined 
+	 * by the server path and the files returned by {@link #getURIs()}.
+	 * The default implementation returns false.
+	 * 
+	 * @return
+	 * @since v0.5.1
+	 * @see ImageServerProvider#setPersistentTileCache(PersistentTileCache)
+	 */
+	protected boolean supportsPersistentTileCache() {
+		return false;
+	}
+	
+	/**
+	 * Get a key to identify a tile in a persistent cache.
+	 * This incorporates the last modified time and size of any local files, so that cached tiles are not used
+	 * if the image has changed.
+	 * @param request
+	 * @return
+	 */
+	private String getPersistentTileCacheKey(RegionRequest request) {
+		if (persistentCacheKey == null) {
+			var sb = new StringBuilder(getPath());
+			for (var uri : getURIs()) {
+				if (!"file".equals(uri.getScheme()))
+					continue;
+				try {
+					var path = Paths.get(uri);
+					sb.append("|").append(Files.getLastModifiedTime(path).toMillis())
+						.append("|").append(Files.size(path));
+				} catch (Exception e) {
+					logger.debug("Unable to get file attributes for {}: {}", uri, e.getLocalizedMessage());
+				}
+			}
+			persistentCacheKey = sb.toString();
+		}
+		return persistentCacheKey + "|" + request.getDownsample() + "|" +
+				request.getX() + "|" + request.getY() + "|" + request.getWidth() + "|" + request.getHeight() + "|" +
+				request.getZ() + "|" + request.getT();
+	}
+	
 	/**
 	 * Create the default (blank) RGB image for this server.
 	 * <p>
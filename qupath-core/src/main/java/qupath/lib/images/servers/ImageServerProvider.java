@@ -60,6 +60,8 @@ public class ImageServerProvider {
 	
 	private static Map<Class<?>, Map<RegionRequest, ?>> cacheMap = new HashMap<>();
 	
+	private static volatile PersistentTileCache persistentTileCache;
+	
 	@SuppressWarnings("rawtypes")
 	private static ServiceLoader<ImageServerBuilder> serviceLoader = ServiceLoader.load(ImageServerBuilder.class);
 	
@@ -84,6 +86,26 @@ public class ImageServerProvider {
 		return (Map<RegionRequest, T>)cacheMap.get(cls);
 	}
 	
+	/**
+	 * Set the persistent cache to be used for decoded tiles, for servers that support it.
+	 * This is typically associated with the current project, so that tiles can be reused across sessions.
+	 * @param cache the cache to use, or null if no persistent cache should be used
+	 * @since v0.5.1
+	 * @see AbstractTileableImageServer#supportsPersistentTileCache()
+	 */
+	public static void setPersistentTileCache(PersistentTileCache cache) {
+		persistentTileCache = cache;
+	}
+	
+	/**
+	 * Get the persistent cache to be used for decoded tiles, if available.
+	 * @return the cache, or null if no persistent cache should be used
+	 * @since v0.5.1
+	 */
+	public static PersistentTileCache getPersistentTileCache() {
+		return persistentTileCache;
+	}
+	
 	/**
 	 * Replace the default service loader with another.
 	 * <p>
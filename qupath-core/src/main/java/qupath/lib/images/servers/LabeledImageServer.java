@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -24,6 +24,7 @@ package qupath.lib.images.servers;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -107,6 +108,11 @@ public class LabeledImageServer extends AbstractTileableImageServer implements G
 	private Map<PathObject, Integer> instanceClassMap = null;
 	private Map<Integer, PathObject> instanceClassMapInverse = null;
 
+	/**
+	 * Rasterizer used to fill area ROIs, caching the pixels of objects that extend across multiple tiles.
+	 */
+	private final RoiRasterizer rasterizer = new RoiRasterizer(4L * 1024 * 1024);
+
 	private LabeledImageServer(final ImageData<BufferedImage> imageData, double downsample, int tileWidth, int tileHeight, LabeledServerParameters params, boolean multichannelOutput) {
 		super();
 
@@ -927,6 +933,8 @@ public class LabeledImageServer extends AbstractTileableImageServer implements G
 		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
 		WritableRaster raster = img.getRaster();
 		Graphics2D g2d = img.createGraphics();
+		// Use the same (pure) rules to fill and draw, so that cached fills match boundaries
+		g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
 
 		if (!pathObjects.isEmpty()) {
 
@@ -951,7 +959,7 @@ public class LabeledImageServer extends AbstractTileableImageServer implements G
 					if (getPathClass(pathObject) == pathClass) {
 						var roi = params.roiFunction.apply(pathObject);
 						if (roi.isArea())
-							g2d.fill(roi.getShape());
+							rasterizer.fill(roi, request, g2d, raster, 255);
 						else if (roi.isLine())
 							g2d.draw(roi.getShape());
 						else if (roi.isPoint()) {
@@ -1009,6 +1017,8 @@ public class LabeledImageServer extends AbstractTileableImageServer implements G
 		WritableRaster raster = img.getRaster();
 
 		Graphics2D g2d = img.createGraphics();
+		// Use the same (pure) rules to fill and draw, so that cached fills match boundaries
+		g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
 		int bgLabel = params.labels.get(params.unannotatedClass);
 		Color color = getColorForLabel(bgLabel, doRGB);
 		g2d.setColor(color);
@@ -1050,7 +1060,7 @@ public class LabeledImageServer extends AbstractTileableImageServer implements G
 					var roi = params.roiFunction.apply(pathObject);
 					g2d.setColor(color);
 					if (roi.isArea())
-						g2d.fill(roi.getShape());
+						rasterizer.fill(roi, request, g2d, raster, doRGB ? color.getRGB() & 0xFFFFFF : c);
 					else if (roi.isLine())
 						g2d.draw(roi.getShape());
 					else if (roi.isPoint()) {
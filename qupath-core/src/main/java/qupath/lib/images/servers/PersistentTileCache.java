@@ -0,0 +1,687 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache of decoded image tiles, which can be reused across sessions.
+ * <p>
+ * Tiles are stored as uncompressed pixels in a fixed number of chunk files, so that reading
+ * a cached tile requires only a single read and no decompression.
+ * New tiles are appended to the current chunk, and chunk files only grow as tiles are added.
+ * When all chunks are full, the least recently used chunk is truncated and reused.
+ * This means eviction is approximately LRU, at the granularity of a chunk.
+ * <p>
+ * Disk reads and writes happen outside the lock used to update the index, so that tiles can be
+ * read and written concurrently; each chunk has its own lock to prevent it being recycled while in use.
+ * <p>
+ * The index of cached tiles is rebuilt by scanning the chunk files when the cache is opened.
+ * Each tile is stored with a checksum, so that incomplete writes (e.g. if QuPath crashed) are detected and ignored.
+ * <p>
+ * Keys should uniquely identify the pixels of a tile, and tiles are assumed never to change for a given key.
+ * See {@link AbstractTileableImageServer} for how keys are generated.
+ *
+ * @since v0.5.1
+ * @see ImageServerProvider#setPersistentTileCache(PersistentTileCache)
+ */
+public class PersistentTileCache implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(PersistentTileCache.class);
+
+	private static final int CHUNK_MAGIC = 0x51505443; // QPTC
+	private static final int RECORD_MAGIC = 0x51505452; // QPTR
+	private static final int VERSION = 1;
+
+	// Magic, version, generation
+	private static final int CHUNK_HEADER_SIZE = 4 + 4 + 8;
+	// Magic, generation, key length, data length, checksum
+	private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 4 + 8;
+
+	private static final int LAYOUT_RAW = 0;
+	private static final int LAYOUT_SAMPLES = 1;
+
+	/**
+	 * Default size of each chunk file.
+	 */
+	static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+	private final Path dir;
+	private final int chunkSize;
+	private final List<Chunk> chunks = new ArrayList<>();
+	private final Map<String, Entry> index = new HashMap<>();
+
+	private Chunk current;
+	private long clock = 0;
+	private boolean closed = false;
+
+	private PersistentTileCache(Path dir, long maxSizeBytes, int chunkSize) {
+		this.dir = dir;
+		int nChunks = (int)Math.max(2, Math.min(Integer.MAX_VALUE, maxSizeBytes / chunkSize));
+		this.chunkSize = chunkSize;
+		for (int i = 0; i < nChunks; i++)
+			chunks.add(new Chunk(dir.resolve(String.format("chunk-%04d.qptiles", i))));
+	}
+
+	/**
+	 * Open a persistent tile cache using the specified directory, creating it if necessary.
+	 * Any existing tiles will be available from the cache.
+	 *
+	 * @param dir the directory containing the chunk files
+	 * @param maxSizeBytes the approximate maximum size of the cache on disk; at least two chunks are always used
+	 * @return the tile cache
+	 * @throws IOException if the directory or chunk files could not be created
+	 */
+	public static PersistentTileCache open(Path dir, long maxSizeBytes) throws IOException {
+		int chunkSize = (int)Math.max(1024 * 1024, Math.min(DEFAULT_CHUNK_SIZE, maxSizeBytes / 16));
+		return open(dir, maxSizeBytes, chunkSize);
+	}
+
+	static PersistentTileCache open(Path dir, long maxSizeBytes, int chunkSize) throws IOException {
+		Files.createDirectories(dir);
+		var cache = new PersistentTileCache(dir, maxSizeBytes, chunkSize);
+		try {
+			cache.initialize();
+		} catch (IOException e) {
+			cache.close();
+			throw e;
+		}
+		return cache;
+	}
+
+	private void initialize() throws IOException {
+		// Remove chunks that are no longer needed (e.g. if the maximum size was reduced)
+		try (var stream = Files.list(dir)) {
+			var paths = chunks.stream().map(c -> c.path).toList();
+			for (var path : stream.filter(p -> p.getFileName().toString().endsWith(".qptiles")).toList()) {
+				if (!paths.contains(path))
+					Files.deleteIfExists(path);
+			}
+		}
+		long maxGeneration = 0;
+		for (var chunk : chunks) {
+			chunk.open(chunkSize);
+			maxGeneration = Math.max(maxGeneration, chunk.generation);
+		}
+		clock = maxGeneration;
+		logger.debug("Opened persistent tile cache with {} tiles ({})", index.size(), dir);
+	}
+
+	/**
+	 * Get the directory containing the chunk files.
+	 * @return
+	 */
+	public Path getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Get the number of tiles currently in the cache.
+	 * @return
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Query whether the cache contains a tile for the specified key.
+	 * @param key
+	 * @return
+	 */
+	public synchronized boolean containsKey(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * Read a tile from the cache.
+	 * @param key the unique key for the tile
+	 * @param colorModel the color model to use, if the tile does not have a standard {@link BufferedImage} type
+	 * @return the tile, or null if the tile is not in the cache (or cannot be read)
+	 */
+	public BufferedImage readTile(String key, ColorModel colorModel) {
+		Entry entry;
+		long generation;
+		synchronized (this) {
+			entry = closed ? null : index.get(key);
+			if (entry == null)
+				return null;
+			generation = entry.chunk.generation;
+			entry.chunk.lastAccess = ++clock;
+		}
+		// Read the checksum, key and data together
+		var chunk = entry.chunk;
+		var buffer = ByteBuffer.allocate(8 + entry.keyLength + entry.dataLength);
+		var lock = chunk.lock.readLock();
+		lock.lock();
+		try {
+			// The chunk may have been recycled since the entry was found
+			if (chunk.generation != generation || chunk.channel == null)
+				return null;
+			readFully(chunk.channel, buffer, entry.position + RECORD_HEADER_SIZE - 8);
+		} catch (IOException e) {
+			logger.debug("Unable to read cached tile {}: {}", key, e.getLocalizedMessage());
+			buffer = null;
+		} finally {
+			lock.unlock();
+		}
+		if (buffer == null) {
+			remove(key, entry);
+			return null;
+		}
+		long checksum = buffer.getLong(0);
+		var bytes = new byte[entry.dataLength];
+		buffer.get(8 + entry.keyLength, bytes);
+		if (checksum(bytes) != checksum) {
+			logger.debug("Invalid checksum for cached tile {}", key);
+			remove(key, entry);
+			return null;
+		}
+		try {
+			return decode(ByteBuffer.wrap(bytes), colorModel);
+		} catch (RuntimeException e) {
+			logger.debug("Unable to decode cached tile {}: {}", key, e.getLocalizedMessage());
+			remove(key, entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Write a tile to the cache.
+	 * If the cache already contains the key, or the tile cannot be encoded, this does nothing.
+	 * @param key the unique key for the tile
+	 * @param img the tile
+	 * @return true if the tile was added to the cache, false otherwise
+	 */
+	public boolean writeTile(String key, BufferedImage img) {
+		if (containsKey(key))
+			return false;
+		var data = encode(img);
+		if (data == null)
+			return false;
+		var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int recordSize = RECORD_HEADER_SIZE + keyBytes.length + data.length;
+		if (recordSize > chunkSize - CHUNK_HEADER_SIZE)
+			return false;
+		long checksum = checksum(data);
+		var buffer = ByteBuffer.allocate(recordSize);
+		buffer.putInt(RECORD_MAGIC);
+		buffer.putLong(0L); // Generation, set when writing
+		buffer.putInt(keyBytes.length);
+		buffer.putInt(data.length);
+		buffer.putLong(checksum);
+		buffer.put(keyBytes);
+		buffer.put(data);
+		// Reserve space in the current chunk
+		Chunk chunk;
+		int pos;
+		long generation;
+		synchronized (this) {
+			if (closed || index.containsKey(key))
+				return false;
+			try {
+				if (current == null || current.position + recordSize > chunkSize)
+					current = recycleChunk();
+			} catch (IOException e) {
+				logger.debug("Unable to recycle tile cache chunk: {}", e.getLocalizedMessage());
+				current = null;
+				return false;
+			}
+			chunk = current;
+			pos = chunk.position;
+			generation = chunk.generation;
+			chunk.position += recordSize;
+			chunk.lastAccess = ++clock;
+		}
+		buffer.putLong(4, generation);
+		buffer.rewind();
+		boolean written = false;
+		boolean failed = false;
+		var lock = chunk.lock.readLock();
+		lock.lock();
+		try {
+			// Append to the file, rather than writing to a file that has been extended in advance
+			if (chunk.generation == generation && chunk.channel != null) {
+				writeFully(chunk.channel, buffer, pos);
+				written = true;
+			}
+		} catch (IOException e) {
+			logger.debug("Unable to write cached tile {}: {}", key, e.getLocalizedMessage());
+			failed = true;
+		} finally {
+			lock.unlock();
+		}
+		synchronized (this) {
+			if (chunk.generation != generation)
+				return false;
+			if (failed) {
+				// Don't risk appending to a chunk in an unknown state
+				if (current == chunk)
+					current = null;
+				return false;
+			}
+			if (!written || closed || index.containsKey(key))
+				return false;
+			chunk.keys.add(key);
+			index.put(key, new Entry(chunk, pos, keyBytes.length, data.length));
+			return true;
+		}
+	}
+
+	/**
+	 * Remove all tiles from the cache.
+	 */
+	public synchronized void clear() {
+		for (var chunk : chunks) {
+			if (chunk.channel != null) {
+				try {
+					// Use a new generation, so that any reads or writes in progress are discarded
+					chunk.recycle(++clock);
+				} catch (IOException e) {
+					logger.warn("Error clearing tile cache chunk {}: {}", chunk.path, e.getLocalizedMessage());
+				}
+				chunk.lastAccess = 0;
+			}
+		}
+		index.clear();
+		current = null;
+	}
+
+	/**
+	 * Close the cache, flushing any changes to disk.
+	 * The cache cannot be used after it has been closed.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		for (var chunk : chunks) {
+			try {
+				chunk.close();
+			} catch (IOException e) {
+				logger.warn("Error closing tile cache chunk {}: {}", chunk.path, e.getLocalizedMessage());
+			}
+		}
+		index.clear();
+		current = null;
+	}
+
+	@Override
+	public String toString() {
+		return "PersistentTileCache [" + dir + ", " + size() + " tiles]";
+	}
+
+	private synchronized void remove(String key, Entry entry) {
+		if (index.remove(key, entry))
+			entry.chunk.keys.remove(key);
+	}
+
+	/**
+	 * Choose the chunk to write to next, preferring an empty chunk or otherwise the least recently used.
+	 * Any tiles in the chunk are removed.
+	 */
+	private Chunk recycleChunk() throws IOException {
+		Chunk selected = null;
+		for (var chunk : chunks) {
+			if (chunk == current)
+				continue;
+			if (chunk.keys.isEmpty() && chunk.position <= CHUNK_HEADER_SIZE) {
+				selected = chunk;
+				break;
+			}
+			if (selected == null || chunk.lastAccess < selected.lastAccess)
+				selected = chunk;
+		}
+		for (var key : selected.keys) {
+			var entry = index.get(key);
+			if (entry != null && entry.chunk == selected)
+				index.remove(key);
+		}
+		selected.recycle(++clock);
+		return selected;
+	}
+
+	private void addToIndex(Chunk chunk, String key, int position, int keyLength, int dataLength) {
+		var previous = index.put(key, new Entry(chunk, position, keyLength, dataLength));
+		if (previous != null)
+			previous.chunk.keys.remove(key);
+		chunk.keys.add(key);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of file");
+			position += n;
+		}
+		buffer.flip();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	private static long checksum(byte[] bytes) {
+		var crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+
+	private static class Entry {
+
+		private final Chunk chunk;
+		private final int position;
+		private final int keyLength;
+		private final int dataLength;
+
+		private Entry(Chunk chunk, int position, int keyLength, int dataLength) {
+			this.chunk = chunk;
+			this.position = position;
+			this.keyLength = keyLength;
+			this.dataLength = dataLength;
+		}
+
+	}
+
+
+	private class Chunk {
+
+		private final Path path;
+		private final List<String> keys = new ArrayList<>();
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		private FileChannel channel;
+		private long generation = 0;
+		private long lastAccess = 0;
+		private int position = CHUNK_HEADER_SIZE;
+
+		private Chunk(Path path) {
+			this.path = path;
+		}
+
+		private void open(int chunkSize) throws IOException {
+			if (Files.exists(path) && Files.size(path) > chunkSize)
+				Files.delete(path);
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long size = channel.size();
+			var header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+			if (size >= CHUNK_HEADER_SIZE)
+				readFully(channel, header, 0);
+			if (size < CHUNK_HEADER_SIZE || header.getInt(0) != CHUNK_MAGIC || header.getInt(4) != VERSION) {
+				reset(0);
+				return;
+			}
+			generation = header.getLong(8);
+			lastAccess = generation;
+			// Scan the records to rebuild the index
+			int pos = CHUNK_HEADER_SIZE;
+			var recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			while (pos + RECORD_HEADER_SIZE <= size) {
+				recordHeader.clear();
+				readFully(channel, recordHeader, pos);
+				if (recordHeader.getInt(0) != RECORD_MAGIC || recordHeader.getLong(4) != generation)
+					break;
+				int keyLength = recordHeader.getInt(12);
+				int dataLength = recordHeader.getInt(16);
+				long end = (long)pos + RECORD_HEADER_SIZE + keyLength + dataLength;
+				if (keyLength <= 0 || dataLength <= 0 || end > size)
+					break;
+				var keyBytes = ByteBuffer.allocate(keyLength);
+				readFully(channel, keyBytes, pos + RECORD_HEADER_SIZE);
+				addToIndex(this, new String(keyBytes.array(), StandardCharsets.UTF_8), pos, keyLength, dataLength);
+				pos = (int)end;
+			}
+			position = pos;
+			// Discard anything after the last valid record (e.g. an incomplete write)
+			if (size > pos)
+				channel.truncate(pos);
+		}
+
+		/**
+		 * Reset the chunk for a new generation, after waiting for any reads or writes to finish.
+		 */
+		private void recycle(long generation) throws IOException {
+			var writeLock = lock.writeLock();
+			writeLock.lock();
+			try {
+				reset(generation);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		private void reset(long generation) throws IOException {
+			this.generation = generation;
+			this.position = CHUNK_HEADER_SIZE;
+			keys.clear();
+			channel.truncate(0);
+			var header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+			header.putInt(CHUNK_MAGIC);
+			header.putInt(VERSION);
+			header.putLong(generation);
+			header.flip();
+			writeFully(channel, header, 0);
+		}
+
+		private void close() throws IOException {
+			var writeLock = lock.writeLock();
+			writeLock.lock();
+			try {
+				if (channel != null)
+					channel.close();
+				channel = null;
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Encode the pixels of an image, or return null if the image is not supported.
+	 * Images with a standard type are stored as raw data buffer contents; other images are stored as samples.
+	 */
+	static byte[] encode(BufferedImage img) {
+		var raster = img.getRaster();
+		if (raster.getParent() != null || raster.getMinX() != 0 || raster.getMinY() != 0)
+			return null;
+		int width = img.getWidth();
+		int height = img.getHeight();
+		int nBands = raster.getNumBands();
+		int dataType = raster.getDataBuffer().getDataType();
+		int type = img.getType();
+		// Indexed images would lose their palette
+		if (type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY)
+			return null;
+
+		Object raw = type == BufferedImage.TYPE_CUSTOM ? null : getRawData(img);
+		int layout = raw == null ? LAYOUT_SAMPLES : LAYOUT_RAW;
+		if (layout == LAYOUT_SAMPLES && type != BufferedImage.TYPE_CUSTOM)
+			return null;
+
+		long n = layout == LAYOUT_RAW ? Array.getLength(raw) : (long)width * height * nBands;
+		long nBytes = 24 + n * (DataBuffer.getDataTypeSize(dataType) / 8);
+		if (nBytes > Integer.MAX_VALUE)
+			return null;
+		var buffer = ByteBuffer.allocate((int)nBytes);
+		buffer.putInt(layout);
+		buffer.putInt(type);
+		buffer.putInt(width);
+		buffer.putInt(height);
+		buffer.putInt(nBands);
+		buffer.putInt(dataType);
+		if (layout == LAYOUT_RAW) {
+			if (raw instanceof byte[])
+				buffer.put((byte[])raw);
+			else if (raw instanceof short[])
+				buffer.asShortBuffer().put((short[])raw);
+			else
+				buffer.asIntBuffer().put((int[])raw);
+			return buffer.array();
+		}
+		for (int b = 0; b < nBands; b++) {
+			switch (dataType) {
+			case DataBuffer.TYPE_BYTE:
+				for (int v : raster.getSamples(0, 0, width, height, b, (int[])null))
+					buffer.put((byte)v);
+				break;
+			case DataBuffer.TYPE_USHORT:
+			case DataBuffer.TYPE_SHORT:
+				for (int v : raster.getSamples(0, 0, width, height, b, (int[])null))
+					buffer.putShort((short)v);
+				break;
+			case DataBuffer.TYPE_INT:
+				buffer.asIntBuffer().put(raster.getSamples(0, 0, width, height, b, (int[])null));
+				buffer.position(buffer.position() + width * height * 4);
+				break;
+			case DataBuffer.TYPE_FLOAT:
+				buffer.asFloatBuffer().put(raster.getSamples(0, 0, width, height, b, (float[])null));
+				buffer.position(buffer.position() + width * height * 4);
+				break;
+			case DataBuffer.TYPE_DOUBLE:
+				buffer.asDoubleBuffer().put(raster.getSamples(0, 0, width, height, b, (double[])null));
+				buffer.position(buffer.position() + width * height * 8);
+				break;
+			default:
+				return null;
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Decode an image previously encoded with {@link #encode(BufferedImage)}.
+	 */
+	static BufferedImage decode(ByteBuffer buffer, ColorModel colorModel) {
+		int layout = buffer.getInt();
+		int type = buffer.getInt();
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		int nBands = buffer.getInt();
+		int dataType = buffer.getInt();
+		if (layout == LAYOUT_RAW) {
+			var img = new BufferedImage(width, height, type);
+			var raw = getRawData(img);
+			if (raw == null || Array.getLength(raw) * (DataBuffer.getDataTypeSize(dataType) / 8) != buffer.remaining())
+				throw new IllegalArgumentException("Cached tile does not match image type " + type);
+			if (raw instanceof byte[])
+				buffer.get((byte[])raw);
+			else if (raw instanceof short[])
+				buffer.asShortBuffer().get((short[])raw);
+			else
+				buffer.asIntBuffer().get((int[])raw);
+			return img;
+		}
+		var raster = colorModel.createCompatibleWritableRaster(width, height);
+		if (raster.getNumBands() != nBands || raster.getDataBuffer().getDataType() != dataType)
+			throw new IllegalArgumentException("Color model is not compatible with cached tile");
+		int n = width * height;
+		for (int b = 0; b < nBands; b++) {
+			switch (dataType) {
+			case DataBuffer.TYPE_BYTE:
+				var bytes = new int[n];
+				for (int i = 0; i < n; i++)
+					bytes[i] = buffer.get() & 0xff;
+				raster.setSamples(0, 0, width, height, b, bytes);
+				break;
+			case DataBuffer.TYPE_USHORT:
+				var ushorts = new int[n];
+				for (int i = 0; i < n; i++)
+					ushorts[i] = buffer.getShort() & 0xffff;
+				raster.setSamples(0, 0, width, height, b, ushorts);
+				break;
+			case DataBuffer.TYPE_SHORT:
+				var shorts = new int[n];
+				for (int i = 0; i < n; i++)
+					shorts[i] = buffer.getShort();
+				raster.setSamples(0, 0, width, height, b, shorts);
+				break;
+			case DataBuffer.TYPE_INT:
+				var ints = new int[n];
+				buffer.asIntBuffer().get(ints);
+				buffer.position(buffer.position() + n * 4);
+				raster.setSamples(0, 0, width, height, b, ints);
+				break;
+			case DataBuffer.TYPE_FLOAT:
+				var floats = new float[n];
+				buffer.asFloatBuffer().get(floats);
+				buffer.position(buffer.position() + n * 4);
+				raster.setSamples(0, 0, width, height, b, floats);
+				break;
+			case DataBuffer.TYPE_DOUBLE:
+				var doubles = new double[n];
+				buffer.asDoubleBuffer().get(doubles);
+				buffer.position(buffer.position() + n * 8);
+				raster.setSamples(0, 0, width, height, b, doubles);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported data type " + dataType);
+			}
+		}
+		return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Get the single bank of data backing an image with a standard type, or null if this isn't possible.
+	 */
+	private static Object getRawData(BufferedImage img) {
+		var db = img.getRaster().getDataBuffer();
+		if (db.getNumBanks() != 1 || db.getOffset() != 0)
+			return null;
+		if (db instanceof DataBufferByte)
+			return ((DataBufferByte)db).getData();
+		if (db instanceof DataBufferUShort)
+			return ((DataBufferUShort)db).getData();
+		if (db instanceof DataBufferInt)
+			return ((DataBufferInt)db).getData();
+		return null;
+	}
+
+}
@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Fill area ROIs in tiles, caching the filled pixels of ROIs that extend across multiple tiles.
+ * <p>
+ * The filled pixels of each ROI are represented as spans (runs of pixels in a row).
+ * If a ROI extends beyond the tile being rendered, its spans are computed once by filling the ROI
+ * into a mask using {@code Graphics2D}, with the same scale, stroke and rendering hints as the tile.
+ * This means the spans follow the same rules as filling the ROI directly (including stroke normalization).
+ * The spans are cached so that they can be reused when rendering neighboring tiles at the same resolution,
+ * and written directly into the raster of each tile.
+ * The cache is bounded, and shared between threads.
+ * <p>
+ * ROIs that are contained within a single tile, or that are too large to cache, are filled directly.
+ */
+class RoiRasterizer {
+
+	/**
+	 * Maximum number of pixels in the mask used to compute the spans for a ROI; larger ROIs are filled directly.
+	 */
+	private static final long MAX_MASK_PIXELS = 2048L * 2048L;
+
+	/**
+	 * Extra pixels around the bounds of a ROI, to allow for coordinates being adjusted by stroke normalization.
+	 */
+	private static final int MASK_PADDING = 2;
+
+	/**
+	 * Maximum number of columns or rows to extend a mask by, so that it is aligned to whole pixels at full resolution.
+	 */
+	private static final int MAX_ALIGN_STEPS = 64;
+
+	/**
+	 * Tolerance used when checking if a tile is aligned to the pixel grid.
+	 */
+	private static final double GRID_TOLERANCE = 1e-6;
+
+	private final long maxCachedValues;
+
+	private final SpanCache cache = new SpanCache();
+
+	/**
+	 * Create a new rasterizer.
+	 * @param maxCachedValues the approximate maximum number of values (span coordinates) to cache
+	 */
+	RoiRasterizer(long maxCachedValues) {
+		this.maxCachedValues = maxCachedValues;
+	}
+
+	/**
+	 * Fill the pixels of a ROI with a constant value.
+	 * <p>
+	 * Pixels are filled using the same rules as {@code g2d.fill(roi.getShape())}, where {@code g2d} has been scaled
+	 * and translated for the request, and its color corresponds to the value.
+	 * The spans of cached ROIs are independent of the tile, so that neighboring tiles are always consistent.
+	 * @param roi the ROI to fill; this should be an area ROI
+	 * @param request the region that the raster corresponds to
+	 * @param g2d graphics object for the raster, scaled and translated according to the request;
+	 *            this is used directly for ROIs that aren't cached, and to define the stroke and rendering hints otherwise
+	 * @param raster the raster for the tile, with the origin corresponding to the top left of the request
+	 * @param value the value to set in the first band; for a raster with packed RGB pixels, this is the packed value
+	 */
+	void fill(ROI roi, RegionRequest request, Graphics2D g2d, WritableRaster raster, int value) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		double downsample = request.getDownsample();
+
+		// Spans can only be reused across tiles if the tile is aligned to a global pixel grid at this resolution
+		double gridX = request.getX() / downsample;
+		double gridY = request.getY() / downsample;
+		if (Math.abs(gridX - Math.rint(gridX)) >= GRID_TOLERANCE || Math.abs(gridY - Math.rint(gridY)) >= GRID_TOLERANCE) {
+			g2d.fill(roi.getShape());
+			return;
+		}
+		int tx = (int)Math.rint(gridX);
+		int ty = (int)Math.rint(gridY);
+
+		int colMin = (int)Math.floor(roi.getBoundsX() / downsample) - MASK_PADDING;
+		int colMax = (int)Math.ceil((roi.getBoundsX() + roi.getBoundsWidth()) / downsample) + MASK_PADDING;
+		int rowMin = (int)Math.floor(roi.getBoundsY() / downsample) - MASK_PADDING;
+		int rowMax = (int)Math.ceil((roi.getBoundsY() + roi.getBoundsHeight()) / downsample) + MASK_PADDING;
+		if (rowMax <= ty || rowMin >= ty + height || colMax <= tx || colMin >= tx + width)
+			return;
+
+		boolean insideTile = rowMin >= ty && rowMax <= ty + height && colMin >= tx && colMax <= tx + width;
+		if (insideTile || (long)(rowMax - rowMin) * (colMax - colMin) > MAX_MASK_PIXELS) {
+			g2d.fill(roi.getShape());
+			return;
+		}
+
+		var key = new Key(roi, downsample, g2d.getStroke());
+		var spans = cache.get(key);
+		if (spans == null) {
+			// Align the mask in the same way as a tile, so that it is translated by whole pixels at full resolution
+			int x = alignToGrid(colMin, downsample);
+			int y = alignToGrid(rowMin, downsample);
+			spans = computeSpans(roi, g2d, downsample, x, y, colMax - x, rowMax - y);
+			cache.put(key, spans);
+		}
+		writeSpans(spans, raster, tx, ty, value);
+	}
+
+	/**
+	 * Get the closest column or row before the specified one that corresponds to a whole pixel at full resolution,
+	 * or the specified one if there isn't one nearby.
+	 */
+	private static int alignToGrid(int value, double downsample) {
+		for (int v = value; v > value - MAX_ALIGN_STEPS; v--) {
+			double full = v * downsample;
+			if (Math.abs(full - Math.rint(full)) < GRID_TOLERANCE)
+				return v;
+		}
+		return value;
+	}
+
+	/**
+	 * Convert a column or row to a full-resolution coordinate, rounding if it is within the tolerance of a whole pixel.
+	 */
+	private static double toFullResolution(int value, double downsample) {
+		double full = value * downsample;
+		return Math.abs(full - Math.rint(full)) < GRID_TOLERANCE ? Math.rint(full) : full;
+	}
+
+	/**
+	 * Compute the spans for a ROI by filling it into a mask.
+	 * @param roi the ROI
+	 * @param g2d graphics object providing the stroke and rendering hints
+	 * @param downsample the size of each pixel in the grid, in full-resolution pixels
+	 * @param x column of the pixel grid corresponding to the left of the mask
+	 * @param y row of the pixel grid corresponding to the top of the mask
+	 * @param width width of the mask
+	 * @param height height of the mask
+	 * @return
+	 */
+	static Spans computeSpans(ROI roi, Graphics2D g2d, double downsample, int x, int y, int width, int height) {
+		var mask = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		var g2dMask = mask.createGraphics();
+		g2dMask.setRenderingHints(g2d.getRenderingHints());
+		g2dMask.setStroke(g2d.getStroke());
+		// Transform in the same way as the tile, so that the rules used to fill pixels are the same
+		double scale = 1.0/downsample;
+		g2dMask.scale(scale, scale);
+		g2dMask.translate(-toFullResolution(x, downsample), -toFullResolution(y, downsample));
+		g2dMask.setColor(Color.WHITE);
+		g2dMask.fill(roi.getShape());
+		g2dMask.dispose();
+
+		var bytes = ((DataBufferByte)mask.getRaster().getDataBuffer()).getData();
+		var rows = new int[height][];
+		int[] rowSpans = new int[16];
+		for (int r = 0; r < height; r++) {
+			int nSpans = 0;
+			int offset = r * width;
+			int c = 0;
+			while (c < width) {
+				while (c < width && bytes[offset + c] == 0)
+					c++;
+				if (c == width)
+					break;
+				int start = c;
+				while (c < width && bytes[offset + c] != 0)
+					c++;
+				if (nSpans + 2 > rowSpans.length)
+					rowSpans = Arrays.copyOf(rowSpans, rowSpans.length * 2);
+				rowSpans[nSpans++] = x + start;
+				rowSpans[nSpans++] = x + c;
+			}
+			if (nSpans > 0)
+				rows[r] = Arrays.copyOf(rowSpans, nSpans);
+		}
+		return new Spans(y, rows);
+	}
+
+	private static void writeSpans(Spans spans, WritableRaster raster, int tx, int ty, int value) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		var buffer = raster.getDataBuffer();
+		var sampleModel = raster.getSampleModel();
+		byte[] bytes = null;
+		int[] ints = null;
+		int stride = -1;
+		if (buffer instanceof DataBufferByte byteBuffer && buffer.getNumBanks() == 1 &&
+				sampleModel instanceof PixelInterleavedSampleModel sm && sm.getPixelStride() == 1 && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+			bytes = byteBuffer.getData();
+			stride = sm.getScanlineStride();
+		} else if (buffer instanceof DataBufferInt intBuffer && buffer.getNumBanks() == 1 &&
+				sampleModel instanceof SinglePixelPackedSampleModel sm && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+			ints = intBuffer.getData();
+			stride = sm.getScanlineStride();
+		}
+		int yStart = Math.max(spans.y0, ty);
+		int yEnd = Math.min(spans.y0 + spans.rows.length, ty + height);
+		for (int y = yStart; y < yEnd; y++) {
+			var row = spans.rows[y - spans.y0];
+			if (row == null)
+				continue;
+			int py = y - ty;
+			for (int i = 0; i < row.length; i += 2) {
+				int x0 = Math.max(row[i] - tx, 0);
+				int x1 = Math.min(row[i+1] - tx, width);
+				if (x1 <= x0)
+					continue;
+				if (bytes != null) {
+					int offset = buffer.getOffset() + py * stride;
+					Arrays.fill(bytes, offset + x0, offset + x1, (byte)value);
+				} else if (ints != null) {
+					int offset = buffer.getOffset() + py * stride;
+					Arrays.fill(ints, offset + x0, offset + x1, value);
+				} else {
+					for (int x = x0; x < x1; x++)
+						raster.setSample(x, py, 0, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Filled pixels for consecutive rows.
+	 * Each row is either null, or an array of start (inclusive) and end (exclusive) columns.
+	 */
+	static class Spans {
+
+		private final int y0;
+		private final int[][] rows;
+		private final long nValues;
+
+		Spans(int y0, int[][] rows) {
+			this.y0 = y0;
+			this.rows = rows;
+			long n = rows.length;
+			for (var row : rows) {
+				if (row != null)
+					n += row.length;
+			}
+			this.nValues = n;
+		}
+
+		/**
+		 * Query whether a pixel is filled.
+		 * @param x
+		 * @param y
+		 * @return
+		 */
+		boolean contains(int x, int y) {
+			if (y < y0 || y >= y0 + rows.length || rows[y - y0] == null)
+				return false;
+			var row = rows[y - y0];
+			for (int i = 0; i < row.length; i += 2) {
+				if (x >= row[i] && x < row[i+1])
+					return true;
+			}
+			return false;
+		}
+
+	}
+
+
+	private static class Key {
+
+		private final ROI roi;
+		private final double downsample;
+		private final Stroke stroke;
+
+		Key(ROI roi, double downsample, Stroke stroke) {
+			this.roi = roi;
+			this.downsample = downsample;
+			this.stroke = stroke;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(roi) * 31 + Double.hashCode(downsample)) * 31 + Objects.hashCode(stroke);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key key && key.roi == roi && key.downsample == downsample && Objects.equals(key.stroke, stroke);
+		}
+
+	}
+
+
+	/**
+	 * Least-recently-used cache, bounded by the number of values stored.
+	 */
+	private class SpanCache {
+
+		private final Map<Key, Spans> map = new LinkedHashMap<>(16, 0.75f, true);
+		private long nValues = 0;
+
+		synchronized Spans get(Key key) {
+			return map.get(key);
+		}
+
+		synchronized void put(Key key, Spans spans) {
+			if (spans.nValues > maxCachedValues)
+				return;
+			var previous = map.put(key, spans);
+			if (previous != null)
+				nValues -= previous.nValues;
+			nValues += spans.nValues;
+			var iter = map.values().iterator();
+			while (nValues > maxCachedValues && iter.hasNext()) {
+				nValues -= iter.next().nValues;
+				iter.remove();
+			}
+		}
+
+	}
+
+}
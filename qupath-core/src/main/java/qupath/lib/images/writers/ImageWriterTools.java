@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -22,8 +22,10 @@
 package qupath.lib.images.writers;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -145,6 +147,55 @@ public class ImageWriterTools {
 		throw new IOException("Unable to write " + path + "!  No compatible writer found.");
 	}
 
+	/**
+	 * Write a 2D image region to an output stream using the default writer for a specified file extension.
+	 * @param server the image to write
+	 * @param request region to write; if null, the default plane of the entire image will be written
+	 * @param ext the file extension used to identify an appropriate writer (e.g. ".png")
+	 * @param stream the output stream
+	 * @return
+	 * @throws IOException
+	 * @since v0.5.1
+	 */
+	public static boolean writeImageRegion(final ImageServer<BufferedImage> server, final RegionRequest request, final String ext, final OutputStream stream) throws IOException {
+		List<ImageWriter<BufferedImage>> compatibleWriters = ImageWriterTools.getCompatibleWriters(server, ext);
+		for (ImageWriter<BufferedImage> writer : compatibleWriters) {
+			// Write to a buffer first, so that a failed attempt doesn't leave partial output in the stream
+			try (var buffer = new ByteArrayOutputStream()) {
+				writer.writeImage(server, request, buffer);
+				buffer.writeTo(stream);
+				return true;
+			} catch (Exception e) {
+				logger.warn("Unable to write image", e);
+			}
+		}
+		throw new IOException("Unable to write image with extension " + ext + "!  No compatible writer found.");
+	}
+	
+	/**
+	 * Write a 2D image to an output stream using the default writer for a specified file extension.
+	 * @param img the image to write
+	 * @param ext the file extension used to identify an appropriate writer (e.g. ".png")
+	 * @param stream the output stream
+	 * @return
+	 * @throws IOException
+	 * @since v0.5.1
+	 */
+	public static boolean writeImage(final BufferedImage img, final String ext, final OutputStream stream) throws IOException {
+		List<ImageWriter<BufferedImage>> compatibleWriters = ImageWriterTools.getCompatibleWriters(
+				new WrappedBufferedImageServer(UUID.randomUUID().toString(), img), ext);
+		for (ImageWriter<BufferedImage> writer : compatibleWriters) {
+			try (var buffer = new ByteArrayOutputStream()) {
+				writer.writeImage(img, buffer);
+				buffer.writeTo(stream);
+				return true;
+			} catch (Exception e) {
+				logger.warn("Unable to write image", e);
+			}
+		}
+		throw new IOException("Unable to write image with extension " + ext + "!  No compatible writer found.");
+	}
+	
 	/**
 	 * Write a (possibly multidimensional) image region using the default writer based on the file path.
 	 * @param server the image to write
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.writers;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write encoded image tiles into a sequence of zip archives ('shards'), each containing a fixed number of tiles.
+ * <p>
+ * Entries are stored without further compression, since the tiles are already encoded.
+ * Each shard is written to a temporary file, and only renamed once it is complete.
+ * The tiles within each completed shard are then appended to a tab-delimited manifest, with one line per tile
+ * containing the shard name, image entry name and (optional) label entry name.
+ * <p>
+ * If the manifest already exists when the writer is created, the tiles that it lists are treated as complete.
+ * This makes it possible to resume an interrupted export, writing any remaining tiles to new shards.
+ */
+class TileArchiveWriter implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(TileArchiveWriter.class);
+
+	private static final String TEMP_EXT = ".part";
+
+	private final Path dir;
+	private final String prefix;
+	private final int tilesPerShard;
+	private final Path pathManifest;
+
+	private final Set<String> completed = new HashSet<>();
+
+	private int nextShard;
+
+	private Path pathShard;
+	private ZipOutputStream stream;
+	private final List<String> shardManifest = new ArrayList<>();
+
+	/**
+	 * Create a writer for tile archives.
+	 * @param dir the output directory
+	 * @param prefix prefix used for the shard and manifest file names
+	 * @param tilesPerShard maximum number of tiles to write to each shard
+	 * @throws IOException if an existing manifest could not be read
+	 */
+	TileArchiveWriter(Path dir, String prefix, int tilesPerShard) throws IOException {
+		if (tilesPerShard <= 0)
+			throw new IllegalArgumentException("Number of tiles per shard must be > 0");
+		this.dir = dir;
+		this.prefix = prefix;
+		this.tilesPerShard = tilesPerShard;
+		this.pathManifest = dir.resolve(prefix + "-tiles-manifest.tsv");
+		initialize();
+	}
+
+	private void initialize() throws IOException {
+		if (Files.exists(pathManifest)) {
+			for (var line : Files.readAllLines(pathManifest, StandardCharsets.UTF_8)) {
+				var fields = line.split("\t");
+				// Ignore any incomplete line
+				if (fields.length >= 2 && !fields[1].isEmpty())
+					completed.add(fields[1]);
+			}
+			logger.info("Found {} completed tiles in {}", completed.size(), pathManifest);
+		}
+		// Remove incomplete shards, and ensure we don't overwrite any complete ones
+		var pattern = Pattern.compile(Pattern.quote(prefix + "-tiles-") + "(\\d+)\\.zip(" + Pattern.quote(TEMP_EXT) + ")?");
+		try (var files = Files.list(dir)) {
+			for (var path : files.toList()) {
+				var matcher = pattern.matcher(path.getFileName().toString());
+				if (!matcher.matches())
+					continue;
+				if (matcher.group(2) != null) {
+					logger.debug("Deleting incomplete shard {}", path);
+					Files.delete(path);
+				} else
+					nextShard = Math.max(nextShard, Integer.parseInt(matcher.group(1)) + 1);
+			}
+		}
+	}
+
+	/**
+	 * Query whether a tile has already been written to a completed shard.
+	 * @param imageName the entry name for the image tile
+	 * @return
+	 */
+	boolean isComplete(String imageName) {
+		return completed.contains(imageName);
+	}
+
+	/**
+	 * Get the path to the manifest file.
+	 * @return
+	 */
+	Path getManifestPath() {
+		return pathManifest;
+	}
+
+	/**
+	 * Write a tile to the current shard, starting a new shard if required.
+	 * @param imageName entry name for the image
+	 * @param imageBytes encoded image
+	 * @param labelName entry name for the labels; may be null if there are no labels
+	 * @param labelBytes encoded labels; may be null if there are no labels
+	 * @throws IOException
+	 */
+	synchronized void writeTile(String imageName, byte[] imageBytes, String labelName, byte[] labelBytes) throws IOException {
+		if (stream == null) {
+			pathShard = dir.resolve(String.format("%s-tiles-%05d.zip", prefix, nextShard++));
+			stream = new ZipOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(getTempPath(pathShard))));
+		}
+		writeEntry(stream, imageName, imageBytes);
+		if (labelName != null)
+			writeEntry(stream, labelName, labelBytes);
+		shardManifest.add(pathShard.getFileName() + "\t" + imageName + "\t" + (labelName == null ? "" : labelName));
+		if (shardManifest.size() >= tilesPerShard)
+			finishShard();
+	}
+
+	private static void writeEntry(ZipOutputStream stream, String name, byte[] bytes) throws IOException {
+		var entry = new ZipEntry(name);
+		var crc = new CRC32();
+		crc.update(bytes);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(bytes.length);
+		entry.setCompressedSize(bytes.length);
+		entry.setCrc(crc.getValue());
+		stream.putNextEntry(entry);
+		stream.write(bytes);
+		stream.closeEntry();
+	}
+
+	private void finishShard() throws IOException {
+		if (stream == null)
+			return;
+		stream.close();
+		stream = null;
+		Files.move(getTempPath(pathShard), pathShard, StandardCopyOption.REPLACE_EXISTING);
+		// Only record tiles after the shard is complete, so that they will be rewritten if we fail before now
+		Files.write(pathManifest, shardManifest, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		for (var line : shardManifest)
+			completed.add(line.split("\t")[1]);
+		logger.debug("Wrote {} tiles to {}", shardManifest.size(), pathShard);
+		shardManifest.clear();
+	}
+
+	private static Path getTempPath(Path path) {
+		return path.resolveSibling(path.getFileName() + TEMP_EXT);
+	}
+
+	/**
+	 * Complete the current shard, if it contains any tiles.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		finishShard();
+	}
+
+}
@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -23,6 +23,7 @@ package qupath.lib.images.writers;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -37,6 +38,8 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
@@ -101,6 +104,8 @@ public class TileExporter  {
 	private String labelSubDir = null;
 	private boolean exportJson = false;
 	private String labelId = null;
+	
+	private int tilesPerShard = 0;
 
 	private ImageServer<BufferedImage> serverLabeled;
 
@@ -452,6 +457,26 @@ public class TileExporter  {
 	}
 	
 	
+	/**
+	 * Optionally write tiles into zip archives ('shards'), each containing up to the specified number of tiles, 
+	 * rather than writing each tile to a separate file.
+	 * This can be much faster when exporting very large numbers of tiles.
+	 * <p>
+	 * A manifest is written alongside the shards to record which tiles are complete.
+	 * If an export is interrupted, calling {@link #writeTiles(String)} again with the same output directory 
+	 * will skip the tiles listed in the manifest, and write the remaining tiles to new shards.
+	 * <p>
+	 * Subdirectories and labeled image IDs are used to name the entries within each shard.
+	 * @param tilesPerShard maximum number of tiles in each shard; if &le; 0, each tile is written to a separate file (the default)
+	 * @return this exporter
+	 * @since v0.5.1
+	 */
+	public TileExporter shardSize(int tilesPerShard) {
+		this.tilesPerShard = tilesPerShard;
+		return this;
+	}
+	
+	
 	/**
 	 * Create region requests, along with information about whether we have a partial tile (which should not be resized/padded) or not.
 	 * @return
@@ -567,9 +592,10 @@ public class TileExporter  {
 			throw new IOException("Output directory " + dirOutput + " does not exist!");
 		
 		// Make sure we have any required subdirectories
-		if (imageSubDir != null)
+		boolean doArchive = tilesPerShard > 0;
+		if (imageSubDir != null && !doArchive)
 			new File(dirOutput, imageSubDir).mkdirs();
-		if (labelSubDir != null)
+		if (labelSubDir != null && !doArchive)
 			new File(dirOutput, labelSubDir).mkdirs();
 
 		if (serverLabeled != null) {
@@ -617,6 +643,12 @@ public class TileExporter  {
 		
 		// Maintain a record of what we exported
 		List<TileExportEntry> exportImages = new ArrayList<>();
+		
+		// If writing archives, tiles are read & encoded in parallel, then passed through a bounded queue to be written
+		var archiveWriter = doArchive ? new TileArchiveWriter(Paths.get(dirOutput), imageName, tilesPerShard) : null;
+		BlockingQueue<EncodedTile> encodedTiles = doArchive ? new ArrayBlockingQueue<>(ThreadTools.getParallelism() * 2) : null;
+		int nArchiveTasks = 0;
+		int nArchiveSkipped = 0;
 
 		for (var r : requests) {
 			
@@ -624,34 +656,46 @@ public class TileExporter  {
 			
 			String baseName = String.format("%s [%s]", imageName, getRegionString(r.request));
 			
-			String exportImageName = baseName + ext;
-			if (imageSubDir != null)
-				exportImageName = Paths.get(imageSubDir, exportImageName).toString();
-			String pathImageOutput = Paths.get(dirOutput, exportImageName).toAbsolutePath().toString();
-			
-			ExportTask taskImage = new ExportTask(server, r.request, pathImageOutput, tileWidth, tileHeight, ensureSize);
+			String exportImageName = resolveName(imageSubDir, baseName + ext, doArchive);
 
 			String exportLabelName = null;
-			ExportTask taskLabels = null;
+			RegionRequest requestLabels = null;
 			if (serverLabeled != null) {
 				String labelName = baseName;
 				if ((labelSubDir == null || labelSubDir.equals(imageSubDir)) && labelId == null && ext.equals(extLabeled)) {
 					labelName = baseName + "-labelled";
 				} else if (labelId != null)
 					labelName = baseName + labelId;
-				exportLabelName = labelName + extLabeled;
-				if (labelSubDir != null)
-					exportLabelName = Paths.get(labelSubDir, exportLabelName).toString();
-				String pathLabelsOutput = Paths.get(dirOutput, exportLabelName).toAbsolutePath().toString();
-
-				taskLabels = new ExportTask(serverLabeled, r.request.updatePath(serverLabeled.getPath()),
-						pathLabelsOutput, tileWidth, tileHeight, ensureSize);
+				exportLabelName = resolveName(labelSubDir, labelName + extLabeled, doArchive);
+				requestLabels = r.request.updatePath(serverLabeled.getPath());
 			}
 			exportImages.add(new TileExportEntry(
 					r.request.updatePath(imagePathName),
 //					pixelSize,
 					exportImageName,
 					exportLabelName));
+			
+			if (doArchive) {
+				if (archiveWriter.isComplete(exportImageName)) {
+					nArchiveSkipped++;
+				} else {
+					pool.submit(new EncodeTask(server, r.request, exportImageName,
+							serverLabeled, requestLabels, exportLabelName,
+							tileWidth, tileHeight, ensureSize, encodedTiles));
+					nArchiveTasks++;
+				}
+				continue;
+			}
+
+			String pathImageOutput = Paths.get(dirOutput, exportImageName).toAbsolutePath().toString();
+			ExportTask taskImage = new ExportTask(server, r.request, pathImageOutput, tileWidth, tileHeight, ensureSize);
+			
+			ExportTask taskLabels = null;
+			if (requestLabels != null) {
+				String pathLabelsOutput = Paths.get(dirOutput, exportLabelName).toAbsolutePath().toString();
+				taskLabels = new ExportTask(serverLabeled, requestLabels,
+						pathLabelsOutput, tileWidth, tileHeight, ensureSize);
+			}
 
 			if (taskImage != null)
 				pool.submit(taskImage);
@@ -694,6 +738,26 @@ public class TileExporter  {
 				gson.toJson(data, writer);
 			}
 		}
+		
+		if (archiveWriter != null) {
+			if (nArchiveSkipped > 0)
+				logger.info("Skipping {} tiles already listed in {}", nArchiveSkipped, archiveWriter.getManifestPath());
+			try (archiveWriter) {
+				for (int i = 0; i < nArchiveTasks; i++) {
+					var tile = encodedTiles.take();
+					if (tile.imageBytes != null)
+						archiveWriter.writeTile(tile.imageName, tile.imageBytes, tile.labelName, tile.labelBytes);
+				}
+			} catch (InterruptedException e) {
+				pool.shutdownNow();
+				logger.error("Tile export interrupted: {}", e.getLocalizedMessage());
+				logger.error("", e);
+				throw new IOException(e);
+			} catch (IOException e) {
+				pool.shutdownNow();
+				throw e;
+			}
+		}
 
 		pool.shutdown();
 		try {
@@ -756,6 +820,108 @@ public class TileExporter  {
 	
 
 
+	/**
+	 * Get the name of an exported file, relative to the export directory.
+	 * Entries within archives always use '/' as a separator.
+	 */
+	private static String resolveName(String subDir, String name, boolean isArchiveEntry) {
+		if (subDir == null)
+			return name;
+		if (isArchiveEntry)
+			return subDir + "/" + name;
+		return Paths.get(subDir, name).toString();
+	}
+	
+	
+	/**
+	 * Encoded image tile (and optional labels), ready to be written to an archive.
+	 * If the image bytes are null, the tile could not be read or encoded.
+	 */
+	private static class EncodedTile {
+		
+		private final String imageName;
+		private final byte[] imageBytes;
+		private final String labelName;
+		private final byte[] labelBytes;
+		
+		private EncodedTile(String imageName, byte[] imageBytes, String labelName, byte[] labelBytes) {
+			this.imageName = imageName;
+			this.imageBytes = imageBytes;
+			this.labelName = labelName;
+			this.labelBytes = labelBytes;
+		}
+		
+	}
+	
+	
+	/**
+	 * Read and encode an image tile and its labels, and add the result to a bounded queue.
+	 * Adding to the queue blocks if the tiles are not being written quickly enough, which limits memory use.
+	 */
+	static class EncodeTask implements Runnable {
+		
+		private ImageServer<BufferedImage> server;
+		private RegionRequest request;
+		private String imageName;
+		private ImageServer<BufferedImage> serverLabels;
+		private RegionRequest requestLabels;
+		private String labelName;
+		private int tileWidth, tileHeight;
+		private boolean ensureSize;
+		private BlockingQueue<EncodedTile> queue;
+		
+		private EncodeTask(ImageServer<BufferedImage> server, RegionRequest request, String imageName,
+				ImageServer<BufferedImage> serverLabels, RegionRequest requestLabels, String labelName,
+				int tileWidth, int tileHeight, boolean ensureSize, BlockingQueue<EncodedTile> queue) {
+			this.server = server;
+			this.request = request;
+			this.imageName = imageName;
+			this.serverLabels = serverLabels;
+			this.requestLabels = requestLabels;
+			this.labelName = labelName;
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+			this.ensureSize = ensureSize;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			EncodedTile tile = null;
+			try {
+				byte[] imageBytes = encode(server, request, imageName);
+				byte[] labelBytes = requestLabels == null ? null : encode(serverLabels, requestLabels, labelName);
+				tile = new EncodedTile(imageName, imageBytes, labelName, labelBytes);
+			} catch (Throwable e) {
+				logger.error("Error writing tile: " + e.getLocalizedMessage(), e);
+			} finally {
+				// The writer expects one tile from every task, so always add something to the queue
+				if (tile == null)
+					tile = new EncodedTile(imageName, null, null, null);
+				try {
+					queue.put(tile);
+				} catch (InterruptedException e) {
+					logger.debug("Interrupted! Will not write {}", imageName);
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		
+		private byte[] encode(ImageServer<BufferedImage> server, RegionRequest request, String name) throws IOException {
+			String ext = GeneralTools.getExtension(name).orElse(null);
+			var stream = new ByteArrayOutputStream();
+			if (ensureSize) {
+				var img = readFixedSizeRegion(server, request, tileWidth, tileHeight);
+				ImageWriterTools.writeImage(img, ext, stream);
+			} else {
+				ImageWriterTools.writeImageRegion(server, request, ext, stream);
+			}
+			return stream.toByteArray();
+		}
+		
+	}
+	
+
 	static class ExportTask implements Runnable {
 
 		private ImageServer<BufferedImage> server;
@@ -0,0 +1,837 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementList.MeasurementListType;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.PathTileObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.LineROI;
+import qupath.lib.roi.PointsROI;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.PolylineROI;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Helper class to write detection objects within a .qpdata file as compressed binary chunks,
+ * rather than through Java serialization.
+ * <p>
+ * The overall file remains a Java object stream, so that the server, image type, stains, workflow and
+ * properties are read exactly as before. The difference is that all detections are written first as
+ * {@link DetectionChunk} objects, which store ROIs as packed coordinate arrays and measurements as columns.
+ * Within the hierarchy itself, each detection is then replaced by a lightweight {@link DetectionReference}.
+ * <p>
+ * When reading, chunks are decoded in parallel as soon as they are read from the stream,
+ * and references are resolved back to the decoded detections when the hierarchy is deserialized.
+ *
+ * @since v0.5.1
+ */
+class ChunkedObjectIO {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChunkedObjectIO.class);
+
+	/**
+	 * Version of the encoding used within each chunk.
+	 */
+	private static final int CHUNK_VERSION = 1;
+
+	/**
+	 * Default number of objects to store in a single chunk.
+	 */
+	static final int DEFAULT_CHUNK_SIZE = 10_000;
+
+	private static final byte TYPE_DETECTION = 0;
+	private static final byte TYPE_TILE = 1;
+	private static final byte TYPE_CELL = 2;
+
+	private static final byte ROI_NONE = 0;
+	private static final byte ROI_RECTANGLE = 1;
+	private static final byte ROI_ELLIPSE = 2;
+	private static final byte ROI_LINE = 3;
+	private static final byte ROI_POLYGON = 4;
+	private static final byte ROI_POLYLINE = 5;
+	private static final byte ROI_POINTS = 6;
+	private static final byte ROI_GEOMETRY = 7;
+
+	private static final int FLAG_NAME = 1;
+	private static final int FLAG_COLOR = 1 << 1;
+	private static final int FLAG_CLASS = 1 << 2;
+	private static final int FLAG_PROBABILITY = 1 << 3;
+	private static final int FLAG_METADATA = 1 << 4;
+	private static final int FLAG_LOCKED = 1 << 5;
+
+	private static final byte COLUMN_FLOAT = 0;
+	private static final byte COLUMN_DOUBLE = 1;
+
+	private ChunkedObjectIO() {}
+
+
+	/**
+	 * A compressed chunk of detection objects.
+	 */
+	static class DetectionChunk implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int firstIndex;
+		private final int count;
+		private final byte[] bytes;
+
+		DetectionChunk(int firstIndex, int count, byte[] bytes) {
+			this.firstIndex = firstIndex;
+			this.count = count;
+			this.bytes = bytes;
+		}
+
+		int getCount() {
+			return count;
+		}
+
+		byte[] getBytes() {
+			return bytes;
+		}
+
+	}
+
+	/**
+	 * Placeholder for a detection that has been written within a {@link DetectionChunk}.
+	 */
+	static class DetectionReference implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int index;
+
+		private DetectionReference(int index) {
+			this.index = index;
+		}
+
+	}
+
+
+	/**
+	 * Object output stream that can write detections in chunks, and afterwards replaces these
+	 * with references when they are encountered in the hierarchy.
+	 */
+	static class ChunkedObjectOutputStream extends ObjectOutputStream {
+
+		private Map<PathObject, Integer> detectionIndices = new IdentityHashMap<>();
+
+		ChunkedObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		/**
+		 * Write all detections in the hierarchy as compressed chunks.
+		 * This should be called before writing the hierarchy itself.
+		 * <p>
+		 * If a detection contains a child object that is not itself a detection, no chunks are written
+		 * and the hierarchy will be serialized as normal.
+		 *
+		 * @param hierarchy
+		 * @param chunkSize
+		 * @return the number of detections written in chunks
+		 * @throws IOException
+		 */
+		int writeDetectionChunks(PathObjectHierarchy hierarchy, int chunkSize) throws IOException {
+			List<PathObject> detections = collectDetections(hierarchy.getRootObject());
+			if (detections == null) {
+				logger.warn("Detections with non-detection child objects found - will use standard serialization");
+				return 0;
+			}
+			Map<PathObject, Integer> indices = new IdentityHashMap<>(detections.size());
+			for (int i = 0; i < detections.size(); i++)
+				indices.put(detections.get(i), i);
+
+			// Encode in batches so that we can use multiple threads while limiting memory use
+			int nChunks = (detections.size() + chunkSize - 1) / chunkSize;
+			int batchSize = Math.max(1, Runtime.getRuntime().availableProcessors() * 2);
+			for (int b = 0; b < nChunks; b += batchSize) {
+				List<DetectionChunk> chunks;
+				try {
+					chunks = IntStream.range(b, Math.min(b + batchSize, nChunks))
+						.parallel()
+						.mapToObj(c -> {
+							int start = c * chunkSize;
+							int end = Math.min(start + chunkSize, detections.size());
+							return encodeChunk(detections.subList(start, end), start, indices);
+						})
+						.toList();
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+				for (var chunk : chunks) {
+					writeObject(chunk);
+					// Reset so that we don't retain references to the chunk
+					reset();
+				}
+			}
+			detectionIndices = indices;
+			return detections.size();
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			if (obj instanceof PathObject) {
+				Integer ind = detectionIndices.get(obj);
+				if (ind != null)
+					return new DetectionReference(ind);
+			}
+			return obj;
+		}
+
+	}
+
+
+	/**
+	 * Object input stream that decodes detection chunks in parallel, and resolves references to
+	 * the decoded detections.
+	 */
+	static class ChunkedObjectInputStream extends ObjectInputStream {
+
+		private List<CompletableFuture<DecodedChunk>> pending = new ArrayList<>();
+		private PathObject[] detections;
+		
+		private final boolean skipDetections;
+		private int nSkipped = 0;
+
+		ChunkedObjectInputStream(InputStream in) throws IOException {
+			this(in, false);
+		}
+
+		/**
+		 * Create an input stream, optionally skipping all detections that were written in chunks.
+		 * @param in
+		 * @param skipDetections if true, chunks are not decoded and references to chunked detections are resolved to null
+		 * @throws IOException
+		 */
+		ChunkedObjectInputStream(InputStream in, boolean skipDetections) throws IOException {
+			super(in);
+			this.skipDetections = skipDetections;
+			enableResolveObject(true);
+		}
+
+		/**
+		 * Add a chunk that has been read from the stream; this will be decoded asynchronously.
+		 * @param chunk
+		 */
+		void addChunk(DetectionChunk chunk) {
+			if (skipDetections)
+				return;
+			detections = null;
+			pending.add(CompletableFuture.supplyAsync(() -> decodeChunk(chunk)));
+		}
+
+		/**
+		 * Get the number of references to chunked detections that were skipped.
+		 * @return
+		 */
+		int getSkippedCount() {
+			return nSkipped;
+		}
+
+		/**
+		 * Wait for all chunks to be decoded, then link detections to their parents if these are also detections.
+		 * @return all detections that have been read from chunks
+		 */
+		private PathObject[] ensureDecoded() {
+			if (detections != null)
+				return detections;
+			List<DecodedChunk> chunks = new ArrayList<>();
+			try {
+				for (var future : pending)
+					chunks.add(future.join());
+			} catch (CompletionException e) {
+				var cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+				throw new UncheckedIOException(new IOException("Unable to decode detection chunk", cause));
+			}
+			int n = 0;
+			for (var chunk : chunks)
+				n = Math.max(n, chunk.firstIndex + chunk.objects.length);
+			var decoded = new PathObject[n];
+			var parents = new int[n];
+			for (var chunk : chunks) {
+				System.arraycopy(chunk.objects, 0, decoded, chunk.firstIndex, chunk.objects.length);
+				System.arraycopy(chunk.parents, 0, parents, chunk.firstIndex, chunk.parents.length);
+			}
+			linkChildren(decoded, parents);
+			detections = decoded;
+			return detections;
+		}
+
+		@Override
+		protected Object resolveObject(Object obj) throws IOException {
+			if (obj instanceof DetectionReference) {
+				if (skipDetections) {
+					nSkipped++;
+					return null;
+				}
+				try {
+					var all = ensureDecoded();
+					int ind = ((DetectionReference)obj).index;
+					if (ind < 0 || ind >= all.length || all[ind] == null)
+						throw new IOException("Unable to resolve detection " + ind);
+					return all[ind];
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			}
+			return obj;
+		}
+
+	}
+
+
+	private static class DecodedChunk {
+
+		private final int firstIndex;
+		private final PathObject[] objects;
+		private final int[] parents;
+
+		private DecodedChunk(int firstIndex, PathObject[] objects, int[] parents) {
+			this.firstIndex = firstIndex;
+			this.objects = objects;
+			this.parents = parents;
+		}
+
+	}
+
+
+	/**
+	 * Encode a list of detections as a single chunk.
+	 * Any detections that have a parent within the list will be linked to that parent upon decoding.
+	 * @param objects
+	 * @return
+	 * @throws IOException
+	 */
+	static DetectionChunk encodeObjects(List<PathObject> objects) throws IOException {
+		Map<PathObject, Integer> indices = new IdentityHashMap<>(objects.size());
+		for (int i = 0; i < objects.size(); i++)
+			indices.put(objects.get(i), i);
+		try {
+			return encodeChunk(objects, 0, indices);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Decode the detections within a chunk created with {@link #encodeObjects(List)}.
+	 * @param chunk
+	 * @return the detections, in the order in which they were originally provided
+	 * @throws IOException
+	 */
+	static PathObject[] decodeObjects(DetectionChunk chunk) throws IOException {
+		try {
+			var decoded = decodeChunk(chunk);
+			linkChildren(decoded.objects, decoded.parents);
+			return decoded.objects;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Check whether the descendants of a detection are all detections, so that they can be written in chunks.
+	 * @param pathObject
+	 * @return
+	 */
+	static boolean hasOnlyDetectionDescendants(PathObject pathObject) {
+		for (var child : pathObject.getChildObjectsAsArray()) {
+			if (!child.isDetection() || !hasOnlyDetectionDescendants(child))
+				return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Add detections to the child lists of their parents, grouped to avoid adding one at a time.
+	 */
+	private static void linkChildren(PathObject[] detections, int[] parents) {
+		Map<Integer, List<PathObject>> children = new LinkedHashMap<>();
+		for (int i = 0; i < detections.length; i++) {
+			int parent = parents[i];
+			if (parent >= 0)
+				children.computeIfAbsent(parent, k -> new ArrayList<>()).add(detections[i]);
+		}
+		for (var entry : children.entrySet())
+			detections[entry.getKey()].addChildObjects(entry.getValue());
+	}
+
+
+	/**
+	 * Collect all detections in the hierarchy, in depth-first order.
+	 * @return the detections, or null if any detection has a child that isn't a detection
+	 */
+	private static List<PathObject> collectDetections(PathObject root) {
+		List<PathObject> detections = new ArrayList<>();
+		var stack = new ArrayDeque<PathObject>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			var pathObject = stack.pop();
+			var children = pathObject.getChildObjectsAsArray();
+			if (pathObject.isDetection()) {
+				detections.add(pathObject);
+				for (var child : children) {
+					if (!child.isDetection())
+						return null;
+				}
+			}
+			for (int i = children.length - 1; i >= 0; i--)
+				stack.push(children[i]);
+		}
+		return detections;
+	}
+
+
+	private static DetectionChunk encodeChunk(List<PathObject> objects, int firstIndex, Map<PathObject, Integer> indices) {
+		var bytes = new ByteArrayOutputStream();
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		try (var out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes, deflater)))) {
+			int n = objects.size();
+			out.writeInt(CHUNK_VERSION);
+			out.writeInt(n);
+
+			// Shared table of classifications
+			Map<PathClass, Integer> classes = new LinkedHashMap<>();
+			for (var pathObject : objects) {
+				var pathClass = pathObject.getPathClass();
+				if (pathClass != null)
+					classes.putIfAbsent(pathClass, classes.size());
+			}
+			out.writeInt(classes.size());
+			for (var pathClass : classes.keySet())
+				writeString(out, pathClass.toString());
+
+			// Write object properties & ROIs
+			for (var pathObject : objects) {
+				if (pathObject instanceof PathCellObject)
+					out.writeByte(TYPE_CELL);
+				else if (pathObject instanceof PathTileObject)
+					out.writeByte(TYPE_TILE);
+				else
+					out.writeByte(TYPE_DETECTION);
+
+				var parent = pathObject.getParent();
+				Integer parentIndex = parent == null ? null : indices.get(parent);
+				out.writeInt(parentIndex == null ? -1 : parentIndex);
+
+				var id = pathObject.getID();
+				out.writeLong(id.getMostSignificantBits());
+				out.writeLong(id.getLeastSignificantBits());
+
+				String name = pathObject.getName();
+				Integer color = pathObject.getColor();
+				PathClass pathClass = pathObject.getPathClass();
+				double probability = pathObject.getClassProbability();
+				Map<String, String> metadata = pathObject.hasMetadata() ? pathObject.getMetadata() : Collections.emptyMap();
+				int flags = 0;
+				if (name != null)
+					flags |= FLAG_NAME;
+				if (color != null)
+					flags |= FLAG_COLOR;
+				if (pathClass != null)
+					flags |= FLAG_CLASS;
+				if (!Double.isNaN(probability))
+					flags |= FLAG_PROBABILITY;
+				if (!metadata.isEmpty())
+					flags |= FLAG_METADATA;
+				if (pathObject.isLocked())
+					flags |= FLAG_LOCKED;
+				out.writeByte(flags);
+
+				if (name != null)
+					writeString(out, name);
+				if (color != null)
+					out.writeInt(color);
+				if (pathClass != null)
+					out.writeInt(classes.get(pathClass));
+				if (!Double.isNaN(probability))
+					out.writeDouble(probability);
+				if (!metadata.isEmpty()) {
+					var entries = metadata.entrySet().stream()
+							.filter(e -> e.getKey() != null && e.getValue() != null)
+							.toList();
+					out.writeInt(entries.size());
+					for (var entry : entries) {
+						writeString(out, entry.getKey());
+						writeString(out, entry.getValue());
+					}
+				}
+
+				writeROI(out, pathObject.getROI());
+				if (pathObject instanceof PathCellObject)
+					writeROI(out, ((PathCellObject)pathObject).getNucleusROI());
+			}
+
+			writeMeasurementColumns(out, objects);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new DetectionChunk(firstIndex, objects.size(), bytes.toByteArray());
+	}
+
+
+	private static void writeMeasurementColumns(DataOutputStream out, List<PathObject> objects) throws IOException {
+		int n = objects.size();
+		Map<String, Integer> columnIndices = new LinkedHashMap<>();
+		List<BitSet> present = new ArrayList<>();
+		List<double[]> values = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			var pathObject = objects.get(i);
+			if (!pathObject.hasMeasurements())
+				continue;
+			var list = pathObject.getMeasurementList();
+			synchronized (list) {
+				var names = list.getMeasurementNames();
+				for (int m = 0; m < names.size(); m++) {
+					String name = names.get(m);
+					Integer c = columnIndices.get(name);
+					if (c == null) {
+						c = columnIndices.size();
+						columnIndices.put(name, c);
+						present.add(new BitSet(n));
+						values.add(new double[n]);
+					}
+					present.get(c).set(i);
+					values.get(c)[i] = list.getMeasurementValue(m);
+				}
+			}
+		}
+		out.writeInt(columnIndices.size());
+		for (var entry : columnIndices.entrySet()) {
+			int c = entry.getValue();
+			var bits = present.get(c);
+			var column = values.get(c);
+			writeString(out, entry.getKey());
+			long[] words = bits.toLongArray();
+			out.writeInt(words.length);
+			for (long w : words)
+				out.writeLong(w);
+			// Use floats if this doesn't lose any information
+			boolean isFloat = true;
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1)) {
+				double v = column[i];
+				if ((double)(float)v != v && !Double.isNaN(v)) {
+					isFloat = false;
+					break;
+				}
+			}
+			out.writeByte(isFloat ? COLUMN_FLOAT : COLUMN_DOUBLE);
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1)) {
+				if (isFloat)
+					out.writeFloat((float)column[i]);
+				else
+					out.writeDouble(column[i]);
+			}
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static DecodedChunk decodeChunk(DetectionChunk chunk) {
+		try (var in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(chunk.bytes))))) {
+			int version = in.readInt();
+			if (version != CHUNK_VERSION)
+				throw new IOException("Unsupported detection chunk version " + version);
+			int n = in.readInt();
+			if (n != chunk.count)
+				throw new IOException("Expected " + chunk.count + " objects in chunk, but found " + n);
+
+			var parents = new int[n];
+			int nClasses = in.readInt();
+			var classes = new PathClass[nClasses];
+			for (int i = 0; i < nClasses; i++)
+				classes[i] = PathClass.fromString(readString(in));
+
+			// Read object properties & ROIs
+			var types = new byte[n];
+			var ids = new UUID[n];
+			var names = new String[n];
+			var colors = new Integer[n];
+			var pathClasses = new PathClass[n];
+			var probabilities = new double[n];
+			var locked = new boolean[n];
+			Map<String, String>[] metadata = new Map[n];
+			var rois = new ROI[n];
+			var nuclei = new ROI[n];
+			var wkbReader = new WKBReader();
+			for (int i = 0; i < n; i++) {
+				types[i] = in.readByte();
+				parents[i] = in.readInt();
+				ids[i] = new UUID(in.readLong(), in.readLong());
+				int flags = in.readByte();
+				if ((flags & FLAG_NAME) != 0)
+					names[i] = readString(in);
+				if ((flags & FLAG_COLOR) != 0)
+					colors[i] = in.readInt();
+				if ((flags & FLAG_CLASS) != 0)
+					pathClasses[i] = classes[in.readInt()];
+				probabilities[i] = (flags & FLAG_PROBABILITY) != 0 ? in.readDouble() : Double.NaN;
+				if ((flags & FLAG_METADATA) != 0) {
+					int nMetadata = in.readInt();
+					Map<String, String> map = new LinkedHashMap<>();
+					for (int m = 0; m < nMetadata; m++)
+						map.put(readString(in), readString(in));
+					metadata[i] = map;
+				}
+				locked[i] = (flags & FLAG_LOCKED) != 0;
+				rois[i] = readROI(in, wkbReader);
+				if (types[i] == TYPE_CELL)
+					nuclei[i] = readROI(in, wkbReader);
+			}
+
+			// Read measurements
+			int nColumns = in.readInt();
+			var columnNames = new String[nColumns];
+			var present = new BitSet[nColumns];
+			var values = new double[nColumns][];
+			var hasDouble = new boolean[n];
+			for (int c = 0; c < nColumns; c++) {
+				columnNames[c] = readString(in);
+				long[] words = new long[in.readInt()];
+				for (int w = 0; w < words.length; w++)
+					words[w] = in.readLong();
+				var bits = BitSet.valueOf(words);
+				present[c] = bits;
+				boolean isFloat = in.readByte() == COLUMN_FLOAT;
+				var column = new double[n];
+				for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1)) {
+					if (isFloat)
+						column[i] = in.readFloat();
+					else {
+						column[i] = in.readDouble();
+						hasDouble[i] = true;
+					}
+				}
+				values[c] = column;
+			}
+
+			// Create the objects
+			var objects = new PathObject[n];
+			for (int i = 0; i < n; i++) {
+				int nMeasurements = 0;
+				for (int c = 0; c < nColumns; c++) {
+					if (present[c].get(i))
+						nMeasurements++;
+				}
+				var type = hasDouble[i] ? MeasurementListType.DOUBLE : MeasurementListType.FLOAT;
+				MeasurementList measurements = MeasurementListFactory.createMeasurementList(nMeasurements, type);
+				for (int c = 0; c < nColumns; c++) {
+					if (present[c].get(i))
+						measurements.put(columnNames[c], values[c][i]);
+				}
+				measurements.close();
+
+				PathObject pathObject;
+				if (types[i] == TYPE_CELL)
+					pathObject = PathObjects.createCellObject(rois[i], nuclei[i], pathClasses[i], measurements);
+				else if (types[i] == TYPE_TILE)
+					pathObject = PathObjects.createTileObject(rois[i], pathClasses[i], measurements);
+				else
+					pathObject = PathObjects.createDetectionObject(rois[i], pathClasses[i], measurements);
+				if (!Double.isNaN(probabilities[i]))
+					pathObject.setPathClass(pathClasses[i], probabilities[i]);
+				pathObject.setID(ids[i]);
+				if (names[i] != null)
+					pathObject.setName(names[i]);
+				if (colors[i] != null)
+					pathObject.setColor(colors[i]);
+				if (metadata[i] != null)
+					pathObject.getMetadata().putAll(metadata[i]);
+				if (locked[i])
+					pathObject.setLocked(true);
+				objects[i] = pathObject;
+			}
+			return new DecodedChunk(chunk.firstIndex, objects, parents);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	/**
+	 * Write a string as its length followed by UTF-8 bytes.
+	 * This is used rather than {@link DataOutputStream#writeUTF(String)}, which fails for strings longer than 64 KB.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeROI(DataOutputStream out, ROI roi) throws IOException {
+		if (roi == null) {
+			out.writeByte(ROI_NONE);
+			return;
+		}
+		byte type;
+		if (roi instanceof RectangleROI)
+			type = ROI_RECTANGLE;
+		else if (roi instanceof EllipseROI)
+			type = ROI_ELLIPSE;
+		else if (roi instanceof LineROI)
+			type = ROI_LINE;
+		else if (roi instanceof PolygonROI)
+			type = ROI_POLYGON;
+		else if (roi instanceof PolylineROI)
+			type = ROI_POLYLINE;
+		else if (roi instanceof PointsROI)
+			type = ROI_POINTS;
+		else
+			type = ROI_GEOMETRY;
+		out.writeByte(type);
+		out.writeInt(roi.getC());
+		out.writeInt(roi.getZ());
+		out.writeInt(roi.getT());
+		switch (type) {
+		case ROI_RECTANGLE:
+		case ROI_ELLIPSE:
+			out.writeDouble(roi.getBoundsX());
+			out.writeDouble(roi.getBoundsY());
+			out.writeDouble(roi.getBoundsWidth());
+			out.writeDouble(roi.getBoundsHeight());
+			break;
+		case ROI_LINE:
+			var line = (LineROI)roi;
+			out.writeDouble(line.getX1());
+			out.writeDouble(line.getY1());
+			out.writeDouble(line.getX2());
+			out.writeDouble(line.getY2());
+			break;
+		case ROI_POLYGON:
+		case ROI_POLYLINE:
+		case ROI_POINTS:
+			var points = roi.getAllPoints();
+			out.writeInt(points.size());
+			for (var p : points)
+				out.writeDouble(p.getX());
+			for (var p : points)
+				out.writeDouble(p.getY());
+			break;
+		case ROI_GEOMETRY:
+		default:
+			byte[] wkb = new WKBWriter(2).write(roi.getGeometry());
+			out.writeInt(wkb.length);
+			out.write(wkb);
+		}
+	}
+
+	private static ROI readROI(DataInputStream in, WKBReader wkbReader) throws IOException {
+		byte type = in.readByte();
+		if (type == ROI_NONE)
+			return null;
+		int c = in.readInt();
+		int z = in.readInt();
+		int t = in.readInt();
+		var plane = ImagePlane.getPlaneWithChannel(c, z, t);
+		switch (type) {
+		case ROI_RECTANGLE:
+			return ROIs.createRectangleROI(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), plane);
+		case ROI_ELLIPSE:
+			return ROIs.createEllipseROI(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), plane);
+		case ROI_LINE:
+			return ROIs.createLineROI(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), plane);
+		case ROI_POLYGON:
+		case ROI_POLYLINE:
+		case ROI_POINTS:
+			int n = in.readInt();
+			double[] x = new double[n];
+			double[] y = new double[n];
+			for (int i = 0; i < n; i++)
+				x[i] = in.readDouble();
+			for (int i = 0; i < n; i++)
+				y[i] = in.readDouble();
+			if (type == ROI_POLYGON)
+				return ROIs.createPolygonROI(x, y, plane);
+			else if (type == ROI_POLYLINE)
+				return ROIs.createPolylineROI(x, y, plane);
+			else
+				return ROIs.createPointsROI(x, y, plane);
+		case ROI_GEOMETRY:
+			byte[] wkb = new byte[in.readInt()];
+			in.readFully(wkb);
+			try {
+				return GeometryTools.geometryToROI(wkbReader.read(wkb), plane);
+			} catch (ParseException e) {
+				throw new IOException(e);
+			}
+		default:
+			throw new IOException("Unknown ROI type " + type);
+		}
+	}
+
+}
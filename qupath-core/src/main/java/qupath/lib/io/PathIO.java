@@ -38,6 +38,7 @@ import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.hierarchy.DeferredObjectLoader;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.workflow.Workflow;
 
@@ -100,9 +101,21 @@ public class PathIO {
 	 * Version 2 switched to integers, and includes Locale information
 	 * Version 3 stores JSON instead of a server path
 	 * Version 4 stores PathObject UUIDs as a separate field
+	 * Version 5 stores detections in compressed binary chunks
 	 */
 	private static final int DATA_FILE_VERSION = 3;
 	
+	/**
+	 * Latest data file version that can be requested.
+	 */
+	private static final int LATEST_DATA_FILE_VERSION = 5;
+	
+	/**
+	 * First data file version that writes detections in compressed binary chunks, rather than 
+	 * using Java serialization.
+	 */
+	private static final int CHUNKED_DATA_FILE_VERSION = 5;
+	
 	/**
 	 * Input filter for deserialization that is limited to QuPath-related classes.
 	 */
@@ -151,17 +164,20 @@ public class PathIO {
 	 * <li><b>2</b> Switched versions to use integers, added Locale information (used in QuPath v0.1.2)</li>
 	 * <li><b>3</b> Switched {@link ImageServer} paths to be a JSON representation rather than a single path/URL</li>
 	 * <li><b>4</b> Added support for UUID to be stored in each {@link PathObject} (introducted QuPath v0.4.0)</li>
+	 * <li><b>5</b> Detections are stored in compressed chunks, with ROIs as packed coordinates and measurements 
+	 *              as columns, and decoded in parallel when reading (introduced in QuPath v0.5.1)</li>
 	 * </ul>
+	 * Files written with earlier versions can always be read.
 	 * 
 	 * @param version integer representation of the requested version
 	 * @see #getRequestedDataFileVersion()
 	 * @see #getCurrentDataFileVersion()
 	 * @since v0.4.0
-	 * @throws IllegalArgumentException if the requested version is less than 2 or greater than {@link #getCurrentDataFileVersion()}
+	 * @throws IllegalArgumentException if the requested version is less than 2 or greater than 5
 	 */
 	public static void setRequestedDataFileVersion(int version) throws IllegalArgumentException {
-		if (version < 2 || version > DATA_FILE_VERSION)
-			throw new IllegalArgumentException("Requested data file version must be between 2 and " + DATA_FILE_VERSION);
+		if (version < 2 || version > LATEST_DATA_FILE_VERSION)
+			throw new IllegalArgumentException("Requested data file version must be between 2 and " + LATEST_DATA_FILE_VERSION);
 		requestedDataFileVersion = version;
 	}
 	
@@ -234,6 +250,30 @@ public class PathIO {
 		return inStream;
 	}
 	
+	/**
+	 * Create an object input stream that can also read detections that were written in chunks.
+	 * @param stream
+	 * @return
+	 * @throws IOException
+	 */
+	private static ChunkedObjectIO.ChunkedObjectInputStream createChunkedObjectInputStream(InputStream stream) throws IOException {
+		return createChunkedObjectInputStream(stream, false);
+	}
+	
+	/**
+	 * Create an object input stream that can also read detections that were written in chunks, 
+	 * optionally skipping these detections.
+	 * @param stream
+	 * @param skipChunkedDetections
+	 * @return
+	 * @throws IOException
+	 */
+	private static ChunkedObjectIO.ChunkedObjectInputStream createChunkedObjectInputStream(InputStream stream, boolean skipChunkedDetections) throws IOException {
+		var inStream = new ChunkedObjectIO.ChunkedObjectInputStream(stream, skipChunkedDetections);
+		inStream.setObjectInputFilter(QUPATH_INPUT_FILTER);
+		return inStream;
+	}
+	
 	
 	/**
 	 * Extract a {@link ServerBuilder} from a String.
@@ -295,7 +335,7 @@ public class PathIO {
 			return null;
 		logger.info("Reading data from {}...", path.getFileName().toString());
 		try (InputStream stream = Files.newInputStream(path)) {
-			imageData = readImageDataSerialized(stream, imageData, server, cls);	
+			imageData = readImageDataSerialized(stream, imageData, server, cls, null);	
 			// Set the last saved path (actually the path from which this was opened)
 			if (imageData != null)
 				imageData.setLastSavedPath(path.toAbsolutePath().toString(), true);
@@ -307,13 +347,13 @@ public class PathIO {
 	}
 	
 	@SuppressWarnings("unchecked")
-	private static <T> ImageData<T> readImageDataSerialized(final InputStream stream, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) throws IOException {
+	private static <T> ImageData<T> readImageDataSerialized(final InputStream stream, ImageData<T> imageData, ImageServer<T> server, Class<T> cls, DeferredObjectLoader loader) throws IOException {
 		
 		long startTime = System.currentTimeMillis();
 		Locale locale = Locale.getDefault(Category.FORMAT);
 		boolean localeChanged = false;
 
-		try (ObjectInputStream inStream = createObjectInputStream(new BufferedInputStream(stream))) {
+		try (var inStream = createChunkedObjectInputStream(new BufferedInputStream(stream), loader != null)) {
 			
 			ServerBuilder<T> serverBuilder = null;
 			PathObjectHierarchy hierarchy = null;
@@ -353,7 +393,9 @@ public class PathIO {
 							Locale.setDefault(Category.FORMAT, (Locale)input);
 							localeChanged = true;
 						}
-					} else if (input instanceof PathObjectHierarchy)
+					} else if (input instanceof ChunkedObjectIO.DetectionChunk chunk)
+						inStream.addChunk(chunk);
+					else if (input instanceof PathObjectHierarchy)
 						hierarchy = (PathObjectHierarchy)input;
 					else if (input instanceof ImageData.ImageType)
 						imageType = (ImageData.ImageType)input;
@@ -391,6 +433,12 @@ public class PathIO {
 				}
 			}
 
+			// Only use the loader if we skipped detections, otherwise we could end up with duplicates
+			if (loader != null && inStream.getSkippedCount() > 0 && hierarchy != null)
+				hierarchy.setDeferredObjectLoader(loader);
+			else if (loader != null && loader.countPendingObjects() > 0)
+				logger.warn("No detections were skipped when reading image data - loader will be ignored");
+
 			// Create an entirely new ImageData if necessary
 			var existingBuilder = imageData == null || imageData.getServer() == null ? null : imageData.getServer().getBuilder();
 			if (imageData == null || !Objects.equals(serverBuilder, existingBuilder)) {
@@ -484,7 +532,28 @@ public class PathIO {
 	 * @throws IOException
 	 */
 	public static <T> ImageData<T> readImageData(final InputStream stream, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) throws IOException {
-		return readImageDataSerialized(stream, imageData, server, cls);
+		return readImageDataSerialized(stream, imageData, server, cls, null);
+	}
+	
+	/**
+	 * Read ImageData from an InputStream, but load detections on demand rather than immediately.
+	 * <p>
+	 * This requires that the data was written with data file version 5 or later, and the detections are available 
+	 * from the provided loader (e.g. a {@link SpatialObjectStore} that was written alongside the data file). 
+	 * Any detections stored in compressed chunks within the stream are skipped. 
+	 * If no detections were skipped, the loader is ignored.
+	 * 
+	 * @param stream
+	 * @param server an ImageServer to use rather than any that might be stored within the serialized data
+	 * @param cls
+	 * @param loader the loader that will supply the detections when they are needed
+	 * @return
+	 * @throws IOException
+	 * @since v0.5.1
+	 * @see PathObjectHierarchy#setDeferredObjectLoader(DeferredObjectLoader)
+	 */
+	public static <T> ImageData<T> readImageData(final InputStream stream, ImageServer<T> server, Class<T> cls, DeferredObjectLoader loader) throws IOException {
+		return readImageDataSerialized(stream, null, server, cls, Objects.requireNonNull(loader));
 	}
 
 	
@@ -554,7 +623,7 @@ public class PathIO {
 		
 		// Write the data
 		try (var stream = new FileOutputStream(file)) {
-			writeImageDataSerialized(stream, imageData);
+			writeImageDataSerialized(stream, imageData, requestedDataFileVersion);
 			
 			// Remember the saved path
 			imageData.setLastSavedPath(file.getAbsolutePath(), true);
@@ -573,19 +642,39 @@ public class PathIO {
 	 * @throws IOException
 	 */
 	public static void writeImageData(final OutputStream stream, final ImageData<?> imageData) throws IOException {
-		writeImageDataSerialized(stream, imageData);
+		writeImageDataSerialized(stream, imageData, requestedDataFileVersion);
+	}
+	
+	/**
+	 * Serialize an ImageData object to an output stream, using a specific data file version 
+	 * rather than the one returned by {@link #getRequestedDataFileVersion()}.
+	 * 
+	 * @param stream
+	 * @param imageData
+	 * @param dataFileVersion
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the data file version is not supported
+	 * @since v0.5.1
+	 * @see #setRequestedDataFileVersion(int)
+	 */
+	public static void writeImageData(final OutputStream stream, final ImageData<?> imageData, int dataFileVersion) throws IOException, IllegalArgumentException {
+		if (dataFileVersion < 2 || dataFileVersion > LATEST_DATA_FILE_VERSION)
+			throw new IllegalArgumentException("Requested data file version must be between 2 and " + LATEST_DATA_FILE_VERSION);
+		writeImageDataSerialized(stream, imageData, dataFileVersion);
 	}
 	
 
-	private static void writeImageDataSerialized(final OutputStream stream, final ImageData<?> imageData) throws IOException {
+	private static void writeImageDataSerialized(final OutputStream stream, final ImageData<?> imageData, int dataFileVersion) throws IOException {
 				
 		try (OutputStream outputStream = new BufferedOutputStream(stream)) {
 			long startTime = System.currentTimeMillis();
 			
-			ObjectOutputStream outStream = new ObjectOutputStream(outputStream);
+			// Optionally write detections in chunks, rather than relying on Java serialization
+			boolean writeChunks = dataFileVersion >= CHUNKED_DATA_FILE_VERSION;
+			ObjectOutputStream outStream = writeChunks ? new ChunkedObjectIO.ChunkedObjectOutputStream(outputStream) : new ObjectOutputStream(outputStream);
 			
 			// Write the identifier
-			outStream.writeUTF("Data file version " + DATA_FILE_VERSION);
+			outStream.writeUTF("Data file version " + (writeChunks ? CHUNKED_DATA_FILE_VERSION : DATA_FILE_VERSION));
 			
 			// Try to write a backwards-compatible image path
 			var server = imageData.getServer();
@@ -621,7 +710,13 @@ public class PathIO {
 			
 			// Write the rest of the main image metadata
 			PathObjectHierarchy hierarchy = imageData.getHierarchy();
+			// Ensure detections that haven't yet been loaded are still written
+			hierarchy.loadDeferredObjects();
 			logger.info(String.format("Writing object hierarchy with %d object(s)...", hierarchy.nObjects()));
+			if (writeChunks) {
+				int nDetections = ((ChunkedObjectIO.ChunkedObjectOutputStream)outStream).writeDetectionChunks(hierarchy, ChunkedObjectIO.DEFAULT_CHUNK_SIZE);
+				logger.debug("{} detection(s) written in chunks", nDetections);
+			}
 			outStream.writeObject(hierarchy);
 			
 			// Write any remaining (serializable) properties
@@ -685,7 +780,7 @@ public class PathIO {
 		Locale locale = Locale.getDefault(Category.FORMAT);
 		boolean localeChanged = false;
 
-		try (ObjectInputStream inStream = createObjectInputStream(new BufferedInputStream(fileIn))) {
+		try (var inStream = createChunkedObjectInputStream(new BufferedInputStream(fileIn))) {
 			
 			if (!inStream.readUTF().startsWith("Data file version")) {
 				logger.error("Input stream is not from a valid QuPath data file!");
@@ -703,6 +798,8 @@ public class PathIO {
 							Locale.setDefault(Category.FORMAT, (Locale)input);
 							localeChanged = true;
 						}
+					} else if (input instanceof ChunkedObjectIO.DetectionChunk chunk) {
+						inStream.addChunk(chunk);
 					} else if (input instanceof PathObjectHierarchy) {
 						/* This would ideally be unnecessary, but it's needed to ensure that the PathObjectHierarchy
 						 * has been property initialized.  We can't count on the deserialized hierarchy being immediately functional.
@@ -0,0 +1,428 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.DeferredObjectLoader;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * A spatially-indexed on-disk store for the detections within a hierarchy.
+ * <p>
+ * Detections are grouped into square tiles according to their centroids, and each tile is stored as
+ * a separate compressed chunk. The bounding box of all objects within each tile is written in a header,
+ * so that only the tiles overlapping a region of interest need to be read.
+ * <p>
+ * This makes it possible to use the store as a {@link DeferredObjectLoader}, so that detections
+ * are only loaded when needed.
+ *
+ * @since v0.5.1
+ * @see PathObjectHierarchy#setDeferredObjectLoader(DeferredObjectLoader)
+ */
+public final class SpatialObjectStore implements DeferredObjectLoader {
+
+	private static final Logger logger = LoggerFactory.getLogger(SpatialObjectStore.class);
+
+	private static final int MAGIC = 0x51504f42; // "QPOB"
+
+	private static final int STORE_VERSION = 1;
+
+	/**
+	 * Default width and height of the tiles used to group objects, in pixels.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 2048;
+
+	private final Path path;
+	private final long timestamp;
+	private final List<StoreTile> tiles;
+	private int nPending;
+
+	private SpatialObjectStore(Path path, long timestamp, List<StoreTile> tiles) {
+		this.path = path;
+		this.timestamp = timestamp;
+		this.tiles = tiles;
+		for (var tile : tiles)
+			nPending += tile.count;
+	}
+
+	/**
+	 * Get the timestamp that was provided when the store was written.
+	 * This can be used to check whether the store is consistent with another file.
+	 * @return
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Write all detections within a hierarchy to a store.
+	 * Any deferred objects within the hierarchy will be loaded first.
+	 * <p>
+	 * The store can only be written if detections have only other detections as descendants.
+	 * If this is not the case, no store is written and any existing file is deleted.
+	 *
+	 * @param path the file to write
+	 * @param hierarchy the hierarchy containing detections
+	 * @param tileSize the width and height of the tiles used to group objects
+	 * @param timestamp a timestamp to store, which can be used later to check if the store is up-to-date
+	 * @return true if the store was written, false otherwise
+	 * @throws IOException
+	 */
+	public static boolean write(Path path, PathObjectHierarchy hierarchy, int tileSize, long timestamp) throws IOException {
+		if (tileSize <= 0)
+			throw new IllegalArgumentException("Tile size must be > 0");
+		hierarchy.loadDeferredObjects();
+
+		// Group top-level detections (i.e. those whose parent isn't a detection) by tile
+		Map<List<Integer>, List<PathObject>> grouped = new LinkedHashMap<>();
+		var stack = new ArrayDeque<PathObject>();
+		stack.push(hierarchy.getRootObject());
+		while (!stack.isEmpty()) {
+			var pathObject = stack.pop();
+			for (var child : pathObject.getChildObjectsAsArray()) {
+				if (!child.isDetection()) {
+					stack.push(child);
+					continue;
+				}
+				if (!ChunkedObjectIO.hasOnlyDetectionDescendants(child)) {
+					logger.warn("Detections with non-detection child objects found - object store will not be written");
+					Files.deleteIfExists(path);
+					return false;
+				}
+				var roi = child.getROI();
+				int tx = roi == null ? 0 : (int)Math.floor(roi.getCentroidX() / tileSize);
+				int ty = roi == null ? 0 : (int)Math.floor(roi.getCentroidY() / tileSize);
+				int z = roi == null ? 0 : roi.getZ();
+				int t = roi == null ? 0 : roi.getT();
+				grouped.computeIfAbsent(List.of(z, t, tx, ty), k -> new ArrayList<>()).add(child);
+			}
+		}
+
+		// Encode the tiles in parallel
+		List<EncodedTile> encoded;
+		try {
+			encoded = grouped.values().parallelStream().map(SpatialObjectStore::encodeTile).toList();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		// Write to a temp file, then move it into place
+		var pathTemp = path.resolveSibling(path.getFileName().toString() + ".tmp");
+		try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(pathTemp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(STORE_VERSION);
+			out.writeLong(timestamp);
+			out.writeInt(tileSize);
+			out.writeInt(encoded.size());
+			long offset = 4 + 4 + 8 + 4 + 4 + (long)encoded.size() * StoreTile.HEADER_BYTES;
+			for (var tile : encoded) {
+				tile.header.offset = offset;
+				tile.header.write(out);
+				offset += tile.bytes.length;
+			}
+			for (var tile : encoded)
+				out.write(tile.bytes);
+		} catch (IOException e) {
+			Files.deleteIfExists(pathTemp);
+			throw e;
+		}
+		Files.move(pathTemp, path, StandardCopyOption.REPLACE_EXISTING);
+		logger.debug("Written {} object tile(s) to {}", encoded.size(), path);
+		return true;
+	}
+
+	/**
+	 * Open an existing store.
+	 * Only the header is read at this point; objects are read when they are requested.
+	 * @param path
+	 * @return
+	 * @throws IOException if the file is not a valid object store
+	 */
+	public static SpatialObjectStore open(Path path) throws IOException {
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var buffer = ByteBuffer.allocate(4 + 4 + 8 + 4 + 4);
+			readFully(channel, buffer, 0L);
+			if (buffer.getInt() != MAGIC)
+				throw new IOException(path + " is not a valid object store");
+			int version = buffer.getInt();
+			if (version != STORE_VERSION)
+				throw new IOException("Unsupported object store version " + version);
+			long timestamp = buffer.getLong();
+			buffer.getInt(); // Tile size, currently unused when reading
+			int nTiles = buffer.getInt();
+			var tileBuffer = ByteBuffer.allocate(nTiles * StoreTile.HEADER_BYTES);
+			readFully(channel, tileBuffer, buffer.capacity());
+			List<StoreTile> tiles = new ArrayList<>(nTiles);
+			for (int i = 0; i < nTiles; i++)
+				tiles.add(StoreTile.read(tileBuffer));
+			return new SpatialObjectStore(path, timestamp, tiles);
+		}
+	}
+
+	@Override
+	public Map<UUID, List<PathObject>> loadObjects(ImageRegion region) throws IOException {
+		if (region == null)
+			return loadAllObjects();
+		return loadTiles(t -> t.intersects(region));
+	}
+
+	@Override
+	public Map<UUID, List<PathObject>> loadAllObjects() throws IOException {
+		return loadTiles(t -> true);
+	}
+
+	@Override
+	public synchronized int countPendingObjects() {
+		return nPending;
+	}
+
+	private synchronized Map<UUID, List<PathObject>> loadTiles(Predicate<StoreTile> filter) throws IOException {
+		if (nPending == 0)
+			return Collections.emptyMap();
+		List<StoreTile> toLoad = new ArrayList<>();
+		for (var tile : tiles) {
+			if (!tile.loaded && filter.test(tile))
+				toLoad.add(tile);
+		}
+		if (toLoad.isEmpty())
+			return Collections.emptyMap();
+
+		List<byte[]> bytes = new ArrayList<>(toLoad.size());
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			for (var tile : toLoad) {
+				var buffer = ByteBuffer.allocate(tile.length);
+				readFully(channel, buffer, tile.offset);
+				bytes.add(buffer.array());
+			}
+		}
+
+		List<Map<UUID, List<PathObject>>> decoded;
+		try {
+			decoded = bytes.parallelStream().map(SpatialObjectStore::decodeTile).toList();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		Map<UUID, List<PathObject>> map = new HashMap<>();
+		for (var tileMap : decoded) {
+			for (var entry : tileMap.entrySet())
+				map.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+		}
+		for (var tile : toLoad) {
+			tile.loaded = true;
+			nPending -= tile.count;
+		}
+		logger.debug("Loaded {} object tile(s) from {}", toLoad.size(), path);
+		return map;
+	}
+
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0)
+				throw new IOException("Unexpected end of object store");
+		}
+		buffer.flip();
+	}
+
+
+	private static EncodedTile encodeTile(List<PathObject> topLevel) {
+		// Flatten the objects so that descendants are included in the same chunk
+		List<PathObject> objects = new ArrayList<>();
+		int[] rootIndices = new int[topLevel.size()];
+		double x1 = Double.POSITIVE_INFINITY, y1 = Double.POSITIVE_INFINITY;
+		double x2 = Double.NEGATIVE_INFINITY, y2 = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < topLevel.size(); i++) {
+			rootIndices[i] = objects.size();
+			var stack = new ArrayDeque<PathObject>();
+			stack.push(topLevel.get(i));
+			while (!stack.isEmpty()) {
+				var pathObject = stack.pop();
+				objects.add(pathObject);
+				var roi = pathObject.getROI();
+				if (roi != null) {
+					x1 = Math.min(x1, roi.getBoundsX());
+					y1 = Math.min(y1, roi.getBoundsY());
+					x2 = Math.max(x2, roi.getBoundsX() + roi.getBoundsWidth());
+					y2 = Math.max(y2, roi.getBoundsY() + roi.getBoundsHeight());
+				}
+				var children = pathObject.getChildObjectsAsArray();
+				for (int c = children.length - 1; c >= 0; c--)
+					stack.push(children[c]);
+			}
+		}
+		var first = topLevel.get(0).getROI();
+		var header = new StoreTile();
+		header.z = first == null ? 0 : first.getZ();
+		header.t = first == null ? 0 : first.getT();
+		if (x1 <= x2) {
+			header.x = x1;
+			header.y = y1;
+			header.width = x2 - x1;
+			header.height = y2 - y1;
+		}
+		header.count = objects.size();
+
+		try {
+			var chunk = ChunkedObjectIO.encodeObjects(objects);
+			var bytes = new ByteArrayOutputStream();
+			try (var out = new DataOutputStream(bytes)) {
+				out.writeInt(rootIndices.length);
+				for (int i = 0; i < rootIndices.length; i++) {
+					out.writeInt(rootIndices[i]);
+					var parent = topLevel.get(i).getParent();
+					if (parent == null || parent.isRootObject()) {
+						out.writeBoolean(false);
+					} else {
+						out.writeBoolean(true);
+						out.writeLong(parent.getID().getMostSignificantBits());
+						out.writeLong(parent.getID().getLeastSignificantBits());
+					}
+				}
+				out.writeInt(chunk.getCount());
+				out.writeInt(chunk.getBytes().length);
+				out.write(chunk.getBytes());
+			}
+			header.length = bytes.size();
+			return new EncodedTile(header, bytes.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static Map<UUID, List<PathObject>> decodeTile(byte[] bytes) {
+		try (var in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			int nRoots = in.readInt();
+			int[] rootIndices = new int[nRoots];
+			UUID[] parentIds = new UUID[nRoots];
+			for (int i = 0; i < nRoots; i++) {
+				rootIndices[i] = in.readInt();
+				if (in.readBoolean())
+					parentIds[i] = new UUID(in.readLong(), in.readLong());
+			}
+			int count = in.readInt();
+			byte[] chunkBytes = new byte[in.readInt()];
+			in.readFully(chunkBytes);
+			var objects = ChunkedObjectIO.decodeObjects(new ChunkedObjectIO.DetectionChunk(0, count, chunkBytes));
+			Map<UUID, List<PathObject>> map = new HashMap<>();
+			for (int i = 0; i < nRoots; i++)
+				map.computeIfAbsent(parentIds[i], k -> new ArrayList<>()).add(objects[rootIndices[i]]);
+			return map;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	private static class EncodedTile {
+
+		private final StoreTile header;
+		private final byte[] bytes;
+
+		private EncodedTile(StoreTile header, byte[] bytes) {
+			this.header = header;
+			this.bytes = bytes;
+		}
+
+	}
+
+
+	private static class StoreTile {
+
+		private static final int HEADER_BYTES = 4 + 4 + 8 * 4 + 4 + 8 + 4;
+
+		private int z, t;
+		private double x, y, width, height;
+		private int count;
+		private long offset;
+		private int length;
+
+		private boolean loaded = false;
+
+		/**
+		 * Check if the tile bounds intersect a region.
+		 * Touching edges count as intersecting, because tiles containing only points or
+		 * axis-aligned lines can have a width or height of 0.
+		 */
+		private boolean intersects(ImageRegion region) {
+			return z == region.getZ() && t == region.getT() &&
+					x <= region.getMaxX() && x + width >= region.getMinX() &&
+					y <= region.getMaxY() && y + height >= region.getMinY();
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(z);
+			out.writeInt(t);
+			out.writeDouble(x);
+			out.writeDouble(y);
+			out.writeDouble(width);
+			out.writeDouble(height);
+			out.writeInt(count);
+			out.writeLong(offset);
+			out.writeInt(length);
+		}
+
+		private static StoreTile read(ByteBuffer buffer) {
+			var tile = new StoreTile();
+			tile.z = buffer.getInt();
+			tile.t = buffer.getInt();
+			tile.x = buffer.getDouble();
+			tile.y = buffer.getDouble();
+			tile.width = buffer.getDouble();
+			tile.height = buffer.getDouble();
+			tile.count = buffer.getInt();
+			tile.offset = buffer.getLong();
+			tile.length = buffer.getInt();
+			return tile;
+		}
+
+	}
+
+}
@@ -0,0 +1,466 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import java.io.ObjectStreamException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A store for numeric measurements that keeps one primitive column per measurement name,
+ * rather than one array per object.
+ * <p>
+ * Each {@link MeasurementList} created by {@link #createMeasurementList()} is a lightweight view
+ * onto a single row of the store. This greatly reduces the memory requirements and garbage collection
+ * pressure when there are millions of objects with many measurements each, and enables
+ * measurements to be extracted for many objects at once with {@link #getValues(int[], List, float[])}.
+ * <p>
+ * Values are stored as floats, consistent with {@link MeasurementListFactory#createMeasurementList(int, qupath.lib.measurements.MeasurementList.MeasurementListType)}
+ * using {@link MeasurementList.MeasurementListType#FLOAT}. Columns can optionally be stored off-heap.
+ * A store can be used for all float measurement lists with {@link MeasurementListFactory#setColumnarStore(ColumnarMeasurementStore)}.
+ * <p>
+ * Reading values doesn't require any locking; changes to the store are synchronized.
+ * When serialized, a row view is replaced by a standalone copy of its measurements.
+ * Rows are recycled automatically once the corresponding measurement list is no longer reachable.
+ *
+ * @since v0.5.1
+ */
+public class ColumnarMeasurementStore {
+
+	private static final Cleaner cleaner = Cleaner.create();
+
+	private static final int MIN_CAPACITY = 1024;
+
+	private final boolean offHeap;
+
+	private final List<String> columnNames = new CopyOnWriteArrayList<>();
+	private final Map<String, Column> columnMap = new ConcurrentHashMap<>();
+
+	/**
+	 * Pool of unmodifiable name lists, so that rows with the same measurements share the same list.
+	 */
+	private final Map<List<String>, List<String>> namesPool = new HashMap<>();
+
+	private int capacity = 0;
+	private int nRows = 0;
+	private int[] freeRows = new int[16];
+	private int nFreeRows = 0;
+
+	private ColumnarMeasurementStore(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Create a new store, with columns stored on the Java heap.
+	 * @return
+	 */
+	public static ColumnarMeasurementStore create() {
+		return new ColumnarMeasurementStore(false);
+	}
+
+	/**
+	 * Create a new store, optionally with columns stored off-heap in direct buffers.
+	 * @param offHeap if true, use direct buffers rather than Java arrays
+	 * @return
+	 */
+	public static ColumnarMeasurementStore create(boolean offHeap) {
+		return new ColumnarMeasurementStore(offHeap);
+	}
+
+	/**
+	 * Query whether column values are stored off-heap.
+	 * @return
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Create a new, empty measurement list backed by a row of this store.
+	 * @return
+	 */
+	public MeasurementList createMeasurementList() {
+		int row;
+		synchronized (this) {
+			if (nFreeRows > 0)
+				row = freeRows[--nFreeRows];
+			else {
+				row = nRows++;
+				ensureCapacity(nRows);
+			}
+		}
+		var list = new RowMeasurementList(this, row);
+		cleaner.register(list, new RowReleaser(this, row));
+		return list;
+	}
+
+	/**
+	 * Get the row index of a measurement list, if it is backed by this store.
+	 * @param list
+	 * @return the row index, or -1 if the list does not belong to this store
+	 */
+	public int getRowIndex(MeasurementList list) {
+		if (list instanceof RowMeasurementList) {
+			var rowList = (RowMeasurementList)list;
+			if (rowList.store == this)
+				return rowList.row;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the names of all columns in the store.
+	 * A column may exist even if no list currently contains the corresponding measurement.
+	 * @return
+	 */
+	public List<String> getColumnNames() {
+		return List.copyOf(columnNames);
+	}
+
+	/**
+	 * Get values for multiple rows and measurements at once.
+	 * Values are written in row-major order, with NaN used for missing values.
+	 *
+	 * @param rows row indices, as returned by {@link #getRowIndex(MeasurementList)}
+	 * @param names the measurement names
+	 * @param values optional array to store the output; must have a length of at least {@code rows.length * names.size()}
+	 * @return the values array, or a new array if the input was null
+	 */
+	public float[] getValues(int[] rows, List<String> names, float[] values) {
+		int nCols = names.size();
+		int n = rows.length * nCols;
+		if (values == null)
+			values = new float[n];
+		else if (values.length < n)
+			throw new IllegalArgumentException("Values array length " + values.length + " is too short, needs to be at least " + n);
+		for (int c = 0; c < nCols; c++) {
+			var column = columnMap.get(names.get(c));
+			if (column == null) {
+				for (int i = 0; i < rows.length; i++)
+					values[i * nCols + c] = Float.NaN;
+			} else {
+				for (int i = 0; i < rows.length; i++)
+					values[i * nCols + c] = column.getValue(rows[i]);
+			}
+		}
+		return values;
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (capacity >= minCapacity)
+			return;
+		capacity = Math.max(Math.max(MIN_CAPACITY, capacity * 2), minCapacity);
+		for (var column : columnMap.values())
+			column.resize(capacity);
+	}
+
+	private Column getOrCreateColumn(String name) {
+		var column = columnMap.get(name);
+		if (column != null)
+			return column;
+		column = offHeap ? new BufferColumn(capacity) : new ArrayColumn(capacity);
+		columnMap.put(name, column);
+		columnNames.add(name);
+		return column;
+	}
+
+	private List<String> getPooledNames(List<String> names) {
+		if (names.isEmpty())
+			return Collections.emptyList();
+		return namesPool.computeIfAbsent(names, Collections::unmodifiableList);
+	}
+
+	private synchronized void releaseRow(int row) {
+		for (var column : columnMap.values())
+			column.setValue(row, Float.NaN);
+		if (nFreeRows == freeRows.length)
+			freeRows = Arrays.copyOf(freeRows, freeRows.length * 2);
+		freeRows[nFreeRows++] = row;
+	}
+
+
+	private static class RowReleaser implements Runnable {
+
+		private final ColumnarMeasurementStore store;
+		private final int row;
+
+		RowReleaser(ColumnarMeasurementStore store, int row) {
+			this.store = store;
+			this.row = row;
+		}
+
+		@Override
+		public void run() {
+			store.releaseRow(row);
+		}
+
+	}
+
+
+	/**
+	 * A column of values, where missing values are NaN.
+	 * Values can be read without locking, because resizing publishes a complete copy of the previous values.
+	 */
+	private abstract static class Column {
+
+		abstract float getValue(int row);
+
+		abstract void setValue(int row, float value);
+
+		abstract void resize(int capacity);
+
+	}
+
+	private static class ArrayColumn extends Column {
+
+		private volatile float[] values;
+
+		ArrayColumn(int capacity) {
+			var values = new float[capacity];
+			Arrays.fill(values, Float.NaN);
+			this.values = values;
+		}
+
+		@Override
+		float getValue(int row) {
+			return values[row];
+		}
+
+		@Override
+		void setValue(int row, float value) {
+			values[row] = value;
+		}
+
+		@Override
+		void resize(int capacity) {
+			var previous = values;
+			var updated = Arrays.copyOf(previous, capacity);
+			Arrays.fill(updated, previous.length, capacity, Float.NaN);
+			values = updated;
+		}
+
+	}
+
+	private static class BufferColumn extends Column {
+
+		private volatile FloatBuffer values;
+
+		BufferColumn(int capacity) {
+			values = allocate(capacity);
+		}
+
+		private static FloatBuffer allocate(int capacity) {
+			var buffer = ByteBuffer.allocateDirect(capacity * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			for (int i = 0; i < capacity; i++)
+				buffer.put(i, Float.NaN);
+			return buffer;
+		}
+
+		@Override
+		float getValue(int row) {
+			return values.get(row);
+		}
+
+		@Override
+		void setValue(int row, float value) {
+			values.put(row, value);
+		}
+
+		@Override
+		void resize(int capacity) {
+			var buffer = allocate(capacity);
+			var previous = values.duplicate();
+			previous.rewind();
+			buffer.put(previous);
+			buffer.rewind();
+			values = buffer;
+		}
+
+	}
+
+
+	/**
+	 * A measurement list that provides a view onto a single row of the store.
+	 * Measurement names are retained in the order they were added, as for other measurement lists.
+	 */
+	private static class RowMeasurementList implements MeasurementList {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient ColumnarMeasurementStore store;
+		private final transient int row;
+
+		private transient volatile List<String> names = Collections.emptyList();
+		private transient Map<String, Number> mapView;
+
+		RowMeasurementList(ColumnarMeasurementStore store, int row) {
+			this.store = store;
+			this.row = row;
+		}
+
+		@Override
+		public List<String> getMeasurementNames() {
+			return names;
+		}
+
+		@Override
+		public String getMeasurementName(int ind) {
+			return getMeasurementNames().get(ind);
+		}
+
+		@Override
+		public double getMeasurementValue(int ind) {
+			var names = getMeasurementNames();
+			if (ind >= 0 && ind < names.size())
+				return get(names.get(ind));
+			return Double.NaN;
+		}
+
+		@Override
+		public double get(String name) {
+			var column = store.columnMap.get(name);
+			return column == null ? Double.NaN : column.getValue(row);
+		}
+
+		@Override
+		public boolean containsKey(String name) {
+			return names.contains(name);
+		}
+
+		@Override
+		public void put(String name, double value) {
+			synchronized (store) {
+				var column = store.getOrCreateColumn(name);
+				column.setValue(row, (float)value);
+				if (!names.contains(name)) {
+					var newNames = new ArrayList<>(names);
+					newNames.add(name);
+					names = store.getPooledNames(newNames);
+				}
+			}
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		@Override
+		public int size() {
+			return getMeasurementNames().size();
+		}
+
+		@Override
+		public boolean supportsDynamicMeasurements() {
+			return false;
+		}
+
+		@Override
+		public Measurement putMeasurement(Measurement measurement) {
+			if (measurement.isDynamic())
+				throw new UnsupportedOperationException("This MeasurementList does not support dynamic measurements");
+			put(measurement.getName(), measurement.getValue());
+			return null;
+		}
+
+		@Override
+		public void close() {
+			// Storage is always compact, so nothing to do
+		}
+
+		@Override
+		public void removeMeasurements(String... measurementNames) {
+			synchronized (store) {
+				var newNames = new ArrayList<>(names);
+				for (String name : measurementNames) {
+					var column = store.columnMap.get(name);
+					if (column != null)
+						column.setValue(row, Float.NaN);
+					newNames.remove(name);
+				}
+				names = store.getPooledNames(newNames);
+			}
+		}
+
+		@Override
+		public void clear() {
+			synchronized (store) {
+				for (var name : names)
+					store.columnMap.get(name).setValue(row, Float.NaN);
+				names = Collections.emptyList();
+			}
+		}
+
+		@Override
+		public Map<String, Number> asMap() {
+			if (mapView == null) {
+				synchronized(this) {
+					if (mapView == null)
+						mapView = new MeasurementsMap(this);
+				}
+			}
+			return mapView;
+		}
+
+		/**
+		 * Replace with a standalone list when serializing, since the store itself isn't serializable.
+		 * @return
+		 * @throws ObjectStreamException
+		 */
+		private Object writeReplace() throws ObjectStreamException {
+			var names = getMeasurementNames();
+			var list = new NumericMeasurementList.FloatList(names.size());
+			for (var name : names)
+				list.put(name, get(name));
+			list.close();
+			return list;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			var names = getMeasurementNames();
+			int n = names.size();
+			sb.append("[");
+			for (int i = 0; i < n; i++) {
+				String name = names.get(i);
+				sb.append(name).append(": ").append(get(name));
+				if (i < n - 1)
+					sb.append(", ");
+			}
+			sb.append("]");
+			return sb.toString();
+		}
+
+	}
+
+}
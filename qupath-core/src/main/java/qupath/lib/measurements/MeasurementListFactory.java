@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -33,7 +33,36 @@ package qupath.lib.measurements;
  */
 public class MeasurementListFactory {
 	
+	/**
+	 * Optional store used for all float measurement lists.
+	 * This can be enabled at startup by setting the system property {@code qupath.measurements.columnar=true}.
+	 */
+	private static volatile ColumnarMeasurementStore columnarStore =
+			Boolean.getBoolean("qupath.measurements.columnar") ? ColumnarMeasurementStore.create() : null;
+	
 	private MeasurementListFactory() {}
+	
+	/**
+	 * Set a columnar store to use when creating float measurement lists.
+	 * This can greatly reduce memory use when there are very many detections, and enables
+	 * fast bulk access to measurement values.
+	 * Lists created previously are unaffected.
+	 * @param store the store to use, or null if float lists should be standalone
+	 * @since v0.5.1
+	 */
+	public static void setColumnarStore(ColumnarMeasurementStore store) {
+		columnarStore = store;
+	}
+	
+	/**
+	 * Get the columnar store used when creating float measurement lists, if any.
+	 * @return the store, or null if float lists are standalone
+	 * @since v0.5.1
+	 * @see #setColumnarStore(ColumnarMeasurementStore)
+	 */
+	public static ColumnarMeasurementStore getColumnarStore() {
+		return columnarStore;
+	}
 
 	/**
 	 * Create a measurement list.
@@ -46,6 +75,9 @@ public class MeasurementListFactory {
 		case DOUBLE:
 			return new NumericMeasurementList.DoubleList(capacity);
 		case FLOAT:
+			var store = columnarStore;
+			if (store != null)
+				return store.createMeasurementList();
 			return new NumericMeasurementList.FloatList(capacity);
 		case GENERAL:
 		default:
@@ -1078,6 +1078,16 @@ public abstract class PathObject implements Externalizable {
 			metadata = new MetadataMap();
 		return metadata;
 	}
+
+	/**
+	 * Check if any metadata values are stored for this object.
+	 * Unlike {@link #getMetadata()}, this does not create a metadata map if none exists.
+	 * @return
+	 * @since v0.5.1
+	 */
+	public boolean hasMetadata() {
+		return metadata != null && !metadata.isEmpty();
+	}
 	
 	
 	@Override
@@ -1212,6 +1222,9 @@ public abstract class PathObject implements Externalizable {
 			ensureChildList(nChildObjects);
 			for (int i = 0; i < nChildObjects; i++) {
 				PathObject child = (PathObject)in.readObject();
+				// Child may be null if it is being loaded separately
+				if (child == null)
+					continue;
 				child.parent = this;
 				this.childList.add(child);
 //				addPathObject((PathObject)in.readObject());
@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Interface for supplying objects to a {@link PathObjectHierarchy} on demand,
+ * rather than requiring all objects to be loaded up front.
+ * <p>
+ * This is intended for very large numbers of detections, which can be read from a spatially-indexed store
+ * only when a specific region is requested.
+ * Each object should be returned at most once.
+ *
+ * @since v0.5.1
+ * @see PathObjectHierarchy#setDeferredObjectLoader(DeferredObjectLoader)
+ */
+public interface DeferredObjectLoader {
+
+	/**
+	 * Load any objects that have not previously been loaded, and which might overlap the specified region.
+	 * <p>
+	 * Objects are returned grouped according to the ID of the parent object to which they should be added,
+	 * or a null key if they should be added to the root object.
+	 * The objects may have child objects of their own.
+	 *
+	 * @param region the region of interest
+	 * @return a map of parent IDs to objects that should be added
+	 * @throws IOException if the objects could not be read
+	 */
+	Map<UUID, List<PathObject>> loadObjects(ImageRegion region) throws IOException;
+
+	/**
+	 * Load all objects that have not previously been loaded.
+	 * @return a map of parent IDs to objects that should be added
+	 * @throws IOException if the objects could not be read
+	 * @see #loadObjects(ImageRegion)
+	 */
+	Map<UUID, List<PathObject>> loadAllObjects() throws IOException;
+
+	/**
+	 * Get the number of objects that have not yet been loaded, including any descendants.
+	 * @return
+	 */
+	int countPendingObjects();
+
+}
@@ -0,0 +1,455 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.ItemVisitor;
+import org.locationtech.jts.index.SpatialIndex;
+
+/**
+ * A static R-tree that is bulk-loaded by sorting items along a Hilbert curve,
+ * with all bounding boxes stored in a single flat {@code double[]} array.
+ * <p>
+ * This is intended for large numbers of small objects (e.g. millions of detections), where the
+ * per-node allocations of a {@link org.locationtech.jts.index.quadtree.Quadtree} are expensive
+ * both to build and to query.
+ * <p>
+ * The packed tree itself is immutable, but incremental changes are supported:
+ * inserted items are added to a small delta buffer that is searched linearly, and removed items
+ * are marked as deleted. When either becomes too large, the tree is rebuilt.
+ * <p>
+ * Queries may be made concurrently, but modifications are not thread-safe;
+ * callers are responsible for synchronization.
+ */
+class PackedRTree implements SpatialIndex {
+
+	/**
+	 * Maximum number of children per node.
+	 */
+	static final int DEFAULT_NODE_SIZE = 16;
+
+	/**
+	 * Minimum capacity of the delta buffer before the tree will be rebuilt.
+	 */
+	private static final int MIN_DELTA_CAPACITY = 256;
+
+	private final int nodeSize;
+
+	// Packed tree
+	private int numItems;
+	private int numNodes;
+	private double[] boxes;    // 4 values per node: minX, minY, maxX, maxY
+	private int[] indices;     // Item index for leaves, first child node for internal nodes
+	private int[] levelBounds; // Exclusive upper bound of node indices for each level
+	private Object[] items;
+	private BitSet removed = new BitSet();
+	private int numRemoved;
+
+	// Delta buffer of items inserted since the last build
+	private double[] deltaBoxes = new double[0];
+	private Object[] deltaItems = new Object[0];
+	private int numDelta;
+
+	/**
+	 * Create an empty tree with the default node size.
+	 */
+	PackedRTree() {
+		this(DEFAULT_NODE_SIZE);
+	}
+
+	/**
+	 * Create an empty tree with a specified node size.
+	 * @param nodeSize
+	 */
+	PackedRTree(int nodeSize) {
+		if (nodeSize < 2)
+			throw new IllegalArgumentException("Node size must be >= 2, but was " + nodeSize);
+		this.nodeSize = nodeSize;
+		build(new double[0], new Object[0], 0);
+	}
+
+	/**
+	 * Create a tree by bulk-loading a collection of items.
+	 * @param <T>
+	 * @param items the items to add
+	 * @param envelopeFunction function to compute the envelope for each item
+	 * @return a tree containing all the items
+	 */
+	static <T> PackedRTree bulkLoad(Collection<? extends T> items, Function<? super T, Envelope> envelopeFunction) {
+		int n = items.size();
+		double[] boxes = new double[n * 4];
+		Object[] array = new Object[n];
+		int i = 0;
+		for (T item : items) {
+			var envelope = envelopeFunction.apply(item);
+			int ind = i * 4;
+			boxes[ind] = envelope.getMinX();
+			boxes[ind+1] = envelope.getMinY();
+			boxes[ind+2] = envelope.getMaxX();
+			boxes[ind+3] = envelope.getMaxY();
+			array[i] = item;
+			i++;
+		}
+		var tree = new PackedRTree(DEFAULT_NODE_SIZE);
+		tree.build(boxes, array, n);
+		return tree;
+	}
+
+
+	/**
+	 * Build the packed tree from the first n items and boxes.
+	 * The arrays may be reused by the tree and should not be modified afterwards.
+	 */
+	private void build(double[] itemBoxes, Object[] itemArray, int n) {
+		this.numItems = n;
+
+		// Determine the number of nodes in each level
+		int count = n;
+		int total = n;
+		var bounds = new ArrayList<Integer>();
+		bounds.add(total);
+		while (count > 1) {
+			count = (count + nodeSize - 1) / nodeSize;
+			total += count;
+			bounds.add(total);
+		}
+		this.numNodes = total;
+		this.levelBounds = bounds.stream().mapToInt(Integer::intValue).toArray();
+		this.boxes = new double[total * 4];
+		this.indices = new int[total];
+		this.items = new Object[n];
+		this.removed = new BitSet(n);
+		this.numRemoved = 0;
+
+		if (n == 0)
+			return;
+
+		// Compute the overall bounds
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			int ind = i * 4;
+			minX = Math.min(minX, itemBoxes[ind]);
+			minY = Math.min(minY, itemBoxes[ind+1]);
+			maxX = Math.max(maxX, itemBoxes[ind+2]);
+			maxY = Math.max(maxY, itemBoxes[ind+3]);
+		}
+
+		// Sort by Hilbert value of the box centers - packing the index into the lower 31 bits
+		double width = maxX - minX;
+		double height = maxY - minY;
+		int hilbertMax = (1 << 16) - 1;
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			int ind = i * 4;
+			int x = width <= 0 ? 0 : (int)Math.floor(hilbertMax * ((itemBoxes[ind] + itemBoxes[ind+2]) / 2 - minX) / width);
+			int y = height <= 0 ? 0 : (int)Math.floor(hilbertMax * ((itemBoxes[ind+1] + itemBoxes[ind+3]) / 2 - minY) / height);
+			keys[i] = (Integer.toUnsignedLong(hilbert(x, y)) << 31) | i;
+		}
+		if (n > 100_000)
+			Arrays.parallelSort(keys);
+		else
+			Arrays.sort(keys);
+
+		// Leaves are stored in Hilbert order, with item index equal to leaf index
+		for (int i = 0; i < n; i++) {
+			int source = (int)(keys[i] & Integer.MAX_VALUE);
+			System.arraycopy(itemBoxes, source * 4, boxes, i * 4, 4);
+			items[i] = itemArray[source];
+			indices[i] = i;
+		}
+
+		// Build the upper levels
+		int pos = 0;
+		int node = n;
+		for (int level = 0; level < levelBounds.length - 1; level++) {
+			int end = levelBounds[level];
+			while (pos < end) {
+				int first = pos;
+				double nMinX = Double.POSITIVE_INFINITY, nMinY = Double.POSITIVE_INFINITY;
+				double nMaxX = Double.NEGATIVE_INFINITY, nMaxY = Double.NEGATIVE_INFINITY;
+				for (int j = 0; j < nodeSize && pos < end; j++, pos++) {
+					int ind = pos * 4;
+					nMinX = Math.min(nMinX, boxes[ind]);
+					nMinY = Math.min(nMinY, boxes[ind+1]);
+					nMaxX = Math.max(nMaxX, boxes[ind+2]);
+					nMaxY = Math.max(nMaxY, boxes[ind+3]);
+				}
+				int ind = node * 4;
+				boxes[ind] = nMinX;
+				boxes[ind+1] = nMinY;
+				boxes[ind+2] = nMaxX;
+				boxes[ind+3] = nMaxY;
+				indices[node] = first;
+				node++;
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the packed tree, merging in the delta buffer and discarding removed items.
+	 */
+	private void rebuild() {
+		int n = size();
+		double[] newBoxes = new double[n * 4];
+		Object[] newItems = new Object[n];
+		int count = 0;
+		for (int i = 0; i < numItems; i++) {
+			if (removed.get(i))
+				continue;
+			System.arraycopy(boxes, i * 4, newBoxes, count * 4, 4);
+			newItems[count] = items[i];
+			count++;
+		}
+		System.arraycopy(deltaBoxes, 0, newBoxes, count * 4, numDelta * 4);
+		System.arraycopy(deltaItems, 0, newItems, count, numDelta);
+		count += numDelta;
+		Arrays.fill(deltaItems, 0, numDelta, null);
+		numDelta = 0;
+		build(newBoxes, newItems, count);
+	}
+
+	private int maxDelta() {
+		return Math.max(MIN_DELTA_CAPACITY, numItems / 16);
+	}
+
+	/**
+	 * Get the number of items currently stored in the tree.
+	 * @return
+	 */
+	int size() {
+		return numItems - numRemoved + numDelta;
+	}
+
+	@Override
+	public void insert(Envelope itemEnv, Object item) {
+		if (numDelta >= maxDelta())
+			rebuild();
+		if (numDelta == deltaItems.length) {
+			int newLength = Math.max(16, deltaItems.length * 2);
+			deltaItems = Arrays.copyOf(deltaItems, newLength);
+			deltaBoxes = Arrays.copyOf(deltaBoxes, newLength * 4);
+		}
+		int ind = numDelta * 4;
+		deltaBoxes[ind] = itemEnv.getMinX();
+		deltaBoxes[ind+1] = itemEnv.getMinY();
+		deltaBoxes[ind+2] = itemEnv.getMaxX();
+		deltaBoxes[ind+3] = itemEnv.getMaxY();
+		deltaItems[numDelta] = item;
+		numDelta++;
+	}
+
+	@Override
+	public List<Object> query(Envelope searchEnv) {
+		var list = new ArrayList<>();
+		query(searchEnv, list::add);
+		return list;
+	}
+
+	@Override
+	public void query(Envelope searchEnv, ItemVisitor visitor) {
+		if (searchEnv.isNull())
+			return;
+		double minX = searchEnv.getMinX();
+		double minY = searchEnv.getMinY();
+		double maxX = searchEnv.getMaxX();
+		double maxY = searchEnv.getMaxY();
+
+		// Search the packed tree
+		traverse(minX, minY, maxX, maxY, i -> {
+			visitor.visitItem(items[i]);
+			return true;
+		});
+
+		// Search the delta buffer
+		for (int i = 0; i < numDelta; i++) {
+			if (intersects(deltaBoxes, i * 4, minX, minY, maxX, maxY))
+				visitor.visitItem(deltaItems[i]);
+		}
+	}
+
+	/**
+	 * Get the exclusive upper bound for node indices on the same level as the specified node.
+	 */
+	private int upperBound(int node) {
+		for (int b : levelBounds) {
+			if (node < b)
+				return b;
+		}
+		return numNodes;
+	}
+
+	private static boolean intersects(double[] array, int ind, double minX, double minY, double maxX, double maxY) {
+		return !(array[ind] > maxX || array[ind+1] > maxY || array[ind+2] < minX || array[ind+3] < minY);
+	}
+
+	/**
+	 * Remove an item from the tree, using identity for comparison.
+	 * If the item cannot be found within the specified envelope, a full search is performed -
+	 * so that items can still be removed even if their bounds have changed since insertion.
+	 */
+	@Override
+	public boolean remove(Envelope itemEnv, Object item) {
+		// Check the delta buffer first, since it is likely to contain recently-added items
+		for (int i = numDelta - 1; i >= 0; i--) {
+			if (deltaItems[i] == item) {
+				int last = numDelta - 1;
+				if (i != last) {
+					deltaItems[i] = deltaItems[last];
+					System.arraycopy(deltaBoxes, last * 4, deltaBoxes, i * 4, 4);
+				}
+				deltaItems[last] = null;
+				numDelta--;
+				return true;
+			}
+		}
+		if (numItems == 0)
+			return false;
+		int ind = -1;
+		if (itemEnv != null && !itemEnv.isNull())
+			ind = findLeaf(itemEnv, item);
+		if (ind < 0) {
+			for (int i = 0; i < numItems; i++) {
+				if (items[i] == item && !removed.get(i)) {
+					ind = i;
+					break;
+				}
+			}
+		}
+		if (ind < 0)
+			return false;
+		removed.set(ind);
+		items[ind] = null;
+		numRemoved++;
+		if (numRemoved > numItems / 2)
+			rebuild();
+		return true;
+	}
+
+	private int findLeaf(Envelope env, Object item) {
+		int[] result = new int[] {-1};
+		traverse(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), i -> {
+			if (items[i] == item) {
+				result[0] = i;
+				return false;
+			}
+			return true;
+		});
+		return result[0];
+	}
+
+	/**
+	 * Visit the indices of all leaves that have not been removed and intersect the specified bounds,
+	 * stopping early if the predicate returns false.
+	 */
+	private void traverse(double minX, double minY, double maxX, double maxY, IntPredicate leafVisitor) {
+		if (numItems == 0)
+			return;
+		// Handle a single item as a special case, because the root is then a leaf
+		if (numNodes == numItems) {
+			if (!removed.get(0) && intersects(boxes, 0, minX, minY, maxX, maxY))
+				leafVisitor.test(0);
+			return;
+		}
+		int[] stack = new int[64];
+		int stackSize = 0;
+		int node = numNodes - 1;
+		while (true) {
+			int start = indices[node];
+			int end = Math.min(start + nodeSize, upperBound(start));
+			for (int pos = start; pos < end; pos++) {
+				if (!intersects(boxes, pos * 4, minX, minY, maxX, maxY))
+					continue;
+				if (pos < numItems) {
+					if (!removed.get(pos) && !leafVisitor.test(pos))
+						return;
+				} else {
+					if (stackSize == stack.length)
+						stack = Arrays.copyOf(stack, stack.length * 2);
+					stack[stackSize++] = pos;
+				}
+			}
+			if (stackSize == 0)
+				break;
+			node = stack[--stackSize];
+		}
+	}
+
+	/**
+	 * Compute the distance along a Hilbert curve of order 16 for a pair of coordinates.
+	 * Based on the public domain algorithm at https://github.com/rawrunprotected/hilbert_curves
+	 */
+	static int hilbert(int x, int y) {
+		int a = x ^ y;
+		int b = 0xFFFF ^ a;
+		int c = 0xFFFF ^ (x | y);
+		int d = x & (y ^ 0xFFFF);
+
+		int A = a | (b >>> 1);
+		int B = (a >>> 1) ^ a;
+		int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+		int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+		a = A; b = B; c = C; d = D;
+		A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+		B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+		C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+		D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+		a = A; b = B; c = C; d = D;
+		A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+		B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+		C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+		D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+		a = A; b = B; c = C; d = D;
+		C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+		D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+		a = C ^ (C >>> 1);
+		b = D ^ (D >>> 1);
+
+		int i0 = x ^ y;
+		int i1 = b | (0xFFFF ^ (i0 | a));
+
+		i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+		i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+		i0 = (i0 | (i0 << 2)) & 0x33333333;
+		i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+		i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+		i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+		i1 = (i1 | (i1 << 2)) & 0x33333333;
+		i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+		return (i1 << 1) | i0;
+	}
+
+}
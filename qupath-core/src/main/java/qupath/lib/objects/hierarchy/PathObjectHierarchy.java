@@ -23,7 +23,9 @@
 
 package qupath.lib.objects.hierarchy;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -36,12 +38,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.common.LogTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.objects.DefaultPathObjectComparator;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathCellObject;
@@ -104,9 +110,22 @@ public final class PathObjectHierarchy implements Serializable {
 	
 	private transient PathObjectSelectionModel selectionModel = new PathObjectSelectionModel();
 	private transient List<PathObjectHierarchyListener> listeners = new ArrayList<>();
+	private transient List<PathObjectHierarchyListener> asyncListeners = new ArrayList<>();
+	
+	// Events collected while a batch is active on the current thread
+	private transient ThreadLocal<List<PathObjectHierarchyEvent>> eventBatch = new ThreadLocal<>();
+	private transient ThreadLocal<Integer> eventBatchDepth = ThreadLocal.withInitial(() -> 0);
+	
+	// Single thread used to notify all asynchronous listeners, so that events are received in order
+	private static ExecutorService asyncDispatcher;
 
 	// Cache enabling faster access of objects according to location
 	private transient PathObjectTileCache tileCache = new PathObjectTileCache(this);
+	
+	// Optional loader for objects that have not yet been added to the hierarchy
+	private transient volatile DeferredObjectLoader deferredLoader;
+	// Lock used when loading deferred objects, so that objects can be read without locking the hierarchy
+	private transient Object deferredLoadLock = new Object();
 
 	/**
 	 * Default constructor, creates an empty hierarchy.
@@ -155,8 +174,104 @@ public final class PathObjectHierarchy implements Serializable {
 	public void removeListener(PathObjectHierarchyListener listener) {
 		synchronized(listeners) {
 			listeners.remove(listener);
+			asyncListeners.remove(listener);
+		}
+	}
+	
+	/**
+	 * Add a hierarchy change listener, optionally notified asynchronously.
+	 * <p>
+	 * Asynchronous listeners are notified on a dedicated dispatcher thread, in the order in which events are fired. 
+	 * This avoids the thread that modifies the hierarchy being blocked by slow listeners, at the cost of 
+	 * the hierarchy possibly having changed further by the time the event is received.
+	 * 
+	 * @param listener the listener to add
+	 * @param async if true, notify the listener asynchronously; otherwise, notify it on the thread that fired the event
+	 * @since v0.5.1
+	 * @see #removeListener(PathObjectHierarchyListener)
+	 */
+	public void addListener(PathObjectHierarchyListener listener, boolean async) {
+		if (!async) {
+			addListener(listener);
+			return;
+		}
+		synchronized(listeners) {
+			asyncListeners.add(listener);
 		}
 	}
+	
+	/**
+	 * Start a batch of changes on the current thread.
+	 * Events fired on this thread are not passed to listeners until {@link #endEventBatch()} is called, 
+	 * at which point they are coalesced so that listeners receive at most one event per type.
+	 * <p>
+	 * Batches can be nested; events are only passed on when the outermost batch ends. 
+	 * Calls must always be paired, so {@link #runInEventBatch(Runnable)} is usually preferable.
+	 * 
+	 * @since v0.5.1
+	 * @see PathObjectHierarchyEvent#coalesce(Collection)
+	 */
+	public void beginEventBatch() {
+		int depth = eventBatchDepth.get();
+		if (depth == 0)
+			eventBatch.set(new ArrayList<>());
+		eventBatchDepth.set(depth + 1);
+	}
+	
+	/**
+	 * End a batch of changes on the current thread, and notify listeners of the coalesced events 
+	 * if this is the outermost batch.
+	 * 
+	 * @throws IllegalStateException if no batch was started on the current thread
+	 * @since v0.5.1
+	 * @see #beginEventBatch()
+	 */
+	public void endEventBatch() throws IllegalStateException {
+		int depth = eventBatchDepth.get();
+		if (depth <= 0)
+			throw new IllegalStateException("No event batch has been started on the current thread");
+		if (depth > 1) {
+			eventBatchDepth.set(depth - 1);
+			return;
+		}
+		var events = eventBatch.get();
+		eventBatch.remove();
+		eventBatchDepth.remove();
+		if (!events.isEmpty()) {
+			var merged = PathObjectHierarchyEvent.coalesce(events);
+			logger.trace("Coalesced {} hierarchy events into {}", events.size(), merged.size());
+			for (var event : merged)
+				dispatchEvent(event, false);
+		}
+	}
+	
+	/**
+	 * Run a task within an event batch, so that listeners are notified once when it completes 
+	 * rather than for every individual change.
+	 * Listeners are notified even if the task throws an exception.
+	 * 
+	 * @param runnable the task to run
+	 * @since v0.5.1
+	 * @see #beginEventBatch()
+	 * @see #endEventBatch()
+	 */
+	public void runInEventBatch(Runnable runnable) {
+		beginEventBatch();
+		try {
+			runnable.run();
+		} finally {
+			endEventBatch();
+		}
+	}
+	
+	/**
+	 * Check if an event batch is active on the current thread.
+	 * @return
+	 * @since v0.5.1
+	 */
+	public boolean isEventBatchActive() {
+		return eventBatchDepth.get() > 0;
+	}
 
 	/**
 	 * Legacy method to remove a hierarchy change listener; use {@link #removeListener(PathObjectHierarchyListener)} instead.
@@ -254,7 +369,8 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param fireChangeEvents if true, an event will be added after adding the object. Choose false if a single event should be added after making multiple changes.
 	 * @return true if the hierarchy changed as a result of this call, false otherwise
 	 */
-	public synchronized boolean insertPathObject(PathObject pathObject, boolean fireChangeEvents) {
+	public boolean insertPathObject(PathObject pathObject, boolean fireChangeEvents) {
+		loadDeferredObjects();
 		return insertPathObject(getRootObject(), pathObject, fireChangeEvents, !fireChangeEvents);
 	}
 	
@@ -265,7 +381,12 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param pathObjects the objects to add
 	 * @return true if the hierarchy changed as a result of this call, false otherwise
 	 */
-	public synchronized boolean insertPathObjects(Collection<? extends PathObject> pathObjects) {
+	public boolean insertPathObjects(Collection<? extends PathObject> pathObjects) {
+		loadDeferredObjects();
+		return insertPathObjectsImpl(pathObjects);
+	}
+	
+	private synchronized boolean insertPathObjectsImpl(Collection<? extends PathObject> pathObjects) {
 		var selectedObjects =  new ArrayList<>(pathObjects);
 		int nObjects = selectedObjects.size();
 		selectedObjects.removeIf(p -> p.isTMACore());
@@ -292,7 +413,12 @@ public final class PathObjectHierarchy implements Serializable {
 	/**
 	 * Attempt to resolve the parent-child relationships between all objects within the hierarchy.
 	 */
-	public synchronized void resolveHierarchy() {
+	public void resolveHierarchy() {
+		loadDeferredObjects();
+		resolveHierarchyImpl();
+	}
+	
+	private synchronized void resolveHierarchyImpl() {
 		List<? extends PathObject> tmaCores = tmaGrid == null ? Collections.emptyList() : tmaGrid.getTMACoreList();
 		var annotations = getAnnotationObjects();
 		if (annotations.isEmpty() && tmaCores.isEmpty()) {
@@ -332,6 +458,9 @@ public final class PathObjectHierarchy implements Serializable {
 			return false;
 		}
 		
+		// Inserting may require objects to be reassigned
+		loadDeferredObjects();
+		
 		// Get all the annotations that might be a parent of this object
 		var region = ImageRegion.createInstance(pathObject.getROI());
 		Collection<PathObject> tempSet = new HashSet<>();
@@ -399,7 +528,8 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param keepChildren if true, retain all children and descendants of the object being removed; if false, remove these also
 	 * @return
 	 */
-	public synchronized boolean removeObject(PathObject pathObject, boolean keepChildren) {
+	public boolean removeObject(PathObject pathObject, boolean keepChildren) {
+		loadDeferredObjects();
 		return removeObject(pathObject, keepChildren, true);
 	}
 	
@@ -409,7 +539,8 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param keepChildren if true, retain all children and descendants of the object being removed; if false, remove these also
 	 * @return
 	 */
-	public synchronized boolean removeObjectWithoutUpdate(PathObject pathObject, boolean keepChildren) {
+	public boolean removeObjectWithoutUpdate(PathObject pathObject, boolean keepChildren) {
+		loadDeferredObjects();
 		return removeObject(pathObject, keepChildren, false);
 	}
 	
@@ -421,6 +552,9 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 */
 	private synchronized boolean removeObject(PathObject pathObject, boolean keepChildren, boolean fireEvent) {
+		// Ensure children are all present before removing
+		loadDeferredObjects();
+		
 		// Check the object is within the hierarchy & has a valid parent (from which it can be removed)
 		PathObject pathObjectParent = pathObject.getParent();
 		if (!inHierarchy(pathObject) || pathObjectParent == null) {
@@ -456,11 +590,19 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param pathObjects the objects to remove
 	 * @param keepChildren if true, retain children and descendants of the objects being removed
 	 */
-	public synchronized void removeObjects(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
+	public void removeObjects(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
+		if (!pathObjects.isEmpty())
+			loadDeferredObjects();
+		removeObjectsImpl(pathObjects, keepChildren);
+	}
+	
+	private synchronized void removeObjectsImpl(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
 		
 		if (pathObjects.isEmpty())
 			return;
 		
+		loadDeferredObjects();
+		
 		List<PathObject> pathObjectSet = new ArrayList<>(pathObjects);
 		pathObjectSet.sort((o1, o2) -> Integer.compare(o2.getLevel(), o1.getLevel()));
 		
@@ -680,6 +822,7 @@ public final class PathObjectHierarchy implements Serializable {
 	 * Remove all objects from the hierarchy.
 	 */
 	public synchronized void clearAll() {
+		deferredLoader = null;
 		getRootObject().clearChildObjects();
 		tmaGrid = null;
 		fireHierarchyChangedEvent(getRootObject());
@@ -691,7 +834,13 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param cls
 	 * @return
 	 */
-	public synchronized Collection<PathObject> getPointObjects(Class<? extends PathObject> cls) {
+	public Collection<PathObject> getPointObjects(Class<? extends PathObject> cls) {
+		if (mayHaveDeferredObjects(cls))
+			loadDeferredObjects();
+		return getPointObjectsImpl(cls);
+	}
+	
+	private synchronized Collection<PathObject> getPointObjectsImpl(Class<? extends PathObject> cls) {
 		Collection<PathObject> pathObjects = getObjects(null, cls);
 		if (!pathObjects.isEmpty()) {
 			Iterator<PathObject> iter = pathObjects.iterator();
@@ -755,6 +904,9 @@ public final class PathObjectHierarchy implements Serializable {
 		if (cls == null || cls.isAssignableFrom(PathRootObject.class))
 			pathObjects.add(getRootObject());
 		
+		if (mayHaveDeferredObjects(cls))
+			loadDeferredObjects();
+		
 		return PathObjectTools.getDescendantObjects(getRootObject(), pathObjects, cls);
 	}
 	
@@ -785,7 +937,12 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 * @since {@link #getAllObjects(boolean)}
 	 */
-	public synchronized List<PathObject> getFlattenedObjectList(List<PathObject> list) {
+	public List<PathObject> getFlattenedObjectList(List<PathObject> list) {
+		loadDeferredObjects();
+		return getFlattenedObjectListImpl(list);
+	}
+	
+	private synchronized List<PathObject> getFlattenedObjectListImpl(List<PathObject> list) {
 		if (list == null)
 			list = new ArrayList<>(nObjects()+ 1);
 		getObjects(list, PathObject.class);
@@ -798,7 +955,12 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 * @since v0.4.0
 	 */
-	public synchronized Collection<PathObject> getAllObjects(boolean includeRoot) {
+	public Collection<PathObject> getAllObjects(boolean includeRoot) {
+		loadDeferredObjects();
+		return getAllObjectsImpl(includeRoot);
+	}
+	
+	private synchronized Collection<PathObject> getAllObjectsImpl(boolean includeRoot) {
 		var set = new LinkedHashSet<PathObject>(nObjects() + 1, 1f);
 		getObjects(set, PathObject.class);
 		if (includeRoot) {
@@ -819,6 +981,9 @@ public final class PathObjectHierarchy implements Serializable {
 	 */
 	public synchronized int nObjects() {
 		int count = PathObjectTools.countDescendants(getRootObject());
+		var loader = deferredLoader;
+		if (loader != null)
+			count += loader.countPendingObjects();
 		return count;
 	}
 	
@@ -832,6 +997,7 @@ public final class PathObjectHierarchy implements Serializable {
 			return;
 		rootObject = hierarchy.getRootObject();
 		tmaGrid = hierarchy.tmaGrid;
+		deferredLoader = hierarchy.deferredLoader;
 		fireHierarchyChangedEvent(rootObject);
 	}
 	
@@ -847,7 +1013,10 @@ public final class PathObjectHierarchy implements Serializable {
 		if (roi.isEmpty() || !roi.isArea())
 			return Collections.emptyList();
 		
-		Collection<PathObject> pathObjects = tileCache.getObjectsForRegion(cls, ImageRegion.createInstance(roi), new HashSet<>(), true);
+		var region = ImageRegion.createInstance(roi);
+		if (mayHaveDeferredObjects(cls))
+			loadDeferredObjects(region);
+		Collection<PathObject> pathObjects = tileCache.getObjectsForRegion(cls, region, new HashSet<>(), true);
 		return filterObjectsForROI(roi, pathObjects);
 	}
 	
@@ -907,6 +1076,8 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return collection containing identified objects (same as the input collection, if provided)
 	 */
 	public Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, Collection<PathObject> pathObjects) {
+		if (mayHaveDeferredObjects(cls))
+			loadDeferredObjects(region);
 		return tileCache.getObjectsForRegion(cls, region, pathObjects, true);
 	}
 	
@@ -918,9 +1089,123 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 */
 	public boolean hasObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region) {
+		if (mayHaveDeferredObjects(cls))
+			loadDeferredObjects(region);
 		return tileCache.hasObjectsForRegion(cls, region, true);
 	}
 	
+	/**
+	 * Set a loader that can supply objects on demand, rather than requiring them all to be added to the hierarchy up front.
+	 * <p>
+	 * Objects are requested from the loader whenever objects for a region are requested, and all remaining objects are 
+	 * requested whenever all objects are needed (e.g. {@link #getDetectionObjects()}) or before the hierarchy structure is 
+	 * changed by inserting or removing objects.
+	 * No hierarchy events are fired when objects are loaded, since they are considered to already be part of the hierarchy.
+	 * 
+	 * @param loader the loader, or null if no objects should be loaded on demand
+	 * @since v0.5.1
+	 */
+	public synchronized void setDeferredObjectLoader(DeferredObjectLoader loader) {
+		this.deferredLoader = loader;
+	}
+	
+	/**
+	 * Check if the hierarchy contains objects that have not yet been loaded by a {@link DeferredObjectLoader}.
+	 * @return
+	 * @since v0.5.1
+	 * @see #setDeferredObjectLoader(DeferredObjectLoader)
+	 */
+	public boolean hasDeferredObjects() {
+		var loader = deferredLoader;
+		return loader != null && loader.countPendingObjects() > 0;
+	}
+	
+	/**
+	 * Ensure that all objects have been loaded from any {@link DeferredObjectLoader}.
+	 * @since v0.5.1
+	 * @see #setDeferredObjectLoader(DeferredObjectLoader)
+	 */
+	public void loadDeferredObjects() {
+		loadDeferredObjects(null);
+	}
+	
+	private boolean mayHaveDeferredObjects(Class<? extends PathObject> cls) {
+		if (deferredLoader == null)
+			return false;
+		return cls == null || PathDetectionObject.class.isAssignableFrom(cls) || cls.isAssignableFrom(PathDetectionObject.class);
+	}
+	
+	/**
+	 * Load deferred objects for a region, or all deferred objects if the region is null.
+	 * <p>
+	 * Objects are read and decoded without holding the hierarchy lock, unless the caller already holds it,
+	 * and the lock is then only needed briefly to add them.
+	 * @param region
+	 */
+	private void loadDeferredObjects(ImageRegion region) {
+		var loader = deferredLoader;
+		if (loader == null || loader.countPendingObjects() == 0)
+			return;
+		if (Thread.holdsLock(this)) {
+			// We can't release the hierarchy lock, but mustn't wait for another thread that needs it
+			loadAndAddDeferredObjects(loader, region);
+		} else {
+			// Ensure other queries wait until the objects have been added, not only read
+			synchronized (deferredLoadLock) {
+				loadAndAddDeferredObjects(loader, region);
+			}
+		}
+	}
+	
+	private void loadAndAddDeferredObjects(DeferredObjectLoader loader, ImageRegion region) {
+		if (loader != deferredLoader)
+			return;
+		Map<UUID, List<PathObject>> loaded;
+		try {
+			loaded = region == null ? loader.loadAllObjects() : loader.loadObjects(region);
+		} catch (IOException e) {
+			logger.error("Unable to load objects: " + e.getLocalizedMessage(), e);
+			return;
+		}
+		addDeferredObjects(loader, loaded);
+	}
+	
+	private synchronized void addDeferredObjects(DeferredObjectLoader loader, Map<UUID, List<PathObject>> loaded) {
+		// Check the hierarchy hasn't been cleared or replaced while loading
+		if (loader != deferredLoader)
+			return;
+		if (loader.countPendingObjects() == 0)
+			deferredLoader = null;
+		if (loaded.isEmpty())
+			return;
+		// Find the possible parents - these shouldn't be detections
+		Map<UUID, PathObject> parents = new HashMap<>();
+		var stack = new ArrayDeque<PathObject>();
+		stack.push(getRootObject());
+		while (!stack.isEmpty()) {
+			var pathObject = stack.pop();
+			for (var child : pathObject.getChildObjectsAsArray()) {
+				if (!child.isDetection()) {
+					parents.put(child.getID(), child);
+					stack.push(child);
+				}
+			}
+		}
+		List<PathObject> added = new ArrayList<>();
+		for (var entry : loaded.entrySet()) {
+			var parent = entry.getKey() == null ? null : parents.get(entry.getKey());
+			if (parent == null) {
+				if (entry.getKey() != null)
+					logger.warn("Parent {} not found - {} object(s) will be added to the root", entry.getKey(), entry.getValue().size());
+				parent = getRootObject();
+			}
+			parent.addChildObjects(entry.getValue());
+			added.addAll(entry.getValue());
+		}
+		tileCache.addObjects(added);
+		logger.debug("Added {} deferred object(s)", added.size());
+	}
+	
 	
 	void fireObjectRemovedEvent(Object source, PathObject pathObject, PathObject previousParent) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectRemovedEvent(source, this, previousParent, pathObject);
@@ -1004,12 +1289,43 @@ public final class PathObjectHierarchy implements Serializable {
 	
 	
 	synchronized void fireEvent(PathObjectHierarchyEvent event) {
+		var batch = eventBatch.get();
+		if (batch != null) {
+			// The tile cache must always be up-to-date, since it's used when modifying the hierarchy
+			if (tileCache != null)
+				tileCache.hierarchyChanged(event);
+			batch.add(event);
+		} else
+			dispatchEvent(event, true);
+	}
+	
+	private synchronized void dispatchEvent(PathObjectHierarchyEvent event, boolean includeTileCache) {
 		synchronized(listeners) {
-			for (PathObjectHierarchyListener listener : listeners)
-				listener.hierarchyChanged(event);
+			for (PathObjectHierarchyListener listener : listeners) {
+				if (includeTileCache || listener != tileCache)
+					listener.hierarchyChanged(event);
+			}
+			if (!asyncListeners.isEmpty()) {
+				var async = new ArrayList<>(asyncListeners);
+				getAsyncDispatcher().execute(() -> {
+					for (var listener : async) {
+						try {
+							listener.hierarchyChanged(event);
+						} catch (Exception e) {
+							logger.error("Exception in hierarchy listener: " + e.getLocalizedMessage(), e);
+						}
+					}
+				});
+			}
 		}
 	}
 	
+	private static synchronized ExecutorService getAsyncDispatcher() {
+		if (asyncDispatcher == null)
+			asyncDispatcher = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("hierarchy-events", true));
+		return asyncDispatcher;
+	}
+	
 	
 	@Override
 	public String toString() {
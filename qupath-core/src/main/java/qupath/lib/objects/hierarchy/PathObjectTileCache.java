@@ -23,6 +23,7 @@
 
 package qupath.lib.objects.hierarchy;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -135,7 +136,12 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 				map.clear();
 			else
 				map.remove(limitToClass);
-			addToCache(hierarchy.getRootObject(), true, limitToClass);
+			// Collect objects first, so that each spatial index can be bulk-loaded
+			Map<Class<? extends PathObject>, List<PathObject>> objectsByClass = new HashMap<>();
+			collectObjects(hierarchy.getRootObject(), limitToClass, objectsByClass);
+			for (var entry : objectsByClass.entrySet()) {
+				map.put(entry.getKey(), PackedRTree.bulkLoad(entry.getValue(), this::getEnvelope));
+			}
 			long endTime = System.currentTimeMillis();
 			logger.debug("Cache reconstructed in " + (endTime - startTime)/1000.);
 		} finally {
@@ -186,6 +192,40 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		}
 	}
 
+	/**
+	 * Add objects (and their descendants) that have been added to the hierarchy without firing an event.
+	 * 
+	 * @param pathObjects
+	 */
+	void addObjects(Collection<? extends PathObject> pathObjects) {
+		w.lock();
+		try {
+			for (var pathObject : pathObjects)
+				addToCache(pathObject, true, null);
+		} finally {
+			w.unlock();
+		}
+	}
+
+	/**
+	 * Collect all objects with ROIs, grouped by class, optionally restricted to a single class.
+	 * 
+	 * @param pathObject
+	 * @param limitToClass
+	 * @param objectsByClass
+	 */
+	private void collectObjects(PathObject pathObject, Class<? extends PathObject> limitToClass, Map<Class<? extends PathObject>, List<PathObject>> objectsByClass) {
+		if (pathObject.hasROI()) {
+			Class<? extends PathObject> cls = pathObject.getClass();
+			if (limitToClass == null || cls == limitToClass)
+				objectsByClass.computeIfAbsent(cls, c -> new ArrayList<>()).add(pathObject);
+		}
+		if (!(pathObject instanceof TemporaryObject) && pathObject.hasChildObjects()) {
+			for (PathObject child : pathObject.getChildObjectsAsArray())
+				collectObjects(child, limitToClass, objectsByClass);
+		}
+	}
+
 	Geometry getGeometry(ROI roi) {
 		var geometry = geometryMap.get(roi);
 		if (geometry == null)
@@ -321,7 +361,7 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	
 	
 	private SpatialIndex createSpatialIndex() {
-		return new Quadtree();
+		return new PackedRTree();
 //		return new STRtree();
 	}
 	
@@ -361,18 +401,17 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		
 		SpatialIndex mapObjects = map.get(pathObject.getClass());
 		
-		// We can remove objects from a Quadtree
-		if (mapObjects instanceof Quadtree) {
+		// We can remove objects from a PackedRTree or Quadtree
+		if (mapObjects instanceof PackedRTree || mapObjects instanceof Quadtree) {
 			Envelope envelope = lastEnvelopeMap.get(pathObject);
-			envelope = MAX_ENVELOPE;
-			if (envelope != null) {
-				if (mapObjects.remove(envelope, pathObject)) {
-					logger.debug("Removed {} from cache", pathObject);
-				} else
-					logger.debug("Unable to remove {} from cache", pathObject);
-			} else {
-				logger.debug("No envelope found for {}", pathObject);					
-			}
+			// The ROI may have changed since the object was added to a Quadtree, so we need to search everywhere.
+			// PackedRTree handles this itself by falling back to a full search if necessary.
+			if (envelope == null || mapObjects instanceof Quadtree)
+				envelope = MAX_ENVELOPE;
+			if (mapObjects.remove(envelope, pathObject)) {
+				logger.debug("Removed {} from cache", pathObject);
+			} else
+				logger.debug("Unable to remove {} from cache", pathObject);
 //				System.err.println("After: " + mapObjects.query(MAX_ENVELOPE).size());
 			// Remove the children
 			if (removeChildren) {
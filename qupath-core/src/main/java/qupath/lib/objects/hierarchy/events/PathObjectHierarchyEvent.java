@@ -26,7 +26,11 @@ package qupath.lib.objects.hierarchy.events;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
@@ -144,6 +148,78 @@ public class PathObjectHierarchyEvent {
 		return new PathObjectHierarchyEvent(source, hierarchy, type, null, new ArrayList<>(pathObjects), isChanging);
 	}
 
+	/**
+	 * Coalesce a sequence of events, so that they can be passed to listeners in a single batch.
+	 * <p>
+	 * Object change events are merged so that there is one event per type, containing the union of all 
+	 * changed objects. Structure change events are merged into a single event; if this combines more than 
+	 * one event, it has the type {@link HierarchyEventType#OTHER_STRUCTURE_CHANGE} and its base object is 
+	 * the common parent if there is one, or the root object otherwise.
+	 * The merged event is only flagged as changing if all the events being merged are flagged as changing.
+	 * <p>
+	 * Structure change events are always returned first, since listeners may need to update themselves 
+	 * before handling other changes.
+	 * 
+	 * @param events the events to merge, in the order in which they were fired
+	 * @return a list of merged events
+	 * @since v0.5.1
+	 */
+	public static List<PathObjectHierarchyEvent> coalesce(Collection<? extends PathObjectHierarchyEvent> events) {
+		if (events.size() <= 1)
+			return new ArrayList<>(events);
+		
+		List<PathObjectHierarchyEvent> structureEvents = new ArrayList<>();
+		Map<HierarchyEventType, List<PathObjectHierarchyEvent>> changeEvents = new LinkedHashMap<>();
+		for (var event : events) {
+			if (event.isStructureChangeEvent())
+				structureEvents.add(event);
+			else
+				changeEvents.computeIfAbsent(event.getEventType(), t -> new ArrayList<>()).add(event);
+		}
+		
+		List<PathObjectHierarchyEvent> merged = new ArrayList<>();
+		if (structureEvents.size() == 1)
+			merged.add(structureEvents.get(0));
+		else if (!structureEvents.isEmpty()) {
+			var first = structureEvents.get(0);
+			PathObject parent = first.parentObject;
+			for (var event : structureEvents) {
+				if (event.parentObject != parent) {
+					parent = first.hierarchy.getRootObject();
+					break;
+				}
+			}
+			merged.add(new PathObjectHierarchyEvent(first.source, first.hierarchy, HierarchyEventType.OTHER_STRUCTURE_CHANGE, 
+					parent, unionOfChangedObjects(structureEvents), allChanging(structureEvents)));
+		}
+		for (var entry : changeEvents.entrySet()) {
+			var list = entry.getValue();
+			if (list.size() == 1)
+				merged.add(list.get(0));
+			else {
+				var first = list.get(0);
+				merged.add(new PathObjectHierarchyEvent(first.source, first.hierarchy, entry.getKey(), 
+						null, unionOfChangedObjects(list), allChanging(list)));
+			}
+		}
+		return merged;
+	}
+	
+	private static List<PathObject> unionOfChangedObjects(Collection<PathObjectHierarchyEvent> events) {
+		Set<PathObject> set = new LinkedHashSet<>();
+		for (var event : events)
+			set.addAll(event.getChangedObjects());
+		return new ArrayList<>(set);
+	}
+	
+	private static boolean allChanging(Collection<PathObjectHierarchyEvent> events) {
+		for (var event : events) {
+			if (!event.isChanging())
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Returns true if changes are still being made, so more events will be fired.
 	 * This enables listeners to postpone expensive operations that could be called often until 
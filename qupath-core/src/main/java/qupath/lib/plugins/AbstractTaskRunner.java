@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -47,6 +47,11 @@ public abstract class AbstractTaskRunner implements TaskRunner {
 
 	private static int counter = 0;
 
+	/**
+	 * Optional pool shared by all task runners on the current thread, used to apply a global parallelism budget.
+	 */
+	private static final ThreadLocal<ExecutorService> sharedPool = new ThreadLocal<>();
+
 	private ExecutorService pool;
 	private ExecutorCompletionService<Runnable> service;
 
@@ -91,13 +96,17 @@ public abstract class AbstractTaskRunner implements TaskRunner {
 		// Reset cancelled status
 		tasksCancelled = false;
 		
-		// Ensure we have a pool
-		if (pool == null || pool.isShutdown()) {
+		// Ensure we have a pool - using the shared pool if one has been set for this thread
+		ExecutorService shared = sharedPool.get();
+		if (shared != null) {
+			logger.debug("Using shared threadpool");
+			service = new ExecutorCompletionService<>(shared);
+		} else if (pool == null || pool.isShutdown()) {
 			int n = numThreads <= 0 ? ThreadTools.getParallelism() : numThreads;
 			pool = Executors.newFixedThreadPool(n, ThreadTools.createThreadFactory("task-runner-"+(++counter)+"-", false));
 			logger.debug("New threadpool created with {} threads", n);
 			service = new ExecutorCompletionService<>(pool);
-		} else if (service == null)
+		} else
 			service = new ExecutorCompletionService<>(pool);
 		
 		monitor = makeProgressMonitor();
@@ -113,7 +122,9 @@ public abstract class AbstractTaskRunner implements TaskRunner {
 		}
 		// TODO: See if this needs to be shutdown here, or there's a better way..?
 		// In any case, it was inhibiting application shutdown just letting it be...
-		pool.shutdown();
+		// The shared pool is shutdown by its owner
+		if (shared == null)
+			pool.shutdown();
 		awaitCompletion();
 		
 		// Post-process any PathTasks
@@ -166,10 +177,26 @@ public abstract class AbstractTaskRunner implements TaskRunner {
 				pool.shutdownNow();
 			monitor.pluginCompleted("Completed with error " + e.getMessage());
 		} finally {
+			// Ensure nothing is left running after an error (this is important if the pool is shared)
+			for (var future : pendingTasks.keySet())
+				future.cancel(true);
 			pendingTasks.clear();
 		}
 	}
 
+	/**
+	 * Set a pool that should be used by all task runners on the current thread, instead of each creating its own pool.
+	 * This is used to share a fixed number of threads between multiple images that are processed concurrently.
+	 * @param pool the pool to use, or null to remove any shared pool for the current thread
+	 * @see ProjectTaskScheduler
+	 */
+	static void setSharedPool(ExecutorService pool) {
+		if (pool == null)
+			sharedPool.remove();
+		else
+			sharedPool.set(pool);
+	}
+
 	
 	/**
 	 * Perform post-processing after a task has complete.
@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -23,11 +23,16 @@
 
 package qupath.lib.plugins;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import qupath.lib.geom.ImmutableDimension;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ServerTools;
@@ -35,6 +40,7 @@ import qupath.lib.objects.PathObject;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RectangleROI;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.interfaces.ROI;
 
@@ -51,8 +57,30 @@ import qupath.lib.roi.interfaces.ROI;
  */
 public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetectionPlugin<T> {
 	
+	private static final Logger logger = LoggerFactory.getLogger(AbstractTileableDetectionPlugin.class);
+	
 	private static int PREFERRED_TILE_SIZE = 2048;
 	private static int MAX_TILE_SIZE = 3072;
+	
+	/**
+	 * Tiles are not split if this would make them smaller than this size (excluding overlaps)
+	 */
+	private static int MIN_TILE_SIZE = 512;
+	
+	/**
+	 * Maximum width or height of the low-resolution image used to estimate the cost of processing each tile
+	 */
+	private static int COST_MAP_SIZE = 1024;
+	
+	/**
+	 * Tiles are split if their estimated cost is greater than the median cost multiplied by this factor
+	 */
+	private static double SPLIT_COST_FACTOR = 2.0;
+	
+	/**
+	 * Split tiles that are expected to take much longer than others, and process the most expensive tiles first.
+	 */
+	private static final boolean ADAPTIVE_TILES = System.getProperty("qupath.detection.adaptiveTiles", "true").equalsIgnoreCase("true");
 
 	/**
 	 * Get the preferred pixel size that would be used for the specified ImageData and ParameterList.
@@ -124,12 +152,17 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 			parentROI = ROIs.createRectangleROI(0, 0, imageData.getServer().getWidth(), imageData.getServer().getHeight(), ImagePlane.getDefaultPlane());
 
 		// Make tiles
-		Collection<? extends ROI> pathROIs = RoiTools.computeTiledROIs(parentROI, sizePreferred, sizeMax, false, getTileOverlap(imageData, params));
+		int overlap = getTileOverlap(imageData, params);
+		Collection<? extends ROI> pathROIs = RoiTools.computeTiledROIs(parentROI, sizePreferred, sizeMax, false, overlap);
 		
 		// No tasks to complete
 		if (pathROIs.isEmpty())
 			return;
 		
+		// Split expensive tiles & order so that the most expensive are processed first
+		if (ADAPTIVE_TILES && pathROIs.size() > 1)
+			pathROIs = splitAndSortTiles(imageData, parentROI, pathROIs, overlap, (int)(MIN_TILE_SIZE * downsampleFactor));
+		
 //		// Exactly one task to complete
 //		if (pathROIs.size() == 1 && pathROIs.iterator().next() == parentObject.getROI()) {
 //			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), getParameterList(imageData), imageData, parentObject));
@@ -156,6 +189,89 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 	}
 	
 	
+	/**
+	 * Split any tiles that are expected to be much more expensive to process than the others, based upon
+	 * a low-resolution estimate of the cost, and sort tiles in descending order of cost.
+	 * <p>
+	 * Processing the most expensive tiles first (and making them smaller) helps avoid a long tail at the end,
+	 * in which only a few threads are still busy.
+	 * 
+	 * @param imageData
+	 * @param parentROI
+	 * @param pathROIs
+	 * @param overlap
+	 * @param minSize
+	 * @return
+	 */
+	private List<ROI> splitAndSortTiles(ImageData<T> imageData, ROI parentROI, Collection<? extends ROI> pathROIs, int overlap, int minSize) {
+		TileCostMap costMap = null;
+		try {
+			costMap = TileCostMap.create(imageData.getServer(), parentROI, COST_MAP_SIZE);
+		} catch (IOException e) {
+			logger.warn("Unable to estimate tile costs: {}", e.getLocalizedMessage());
+			logger.debug(e.getLocalizedMessage(), e);
+		}
+		if (costMap == null)
+			return new ArrayList<>(pathROIs);
+		
+		var costs = pathROIs.stream().mapToDouble(costMap::getCost).sorted().toArray();
+		double maxCost = costs[costs.length/2] * SPLIT_COST_FACTOR;
+		
+		List<TileCost> tiles = new ArrayList<>();
+		for (var roi : pathROIs)
+			splitTile(costMap, roi, overlap, minSize, maxCost, tiles);
+		tiles.sort(Comparator.comparingDouble((TileCost t) -> t.cost).reversed());
+		if (tiles.size() > pathROIs.size())
+			logger.debug("Split {} tiles into {} based on estimated cost", pathROIs.size(), tiles.size());
+		return tiles.stream().map(t -> t.roi).toList();
+	}
+	
+	/**
+	 * Recursively split a tile into quadrants until its estimated cost is no more than maxCost, 
+	 * or it cannot be split further.
+	 */
+	private static void splitTile(TileCostMap costMap, ROI roi, int overlap, int minSize, double maxCost, List<TileCost> output) {
+		double cost = costMap.getCost(roi);
+		// Get the tile bounds, excluding the overlap
+		double x = roi.getBoundsX() + overlap;
+		double y = roi.getBoundsY() + overlap;
+		double w = roi.getBoundsWidth() - overlap * 2;
+		double h = roi.getBoundsHeight() - overlap * 2;
+		if (cost <= maxCost || w < minSize * 2 || h < minSize * 2) {
+			output.add(new TileCost(roi, cost));
+			return;
+		}
+		var plane = roi.getImagePlane();
+		double w2 = Math.floor(w / 2);
+		double h2 = Math.floor(h / 2);
+		for (int yi = 0; yi < 2; yi++) {
+			for (int xi = 0; xi < 2; xi++) {
+				double xx = x + xi * w2;
+				double yy = y + yi * h2;
+				double ww = xi == 0 ? w2 : w - w2;
+				double hh = yi == 0 ? h2 : h - h2;
+				// Add the overlap back, then make sure we are still inside the original tile
+				var quadrant = ROIs.createRectangleROI(xx - overlap, yy - overlap, ww + overlap * 2, hh + overlap * 2, plane);
+				var splitROI = roi instanceof RectangleROI ? quadrant : RoiTools.intersection(roi, quadrant);
+				if (splitROI != null && !splitROI.isEmpty())
+					splitTile(costMap, splitROI, overlap, minSize, maxCost, output);
+			}
+		}
+	}
+	
+	private static class TileCost {
+		
+		private final ROI roi;
+		private final double cost;
+		
+		private TileCost(ROI roi, double cost) {
+			this.roi = roi;
+			this.cost = cost;
+		}
+		
+	}
+	
+	
 	static class ParallelDetectionTileManager {
 		
 		private PathObject parent;
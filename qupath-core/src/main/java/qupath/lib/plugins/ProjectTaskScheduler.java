@@ -0,0 +1,411 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Run a task for multiple images within a project concurrently.
+ * <p>
+ * All {@link AbstractTaskRunner} instances that are used while processing an image submit their tasks
+ * to a single pool owned by the scheduler, so that the total number of threads used for {@link PathTask}s
+ * is limited by a global parallelism budget - regardless of how many images are being processed at the same time,
+ * or how many threads each task runner requested.
+ * <p>
+ * Images are started in order. Before each image is started, an estimate of the memory it requires is reserved
+ * from a memory budget; if there is not enough memory available, the image waits until earlier images have completed.
+ * An image that requires more than the entire budget is processed alone.
+ *
+ * @since v0.5.1
+ */
+public class ProjectTaskScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProjectTaskScheduler.class);
+
+	private static final long MB = 1024L * 1024L;
+
+	/**
+	 * Memory reserved for every image, in addition to any estimate based upon the image's data file.
+	 */
+	private static final long BASE_IMAGE_MEMORY = 256L * MB;
+
+	/**
+	 * Approximate ratio between the memory needed for an object hierarchy, and the size of the data file on disk.
+	 */
+	private static final int DATA_FILE_EXPANSION = 10;
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private final int parallelism;
+	private final int maxConcurrentImages;
+	private final long memoryBudget;
+	private final ToLongFunction<ProjectImageEntry<?>> memoryEstimator;
+
+	private ProjectTaskScheduler(Builder builder) {
+		this.parallelism = builder.parallelism <= 0 ? ThreadTools.getParallelism() : builder.parallelism;
+		this.maxConcurrentImages = builder.maxConcurrentImages <= 0 ? Math.max(1, parallelism / 8) : builder.maxConcurrentImages;
+		this.memoryBudget = builder.memoryBudget <= 0 ? getDefaultMemoryBudget() : builder.memoryBudget;
+		this.memoryEstimator = builder.memoryEstimator == null ? ProjectTaskScheduler::estimateMemory : builder.memoryEstimator;
+	}
+
+	/**
+	 * A task that should be applied to a single image.
+	 * @param <T> generic parameter for the project entry (usually BufferedImage)
+	 */
+	@FunctionalInterface
+	public static interface ImageTask<T> {
+
+		/**
+		 * Process a single image.
+		 * @param entry the entry for the image
+		 * @param batchIndex the index of the entry within the list of all entries being processed
+		 * @throws Exception
+		 */
+		void run(ProjectImageEntry<T> entry, int batchIndex) throws Exception;
+
+	}
+
+	/**
+	 * Create a new builder to customize a scheduler.
+	 * @return
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Get the global parallelism, i.e. the maximum number of {@link PathTask}s that may run at the same time.
+	 * @return
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Get the maximum number of images that may be processed at the same time.
+	 * @return
+	 */
+	public int getMaxConcurrentImages() {
+		return maxConcurrentImages;
+	}
+
+	/**
+	 * Get the memory budget, in bytes, shared by all images being processed at the same time.
+	 * @return
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Apply a task to all the specified entries, blocking until all have been processed.
+	 * <p>
+	 * Exceptions thrown by the task are logged and recorded in the summary; they do not prevent
+	 * other images from being processed.
+	 *
+	 * @param <T>
+	 * @param entries the entries to process
+	 * @param task the task to apply to each entry
+	 * @return a summary of the processing
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public <T> Summary run(List<? extends ProjectImageEntry<T>> entries, ImageTask<T> task) throws InterruptedException {
+		int n = entries.size();
+		int nImageThreads = Math.max(1, Math.min(maxConcurrentImages, n));
+		int id = counter.incrementAndGet();
+		// Threads for PathTasks
+		var taskPool = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), ThreadTools.createThreadFactory("project-tasks-" + id + "-", false));
+		// Threads for images - these are mostly waiting for PathTasks to complete
+		ExecutorService imagePool = Executors.newFixedThreadPool(nImageThreads, ThreadTools.createThreadFactory("project-images-" + id + "-", false));
+
+		var imageSlots = new Semaphore(nImageThreads);
+		int maxMemoryPermits = (int)Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget / MB));
+		var memoryPermits = new Semaphore(maxMemoryPermits, true);
+
+		var progress = new Progress(n, taskPool);
+		logger.info("Processing {} images (max {} concurrent, {} threads, {} MB memory budget)",
+				n, nImageThreads, parallelism, memoryBudget / MB);
+		try {
+			for (int i = 0; i < n; i++) {
+				var entry = entries.get(i);
+				int batchIndex = i;
+				int permits = (int)Math.max(1, Math.min(maxMemoryPermits, memoryEstimator.applyAsLong(entry) / MB));
+				imageSlots.acquire();
+				if (!memoryPermits.tryAcquire(permits)) {
+					logger.debug("Waiting for {} MB memory for {}", permits, entry.getImageName());
+					try {
+						memoryPermits.acquire(permits);
+					} catch (InterruptedException e) {
+						imageSlots.release();
+						throw e;
+					}
+				}
+				imagePool.execute(() -> {
+					long startTime = System.currentTimeMillis();
+					AbstractTaskRunner.setSharedPool(taskPool);
+					try {
+						logger.info("Running for {} ({}/{})", entry.getImageName(), batchIndex+1, n);
+						task.run(entry, batchIndex);
+						progress.imageCompleted(entry, System.currentTimeMillis() - startTime, null);
+					} catch (Throwable e) {
+						logger.error("Error processing " + entry.getImageName(), e);
+						progress.imageCompleted(entry, System.currentTimeMillis() - startTime, e);
+					} finally {
+						AbstractTaskRunner.setSharedPool(null);
+						memoryPermits.release(permits);
+						imageSlots.release();
+					}
+				});
+			}
+			imagePool.shutdown();
+			imagePool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			// All tasks should be complete, but we need to wait for the completed task count to be updated
+			taskPool.shutdown();
+			taskPool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			imagePool.shutdownNow();
+			throw e;
+		} finally {
+			imagePool.shutdown();
+			taskPool.shutdown();
+		}
+		var summary = progress.createSummary();
+		logger.info("{}", summary);
+		return summary;
+	}
+
+
+	/**
+	 * Default memory estimate for an entry, based upon the size of its saved data.
+	 * @param entry
+	 * @return
+	 */
+	static long estimateMemory(ProjectImageEntry<?> entry) {
+		long dataSize = 0L;
+		Path path = entry.getEntryPath();
+		if (path != null && Files.isDirectory(path)) {
+			try (var stream = Files.walk(path)) {
+				dataSize = stream.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+			} catch (IOException e) {
+				logger.debug("Unable to estimate data size for {}: {}", entry.getImageName(), e.getLocalizedMessage());
+			}
+		}
+		return BASE_IMAGE_MEMORY + dataSize * DATA_FILE_EXPANSION;
+	}
+
+	private static long getDefaultMemoryBudget() {
+		long maxMemory = Runtime.getRuntime().maxMemory();
+		if (maxMemory == Long.MAX_VALUE)
+			maxMemory = 64L * 1024L * MB;
+		// The tile cache will usually need much of the rest
+		return maxMemory / 2;
+	}
+
+
+	/**
+	 * Keep track of progress while processing images.
+	 */
+	private static class Progress {
+
+		private final long startTime = System.currentTimeMillis();
+		private final int nImages;
+		private final ThreadPoolExecutor taskPool;
+
+		private int nCompleted = 0;
+		private final List<String> failed = new ArrayList<>();
+
+		private Progress(int nImages, ThreadPoolExecutor taskPool) {
+			this.nImages = nImages;
+			this.taskPool = taskPool;
+		}
+
+		private synchronized void imageCompleted(ProjectImageEntry<?> entry, long millis, Throwable error) {
+			nCompleted++;
+			if (error != null)
+				failed.add(entry.getImageName());
+			double elapsedMinutes = (System.currentTimeMillis() - startTime) / 60_000.0;
+			logger.info(String.format("Completed %s in %.2f seconds (%d/%d, %d failed) - %.2f images/min, %.1f tasks/s",
+					entry.getImageName(), millis / 1000.0, nCompleted, nImages, failed.size(),
+					nCompleted / elapsedMinutes, taskPool.getCompletedTaskCount() / (elapsedMinutes * 60)));
+		}
+
+		private synchronized Summary createSummary() {
+			return new Summary(nImages, nCompleted, failed, taskPool.getCompletedTaskCount(), System.currentTimeMillis() - startTime);
+		}
+
+	}
+
+
+	/**
+	 * Summary of the images processed by a {@link ProjectTaskScheduler}.
+	 */
+	public static class Summary {
+
+		private final int nImages;
+		private final int nCompleted;
+		private final List<String> failed;
+		private final long nTasks;
+		private final long millis;
+
+		private Summary(int nImages, int nCompleted, List<String> failed, long nTasks, long millis) {
+			this.nImages = nImages;
+			this.nCompleted = nCompleted;
+			this.failed = Collections.unmodifiableList(new ArrayList<>(failed));
+			this.nTasks = nTasks;
+			this.millis = millis;
+		}
+
+		/**
+		 * Get the number of images that were submitted for processing.
+		 * @return
+		 */
+		public int getImageCount() {
+			return nImages;
+		}
+
+		/**
+		 * Get the number of images that finished processing, including any that failed.
+		 * @return
+		 */
+		public int getCompletedCount() {
+			return nCompleted;
+		}
+
+		/**
+		 * Get the names of any images for which the task threw an exception.
+		 * @return
+		 */
+		public List<String> getFailedImageNames() {
+			return failed;
+		}
+
+		/**
+		 * Get the total number of tasks run by all task runners while processing the images.
+		 * @return
+		 */
+		public long getTaskCount() {
+			return nTasks;
+		}
+
+		/**
+		 * Get the total processing time, in milliseconds.
+		 * @return
+		 */
+		public long getElapsedMillis() {
+			return millis;
+		}
+
+		@Override
+		public String toString() {
+			double seconds = millis / 1000.0;
+			return String.format("Processed %d/%d images (%d failed) in %.2f seconds - %.2f images/min, %.1f tasks/s",
+					nCompleted, nImages, failed.size(), seconds,
+					seconds == 0 ? 0 : nCompleted * 60 / seconds, seconds == 0 ? 0 : nTasks / seconds);
+		}
+
+	}
+
+
+	/**
+	 * Builder for a {@link ProjectTaskScheduler}.
+	 */
+	public static class Builder {
+
+		private int parallelism = -1;
+		private int maxConcurrentImages = -1;
+		private long memoryBudget = -1;
+		private ToLongFunction<ProjectImageEntry<?>> memoryEstimator;
+
+		private Builder() {}
+
+		/**
+		 * Set the maximum number of tasks that may run at the same time, across all images.
+		 * @param parallelism the number of threads, or -1 to use {@link ThreadTools#getParallelism()}
+		 * @return this builder
+		 */
+		public Builder parallelism(int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of images that may be processed at the same time.
+		 * @param maxConcurrentImages the maximum number of images, or -1 to choose automatically based upon the parallelism
+		 * @return this builder
+		 */
+		public Builder maxConcurrentImages(int maxConcurrentImages) {
+			this.maxConcurrentImages = maxConcurrentImages;
+			return this;
+		}
+
+		/**
+		 * Set the memory budget shared by all images being processed at the same time.
+		 * @param bytes the budget in bytes, or -1 to use half the maximum memory available to the JVM
+		 * @return this builder
+		 */
+		public Builder memoryBudget(long bytes) {
+			this.memoryBudget = bytes;
+			return this;
+		}
+
+		/**
+		 * Set the function used to estimate how much memory is needed to process an image.
+		 * By default, this is based upon the size of the data saved for the entry.
+		 * @param estimator function to return an estimate in bytes
+		 * @return this builder
+		 */
+		public Builder memoryEstimator(ToLongFunction<ProjectImageEntry<?>> estimator) {
+			this.memoryEstimator = estimator;
+			return this;
+		}
+
+		/**
+		 * Build the scheduler.
+		 * @return
+		 */
+		public ProjectTaskScheduler build() {
+			return new ProjectTaskScheduler(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Estimate of the relative cost of processing different parts of an image, computed from a low-resolution version.
+ * <p>
+ * The cost is based upon the density of edges, since regions containing many cells tend to have much more local
+ * structure than background. Each pixel also has a small base cost, so that large empty regions are not treated as free.
+ * <p>
+ * The estimate is independent of the image type, and is only intended to be used to compare different regions of the same image.
+ */
+class TileCostMap {
+
+	/**
+	 * Cost of every pixel, in addition to the cost derived from edges.
+	 */
+	private static final double BASE_COST = 0.01;
+
+	private final double x;
+	private final double y;
+	private final double downsample;
+	private final int width;
+	private final int height;
+
+	/**
+	 * Summed area table of costs, with an extra row and column of zeros.
+	 */
+	private final double[] integral;
+
+	private TileCostMap(double x, double y, double downsample, int width, int height, double[] integral) {
+		this.x = x;
+		this.y = y;
+		this.downsample = downsample;
+		this.width = width;
+		this.height = height;
+		this.integral = integral;
+	}
+
+	/**
+	 * Create a cost map for the bounding box of the specified ROI.
+	 * @param server server providing pixels
+	 * @param roi the region of interest
+	 * @param maxDimension maximum width or height of the low-resolution image to read
+	 * @return the cost map, or null if the pixels could not be used to estimate costs
+	 * @throws IOException if the pixels could not be read
+	 */
+	static TileCostMap create(ImageServer<?> server, ROI roi, int maxDimension) throws IOException {
+		double downsample = Math.max(1.0, Math.max(roi.getBoundsWidth(), roi.getBoundsHeight()) / maxDimension);
+		var request = RegionRequest.createInstance(server.getPath(), downsample,
+				(int)roi.getBoundsX(), (int)roi.getBoundsY(), (int)Math.ceil(roi.getBoundsWidth()), (int)Math.ceil(roi.getBoundsHeight()),
+				roi.getImagePlane());
+		var pixels = server.readRegion(request);
+		if (!(pixels instanceof BufferedImage img))
+			return null;
+		return create(img, request.getX(), request.getY(), downsample);
+	}
+
+	/**
+	 * Create a cost map from a low-resolution image.
+	 * @param img the low-resolution image
+	 * @param x x-coordinate of the image origin, in the full-resolution image
+	 * @param y y-coordinate of the image origin, in the full-resolution image
+	 * @param downsample downsample factor of the image
+	 * @return
+	 */
+	static TileCostMap create(BufferedImage img, double x, double y, double downsample) {
+		var raster = img.getRaster();
+		int w = raster.getWidth();
+		int h = raster.getHeight();
+		if (w == 0 || h == 0)
+			return null;
+
+		// Compute the mean of all channels, after normalizing each by its maximum
+		int nBands = raster.getNumBands();
+		float[] gray = new float[w * h];
+		float[] samples = null;
+		for (int b = 0; b < nBands; b++) {
+			samples = raster.getSamples(0, 0, w, h, b, samples);
+			float max = 0;
+			for (float v : samples) {
+				if (v > max)
+					max = v;
+			}
+			if (max <= 0 || !Float.isFinite(max))
+				continue;
+			for (int i = 0; i < samples.length; i++)
+				gray[i] += samples[i] / max / nBands;
+		}
+
+		// Cost is the base cost plus the sum of absolute differences with the neighbors to the right and below
+		double[] integral = new double[(w + 1) * (h + 1)];
+		for (int yy = 0; yy < h; yy++) {
+			double rowSum = 0;
+			for (int xx = 0; xx < w; xx++) {
+				int ind = yy * w + xx;
+				double val = gray[ind];
+				double cost = BASE_COST;
+				if (xx < w - 1)
+					cost += Math.abs(gray[ind + 1] - val);
+				if (yy < h - 1)
+					cost += Math.abs(gray[ind + w] - val);
+				if (Double.isFinite(cost))
+					rowSum += cost;
+				integral[(yy + 1) * (w + 1) + xx + 1] = integral[yy * (w + 1) + xx + 1] + rowSum;
+			}
+		}
+		return new TileCostMap(x, y, downsample, w, h, integral);
+	}
+
+	/**
+	 * Get the estimated cost of processing the bounding box of a ROI.
+	 * @param roi
+	 * @return
+	 */
+	double getCost(ROI roi) {
+		return getCost(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight());
+	}
+
+	/**
+	 * Get the estimated cost of processing a rectangle, defined in full-resolution pixel coordinates.
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	double getCost(double x, double y, double width, double height) {
+		int x1 = clip((int)Math.floor((x - this.x) / downsample), this.width);
+		int y1 = clip((int)Math.floor((y - this.y) / downsample), this.height);
+		int x2 = clip((int)Math.ceil((x + width - this.x) / downsample), this.width);
+		int y2 = clip((int)Math.ceil((y + height - this.y) / downsample), this.height);
+		int stride = this.width + 1;
+		return integral[y2 * stride + x2] - integral[y1 * stride + x2] - integral[y2 * stride + x1] + integral[y1 * stride + x1];
+	}
+
+	/**
+	 * Get the estimated cost of processing the entire region covered by the map.
+	 * @return
+	 */
+	double getTotalCost() {
+		return integral[integral.length - 1];
+	}
+
+	private static int clip(int v, int max) {
+		return v < 0 ? 0 : Math.min(v, max);
+	}
+
+}
@@ -66,6 +66,7 @@ import qupath.lib.images.servers.ServerTools;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.io.GsonTools;
 import qupath.lib.io.PathIO;
+import qupath.lib.io.SpatialObjectStore;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.classes.PathClass;
@@ -87,6 +88,13 @@ class DefaultProject implements Project<BufferedImage> {
 	
 	private static Logger logger = LoggerFactory.getLogger(DefaultProject.class);
 	
+	/**
+	 * If true, detections are also written to a spatially-indexed object store alongside each data file, 
+	 * and loaded on demand when the image data is read.
+	 */
+	private static final boolean DEFER_DETECTIONS = 
+			System.getProperty("qupath.project.deferDetections", "false").equalsIgnoreCase("true");
+	
 	private final String LATEST_VERSION = GeneralTools.getVersion();
 	
 	private String version = null;
@@ -665,6 +673,34 @@ class DefaultProject implements Project<BufferedImage> {
 			return Paths.get(getEntryPath().toString(), "data.qpdata.bkp");
 		}
 		
+		/**
+		 * Get the path to the spatially-indexed store of detections, used to load detections on demand
+		 * @return
+		 */
+		private Path getObjectStorePath() {
+			return Paths.get(getEntryPath().toString(), "data.qpobjects");
+		}
+		
+		/**
+		 * Try to open the object store for the current data file.
+		 * @param pathData
+		 * @return the object store, or null if it is unavailable or out of date
+		 */
+		private SpatialObjectStore openObjectStore(Path pathData) {
+			var pathStore = getObjectStorePath();
+			if (!DEFER_DETECTIONS || !Files.exists(pathStore))
+				return null;
+			try {
+				var store = SpatialObjectStore.open(pathStore);
+				if (store.getTimestamp() == Files.getLastModifiedTime(pathData).toMillis())
+					return store;
+				logger.debug("Object store {} is out of date and will not be used", pathStore);
+			} catch (IOException e) {
+				logger.warn("Unable to open object store: " + e.getLocalizedMessage(), e);
+			}
+			return null;
+		}
+		
 		private Path getDataSummaryPath() {
 			return Paths.get(getEntryPath().toString(), "summary.json");
 		}
@@ -692,8 +728,12 @@ class DefaultProject implements Project<BufferedImage> {
 				return null;
 			ImageData<BufferedImage> imageData = null;
 			if (Files.exists(path)) {
+				var store = openObjectStore(path);
 				try (var stream = Files.newInputStream(path)) {
-					imageData = PathIO.readImageData(stream, null, server, BufferedImage.class);
+					if (store == null)
+						imageData = PathIO.readImageData(stream, null, server, BufferedImage.class);
+					else
+						imageData = PathIO.readImageData(stream, server, BufferedImage.class, store);
 					imageData.setLastSavedPath(path.toString(), true);
 				} catch (Exception e) {
 					logger.error("Error reading image data from " + path, e);
@@ -749,7 +789,11 @@ class DefaultProject implements Project<BufferedImage> {
 			long timestamp = 0L;
 			try (var stream = Files.newOutputStream(pathData)) {
 				logger.debug("Saving image data to {}", pathData);
-				PathIO.writeImageData(stream, imageData);
+				// When detections are deferred, we need detections in chunks so that they can be skipped when reading
+				if (DEFER_DETECTIONS)
+					PathIO.writeImageData(stream, imageData, Math.max(PathIO.getRequestedDataFileVersion(), 5));
+				else
+					PathIO.writeImageData(stream, imageData);
 				imageData.setLastSavedPath(pathData.toString(), true);
 				timestamp = Files.getLastModifiedTime(pathData).toMillis();
 				// Delete backup file if it exists
@@ -764,6 +808,18 @@ class DefaultProject implements Project<BufferedImage> {
 				throw e;
 			}
 			
+			// Write the object store, if needed - or remove any that is now out of date
+			var pathStore = getObjectStorePath();
+			if (DEFER_DETECTIONS) {
+				try {
+					SpatialObjectStore.write(pathStore, imageData.getHierarchy(), SpatialObjectStore.DEFAULT_TILE_SIZE, timestamp);
+				} catch (IOException e) {
+					logger.warn("Unable to write object store: " + e.getLocalizedMessage(), e);
+					Files.deleteIfExists(pathStore);
+				}
+			} else
+				Files.deleteIfExists(pathStore);
+			
 			// If successful, write the server (including metadata)
 			var server = imageData.getServer();
 			var currentServerBuilder = server.getBuilder();
@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestDelaunayTools {
+
+	private static List<PathObject> createDetections(int n, double size, long seed) {
+		var random = new Random(seed);
+		var list = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++) {
+			double x = random.nextDouble() * size;
+			double y = random.nextDouble() * size;
+			list.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x-1, y-1, 2, 2, ImagePlane.getDefaultPlane())));
+		}
+		return list;
+	}
+
+	@Test
+	public void test_neighborGraph() {
+		var pathObjects = createDetections(3000, 1000, 100);
+		var subdivision = DelaunayTools.newBuilder(pathObjects).build();
+		var graph = DelaunayTools.newBuilder(pathObjects).buildNeighborGraph();
+		var graphTiled = DelaunayTools.newBuilder(pathObjects).pointsPerTile(100).buildNeighborGraph();
+
+		var factory = GeometryTools.getDefaultFactory();
+		var hull = factory.createMultiPointFromCoords(
+				pathObjects.stream().map(p -> new Coordinate(p.getROI().getCentroidX(), p.getROI().getCentroidY())).toArray(Coordinate[]::new))
+				.convexHull()
+				.getBoundary();
+
+		assertEquals(pathObjects.size(), graph.size());
+		assertEquals(pathObjects.size(), graphTiled.size());
+		int nDifferent = 0;
+		for (var pathObject : pathObjects) {
+			var expected = new HashSet<>(subdivision.getNeighbors(pathObject));
+			// A single tile should give the same triangulation
+			assertEquals(expected, new HashSet<>(graph.getNeighbors(pathObject)));
+			// Multiple tiles should give the same triangulation, except for very thin triangles along the convex hull 
+			// (which the subdivision can omit because of its finite frame)
+			var roi = pathObject.getROI();
+			var actual = new HashSet<>(graphTiled.getNeighbors(pathObject));
+			if (!expected.equals(actual)) {
+				nDifferent++;
+				var different = new HashSet<>(expected);
+				different.addAll(actual);
+				different.removeIf(p -> expected.contains(p) && actual.contains(p));
+				different.add(pathObject);
+				for (var p : different)
+					assertTrue(hull.isWithinDistance(factory.createPoint(new Coordinate(p.getROI().getCentroidX(), p.getROI().getCentroidY())), 1.0));
+			}
+
+			// Neighbors should be sorted by distance
+			int ind = graphTiled.getIndex(pathObject);
+			assertTrue(graphTiled.getNeighborCount(ind) > 0);
+			double lastDistance = 0;
+			for (int k = 0; k < graphTiled.getNeighborCount(ind); k++) {
+				var neighborROI = graphTiled.getPathObjects().get(graphTiled.getNeighborIndex(ind, k)).getROI();
+				double distance = Math.hypot(roi.getCentroidX() - neighborROI.getCentroidX(), roi.getCentroidY() - neighborROI.getCentroidY());
+				// Allow for centroids being rounded before triangulation
+				assertTrue(distance >= lastDistance - 0.02);
+				lastDistance = distance;
+			}
+		}
+		assertTrue(nDifferent < pathObjects.size() / 100);
+	}
+
+	@Test
+	public void test_neighborGraphGrid() {
+		// Points on a regular grid are co-circular, so tiles could choose different diagonals
+		int nx = 60, ny = 50;
+		double spacing = 10;
+		var pathObjects = new ArrayList<PathObject>();
+		for (int y = 0; y < ny; y++) {
+			for (int x = 0; x < nx; x++)
+				pathObjects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x*spacing-1, y*spacing-1, 2, 2, ImagePlane.getDefaultPlane())));
+		}
+		var graphTiled = DelaunayTools.newBuilder(pathObjects).pointsPerTile(100).buildNeighborGraph();
+
+		for (int y = 0; y < ny; y++) {
+			for (int x = 0; x < nx; x++) {
+				var pathObject = pathObjects.get(y * nx + x);
+				var neighbors = new HashSet<>(graphTiled.getNeighbors(pathObject));
+				// Neighbors along the grid should always be included
+				if (x + 1 < nx)
+					assertTrue(neighbors.contains(pathObjects.get(y * nx + x + 1)));
+				if (y + 1 < ny)
+					assertTrue(neighbors.contains(pathObjects.get((y + 1) * nx + x)));
+				// Each square should have exactly one diagonal, so that edges don't cross
+				if (x + 1 < nx && y + 1 < ny) {
+					boolean diagonal1 = neighbors.contains(pathObjects.get((y + 1) * nx + x + 1));
+					boolean diagonal2 = graphTiled.getNeighbors(pathObjects.get(y * nx + x + 1)).contains(pathObjects.get((y + 1) * nx + x));
+					assertTrue(diagonal1 != diagonal2);
+				}
+				assertTrue(neighbors.size() <= 8);
+			}
+		}
+	}
+
+	@Test
+	public void test_clusters() {
+		var pathObjects = createDetections(2000, 1000, 200);
+		var predicate = DelaunayTools.centroidDistancePredicate(20, true);
+		var clusters = DelaunayTools.newBuilder(pathObjects).build().getClusters(predicate);
+		var clustersTiled = DelaunayTools.newBuilder(pathObjects).pointsPerTile(100).buildNeighborGraph().getClusters(predicate);
+		assertEquals(clusters.size(), clustersTiled.size());
+		assertEquals(pathObjects.size(), clustersTiled.stream().mapToInt(c -> c.size()).sum());
+		assertEquals(
+				clusters.stream().map(c -> new HashSet<>(c)).collect(Collectors.toSet()),
+				clustersTiled.stream().map(c -> new HashSet<>(c)).collect(Collectors.toSet()));
+	}
+
+}
@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2020 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -30,14 +30,25 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
 import javax.imageio.ImageIO;
 
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
 import org.locationtech.jts.operation.valid.IsValidOp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -148,6 +159,98 @@ public class TestContourTracing {
 			} else
 				logger.debug("Validity check skipped ({} points)", geom.getNumPoints());
 		}
+		
+		// Check all labels traced in a single pass
+		var rois = ContourTracing.createROIs(img.getRaster(), 0, null, 0, max);
+		for (var entry : rois.entrySet())
+			assertEquals(hist[entry.getKey().intValue()], entry.getValue().getArea(), 0.000001);
+		assertEquals(Arrays.stream(hist).filter(h -> h > 0).count(), rois.size());
+	}
+	
+	
+	@ParameterizedTest
+	@ValueSource(ints = {1, 2})
+	void testMergeTiles(int downsample, @TempDir Path dir) throws Exception {
+		var img = createLabelImage(200, 150, 5);
+		
+		// Write tiles, encoding the full resolution region in the file name
+		int tileSize = 64;
+		var paths = new ArrayList<Path>();
+		for (int y = 0; y < img.getHeight(); y += tileSize) {
+			for (int x = 0; x < img.getWidth(); x += tileSize) {
+				int w = Math.min(tileSize, img.getWidth() - x);
+				int h = Math.min(tileSize, img.getHeight() - y);
+				var path = dir.resolve(String.format("labels [x=%d,y=%d,w=%d,h=%d].png", 
+						x*downsample, y*downsample, w*downsample, h*downsample));
+				ImageIO.write(img.getSubimage(x, y, w, h), "png", path.toFile());
+				paths.add(path);
+			}
+		}
+		
+		// Create the expected geometries from the pixels directly, without any contour tracing
+		var expected = createPixelGeometries(img, downsample);
+		var merged = ContourTracing.labelsToAnnotations(paths, true);
+		
+		assertEquals(expected.size(), merged.size());
+		for (var pathObject : merged) {
+			var geom = pathObject.getROI().getGeometry();
+			assertNull(new IsValidOp(geom).getValidationError());
+			var geomExpected = expected.get(pathObject.getName());
+			assertNotNull(geomExpected);
+			assertEquals(geomExpected.getArea(), geom.getArea(), 0.000001);
+			assertTrue(geomExpected.equalsTopo(geom));
+		}
+	}
+	
+	/**
+	 * Create a geometry for each label by taking the union of rectangles representing runs of pixels in each row.
+	 * Geometries are scaled by the downsample, and are mapped to the label as a string.
+	 */
+	private static Map<String, Geometry> createPixelGeometries(BufferedImage img, int downsample) {
+		var factory = new GeometryFactory();
+		var raster = img.getRaster();
+		var rectangles = new HashMap<String, List<Geometry>>();
+		for (int y = 0; y < img.getHeight(); y++) {
+			int x = 0;
+			while (x < img.getWidth()) {
+				int label = raster.getSample(x, y, 0);
+				int x2 = x + 1;
+				while (x2 < img.getWidth() && raster.getSample(x2, y, 0) == label)
+					x2++;
+				if (label > 0) {
+					var envelope = new Envelope(x * downsample, x2 * downsample, y * downsample, (y + 1) * downsample);
+					rectangles.computeIfAbsent(Integer.toString(label), k -> new ArrayList<>()).add(factory.toGeometry(envelope));
+				}
+				x = x2;
+			}
+		}
+		var geometries = new HashMap<String, Geometry>();
+		for (var entry : rectangles.entrySet())
+			geometries.put(entry.getKey(), UnaryUnionOp.union(entry.getValue()));
+		return geometries;
+	}
+	
+	/**
+	 * Create a labeled image containing blobs, which can have holes and touch diagonally.
+	 */
+	private static BufferedImage createLabelImage(int width, int height, int nLabels) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		var random = new Random(100);
+		for (int i = 0; i < 40; i++) {
+			int label = 1 + random.nextInt(nLabels);
+			double cx = random.nextDouble() * width;
+			double cy = random.nextDouble() * height;
+			double r = 5 + random.nextDouble() * 30;
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					double d = Math.hypot(x - cx, y - cy) + random.nextDouble() * 4;
+					if (d < r && (d > r / 3 || label % 2 == 0))
+						raster.setSample(x, y, 0, label);
+				}
+			}
+		}
+		return img;
 	}
 	
 
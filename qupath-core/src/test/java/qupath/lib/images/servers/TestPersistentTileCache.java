@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.color.ColorModelFactory;
+
+@SuppressWarnings("javadoc")
+public class TestPersistentTileCache {
+
+	@Test
+	public void test_persistence(@TempDir Path dir) throws IOException {
+		var rgb = createRGB(64, 32, 0x102030);
+		var cm = ColorModelFactory.createColorModel(PixelType.FLOAT32, ImageChannel.getDefaultChannelList(2));
+		var raster = cm.createCompatibleWritableRaster(20, 10);
+		for (int b = 0; b < 2; b++) {
+			for (int y = 0; y < 10; y++) {
+				for (int x = 0; x < 20; x++)
+					raster.setSample(x, y, b, x * 0.5 + y - b);
+			}
+		}
+		var floats = new BufferedImage(cm, raster, false, null);
+
+		try (var cache = PersistentTileCache.open(dir, 16L * 1024 * 1024)) {
+			assertNull(cache.readTile("rgb", cm));
+			assertTrue(cache.writeTile("rgb", rgb));
+			assertFalse(cache.writeTile("rgb", rgb));
+			assertTrue(cache.writeTile("floats", floats));
+			assertEquals(2, cache.size());
+			assertSamePixels(rgb, cache.readTile("rgb", cm));
+			// Chunk files should only grow as tiles are added
+			long totalBytes = 0;
+			try (var stream = Files.list(dir)) {
+				for (var path : stream.toList())
+					totalBytes += Files.size(path);
+			}
+			assertTrue(totalBytes < 64 * 1024);
+		}
+
+		// Tiles should still be available after reopening
+		try (var cache = PersistentTileCache.open(dir, 16L * 1024 * 1024)) {
+			assertEquals(2, cache.size());
+			var rgb2 = cache.readTile("rgb", cm);
+			assertEquals(BufferedImage.TYPE_INT_RGB, rgb2.getType());
+			assertSamePixels(rgb, rgb2);
+			assertSamePixels(floats, cache.readTile("floats", cm));
+			cache.clear();
+			assertEquals(0, cache.size());
+		}
+
+		try (var cache = PersistentTileCache.open(dir, 16L * 1024 * 1024)) {
+			assertEquals(0, cache.size());
+		}
+	}
+
+	@Test
+	public void test_eviction(@TempDir Path dir) throws IOException {
+		// Each tile requires a little over 64 KB, so 3 tiles fit in each chunk
+		int chunkSize = 200 * 1024;
+		try (var cache = PersistentTileCache.open(dir, chunkSize * 3L, chunkSize)) {
+			for (int i = 0; i < 30; i++) {
+				assertTrue(cache.writeTile("tile-" + i, createRGB(128, 128, i)));
+				// Keep reading the first tile, so that its chunk is retained
+				assertNotNull(cache.readTile("tile-0", null));
+			}
+			assertTrue(cache.size() <= 9);
+			assertTrue(cache.containsKey("tile-0"));
+			assertTrue(cache.containsKey("tile-29"));
+			assertFalse(cache.containsKey("tile-10"));
+			assertEquals(29, cache.readTile("tile-29", null).getRGB(0, 0) & 0xffffff);
+		}
+	}
+
+	@Test
+	public void test_concurrent(@TempDir Path dir) throws Exception {
+		// Use small chunks, so that they are recycled while other threads are reading and writing
+		int chunkSize = 300 * 1024;
+		try (var cache = PersistentTileCache.open(dir, chunkSize * 4L, chunkSize)) {
+			var pool = Executors.newFixedThreadPool(8);
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+				for (int t = 0; t < 8; t++) {
+					int seed = t;
+					futures.add(pool.submit(() -> {
+						var rand = new Random(seed);
+						for (int i = 0; i < 1000; i++) {
+							int k = rand.nextInt(200);
+							var img = cache.readTile("tile-" + k, null);
+							if (img == null)
+								cache.writeTile("tile-" + k, createRGB(64, 64, k * 1000));
+							else
+								assertSamePixels(createRGB(64, 64, k * 1000), img);
+						}
+					}));
+				}
+				for (var future : futures)
+					future.get();
+			} finally {
+				pool.shutdown();
+			}
+			assertTrue(cache.size() > 0);
+		}
+	}
+
+	private static BufferedImage createRGB(int width, int height, int rgb) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, rgb + x);
+		}
+		return img;
+	}
+
+	private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		var r1 = expected.getRaster();
+		var r2 = actual.getRaster();
+		assertEquals(r1.getNumBands(), r2.getNumBands());
+		for (int b = 0; b < r1.getNumBands(); b++) {
+			assertArrayEquals(
+					r1.getSamples(0, 0, r1.getWidth(), r1.getHeight(), b, (double[])null),
+					r2.getSamples(0, 0, r2.getWidth(), r2.getHeight(), b, (double[])null));
+		}
+	}
+
+}
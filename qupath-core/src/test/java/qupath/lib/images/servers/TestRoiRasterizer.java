@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RoiTools;
+import qupath.lib.roi.interfaces.ROI;
+
+@SuppressWarnings("javadoc")
+public class TestRoiRasterizer {
+
+	private static final ImagePlane PLANE = ImagePlane.getDefaultPlane();
+
+	@Test
+	public void test_rectangle() {
+		// Pixel-aligned rectangles should match exactly
+		var roi = ROIs.createRectangleROI(10, 20, 30, 40, PLANE);
+		var request = RegionRequest.createInstance("", 1.0, 0, 0, 100, 100);
+		var img = fill(new RoiRasterizer(0), roi, request, BufferedImage.TYPE_BYTE_GRAY);
+		int count = 0;
+		for (int y = 0; y < 100; y++) {
+			for (int x = 0; x < 100; x++) {
+				boolean inside = x >= 10 && x < 40 && y >= 20 && y < 60;
+				assertEquals(inside ? 255 : 0, img.getRaster().getSample(x, y, 0));
+				if (inside)
+					count++;
+			}
+		}
+		assertEquals(30*40, count);
+	}
+
+	@ParameterizedTest
+	@ValueSource(doubles = {1.0, 2.0, 3.5})
+	public void test_compareGraphics(double downsample) {
+		// Tiles should match filling each ROI into a single image with the same Graphics2D settings as LabeledImageServer,
+		// both for thin strokes and for wide strokes (which use a different Java2D pipeline)
+		int size = (int)Math.ceil(320 / downsample);
+		int tileSize = 32;
+		for (float lineThickness : new float[] {1f, 3f}) {
+			var rasterizer = new RoiRasterizer(1_000_000);
+			var random = new Random(100);
+			for (var roi : createRois(random)) {
+				var imgExpected = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+				var g2d = createGraphics(imgExpected, RegionRequest.createInstance("", downsample, 0, 0, 320, 320), lineThickness);
+				g2d.fill(roi.getShape());
+				g2d.dispose();
+
+				long nFilled = 0;
+				for (int ty = 0; ty < size; ty += tileSize) {
+					for (int tx = 0; tx < size; tx += tileSize) {
+						int tw = Math.min(tileSize, size - tx);
+						int th = Math.min(tileSize, size - ty);
+						var request = RegionRequest.createInstance("", downsample,
+								(int)Math.round(tx * downsample), (int)Math.round(ty * downsample),
+								(int)Math.round(tw * downsample), (int)Math.round(th * downsample));
+						var img = new BufferedImage(tw, th, BufferedImage.TYPE_BYTE_GRAY);
+						g2d = createGraphics(img, request, lineThickness);
+						rasterizer.fill(roi, request, g2d, img.getRaster(), 255);
+						g2d.dispose();
+						for (int y = 0; y < th; y++) {
+							for (int x = 0; x < tw; x++) {
+								int expected = imgExpected.getRaster().getSample(tx + x, ty + y, 0);
+								assertEquals(expected, img.getRaster().getSample(x, y, 0),
+										"Different pixel at (" + (tx + x) + ", " + (ty + y) + ") for " + roi);
+								if (expected != 0)
+									nFilled++;
+							}
+						}
+					}
+				}
+				assertTrue(nFilled > 0);
+			}
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(doubles = {1.0, 2.0, 4.0})
+	public void test_tiles(double downsample) {
+		// Tiles using cached spans should match a single image filled at the same resolution
+		var roi = RoiTools.subtract(
+				ROIs.createEllipseROI(13.7, 21.2, 900.5, 700.3, PLANE),
+				ROIs.createEllipseROI(200.2, 250.1, 300.3, 150.8, PLANE));
+		int size = (int)Math.ceil(1000 / downsample);
+		int value = 0x123456;
+		var imgExpected = fill(new RoiRasterizer(0), roi,
+				RegionRequest.createInstance("", downsample, 0, 0, 1000, 1000), BufferedImage.TYPE_INT_RGB);
+
+		var rasterizer = new RoiRasterizer(1_000_000);
+		int tileSize = 100;
+		for (int ty = 0; ty < size; ty += tileSize) {
+			for (int tx = 0; tx < size; tx += tileSize) {
+				int tw = Math.min(tileSize, size - tx);
+				int th = Math.min(tileSize, size - ty);
+				var request = RegionRequest.createInstance("", downsample,
+						(int)Math.round(tx * downsample), (int)Math.round(ty * downsample),
+						(int)Math.round(tw * downsample), (int)Math.round(th * downsample));
+				var img = new BufferedImage(tw, th, BufferedImage.TYPE_INT_RGB);
+				var g2d = createGraphics(img, request, 1f);
+				rasterizer.fill(roi, request, g2d, img.getRaster(), value);
+				g2d.dispose();
+				for (int y = 0; y < th; y++) {
+					for (int x = 0; x < tw; x++)
+						assertEquals(imgExpected.getRGB(tx + x, ty + y), img.getRGB(x, y));
+				}
+			}
+		}
+		assertEquals(0xFF000000 | value, imgExpected.getRGB(size/2, size/8));
+		assertEquals(0xFF000000, imgExpected.getRGB((int)(350/downsample), (int)(325/downsample)));
+	}
+
+	private static List<ROI> createRois(Random random) {
+		var polygon = createRandomPolygon(random, 8);
+		var star = createStarPolygon(random, 24);
+		return List.of(
+				ROIs.createRectangleROI(10.3, 20.7, 150.2, 90.6, PLANE),
+				ROIs.createEllipseROI(50.5, 60.1, 223.3, 187.1, PLANE),
+				polygon,
+				star,
+				RoiTools.subtract(ROIs.createRectangleROI(5, 5, 300, 300, PLANE), star),
+				RoiTools.union(star, ROIs.createEllipseROI(200, 200, 100, 80, PLANE))
+				);
+	}
+
+	/**
+	 * Create a polygon with random vertices, which may be self-intersecting.
+	 */
+	private static ROI createRandomPolygon(Random random, int n) {
+		var x = new double[n];
+		var y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = random.nextDouble() * 300;
+			y[i] = random.nextDouble() * 300;
+		}
+		return ROIs.createPolygonROI(x, y, PLANE);
+	}
+
+	/**
+	 * Create a simple polygon with vertices at random distances from a center.
+	 */
+	private static ROI createStarPolygon(Random random, int n) {
+		var x = new double[n];
+		var y = new double[n];
+		for (int i = 0; i < n; i++) {
+			double theta = 2 * Math.PI * i / n;
+			double r = 40 + random.nextDouble() * 100;
+			x[i] = 150 + r * Math.cos(theta);
+			y[i] = 150 + r * Math.sin(theta);
+		}
+		return ROIs.createPolygonROI(x, y, PLANE);
+	}
+
+	private static BufferedImage fill(RoiRasterizer rasterizer, ROI roi, RegionRequest request, int type) {
+		int width = (int)Math.ceil(request.getWidth() / request.getDownsample());
+		int height = (int)Math.ceil(request.getHeight() / request.getDownsample());
+		var img = new BufferedImage(width, height, type);
+		var g2d = createGraphics(img, request, 1f);
+		rasterizer.fill(roi, request, g2d, img.getRaster(), type == BufferedImage.TYPE_BYTE_GRAY ? 255 : 0x123456);
+		g2d.dispose();
+		return img;
+	}
+
+	/**
+	 * Create a Graphics2D object in the same way as LabeledImageServer.
+	 */
+	private static Graphics2D createGraphics(BufferedImage img, RegionRequest request, float lineThickness) {
+		var g2d = img.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+		g2d.setClip(0, 0, img.getWidth(), img.getHeight());
+		g2d.scale(1.0/request.getDownsample(), 1.0/request.getDownsample());
+		g2d.translate(-request.getX(), -request.getY());
+		g2d.setColor(img.getType() == BufferedImage.TYPE_BYTE_GRAY ? Color.WHITE : new Color(0x123456));
+		g2d.setStroke(new BasicStroke((float)(lineThickness * request.getDownsample())));
+		return g2d;
+	}
+
+}
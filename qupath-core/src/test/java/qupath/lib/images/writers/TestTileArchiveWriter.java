@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.writers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+
+@SuppressWarnings("javadoc")
+public class TestTileArchiveWriter {
+
+	@Test
+	public void test_shards(@TempDir Path dir) throws IOException {
+		try (var writer = new TileArchiveWriter(dir, "test", 2)) {
+			for (int i = 0; i < 5; i++)
+				writer.writeTile("image-" + i + ".png", new byte[] {(byte)i}, "labels/label-" + i + ".png", new byte[] {(byte)i, 1});
+			// Only complete shards should be listed in the manifest
+			assertTrue(writer.isComplete("image-3.png"));
+			assertFalse(writer.isComplete("image-4.png"));
+		}
+		var manifest = Files.readAllLines(dir.resolve("test-tiles-manifest.tsv"), StandardCharsets.UTF_8);
+		assertEquals(5, manifest.size());
+		assertEquals("test-tiles-00002.zip\timage-4.png\tlabels/label-4.png", manifest.get(4));
+		try (var zip = new ZipFile(dir.resolve("test-tiles-00001.zip").toFile())) {
+			assertEquals(4, zip.size());
+			try (var stream = zip.getInputStream(zip.getEntry("labels/label-3.png"))) {
+				assertArrayEquals(new byte[] {3, 1}, stream.readAllBytes());
+			}
+		}
+
+		// Incomplete shards should be removed, and existing shards not overwritten
+		Files.write(dir.resolve("test-tiles-00003.zip.part"), new byte[10]);
+		try (var writer = new TileArchiveWriter(dir, "test", 2)) {
+			assertTrue(writer.isComplete("image-4.png"));
+			assertFalse(writer.isComplete("image-5.png"));
+			writer.writeTile("image-5.png", new byte[] {5}, null, null);
+		}
+		assertFalse(Files.exists(dir.resolve("test-tiles-00003.zip.part")));
+		assertTrue(Files.exists(dir.resolve("test-tiles-00003.zip")));
+		manifest = Files.readAllLines(dir.resolve("test-tiles-manifest.tsv"), StandardCharsets.UTF_8);
+		assertEquals("test-tiles-00003.zip\timage-5.png\t", manifest.get(5));
+	}
+
+	@Test
+	public void test_resumeExport(@TempDir Path dir) throws IOException {
+		var img = new BufferedImage(256, 192, BufferedImage.TYPE_BYTE_GRAY);
+		var random = new Random(100);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.getRaster().setSample(x, y, 0, random.nextInt(256));
+		}
+		var server = new WrappedBufferedImageServer("test", img);
+		var imageData = new ImageData<>(server);
+		var exporter = new TileExporter(imageData)
+				.tileSize(64)
+				.imageExtension(".png")
+				.imageSubDir("images")
+				.shardSize(5);
+		exporter.writeTiles(dir.toString());
+
+		var pathManifest = dir.resolve("test-tiles-manifest.tsv");
+		var manifest = Files.readAllLines(pathManifest, StandardCharsets.UTF_8);
+		assertEquals(12, manifest.size());
+		assertTrue(Files.exists(dir.resolve("test-tiles-00002.zip")));
+
+		// Simulate a failure after writing the first shard
+		Files.write(pathManifest, manifest.subList(0, 5), StandardCharsets.UTF_8);
+		Files.delete(dir.resolve("test-tiles-00001.zip"));
+		Files.delete(dir.resolve("test-tiles-00002.zip"));
+		exporter.writeTiles(dir.toString());
+
+		manifest = Files.readAllLines(pathManifest, StandardCharsets.UTF_8);
+		assertEquals(12, manifest.size());
+		var names = new HashSet<String>();
+		for (var line : manifest) {
+			var fields = line.split("\t");
+			assertTrue(names.add(fields[1]));
+			assertTrue(fields[1].startsWith("images/"));
+			checkTile(dir.resolve(fields[0]), fields[1], img);
+		}
+		// Remaining tiles should be written to new shards
+		assertTrue(manifest.get(5).startsWith("test-tiles-00001.zip\t"));
+		assertTrue(manifest.get(11).startsWith("test-tiles-00002.zip\t"));
+	}
+
+	private static void checkTile(Path pathShard, String name, BufferedImage img) throws IOException {
+		try (var zip = new ZipFile(pathShard.toFile())) {
+			BufferedImage tile;
+			try (var stream = zip.getInputStream(zip.getEntry(name))) {
+				tile = ImageIO.read(stream);
+			}
+			// Names contain the region, e.g. "images/test [x=64,y=0,w=64,h=64].png"
+			var region = name.substring(name.indexOf('[') + 1, name.indexOf(']'));
+			int x = 0, y = 0;
+			for (var s : region.split(",")) {
+				if (s.startsWith("x="))
+					x = Integer.parseInt(s.substring(2));
+				else if (s.startsWith("y="))
+					y = Integer.parseInt(s.substring(2));
+			}
+			assertEquals(64, tile.getWidth());
+			assertEquals(64, tile.getHeight());
+			for (int yy = 0; yy < 64; yy++) {
+				for (int xx = 0; xx < 64; xx++)
+					assertEquals(img.getRaster().getSample(x + xx, y + yy, 0), tile.getRaster().getSample(xx, yy, 0));
+			}
+		}
+	}
+
+}
@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2022 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -24,10 +24,12 @@
 package qupath.lib.io;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -36,17 +38,27 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import org.junit.jupiter.api.Test;
 
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.measurements.MeasurementList.MeasurementListType;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.ROIs;
 
 @SuppressWarnings("javadoc")
@@ -137,6 +149,96 @@ public class TestPathIO {
 
 	}
 	
+	@Test
+	public void test_chunkedDetections() throws IOException {
+		
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getPlane(0, 1);
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, plane), PathClass.fromString("Tumor"));
+		annotation.setName("Annotation");
+		
+		var pathClass = PathClass.fromString("Positive: Tumor");
+		int n = 250;
+		for (int i = 0; i < n; i++) {
+			double x = (i % 20) * 50;
+			double y = (i / 20) * 50;
+			PathObject pathObject;
+			if (i % 3 == 0) {
+				pathObject = PathObjects.createCellObject(
+						ROIs.createEllipseROI(x, y, 40, 40, plane),
+						ROIs.createPolygonROI(new double[] {x+10, x+20, x+15}, new double[] {y+10, y+10, y+20}, plane),
+						pathClass, null);
+			} else if (i % 3 == 1) {
+				pathObject = PathObjects.createTileObject(ROIs.createRectangleROI(x, y, 50, 50, plane));
+				// Include a nested detection, with a value that can't be stored exactly as a float
+				var nested = PathObjects.createDetectionObject(ROIs.createPointsROI(x+1, y+1, plane), null,
+						MeasurementListFactory.createMeasurementList(1, MeasurementListType.DOUBLE));
+				nested.getMeasurementList().put("Nested", i + 0.1);
+				pathObject.addChildObject(nested);
+			} else {
+				pathObject = PathObjects.createDetectionObject(ROIs.createLineROI(x, y, x+10, y+20, plane), pathClass);
+				// Include a name too long for DataOutputStream.writeUTF
+				pathObject.setName(i == 2 ? "Detection ".repeat(10_000) : "Detection " + i);
+				pathObject.setColor(i);
+				pathObject.getMetadata().put("Key", "Value " + i);
+			}
+			try (var ml = pathObject.getMeasurementList()) {
+				ml.put("Index", i);
+				if (i % 2 == 0)
+					ml.put("Even", i / 2.0);
+			}
+			annotation.addChildObject(pathObject);
+		}
+		hierarchy.addObject(annotation);
+		
+		var imageData = new ImageData<>(
+				new WrappedBufferedImageServer("Anything", new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB)),
+				hierarchy);
+
+		int version = PathIO.getRequestedDataFileVersion();
+		try {
+			PathIO.setRequestedDataFileVersion(5);
+			var bytesOut = new ByteArrayOutputStream();
+			PathIO.writeImageData(bytesOut, imageData);
+			
+			var hierarchy2 = PathIO.readHierarchy(new ByteArrayInputStream(bytesOut.toByteArray()));
+			assertNotNull(hierarchy2);
+			assertEquals(hierarchy.nObjects(), hierarchy2.nObjects());
+			assertEquals(hierarchy.getDetectionObjects().size(), hierarchy2.getDetectionObjects().size());
+			
+			var expected = sortedById(hierarchy.getFlattenedObjectList(null));
+			var actual = sortedById(hierarchy2.getFlattenedObjectList(null));
+			for (int i = 0; i < expected.size(); i++) {
+				var p1 = expected.get(i);
+				var p2 = actual.get(i);
+				assertEquals(p1.getID(), p2.getID());
+				assertEquals(p1.getClass(), p2.getClass());
+				assertEquals(p1.getName(), p2.getName());
+				assertEquals(p1.getColor(), p2.getColor());
+				assertEquals(p1.getPathClass(), p2.getPathClass());
+				assertEquals(p1.hasMetadata(), p2.hasMetadata());
+				if (p1.hasMetadata())
+					assertEquals(p1.getMetadata(), p2.getMetadata());
+				assertEquals(p1.getMeasurementList().asMap(), p2.getMeasurementList().asMap());
+				if (p1.hasROI())
+					assertEquals(p1.getROI().getGeometry(), p2.getROI().getGeometry());
+				if (p1.getParent() == null)
+					assertEquals(null, p2.getParent());
+				else
+					assertEquals(p1.getParent().getID(), p2.getParent().getID());
+			}
+		} finally {
+			PathIO.setRequestedDataFileVersion(version);
+		}
+	}
+	
+	private static List<PathObject> sortedById(Collection<PathObject> pathObjects) {
+		return pathObjects.stream()
+				.filter(p -> !p.isRootObject())
+				.sorted(Comparator.comparing(PathObject::getID))
+				.collect(Collectors.toList());
+	}
+	
 	private static <T> T serializeDeserializeStandard(T obj) {
 		try {
 			var bytesOut = new ByteArrayOutputStream();
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestSpatialObjectStore {
+
+	@Test
+	public void test_deferredLoading() throws IOException {
+
+		var plane = ImagePlane.getDefaultPlane();
+		var hierarchy = new PathObjectHierarchy();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 5000, 10000, plane));
+		hierarchy.addObject(annotation);
+
+		// Create detections on a grid, with half inside the annotation
+		for (int y = 0; y < 10000; y += 100) {
+			for (int x = 0; x < 10000; x += 100) {
+				var detection = PathObjects.createDetectionObject(ROIs.createEllipseROI(x, y, 50, 50, plane));
+				detection.getMeasurementList().put("x", x);
+				if (x < 5000)
+					annotation.addChildObject(detection);
+				else
+					hierarchy.getRootObject().addChildObject(detection);
+			}
+		}
+		hierarchy.fireHierarchyChangedEvent(this);
+		int nObjects = hierarchy.nObjects();
+
+		var imageData = new ImageData<>(
+				new WrappedBufferedImageServer("Anything", new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB)),
+				hierarchy);
+
+		var bytesOut = new ByteArrayOutputStream();
+		PathIO.writeImageData(bytesOut, imageData, 5);
+
+		var path = Files.createTempFile("objects", ".qpobjects");
+		try {
+			assertTrue(SpatialObjectStore.write(path, hierarchy, 1024, 123L));
+
+			var store = SpatialObjectStore.open(path);
+			assertEquals(123L, store.getTimestamp());
+			assertEquals(hierarchy.getDetectionObjects().size(), store.countPendingObjects());
+
+			var imageData2 = PathIO.readImageData(new ByteArrayInputStream(bytesOut.toByteArray()),
+					imageData.getServer(), BufferedImage.class, store);
+			var hierarchy2 = imageData2.getHierarchy();
+			assertTrue(hierarchy2.hasDeferredObjects());
+			assertEquals(nObjects, hierarchy2.nObjects());
+
+			// Requesting a region should load only the objects we need
+			var region = ImageRegion.createInstance(4000, 4000, 2000, 2000, 0, 0);
+			var expected = ids(hierarchy.getObjectsForRegion(PathObject.class, region, null));
+			var actual = ids(hierarchy2.getObjectsForRegion(PathObject.class, region, null));
+			assertEquals(expected, actual);
+			assertTrue(store.countPendingObjects() > 0);
+			assertTrue(store.countPendingObjects() < hierarchy.getDetectionObjects().size());
+			assertEquals(nObjects, hierarchy2.nObjects());
+
+			// Parents should be restored
+			for (var pathObject : hierarchy2.getObjectsForRegion(PathObject.class, region, null)) {
+				if (pathObject.isDetection()) {
+					if (pathObject.getROI().getCentroidX() < 5000)
+						assertEquals(annotation.getID(), pathObject.getParent().getID());
+					else
+						assertTrue(pathObject.getParent().isRootObject());
+				}
+			}
+
+			// Writing should include objects that haven't been loaded yet
+			var bytesOut2 = new ByteArrayOutputStream();
+			PathIO.writeImageData(bytesOut2, imageData2);
+			var hierarchy3 = PathIO.readHierarchy(new ByteArrayInputStream(bytesOut2.toByteArray()));
+			assertEquals(nObjects, hierarchy3.nObjects());
+			assertEquals(ids(hierarchy.getDetectionObjects()), ids(hierarchy3.getDetectionObjects()));
+
+			// Requesting all detections should load everything
+			assertEquals(ids(hierarchy.getDetectionObjects()), ids(hierarchy2.getDetectionObjects()));
+			assertEquals(0, store.countPendingObjects());
+			assertFalse(hierarchy2.hasDeferredObjects());
+			assertEquals(nObjects, hierarchy2.nObjects());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void test_noDetections() throws IOException {
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.addObject(PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 100, 100, ImagePlane.getDefaultPlane())));
+		var path = Files.createTempFile("objects", ".qpobjects");
+		try {
+			assertTrue(SpatialObjectStore.write(path, hierarchy, 1024, 0L));
+			var store = SpatialObjectStore.open(path);
+			assertEquals(0, store.countPendingObjects());
+			assertTrue(store.loadAllObjects().isEmpty());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void test_pointDetections() throws IOException {
+		var plane = ImagePlane.getDefaultPlane();
+		var hierarchy = new PathObjectHierarchy();
+		// Each detection is in its own tile, so the tile bounds have zero width and/or height
+		var point = PathObjects.createDetectionObject(ROIs.createPointsROI(500, 500, plane));
+		var line = PathObjects.createDetectionObject(ROIs.createLineROI(3000, 3000, 3500, 3000, plane));
+		hierarchy.addObjects(List.of(point, line));
+		var path = Files.createTempFile("objects", ".qpobjects");
+		try {
+			assertTrue(SpatialObjectStore.write(path, hierarchy, 1024, 0L));
+			var store = SpatialObjectStore.open(path);
+			assertEquals(2, store.countPendingObjects());
+
+			assertTrue(store.loadObjects(ImageRegion.createInstance(2000, 0, 100, 100, 0, 0)).isEmpty());
+
+			var loaded = store.loadObjects(ImageRegion.createInstance(400, 400, 200, 200, 0, 0));
+			assertEquals(Set.of(point.getID()), ids(loaded.values().stream().flatMap(List::stream).toList()));
+			assertEquals(1, store.countPendingObjects());
+
+			loaded = store.loadObjects(ImageRegion.createInstance(3200, 2900, 100, 200, 0, 0));
+			assertEquals(Set.of(line.getID()), ids(loaded.values().stream().flatMap(List::stream).toList()));
+			assertEquals(0, store.countPendingObjects());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	private static Set<UUID> ids(Collection<PathObject> pathObjects) {
+		return pathObjects.stream().map(PathObject::getID).collect(Collectors.toSet());
+	}
+
+}
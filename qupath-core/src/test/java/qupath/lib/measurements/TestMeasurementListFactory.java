@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -43,6 +43,83 @@ public class TestMeasurementListFactory {
 		testList(MeasurementListFactory.createMeasurementList(50, MeasurementListType.DOUBLE));
 		testList(MeasurementListFactory.createMeasurementList(50, MeasurementListType.FLOAT));
 		testList(MeasurementListFactory.createMeasurementList(50, MeasurementListType.GENERAL));
+		testList(ColumnarMeasurementStore.create(false).createMeasurementList());
+		testList(ColumnarMeasurementStore.create(true).createMeasurementList());
+	}
+	
+	@Test
+	public void testColumnarStore() throws Exception {
+		for (boolean offHeap : new boolean[] {false, true}) {
+			var store = ColumnarMeasurementStore.create(offHeap);
+			assertEquals(offHeap, store.isOffHeap());
+			int n = 5000;
+			List<MeasurementList> lists = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				var list = store.createMeasurementList();
+				list.put("A", i);
+				if (i % 2 == 0)
+					list.put("B", i * 2);
+				lists.add(list);
+			}
+			assertEquals(List.of("A", "B"), store.getColumnNames());
+			assertEquals(List.of("A", "B"), lists.get(0).getMeasurementNames());
+			assertEquals(List.of("A"), lists.get(1).getMeasurementNames());
+			assertFalse(lists.get(1).containsKey("B"));
+			assertTrue(Double.isNaN(lists.get(1).get("B")));
+			
+			// Check bulk access
+			int[] rows = lists.stream().mapToInt(store::getRowIndex).toArray();
+			float[] values = store.getValues(rows, List.of("B", "A", "C"), null);
+			for (int i = 0; i < n; i++) {
+				if (i % 2 == 0)
+					assertEquals(i * 2, values[i * 3], 1e-6);
+				else
+					assertTrue(Float.isNaN(values[i * 3]));
+				assertEquals(i, values[i * 3 + 1], 1e-6);
+				assertTrue(Float.isNaN(values[i * 3 + 2]));
+			}
+			
+			// Check lists from other stores aren't accessible
+			assertEquals(-1, store.getRowIndex(ColumnarMeasurementStore.create().createMeasurementList()));
+			assertEquals(-1, store.getRowIndex(MeasurementListFactory.createMeasurementList(0, MeasurementListType.FLOAT)));
+
+			// Check serialization creates a standalone list
+			var bytes = new java.io.ByteArrayOutputStream();
+			try (var stream = new java.io.ObjectOutputStream(bytes)) {
+				stream.writeObject(lists.get(10));
+			}
+			try (var stream = new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray()))) {
+				var list = (MeasurementList)stream.readObject();
+				assertEquals(lists.get(10).getMeasurementNames(), list.getMeasurementNames());
+				assertEquals(10, list.get("A"), 1e-6);
+				assertEquals(20, list.get("B"), 1e-6);
+			}
+		}
+	}
+	
+	@Test
+	public void testFactoryColumnarStore() {
+		var store = ColumnarMeasurementStore.create();
+		try {
+			MeasurementListFactory.setColumnarStore(store);
+			assertSame(store, MeasurementListFactory.getColumnarStore());
+			var list = MeasurementListFactory.createMeasurementList(0, MeasurementListType.FLOAT);
+			assertTrue(store.getRowIndex(list) >= 0);
+			// Only float lists should use the store
+			assertEquals(-1, store.getRowIndex(MeasurementListFactory.createMeasurementList(0, MeasurementListType.DOUBLE)));
+			// Names should follow insertion order for each list, not the column order of the store
+			var list2 = MeasurementListFactory.createMeasurementList(0, MeasurementListType.FLOAT);
+			list.put("A", 1);
+			list2.put("B", 2);
+			list2.put("A", 3);
+			assertEquals(List.of("A", "B"), store.getColumnNames());
+			assertEquals(List.of("B", "A"), list2.getMeasurementNames());
+			testList(list);
+		} finally {
+			MeasurementListFactory.setColumnarStore(null);
+		}
+		assertNull(MeasurementListFactory.getColumnarStore());
+		assertEquals(-1, store.getRowIndex(MeasurementListFactory.createMeasurementList(0, MeasurementListType.FLOAT)));
 	}
 	
 	
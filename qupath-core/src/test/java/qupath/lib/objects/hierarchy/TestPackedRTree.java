@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+
+@SuppressWarnings("javadoc")
+public class TestPackedRTree {
+	
+	private static List<Envelope> createEnvelopes(int n, long seed) {
+		var random = new Random(seed);
+		var list = new ArrayList<Envelope>();
+		for (int i = 0; i < n; i++) {
+			double x = random.nextDouble() * 10000;
+			double y = random.nextDouble() * 10000;
+			double w = 1 + random.nextDouble() * 20;
+			double h = 1 + random.nextDouble() * 20;
+			list.add(new Envelope(x, x + w, y, y + h));
+		}
+		return list;
+	}
+	
+	private static Set<Envelope> bruteForce(List<Envelope> envelopes, Envelope query) {
+		var set = Collections.newSetFromMap(new java.util.IdentityHashMap<Envelope, Boolean>());
+		for (var env : envelopes) {
+			if (env.intersects(query))
+				set.add(env);
+		}
+		return set;
+	}
+	
+	private static Set<Object> query(PackedRTree tree, Envelope query) {
+		var set = Collections.newSetFromMap(new java.util.IdentityHashMap<Object, Boolean>());
+		set.addAll(tree.query(query));
+		return set;
+	}
+	
+	@Test
+	public void test_empty() {
+		var tree = new PackedRTree();
+		assertEquals(0, tree.size());
+		assertTrue(tree.query(new Envelope(0, 100, 0, 100)).isEmpty());
+		assertFalse(tree.remove(new Envelope(0, 100, 0, 100), new Object()));
+	}
+	
+	@Test
+	public void test_singleItem() {
+		var env = new Envelope(10, 20, 10, 20);
+		var tree = PackedRTree.bulkLoad(List.of(env), e -> e);
+		assertEquals(List.of(env), tree.query(new Envelope(15, 16, 15, 16)));
+		assertTrue(tree.query(new Envelope(25, 26, 25, 26)).isEmpty());
+		assertTrue(tree.remove(env, env));
+		assertEquals(0, tree.size());
+	}
+	
+	@Test
+	public void test_bulkLoadQuery() {
+		var envelopes = createEnvelopes(50_000, 100);
+		var tree = PackedRTree.bulkLoad(envelopes, e -> e);
+		assertEquals(envelopes.size(), tree.size());
+		
+		var queries = createEnvelopes(100, 200);
+		queries.add(new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE));
+		queries.add(new Envelope(2000, 4000, 5000, 8000));
+		for (var q : queries) {
+			assertEquals(bruteForce(envelopes, q), query(tree, q));
+		}
+	}
+	
+	@Test
+	public void test_insertRemove() {
+		var envelopes = new ArrayList<>(createEnvelopes(10_000, 300));
+		var tree = PackedRTree.bulkLoad(envelopes, e -> e);
+		
+		// Insert enough to trigger a rebuild
+		var added = createEnvelopes(2_000, 400);
+		for (var env : added) {
+			tree.insert(env, env);
+			envelopes.add(env);
+		}
+		assertEquals(envelopes.size(), tree.size());
+		
+		// Remove from both the packed tree & the delta buffer
+		var random = new Random(500);
+		Collections.shuffle(envelopes, random);
+		var toRemove = new HashSet<>(envelopes.subList(0, 6_000));
+		for (var env : toRemove) {
+			assertTrue(tree.remove(env, env));
+			assertFalse(tree.remove(env, env));
+		}
+		envelopes.removeAll(toRemove);
+		assertEquals(envelopes.size(), tree.size());
+		
+		for (var q : createEnvelopes(100, 600)) {
+			q.expandBy(200);
+			assertEquals(bruteForce(envelopes, q), query(tree, q));
+		}
+		
+		// Removal should still succeed with an incorrect envelope
+		var env = envelopes.get(0);
+		assertTrue(tree.remove(new Envelope(-10, -5, -10, -5), env));
+		assertEquals(envelopes.size() - 1, tree.size());
+	}
+
+}
@@ -31,6 +31,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 
@@ -379,6 +381,62 @@ public class TestPathObjectHierarchy {
 	}
 	
 	
+	@Test
+	public void test_eventBatch() throws Exception {
+		var hierarchy = new PathObjectHierarchy();
+		List<PathObjectHierarchyEvent> events = new ArrayList<>();
+		hierarchy.addListener(events::add);
+		
+		var detections = new ArrayList<PathObject>();
+		for (int i = 0; i < 10; i++)
+			detections.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 0, 5, 5, ImagePlane.getDefaultPlane())));
+		
+		hierarchy.runInEventBatch(() -> {
+			for (var detection : detections)
+				hierarchy.addObject(detection);
+			// Objects should be found within the batch, i.e. before listeners are notified
+			assertEquals(detections.size(), hierarchy.getObjectsForRegion(null, ImageRegion.createInstance(0, 0, 100, 100, 0, 0), null).size());
+			for (var detection : detections) {
+				hierarchy.fireObjectClassificationsChangedEvent(this, Collections.singletonList(detection));
+				hierarchy.fireObjectMeasurementsChangedEvent(this, Collections.singletonList(detection));
+			}
+			assertTrue(hierarchy.isEventBatchActive());
+			assertTrue(events.isEmpty());
+		});
+		assertFalse(hierarchy.isEventBatchActive());
+		
+		// Expect one structure event, then one event per change type
+		assertEquals(3, events.size());
+		assertEquals(PathObjectHierarchyEvent.HierarchyEventType.OTHER_STRUCTURE_CHANGE, events.get(0).getEventType());
+		assertEquals(hierarchy.getRootObject(), events.get(0).getStructureChangeBase());
+		assertEquals(detections, events.get(0).getChangedObjects());
+		assertEquals(PathObjectHierarchyEvent.HierarchyEventType.CHANGE_CLASSIFICATION, events.get(1).getEventType());
+		assertEquals(detections, events.get(1).getChangedObjects());
+		assertEquals(PathObjectHierarchyEvent.HierarchyEventType.CHANGE_MEASUREMENTS, events.get(2).getEventType());
+		assertEquals(detections, events.get(2).getChangedObjects());
+		
+		// Nested batches should only notify at the end
+		events.clear();
+		hierarchy.beginEventBatch();
+		hierarchy.runInEventBatch(() -> hierarchy.fireObjectsChangedEvent(this, detections));
+		assertTrue(events.isEmpty());
+		hierarchy.endEventBatch();
+		assertEquals(1, events.size());
+		assertThrows(IllegalStateException.class, () -> hierarchy.endEventBatch());
+		
+		// Asynchronous listeners should receive all events in order
+		var latch = new CountDownLatch(detections.size());
+		List<PathObject> received = Collections.synchronizedList(new ArrayList<>());
+		hierarchy.addListener(e -> {
+			received.addAll(e.getChangedObjects());
+			latch.countDown();
+		}, true);
+		for (var detection : detections)
+			hierarchy.fireObjectsChangedEvent(this, Collections.singletonList(detection));
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertEquals(detections, received);
+	}
+	
 }
 
 // Helper classes for testing
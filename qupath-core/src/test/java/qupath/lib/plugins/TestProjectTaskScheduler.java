@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.projects.ProjectImageEntry;
+
+@SuppressWarnings("javadoc")
+public class TestProjectTaskScheduler {
+
+	@Test
+	public void test_sharedParallelism() throws InterruptedException {
+		int parallelism = 3;
+		var scheduler = ProjectTaskScheduler.builder()
+				.parallelism(parallelism)
+				.maxConcurrentImages(4)
+				.memoryBudget(1024L * 1024 * 1024)
+				.memoryEstimator(e -> 1024 * 1024)
+				.build();
+
+		var running = new AtomicInteger();
+		var maxRunning = new AtomicInteger();
+		var runningImages = new AtomicInteger();
+		var maxRunningImages = new AtomicInteger();
+		var nTasks = new AtomicInteger();
+
+		var entries = createEntries(8);
+		var summary = scheduler.run(entries, (entry, batchIndex) -> {
+			updateMax(maxRunningImages, runningImages.incrementAndGet());
+			List<Runnable> tasks = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				tasks.add(() -> {
+					updateMax(maxRunning, running.incrementAndGet());
+					sleep(2);
+					nTasks.incrementAndGet();
+					running.decrementAndGet();
+				});
+			}
+			// Each runner requests many more threads than the global budget
+			new CommandLineTaskRunner(16).runTasks(tasks);
+			runningImages.decrementAndGet();
+			if (batchIndex == 5)
+				throw new RuntimeException("Expected failure");
+		});
+
+		assertEquals(80, nTasks.get());
+		assertTrue(maxRunning.get() <= parallelism);
+		assertTrue(maxRunningImages.get() <= 4);
+		assertEquals(8, summary.getCompletedCount());
+		assertEquals(80, summary.getTaskCount());
+		assertEquals(List.of("Image 5"), summary.getFailedImageNames());
+	}
+
+	@Test
+	public void test_memoryAdmission() throws InterruptedException {
+		long mb = 1024L * 1024L;
+		var scheduler = ProjectTaskScheduler.builder()
+				.parallelism(2)
+				.maxConcurrentImages(4)
+				.memoryBudget(100 * mb)
+				.memoryEstimator(e -> e.getImageName().endsWith("0") ? 1000 * mb : 40 * mb)
+				.build();
+
+		var runningImages = new AtomicInteger();
+		var maxRunningImages = new AtomicInteger();
+		var entries = createEntries(11);
+		var summary = scheduler.run(entries, (entry, batchIndex) -> {
+			int n = runningImages.incrementAndGet();
+			updateMax(maxRunningImages, n);
+			// Images requiring more than the whole budget should run alone
+			if (batchIndex % 10 == 0)
+				assertEquals(1, n);
+			sleep(5);
+			runningImages.decrementAndGet();
+		});
+		// No more than two images fit within the budget at the same time
+		assertTrue(maxRunningImages.get() <= 2);
+		assertTrue(summary.getFailedImageNames().isEmpty());
+		assertEquals(11, summary.getCompletedCount());
+	}
+
+	private static void updateMax(AtomicInteger max, int value) {
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<ProjectImageEntry<Object>> createEntries(int n) {
+		return IntStream.range(0, n).mapToObj(i -> {
+			String name = "Image " + i;
+			return (ProjectImageEntry<Object>)Proxy.newProxyInstance(
+					ProjectImageEntry.class.getClassLoader(),
+					new Class<?>[] {ProjectImageEntry.class},
+					(proxy, method, args) -> {
+						switch (method.getName()) {
+						case "getImageName":
+							return name;
+						case "toString":
+							return name;
+						default:
+							return null;
+						}
+					});
+		}).toList();
+	}
+
+}
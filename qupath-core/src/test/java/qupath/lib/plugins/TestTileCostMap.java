@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestTileCostMap {
+
+	@Test
+	public void test_costs() {
+		// Flat background on the left, 'dense' checkerboard on the right
+		int w = 100, h = 50;
+		var img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int val = x < w/2 ? 200 : ((x + y) % 2 == 0 ? 50 : 250);
+				raster.setSample(x, y, 0, val);
+			}
+		}
+		// Map is at a downsample of 4, with an origin offset
+		double downsample = 4;
+		var costMap = TileCostMap.create(img, 1000, 2000, downsample);
+
+		double costLeft = costMap.getCost(1000, 2000, w/2*downsample - 8, h*downsample);
+		double costRight = costMap.getCost(1000 + w/2*downsample, 2000, w/2*downsample, h*downsample);
+		assertTrue(costLeft > 0);
+		assertTrue(costRight > costLeft * 50);
+
+		// Costs should be additive, and clipped to the map
+		double costAll = costMap.getCost(0, 0, 10000, 10000);
+		assertEquals(costMap.getTotalCost(), costAll, 1e-6);
+		double costTop = costMap.getCost(1000, 2000, w*downsample, h/2*downsample);
+		double costBottom = costMap.getCost(1000, 2000 + h/2*downsample, w*downsample, h/2*downsample);
+		assertEquals(costAll, costTop + costBottom, 1e-6);
+		assertEquals(0, costMap.getCost(0, 0, 500, 500), 1e-6);
+	}
+
+}
@@ -864,6 +864,14 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		return Collections.singletonList(uri);
 	}
 	
+	/**
+	 * Returns true, since decoding tiles is relatively expensive and the pixels depend only upon the image file.
+	 */
+	@Override
+	protected boolean supportsPersistentTileCache() {
+		return true;
+	}
+	
 	@Override
 	public String createID() {
 		String id = getClass().getSimpleName() + ": " + uri.toString();
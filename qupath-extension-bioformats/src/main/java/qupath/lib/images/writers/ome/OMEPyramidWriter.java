@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -25,19 +25,26 @@ import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -63,6 +70,7 @@ import ome.xml.model.primitives.Color;
 import ome.xml.model.primitives.PositiveInteger;
 import qupath.lib.color.ColorModelFactory;
 import qupath.lib.common.ColorTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata;
@@ -346,7 +354,7 @@ public class OMEPyramidWriter {
 			for (int s = 0; s < series.size(); s++) {
 				var temp = series.get(s);
 				logger.info("Writing {} to {} (series {}/{})", ServerTools.getDisplayableImageName(temp.getOriginalServer()), path, s+1, series.size());
-				temp.writeSeries(writer.getWriter(), meta, s);
+				temp.writeSeries(writer.getWriter(), meta, s, file.getAbsoluteFile().toPath().getParent());
 			}
 		}
 		
@@ -606,6 +614,14 @@ public class OMEPyramidWriter {
 		 * @see #initializeMetadata(IMetadata, int)
 		 */
 		public void writeSeries(IFormatWriter writer, IMetadata meta, final int series) throws FormatException, IOException {
+			writeSeries(writer, meta, series, null);
+		}
+		
+		/**
+		 * Append an image as a specific series, using the specified directory for any temporary files.
+		 * @param tempDir directory for temporary files used to create lower resolutions; if null, the default temporary directory is used
+		 */
+		private void writeSeries(IFormatWriter writer, IMetadata meta, final int series, Path tempDir) throws FormatException, IOException {
 	
 			// We need to get the writer directly to be able to check if it is a TiffWriter
 			while (writer instanceof ImageWriter)
@@ -674,171 +690,173 @@ public class OMEPyramidWriter {
 			boolean isTiff = writer instanceof TiffWriter;
 			Map<Integer, IFD> map = new HashMap<>();
 			
-			writer.setSeries(series);
-			for (int level = 0; level < downsamples.length; level++) {
-				
-				writer.setResolution(level);
-				
-				// Preallocate any IFD
-				if (isTiff) {
-					map.clear();
-					for (int i = 0; i < nPlanes; i++) {
-						IFD ifd = new IFD();
-						if (isTiled) {
-							ifd.put(IFD.TILE_WIDTH, tileWidth);
-							ifd.put(IFD.TILE_LENGTH, tileHeight);
+			// Lower resolutions are created by downsampling higher resolutions where possible, 
+			// but classification images shouldn't be averaged
+			boolean nearestDownsample = server.getMetadata().getChannelType() == ChannelType.CLASSIFICATION;
+			
+			// Tiles are read and converted to bytes in parallel, but written sequentially
+			ExecutorService poolRead = null;
+			ExecutorService poolEncode = null;
+			if (parallelThreads > 1) {
+				poolRead = Executors.newFixedThreadPool(parallelThreads, ThreadTools.createThreadFactory("ome-pyramid-read-", true));
+				poolEncode = Executors.newFixedThreadPool(parallelThreads, ThreadTools.createThreadFactory("ome-pyramid-encode-", true));
+			}
+			PyramidLevelBuffer levelBuffer = null;
+			PyramidLevelBuffer nextLevelBuffer = null;
+			
+			try {
+				for (int level = 0; level < downsamples.length; level++) {
+					
+					writer.setResolution(level);
+					
+					// Preallocate any IFD
+					if (isTiff) {
+						map.clear();
+						for (int i = 0; i < nPlanes; i++) {
+							IFD ifd = new IFD();
+							if (isTiled) {
+								ifd.put(IFD.TILE_WIDTH, tileWidth);
+								ifd.put(IFD.TILE_LENGTH, tileHeight);
+							}
+							if (nSamples > 1 && !isRGB)
+								ifd.put(IFD.EXTRA_SAMPLES, new short[nSamples-1]);
+							map.put(Integer.valueOf(i), ifd);
 						}
-						if (nSamples > 1 && !isRGB)
-							ifd.put(IFD.EXTRA_SAMPLES, new short[nSamples-1]);
-						map.put(Integer.valueOf(i), ifd);
 					}
-				}
-	
-				double d = downsamples[level];
-				
-				// Make extra sure we're using the same width & height that we said we'd use for the resolution level
-				int w = width;
-				int h = height;
-				if (meta instanceof IPyramidStore && level > 0) {
-					w = ((IPyramidStore)meta).getResolutionSizeX(series, level).getValue().intValue();
-					h = ((IPyramidStore)meta).getResolutionSizeY(series, level).getValue().intValue();
-				}
-	
-				int tInc = tEnd >= tStart ? 1 : -1;
-				int zInc = zEnd >= zStart ? 1 : -1;
-				int effectiveSizeC = nChannels / nSamples;
-				
-				AtomicInteger count = new AtomicInteger(0);
-								
-				int ti = 0;
-				for (int t = tStart; t < tEnd; t += tInc) {
-					int zi = 0;
-					for (int z = zStart; z < zEnd; z += zInc) {
-						
-						List<TileRequest> tiles = new ArrayList<>();
-						
-						// Use tiles directly if we aren't cropping and they exist as the requested resolution level
-						// This may not be necessary; it is a minor *potential* optimization intended to help ensure 
-						// we avoid any rounding errors that could thwart caching or introduce oddness
-						int levelTemp = ServerTools.getPreferredResolutionLevel(server, d);
-						if (d == server.getDownsampleForResolution(levelTemp) && 
-								x == 0 && y == 0 &&
-								w == server.getMetadata().getLevel(levelTemp).getWidth() &&
-								h == server.getMetadata().getLevel(levelTemp).getHeight() &&
-								tileWidth == server.getMetadata().getPreferredTileWidth() && tileHeight == server.getMetadata().getPreferredTileHeight()) {
+		
+					double d = downsamples[level];
+					
+					// Make extra sure we're using the same width & height that we said we'd use for the resolution level
+					int w = width;
+					int h = height;
+					if (meta instanceof IPyramidStore && level > 0) {
+						w = ((IPyramidStore)meta).getResolutionSizeX(series, level).getValue().intValue();
+						h = ((IPyramidStore)meta).getResolutionSizeY(series, level).getValue().intValue();
+					}
+					
+					// If the next level is downsampled by 2, create it from the tiles of this level as they are written
+					if (isTiled && level + 1 < downsamples.length && downsamples[level + 1] == d * 2 && tileWidth % 2 == 0 && tileHeight % 2 == 0) {
+						try {
+							nextLevelBuffer = new PyramidLevelBuffer(tempDir, tileWidth / 2, tileHeight / 2, (w + 1) / 2, (h + 1) / 2);
+							logger.debug("Resolution {} will be created from resolution {}", level + 1, level);
+						} catch (IOException e) {
+							logger.warn("Unable to create temporary file for resolution {}, pixels will be requested from the image instead: {}",
+									level + 1, e.getLocalizedMessage());
+						}
+					}
+		
+					int tInc = tEnd >= tStart ? 1 : -1;
+					int zInc = zEnd >= zStart ? 1 : -1;
+					int effectiveSizeC = nChannels / nSamples;
+					
+					AtomicInteger count = new AtomicInteger(0);
+									
+					int ti = 0;
+					for (int t = tStart; t < tEnd; t += tInc) {
+						int zi = 0;
+						for (int z = zStart; z < zEnd; z += zInc) {
+							
+							List<TileRequest> tiles = new ArrayList<>();
 							
-							logger.debug("Using tile requests directly for level {}", level);
-							logger.trace("Tiled level: {} ({})", level, server.getMetadata().getLevel(level));
-							int thisZ = z;
-							int thisT = t;
-							server.getTileRequestManager()
-								.getTileRequestsForLevel(levelTemp)
-								.stream()
-								.filter(tile -> tile.getZ() == thisZ && tile.getT() == thisT)
-								.forEachOrdered(tiles::add);
-						} else {
-							// Create new tile requests
-							for (int yy = 0; yy < h; yy += tileHeight) {
-								int hh = Math.min(h - yy, tileHeight);
-								for (int xx = 0; xx < w; xx += tileWidth) {
-									int ww = Math.min(w - xx, tileWidth);
-									var region = ImageRegion.createInstance(xx, yy, ww, hh, z, t);
-									tiles.add(TileRequest.createInstance(server.getPath(), level, d, region));
+							// Use tiles directly if we aren't cropping and they exist as the requested resolution level
+							// This may not be necessary; it is a minor *potential* optimization intended to help ensure 
+							// we avoid any rounding errors that could thwart caching or introduce oddness
+							int levelTemp = ServerTools.getPreferredResolutionLevel(server, d);
+							if (d == server.getDownsampleForResolution(levelTemp) && 
+									x == 0 && y == 0 &&
+									w == server.getMetadata().getLevel(levelTemp).getWidth() &&
+									h == server.getMetadata().getLevel(levelTemp).getHeight() &&
+									tileWidth == server.getMetadata().getPreferredTileWidth() && tileHeight == server.getMetadata().getPreferredTileHeight()) {
+								
+								logger.debug("Using tile requests directly for level {}", level);
+								logger.trace("Tiled level: {} ({})", level, server.getMetadata().getLevel(level));
+								int thisZ = z;
+								int thisT = t;
+								server.getTileRequestManager()
+									.getTileRequestsForLevel(levelTemp)
+									.stream()
+									.filter(tile -> tile.getZ() == thisZ && tile.getT() == thisT)
+									.forEachOrdered(tiles::add);
+							} else {
+								// Create new tile requests
+								for (int yy = 0; yy < h; yy += tileHeight) {
+									int hh = Math.min(h - yy, tileHeight);
+									for (int xx = 0; xx < w; xx += tileWidth) {
+										int ww = Math.min(w - xx, tileWidth);
+										var region = ImageRegion.createInstance(xx, yy, ww, hh, z, t);
+										tiles.add(TileRequest.createInstance(server.getPath(), level, d, region));
+									}
 								}
 							}
-						}
-						
-						int total = tiles.size() * (tEnd - tStart) * (zEnd - zStart);
-						if (z == zStart && t == tStart)
-							logger.info("Writing resolution {} of {} (downsample={}, {} tiles)", level+1, downsamples.length, d, total);
-
-						TileRequest firstTile = tiles.remove(0);
-						
-						// Show progress at key moments
-						int inc = total > 1000 ? 20 : 10;
-						Set<Integer> keyCounts = IntStream.range(1, inc).mapToObj(i -> (int)Math.round((double)total / inc * i)).collect(Collectors.toCollection(() -> new HashSet<>()));
-						keyCounts.add(total-1);
-						
-						// Loop through effective channels (which is 1 if we are writing interleaved)
-						for (int ci = 0; ci < effectiveSizeC; ci++) {
 							
-							/*
-							 *  It appears we can use parallelization for tile writing (thanks to synchronization in the writer),
-							 *  provided we write the (0,0) tile first.
-							 */
-							long planeStartTime = System.currentTimeMillis();
-							count.set(0);
+							int total = tiles.size() * (tEnd - tStart) * (zEnd - zStart);
+							if (z == zStart && t == tStart)
+								logger.info("Writing resolution {} of {} (downsample={}, {} tiles)", level+1, downsamples.length, d, total);
+	
+							TileRequest firstTile = tiles.remove(0);
 							
-							int plane = ti * sizeZ * effectiveSizeC + zi * effectiveSizeC + ci;
-							IFD ifd = isTiff ? map.get(Integer.valueOf(plane)) : null;
-							int[] localChannels = effectiveSizeC == channels.length ? new int[] {channels[ci]} : channels;
-						
-							logger.info("Writing plane {}/{}", plane+1, nPlanes);
+							// Show progress at key moments
+							int inc = total > 1000 ? 20 : 10;
+							Set<Integer> keyCounts = IntStream.range(1, inc).mapToObj(i -> (int)Math.round((double)total / inc * i)).collect(Collectors.toCollection(() -> new HashSet<>()));
+							keyCounts.add(total-1);
+							
+							// Loop through effective channels (which is 1 if we are writing interleaved)
+							for (int ci = 0; ci < effectiveSizeC; ci++) {
 								
-							// We *must* write the first region first
-							writeRegion(writer, plane, ifd, server, firstTile, isRGB, localChannels);
-							if (!tiles.isEmpty()) {
+								long planeStartTime = System.currentTimeMillis();
+								count.set(0);
+								
+								int plane = ti * sizeZ * effectiveSizeC + zi * effectiveSizeC + ci;
+								IFD ifd = isTiff ? map.get(Integer.valueOf(plane)) : null;
+								int[] localChannels = effectiveSizeC == channels.length ? new int[] {channels[ci]} : channels;
+							
+								logger.info("Writing plane {}/{}", plane+1, nPlanes);
 								
 								// Reversing the regions means that for a large image we can still get some tiles from the cache
-								// Do this for channels and levels, since we sometimes need to request the same tiles when exporting 
-								// at a lower resolution
-								if (ci > 0 || level > 0) {
+								// Do this for channels, and for levels that can't be created from the level above, 
+								// since we need to request the same tiles again
+								List<TileRequest> orderedTiles = new ArrayList<>(tiles);
+								if (ci > 0 || (level > 0 && levelBuffer == null)) {
 									logger.trace("Reversing list if {} regions", tiles.size());
-									Collections.reverse(tiles);
+									Collections.reverse(orderedTiles);
 								}
+								// We *must* write the first region first
+								orderedTiles.add(0, firstTile);
 								
-								var localWriter = writer;
-								var tasks = tiles.stream().map(tile -> new Runnable() {
-									@Override
-									public void run() {
-										try {
-											if (Thread.currentThread().isInterrupted())
-												return;
-											writeRegion(localWriter, plane, ifd, server, tile, isRGB, localChannels);
-										} catch (Exception e) {
-											logger.error(String.format(
-													"Error writing %s (downsample=%.2f)",
-													tile.toString(), d),
-													e);
-										} finally {
-											int localCount = count.incrementAndGet();
-											if (total > 20 && keyCounts.size() > 1 && keyCounts.contains(localCount)) {
-												double percentage = localCount*100.0/total;
-												logger.info("Written {}% tiles", Math.round(percentage));
-											}
-										}
+								// Each tile is only needed once to create the next level, even if it has multiple planes
+								var bufferToFill = ci == 0 ? nextLevelBuffer : null;
+								Runnable progress = () -> {
+									int localCount = count.incrementAndGet();
+									if (total > 20 && keyCounts.size() > 1 && keyCounts.contains(localCount)) {
+										double percentage = localCount*100.0/total;
+										logger.info("Written {}% tiles", Math.round(percentage));
 									}
-								}).toList();
-								
-								if (parallelThreads > 1) {
-									var pool = Executors.newWorkStealingPool(parallelThreads);
-									for (var task : tasks) {
-										pool.submit(task);
-									}
-									pool.shutdown();
-									try {
-										pool.awaitTermination(tiles.size(), TimeUnit.MINUTES);
-										logger.info("Plane written in {} ms", System.currentTimeMillis() - planeStartTime);
-									} catch (InterruptedException e) {
-										logger.warn("OME-TIFF export interrupted!");
-										pool.shutdownNow();
-										throw new IOException("Error writing regions", e);
-									}
-								} else {
-									for (var task : tasks) {
-										if (Thread.currentThread().isInterrupted()) {
-											throw new IOException("Interrupted writing regions!");
-										}
-										task.run();
-									}
-									logger.info("Plane written in {} ms", System.currentTimeMillis() - planeStartTime);
-								}
+								};
+								writeTiles(writer, plane, ifd, server, orderedTiles, isRGB, localChannels,
+										levelBuffer, bufferToFill, nearestDownsample,
+										poolRead, poolEncode, progress);
+								logger.info("Plane written in {} ms", System.currentTimeMillis() - planeStartTime);
 							}
+							zi++;
 						}
-						zi++;
+						ti++;
 					}
-					ti++;
+					
+					// Switch to the buffer for the next level, if we have one
+					if (levelBuffer != null)
+						levelBuffer.close();
+					levelBuffer = nextLevelBuffer;
+					nextLevelBuffer = null;
 				}
+			} finally {
+				if (levelBuffer != null)
+					levelBuffer.close();
+				if (nextLevelBuffer != null)
+					nextLevelBuffer.close();
+				if (poolRead != null)
+					poolRead.shutdownNow();
+				if (poolEncode != null)
+					poolEncode.shutdownNow();
 			}
 			logger.trace("Image count: {}", meta.getImageCount());
 			if (writer instanceof FormatWriter)
@@ -868,34 +886,111 @@ public class OMEPyramidWriter {
 		}
 		
 		/**
-		 * Write a region. The ifd is only used if writer is an instance of TiffWriter.
+		 * Write tiles for a single plane.
+		 * <p>
+		 * Tiles are read and converted to bytes using the pools (if available), 
+		 * but they are always written in order from the calling thread.
+		 * The number of tiles being read or converted at any time is limited, to avoid holding too many in memory 
+		 * if writing is the bottleneck.
 		 * 
 		 * @param writer
 		 * @param plane
-		 * @param ifd
+		 * @param ifd the IFD; this is only used if writer is an instance of TiffWriter
 		 * @param server the image to export
-		 * @param tile the tile to export; this incorporates the export coordinates and the full resolution coordinates (via the associated {@link RegionRequest})
+		 * @param tiles the tiles to write, in the order they should be written
 		 * @param isRGB export as RGB; this assumes both the input and export images are RGB (i.e. no extra conversions, channel reordering etc.)
 		 * @param channels
+		 * @param levelBuffer optional buffer from which tiles should be read, if possible, rather than the server
+		 * @param nextLevelBuffer optional buffer to store downsampled tiles, to create the next resolution level
+		 * @param nearestDownsample if true, use nearest neighbor interpolation when downsampling for the next level
+		 * @param poolRead pool for reading tiles; if null, tiles are read in the calling thread
+		 * @param poolEncode pool for converting tiles to bytes; if null, tiles are converted in the calling thread
+		 * @param progress called after each tile is processed
 		 * @throws FormatException
 		 * @throws IOException
 		 */
-		private void writeRegion(IFormatWriter writer, int plane, IFD ifd, ImageServer<BufferedImage> server, TileRequest tile, boolean isRGB, int[] channels) throws FormatException, IOException {
+		private void writeTiles(IFormatWriter writer, int plane, IFD ifd, ImageServer<BufferedImage> server, List<TileRequest> tiles, 
+				boolean isRGB, int[] channels, PyramidLevelBuffer levelBuffer, PyramidLevelBuffer nextLevelBuffer, boolean nearestDownsample,
+				ExecutorService poolRead, ExecutorService poolEncode, Runnable progress) throws FormatException, IOException {
 			
-			// Get the region request - and make sure to translate it to the origin
-			RegionRequest request = tile.getRegionRequest().translate(this.x, this.y);
-			BufferedImage img = server.readRegion(request);
+			Executor executorRead = poolRead == null ? Runnable::run : poolRead;
+			Executor executorEncode = poolEncode == null ? Runnable::run : poolEncode;
+			int maxPending = poolRead == null ? 1 : parallelThreads * 4;
 			
+			Deque<CompletableFuture<EncodedTile>> pending = new ArrayDeque<>();
+			var iterator = tiles.iterator();
+			try {
+				while (iterator.hasNext() || !pending.isEmpty()) {
+					while (iterator.hasNext() && pending.size() < maxPending) {
+						var tile = iterator.next();
+						pending.add(CompletableFuture
+								.supplyAsync(() -> readTile(server, levelBuffer, tile), executorRead)
+								.thenApplyAsync(img -> encodeTile(img, tile, isRGB, channels, nextLevelBuffer, nearestDownsample), executorEncode));
+					}
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedException("Interrupted writing regions!");
+					
+					var future = pending.poll();
+					try {
+						var encoded = future.get();
+						saveBytes(writer, plane, ifd, encoded);
+					} catch (ExecutionException e) {
+						logger.error("Error writing tile: " + e.getCause().getLocalizedMessage(), e.getCause());
+					} finally {
+						progress.run();
+					}
+				}
+			} catch (InterruptedException e) {
+				logger.warn("OME-TIFF export interrupted!");
+				for (var future : pending)
+					future.cancel(true);
+				throw new IOException("Error writing regions", e);
+			}
+		}
+		
+		/**
+		 * Read the pixels for a tile, using a buffer created from the previous resolution level if possible.
+		 */
+		private BufferedImage readTile(ImageServer<BufferedImage> server, PyramidLevelBuffer levelBuffer, TileRequest tile) {
+			try {
+				if (levelBuffer != null) {
+					try {
+						var img = levelBuffer.readTile(tile.getT(), tile.getZ(), tile.getTileX(), tile.getTileY(), tile.getTileWidth(), tile.getTileHeight());
+						if (img != null)
+							return img;
+						logger.debug("Unable to read {} from buffer, will request from the server", tile);
+					} catch (IOException e) {
+						logger.debug("Error reading {} from buffer, will request from the server: {}", tile, e.getLocalizedMessage());
+					}
+				}
+				// Get the region request - and make sure to translate it to the origin
+				RegionRequest request = tile.getRegionRequest().translate(this.x, this.y);
+				return server.readRegion(request);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		/**
+		 * Convert a tile to the bytes that should be written, and optionally store a downsampled version of the tile 
+		 * to create the next resolution level.
+		 */
+		private EncodedTile encodeTile(BufferedImage img, TileRequest tile, boolean isRGB, int[] channels, PyramidLevelBuffer nextLevelBuffer, boolean nearestDownsample) {
 			var pixelType = getExportPixelType();
 			int bytesPerPixel = pixelType.getBytesPerPixel();
 			int nChannels = channels.length;
 			if (img == null) {
 				byte[] zeros = new byte[tile.getTileWidth() * tile.getTileHeight() * bytesPerPixel * nChannels];
-				if (writer instanceof TiffWriter)
-					((TiffWriter)writer).saveBytes(plane, zeros, ifd, tile.getTileX(), tile.getTileY(), tile.getTileWidth(), tile.getTileHeight());
-				else
-					writer.saveBytes(plane, zeros, tile.getTileX(), tile.getTileY(), tile.getTileWidth(), tile.getTileHeight());
-				return;
+				return new EncodedTile(tile, zeros, tile.getTileWidth(), tile.getTileHeight());
+			}
+			
+			if (nextLevelBuffer != null) {
+				try {
+					nextLevelBuffer.putTile(tile.getT(), tile.getZ(), tile.getTileX(), tile.getTileY(), img, nearestDownsample);
+				} catch (IOException e) {
+					// Missing tiles of the next level will be requested from the server instead
+					logger.warn("Unable to store tile for the next resolution, pixels will be requested from the image instead: {}", e.getLocalizedMessage());
+				}
 			}
 			
 			int ww = img.getWidth();
@@ -920,10 +1015,36 @@ public class OMEPyramidWriter {
 					channelToBuffer(img.getRaster(), c, buf, ind, channels.length * bytesPerPixel, pixelType);
 				}
 			}
+			return new EncodedTile(tile, buf.array(), ww, hh);
+		}
+		
+		/**
+		 * Write the bytes for a tile. The ifd is only used if writer is an instance of TiffWriter.
+		 */
+		private static void saveBytes(IFormatWriter writer, int plane, IFD ifd, EncodedTile encoded) throws FormatException, IOException {
+			var tile = encoded.tile;
 			if (writer instanceof TiffWriter)
-				((TiffWriter)writer).saveBytes(plane, buf.array(), ifd, tile.getTileX(), tile.getTileY(), ww, hh);
+				((TiffWriter)writer).saveBytes(plane, encoded.bytes, ifd, tile.getTileX(), tile.getTileY(), encoded.width, encoded.height);
 			else
-				writer.saveBytes(plane, buf.array(), tile.getTileX(), tile.getTileY(), ww, hh);
+				writer.saveBytes(plane, encoded.bytes, tile.getTileX(), tile.getTileY(), encoded.width, encoded.height);
+		}
+		
+		/**
+		 * Tile pixels converted to the bytes required by the writer.
+		 */
+		private static class EncodedTile {
+			
+			private final TileRequest tile;
+			private final byte[] bytes;
+			private final int width, height;
+			
+			private EncodedTile(TileRequest tile, byte[] bytes, int width, int height) {
+				this.tile = tile;
+				this.bytes = bytes;
+				this.width = width;
+				this.height = height;
+			}
+			
 		}
 		
 		/**
@@ -1233,8 +1354,8 @@ public class OMEPyramidWriter {
 		 * Specify if tile export should be parallelized if possible, with the requested number of threads.
 		 * <p>
 		 * Note that increasing the number of threads may not give improved performance, since it I/O and compression may well 
-		 * become a bottleneck. The main purpose of this option is to parallelize requesting and writing tiles, which can 
-		 * be achieved with just a few threads.
+		 * become a bottleneck. The main purpose of this option is to parallelize requesting tiles and converting them 
+		 * to bytes, which can be achieved with just a few threads. Tiles are always written by a single thread.
 		 * 
 		 * @param nThreads number of threads for parallel export; use &leq; 1 to turn off parallelization.
 		 * @return
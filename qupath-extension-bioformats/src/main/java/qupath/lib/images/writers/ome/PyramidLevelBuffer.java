@@ -0,0 +1,328 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.writers.ome;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Temporary storage for one resolution level of a pyramid, created by downsampling the tiles of the level above
+ * as they are written.
+ * <p>
+ * Each tile of the level above is downsampled by 2 to give a 'chunk', which is stored as raw pixels in a temporary file.
+ * Tiles of this level can then be read by assembling the chunks, without needing to request pixels from the
+ * original image again.
+ * <p>
+ * If storing a chunk fails (e.g. because the disk is full), the buffer stops accepting chunks and any tiles
+ * that depend upon the missing chunks should be requested from the original image instead.
+ */
+class PyramidLevelBuffer implements Closeable {
+
+	private final int chunkWidth, chunkHeight;
+	private final int width, height;
+
+	private final FileChannel channel;
+	private long position = 0;
+	private volatile boolean failed = false;
+
+	private final Map<ChunkKey, ChunkLocation> chunks = new HashMap<>();
+
+	private ColorModel colorModel;
+	private boolean isAlphaPremultiplied;
+	private Raster template;
+
+	/**
+	 * Create a new buffer.
+	 * @param dir directory in which to create the temporary file (usually the directory of the image being written),
+	 *            or null to use the default temporary directory
+	 * @param chunkWidth width of each chunk, i.e. half the tile width of the level above
+	 * @param chunkHeight height of each chunk, i.e. half the tile height of the level above
+	 * @param width width of the level that can be represented by the chunks
+	 * @param height height of the level that can be represented by the chunks
+	 * @throws IOException if the temporary file could not be created
+	 */
+	PyramidLevelBuffer(Path dir, int chunkWidth, int chunkHeight, int width, int height) throws IOException {
+		this.chunkWidth = chunkWidth;
+		this.chunkHeight = chunkHeight;
+		this.width = width;
+		this.height = height;
+		var path = dir == null ? Files.createTempFile("qupath-pyramid-", ".tmp") : Files.createTempFile(dir, "qupath-pyramid-", ".tmp");
+		this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	/**
+	 * Downsample a tile of the level above by 2, and store the result.
+	 * @param t timepoint index
+	 * @param z z-slice index
+	 * @param x x-coordinate of the tile in the level above; this must be a multiple of 2 * chunkWidth
+	 * @param y y-coordinate of the tile in the level above; this must be a multiple of 2 * chunkHeight
+	 * @param img the tile pixels
+	 * @param nearest if true, use nearest neighbor downsampling rather than averaging (e.g. for labeled images)
+	 * @throws IOException if the chunk could not be stored; after this, no further chunks will be stored
+	 */
+	void putTile(int t, int z, int x, int y, BufferedImage img, boolean nearest) throws IOException {
+		if (failed)
+			return;
+		var raster = downsample2x(img.getRaster(), nearest);
+		var key = new ChunkKey(t, z, x / (chunkWidth * 2), y / (chunkHeight * 2));
+		var bytes = toBytes(raster.getDataElements(0, 0, raster.getWidth(), raster.getHeight(), null));
+		long pos;
+		synchronized (this) {
+			pos = position;
+			position += bytes.length;
+		}
+		var buffer = ByteBuffer.wrap(bytes);
+		long writePos = pos;
+		try {
+			while (buffer.hasRemaining())
+				writePos += channel.write(buffer, writePos);
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		}
+		// Only make the chunk available once it has been written successfully
+		synchronized (this) {
+			if (template == null) {
+				colorModel = img.getColorModel();
+				isAlphaPremultiplied = img.isAlphaPremultiplied();
+				template = raster;
+			}
+			chunks.put(key, new ChunkLocation(pos, bytes.length, raster.getWidth(), raster.getHeight()));
+		}
+	}
+
+	/**
+	 * Query whether a region is within the part of the level that is represented by the buffer.
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 * @return
+	 */
+	boolean covers(int x, int y, int w, int h) {
+		return x >= 0 && y >= 0 && x + w <= width && y + h <= height;
+	}
+
+	/**
+	 * Read a tile from the buffer.
+	 * @param t timepoint index
+	 * @param z z-slice index
+	 * @param x x-coordinate of the tile in this level
+	 * @param y y-coordinate of the tile in this level
+	 * @param w tile width
+	 * @param h tile height
+	 * @return the tile, or null if any of the required chunks are unavailable
+	 * @throws IOException
+	 */
+	BufferedImage readTile(int t, int z, int x, int y, int w, int h) throws IOException {
+		if (!covers(x, y, w, h))
+			return null;
+		WritableRaster raster;
+		synchronized (this) {
+			if (template == null)
+				return null;
+			raster = template.createCompatibleWritableRaster(w, h);
+		}
+		for (int j = y / chunkHeight; j <= (y + h - 1) / chunkHeight; j++) {
+			for (int i = x / chunkWidth; i <= (x + w - 1) / chunkWidth; i++) {
+				ChunkLocation location;
+				synchronized (this) {
+					location = chunks.get(new ChunkKey(t, z, i, j));
+				}
+				if (location == null)
+					return null;
+				var buffer = ByteBuffer.allocate(location.length);
+				long pos = location.position;
+				while (buffer.hasRemaining()) {
+					int n = channel.read(buffer, pos);
+					if (n < 0)
+						throw new IOException("Unexpected end of pyramid buffer");
+					pos += n;
+				}
+				var chunk = template.createCompatibleWritableRaster(location.width, location.height);
+				chunk.setDataElements(0, 0, location.width, location.height, fromBytes(buffer.array(), template.getTransferType()));
+				raster.setRect(i * chunkWidth - x, j * chunkHeight - y, chunk);
+			}
+		}
+		return new BufferedImage(colorModel, raster, isAlphaPremultiplied, null);
+	}
+
+	/**
+	 * Downsample a raster by a factor of 2.
+	 * If the width or height is odd, the last column or row is downsampled using only the available pixels.
+	 * @param raster the input raster
+	 * @param nearest if true, use the top left pixel of each 2x2 block; otherwise, use the mean (rounded for integer types)
+	 * @return a new raster with half the width and height (rounded up)
+	 */
+	static WritableRaster downsample2x(Raster raster, boolean nearest) {
+		int w = raster.getWidth();
+		int h = raster.getHeight();
+		int w2 = (w + 1) / 2;
+		int h2 = (h + 1) / 2;
+		var output = raster.createCompatibleWritableRaster(w2, h2);
+		int type = raster.getTransferType();
+		boolean doRound = type != DataBuffer.TYPE_FLOAT && type != DataBuffer.TYPE_DOUBLE;
+		double[] pixels = null;
+		double[] pixelsOut = new double[w2 * h2];
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			pixels = raster.getSamples(raster.getMinX(), raster.getMinY(), w, h, b, pixels);
+			for (int y = 0; y < h2; y++) {
+				int y1 = y * 2;
+				int y2 = Math.min(y1 + 1, h - 1);
+				for (int x = 0; x < w2; x++) {
+					int x1 = x * 2;
+					int x2 = Math.min(x1 + 1, w - 1);
+					double val;
+					if (nearest)
+						val = pixels[y1 * w + x1];
+					else {
+						// Duplicated pixels at the boundary don't change the mean
+						val = (pixels[y1 * w + x1] + pixels[y1 * w + x2] + pixels[y2 * w + x1] + pixels[y2 * w + x2]) / 4.0;
+						if (doRound)
+							val = Math.round(val);
+					}
+					pixelsOut[y * w2 + x] = val;
+				}
+			}
+			output.setSamples(0, 0, w2, h2, b, pixelsOut);
+		}
+		return output;
+	}
+
+	private static byte[] toBytes(Object array) {
+		if (array instanceof byte[] bytes)
+			return bytes;
+		if (array instanceof short[] shorts) {
+			var buffer = ByteBuffer.allocate(shorts.length * Short.BYTES);
+			buffer.asShortBuffer().put(shorts);
+			return buffer.array();
+		}
+		if (array instanceof int[] ints) {
+			var buffer = ByteBuffer.allocate(ints.length * Integer.BYTES);
+			buffer.asIntBuffer().put(ints);
+			return buffer.array();
+		}
+		if (array instanceof float[] floats) {
+			var buffer = ByteBuffer.allocate(floats.length * Float.BYTES);
+			buffer.asFloatBuffer().put(floats);
+			return buffer.array();
+		}
+		if (array instanceof double[] doubles) {
+			var buffer = ByteBuffer.allocate(doubles.length * Double.BYTES);
+			buffer.asDoubleBuffer().put(doubles);
+			return buffer.array();
+		}
+		throw new IllegalArgumentException("Unsupported array " + array);
+	}
+
+	private static Object fromBytes(byte[] bytes, int transferType) {
+		var buffer = ByteBuffer.wrap(bytes);
+		switch (transferType) {
+		case DataBuffer.TYPE_BYTE:
+			return bytes;
+		case DataBuffer.TYPE_SHORT:
+		case DataBuffer.TYPE_USHORT:
+			var shorts = new short[bytes.length / Short.BYTES];
+			buffer.asShortBuffer().get(shorts);
+			return shorts;
+		case DataBuffer.TYPE_INT:
+			var ints = new int[bytes.length / Integer.BYTES];
+			buffer.asIntBuffer().get(ints);
+			return ints;
+		case DataBuffer.TYPE_FLOAT:
+			var floats = new float[bytes.length / Float.BYTES];
+			buffer.asFloatBuffer().get(floats);
+			return floats;
+		case DataBuffer.TYPE_DOUBLE:
+			var doubles = new double[bytes.length / Double.BYTES];
+			buffer.asDoubleBuffer().get(doubles);
+			return doubles;
+		default:
+			throw new IllegalArgumentException("Unsupported transfer type " + transferType);
+		}
+	}
+
+	/**
+	 * Close the buffer, deleting the temporary file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		chunks.clear();
+		channel.close();
+	}
+
+	private static class ChunkKey {
+
+		private final int t, z, i, j;
+
+		private ChunkKey(int t, int z, int i, int j) {
+			this.t = t;
+			this.z = z;
+			this.i = i;
+			this.j = j;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(t, z, i, j);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ChunkKey other))
+				return false;
+			return t == other.t && z == other.z && i == other.i && j == other.j;
+		}
+
+	}
+
+	private static class ChunkLocation {
+
+		private final long position;
+		private final int length;
+		private final int width, height;
+
+		private ChunkLocation(long position, int length, int width, int height) {
+			this.position = position;
+			this.length = length;
+			this.width = width;
+			this.height = height;
+		}
+
+	}
+
+}
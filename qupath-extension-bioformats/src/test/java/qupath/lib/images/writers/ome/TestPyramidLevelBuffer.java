@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.writers.ome;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+@SuppressWarnings("javadoc")
+public class TestPyramidLevelBuffer {
+
+	@Test
+	public void test_downsample() {
+		var raster = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 3, 3, 1, null);
+		raster.setSamples(0, 0, 3, 3, 0, new int[] {
+				1, 2, 10,
+				4, 4, 20,
+				7, 8, 9
+		});
+		var mean = PyramidLevelBuffer.downsample2x(raster, false);
+		assertEquals(2, mean.getWidth());
+		assertEquals(2, mean.getHeight());
+		// (1+2+4+4)/4 = 2.75, rounded
+		assertEquals(3, mean.getSample(0, 0, 0));
+		// Odd width and height only use the available pixels
+		assertEquals(15, mean.getSample(1, 0, 0));
+		assertEquals(8, mean.getSample(0, 1, 0));
+		assertEquals(9, mean.getSample(1, 1, 0));
+
+		var nearest = PyramidLevelBuffer.downsample2x(raster, true);
+		assertEquals(1, nearest.getSample(0, 0, 0));
+		assertEquals(10, nearest.getSample(1, 0, 0));
+		assertEquals(7, nearest.getSample(0, 1, 0));
+	}
+
+	@Test
+	public void test_rgb(@TempDir Path dir) throws IOException {
+		int tileSize = 64;
+		var img = createImage(BufferedImage.TYPE_INT_RGB, 251, 181);
+		try (var buffer = new PyramidLevelBuffer(dir, tileSize/2, tileSize/2, 126, 91)) {
+			putTiles(buffer, img, tileSize);
+			checkTiles(buffer, img, tileSize);
+			assertFalse(buffer.covers(100, 64, 32, 32));
+			assertNull(buffer.readTile(0, 0, 100, 64, 32, 32));
+			// Different plane
+			assertNull(buffer.readTile(0, 1, 0, 0, 64, 64));
+		}
+	}
+
+	@Test
+	public void test_float() throws IOException {
+		int tileSize = 32;
+		var raster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 100, 70, 2), null);
+		var random = new Random(100);
+		for (int b = 0; b < 2; b++) {
+			for (int y = 0; y < raster.getHeight(); y++) {
+				for (int x = 0; x < raster.getWidth(); x++)
+					raster.setSample(x, y, b, random.nextGaussian());
+			}
+		}
+		var colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_FLOAT);
+		var img = new BufferedImage(colorModel, raster, false, null);
+		try (var buffer = new PyramidLevelBuffer(null, tileSize/2, tileSize/2, 50, 35)) {
+			putTiles(buffer, img, tileSize);
+			checkTiles(buffer, img, tileSize);
+		}
+	}
+
+	private static void putTiles(PyramidLevelBuffer buffer, BufferedImage img, int tileSize) throws IOException {
+		for (int y = 0; y < img.getHeight(); y += tileSize) {
+			for (int x = 0; x < img.getWidth(); x += tileSize) {
+				var raster = img.getRaster().createCompatibleWritableRaster(
+						Math.min(tileSize, img.getWidth()-x), Math.min(tileSize, img.getHeight()-y));
+				raster.setRect(-x, -y, img.getRaster());
+				buffer.putTile(0, 0, x, y, new BufferedImage(img.getColorModel(), raster, false, null), false);
+			}
+		}
+	}
+
+	private static void checkTiles(PyramidLevelBuffer buffer, BufferedImage img, int tileSize) throws IOException {
+		// Tiles of the lower level should match the whole image downsampled
+		var expected = PyramidLevelBuffer.downsample2x(img.getRaster(), false);
+		int w = expected.getWidth();
+		int h = expected.getHeight();
+		for (int y = 0; y < h; y += tileSize) {
+			for (int x = 0; x < w; x += tileSize) {
+				int tw = Math.min(tileSize, w - x);
+				int th = Math.min(tileSize, h - y);
+				assertTrue(buffer.covers(x, y, tw, th));
+				var tile = buffer.readTile(0, 0, x, y, tw, th);
+				assertEquals(tw, tile.getWidth());
+				assertEquals(th, tile.getHeight());
+				for (int b = 0; b < expected.getNumBands(); b++) {
+					for (int yy = 0; yy < th; yy++) {
+						for (int xx = 0; xx < tw; xx++)
+							assertEquals(expected.getSampleDouble(x + xx, y + yy, b), tile.getRaster().getSampleDouble(xx, yy, b));
+					}
+				}
+			}
+		}
+	}
+
+	private static BufferedImage createImage(int type, int width, int height) {
+		var img = new BufferedImage(width, height, type);
+		var random = new Random(100);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, random.nextInt());
+		}
+		return img;
+	}
+
+}
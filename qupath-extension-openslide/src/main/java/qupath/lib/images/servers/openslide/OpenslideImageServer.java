@@ -254,6 +254,14 @@ public class OpenslideImageServer extends AbstractTileableImageServer {
 		return Collections.singletonList(uri);
 	}
 	
+	/**
+	 * Returns true, since decoding tiles is relatively expensive and the pixels depend only upon the image file.
+	 */
+	@Override
+	protected boolean supportsPersistentTileCache() {
+		return true;
+	}
+	
 	@Override
 	protected String createID() {
 		return getClass().getName() + ": " + uri.toString();
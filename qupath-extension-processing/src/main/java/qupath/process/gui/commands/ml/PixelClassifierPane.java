@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2022 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -1149,6 +1149,9 @@ public class PixelClassifierPane {
 			return;
 		}
 		if (overlay != null) {
+			// Keep showing the previous tiles until they have been reclassified
+			if (newOverlay != null)
+				newOverlay.retainTilesFrom(overlay);
 			overlay.stop();
 		}
 		overlay = newOverlay;
@@ -148,6 +148,7 @@ import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.images.servers.ImageServerBuilder.UriImageSupport;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.PersistentTileCache;
 import qupath.lib.images.servers.ServerTools;
 import qupath.lib.io.PathIO;
 import qupath.lib.objects.classes.PathClass;
@@ -815,6 +816,30 @@ public class QuPathGUI {
 		ImageServerProvider.setCache(imageRegionStore.getCache(), BufferedImage.class);
 		// Turn off the use of ImageIODiskCache (it causes some trouble)
 		ImageIO.setUseCache(false);
+		// Use a persistent tile cache for the current project, if possible
+		projectProperty().addListener((v, o, n) -> updateProjectTileCache());
+		PathPrefs.projectTileCacheSizeMBProperty().addListener((v, o, n) -> updateProjectTileCache());
+	}
+	
+	
+	private void updateProjectTileCache() {
+		var previous = ImageServerProvider.getPersistentTileCache();
+		ImageServerProvider.setPersistentTileCache(null);
+		if (previous != null)
+			previous.close();
+		var project = getProject();
+		long maxBytes = PathPrefs.projectTileCacheSizeMBProperty().get() * 1024L * 1024L;
+		File dir = project == null ? null : Projects.getBaseDirectory(project);
+		if (dir == null || maxBytes <= 0)
+			return;
+		try {
+			var cache = PersistentTileCache.open(dir.toPath().resolve("cache").resolve("tiles"), maxBytes);
+			logger.debug("Using project tile cache {}", cache);
+			ImageServerProvider.setPersistentTileCache(cache);
+		} catch (IOException e) {
+			logger.warn("Unable to open project tile cache: {}", e.getLocalizedMessage());
+			logger.debug(e.getLocalizedMessage(), e);
+		}
 	}
 	
 	
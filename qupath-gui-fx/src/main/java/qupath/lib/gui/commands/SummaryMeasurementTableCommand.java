@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -44,6 +45,7 @@ import org.slf4j.LoggerFactory;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
@@ -238,7 +240,8 @@ public class SummaryMeasurementTableCommand {
 				}
 			} else {
 				TableColumn<PathObject, Number> col = new TableColumn<>(columnName);
-				col.setCellValueFactory(column -> model.createNumericMeasurement(column.getValue(), column.getTableColumn().getText()));
+				// Values are only requested for visible cells, so compute them directly rather than creating bindings
+				col.setCellValueFactory(column -> new ReadOnlyObjectWrapper<>(model.getNumericValue(column.getValue(), column.getTableColumn().getText())));
 				col.setCellFactory(column -> new NumericTableCell<>(histogramDisplay));
 				table.getColumns().add(col);			
 			}
@@ -252,8 +255,19 @@ public class SummaryMeasurementTableCommand {
 
 		// Set the PathObjects - need to deal with sorting, since a FilteredList won't handle it directly
 		SortedList<PathObject> items = new SortedList<>(model.getItems());
-		items.comparatorProperty().bind(table.comparatorProperty());
 		table.setItems(items);
+		// Sort using ranks computed from the cached column values, to avoid recomputing measurements for every comparison
+		table.setSortPolicy(t -> {
+			Comparator<PathObject> comparator = null;
+			for (var col : t.getSortOrder()) {
+				if (col == colThumbnails)
+					continue;
+				var next = model.createComparator(col.getText(), col.getSortType() == TableColumn.SortType.ASCENDING);
+				comparator = comparator == null ? next : comparator.thenComparing(next);
+			}
+			items.setComparator(comparator);
+			return true;
+		});
 
 
 		// Add buttons at the bottom
@@ -421,6 +435,7 @@ public class SummaryMeasurementTableCommand {
 					model.setImageData(imageData, imageData.getHierarchy().getObjects(null, type));
 				else
 					model.refreshEntries();
+				table.sort();
 				table.refresh();
 				if (histogramDisplay != null)
 					histogramDisplay.refreshHistogram();
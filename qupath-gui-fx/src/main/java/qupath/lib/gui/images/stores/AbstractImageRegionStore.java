@@ -24,16 +24,20 @@
 package qupath.lib.gui.images.stores;
 
 import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
@@ -46,7 +50,6 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
 import com.google.common.cache.Weigher;
 
 import qupath.lib.awt.common.AwtTools;
@@ -104,38 +107,42 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 	private TileRequestManager manager = new TileRequestManager(10);
 	
+	/**
+	 * Flag to control whether tiles should be prefetched, based upon how the visible region is changing.
+	 */
+	private static final boolean PREFETCH_TILES = System.getProperty("qupath.viewer.prefetch", "true").equalsIgnoreCase("true");
+	
+	private TilePrefetcher prefetcher = PREFETCH_TILES ? new TilePrefetcher(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 4))) : null;
+	
 	// Create two threadpools: a larger one for images that need to be fetched (e.g. from disk, cloud storage), and a smaller one
 	// for painting image tiles... the reason being that the high latency of distantly-stored images otherwise risks lowering
 	// repainting performance
-	private ExecutorService pool = Executors.newFixedThreadPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), ThreadTools.createThreadFactory("region-store-", false));
+	private final int nPoolThreads = Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32));
+	private ExecutorService pool = Executors.newFixedThreadPool(nPoolThreads, ThreadTools.createThreadFactory("region-store-", false));
 	private ExecutorService poolLocal = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), ThreadTools.createThreadFactory("region-store-local-", false));
 	
 	
 
 	protected AbstractImageRegionStore(final SizeEstimator<T> sizeEstimator, final int thumbnailSize, final long tileCacheSizeBytes) {
+		this(sizeEstimator, thumbnailSize, tileCacheSizeBytes, null);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param sizeEstimator estimator for the memory required by each tile
+	 * @param thumbnailSize maximum size of a thumbnail, in any dimension
+	 * @param tileCacheSizeBytes maximum memory to use for cached tiles
+	 * @param spillStore optional secondary store for tiles evicted from the cache; may be null
+	 */
+	protected AbstractImageRegionStore(final SizeEstimator<T> sizeEstimator, final int thumbnailSize, final long tileCacheSizeBytes, final RegionSpillStore<T> spillStore) {
 		this.maxThumbnailSize = thumbnailSize;
 		this.tileCacheSizeBytes = tileCacheSizeBytes;
 		
+		cache = new ShardedRegionCache<>(sizeEstimator, tileCacheSizeBytes, spillStore);
+		
 		// Because Guava uses integer weights, and we sometimes have *very* large images, we convert our size estimates KB
 		Weigher<RegionRequest, T> weigher = (var r, var t) -> (int)Long.min(Integer.MAX_VALUE, sizeEstimator.getApproxImageSize(t)/1024);
 		long maxWeight = Long.max(1, tileCacheSizeBytes / 1024);
-		// If concurrency > 1, the maximum size for an individual tile becomes maxWeight/concurrencyLevel
-		// This makes it more difficult to tune the cache size when working with large, non-pyramidal images
-		int concurrencyLevel = 1;
-		Cache<RegionRequest, T> originalCache = CacheBuilder.newBuilder()
-				.weigher(weigher)
-				.maximumWeight(maxWeight)
-				.softValues()
-				.concurrencyLevel(concurrencyLevel)
-//				.recordStats()
-				.removalListener(n -> {
-//					System.err.println(n.getKey() + " (" + cache.size() + ")");
-					if (n.getCause() == RemovalCause.COLLECTED)
-						logger.debug("Cached tile collected" + n.getKey() + " (cache size=" + cache.size()+")");
-					})
-				.build();
-		cache = originalCache.asMap();
-
 		Cache<RegionRequest, T> originalThumbnailCache = CacheBuilder.newBuilder()
 				.weigher(weigher)
 				.concurrencyLevel(1)
@@ -144,9 +151,6 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 				.build();
 		
 		thumbnailCache = originalThumbnailCache.asMap();
-		
-//		cache = new DefaultRegionCache<>(sizeEstimator, tileCacheSizeBytes);
-//		thumbnailCache = new DefaultRegionCache<>(sizeEstimator, tileCacheSizeBytes/4);
 	}
 
 	
@@ -214,6 +218,8 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	 */
 	protected void registerRequest(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
 		manager.registerRequest(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition);
+		if (prefetcher != null)
+			prefetcher.update(server, clipShape, downsampleFactor, zPosition, tPosition);
 	}
 	
 	protected void registerRequest(final TileListener<T> tileListener, final ImageServer<T> server, final RegionRequest region, final double downsampleFactor, final int zPosition, final int tPosition) {
@@ -235,6 +241,15 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		return cache;
 	}
 	
+	/**
+	 * Get statistics describing how effectively tiles have been prefetched.
+	 * @return the statistics, or null if prefetching is not enabled
+	 * @since v0.5.1
+	 */
+	public TilePrefetchStatistics getPrefetchStatistics() {
+		return prefetcher == null ? null : prefetcher.getStatistics();
+	}
+	
 	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.ImageRegionStore#removeTileListener(qupath.lib.images.stores.TileListener)
@@ -284,6 +299,8 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	protected void workerComplete(final TileWorker<T> worker) {
 		workers.remove(worker);
 		manager.taskCompleted(worker);
+		if (prefetcher != null)
+			prefetcher.taskCompleted(worker);
    		if (worker.isCancelled() || !stopWaiting(worker.getRequest())) {
    			return;
    		}
@@ -533,6 +550,10 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 			worker.cancel(true);
 		pool.shutdownNow();
 		poolLocal.shutdownNow();
+		if (prefetcher != null) {
+			logger.debug("{}", prefetcher.getStatistics());
+			prefetcher.close();
+		}
 		cache.clear();
 	}
 	
@@ -641,6 +662,200 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 	
 	
+	/**
+	 * Submit low-priority requests for tiles that are likely to be needed soon, based upon how the visible region is changing.
+	 * <p>
+	 * Prefetch requests use their own small thread pool, and are only submitted when the main pool isn't saturated
+	 * with requests for visible tiles - so they should never delay tiles that are needed now.
+	 * Requests that are no longer expected to be needed are cancelled.
+	 */
+	class TilePrefetcher {
+		
+		/**
+		 * How far ahead to predict the visible region.
+		 */
+		static final long HORIZON_MILLIS = 400;
+		
+		/**
+		 * Maximum number of tiles to prefetch for any update.
+		 */
+		static final int MAX_TILES = 64;
+		
+		/**
+		 * Maximum number of prefetched tiles to track, to determine whether they are subsequently used.
+		 */
+		static final int MAX_TRACKED = 512;
+		
+		private final int nThreads;
+		private final ExecutorService prefetchPool;
+		private final ViewerMotionPredictor predictor = new ViewerMotionPredictor();
+		
+		private ImageServer<T> server;
+		private String serverPath;
+		private int zPosition, tPosition;
+		
+		private List<RegionRequest> pending = new ArrayList<>();
+		private Map<RegionRequest, TileWorker<T>> inFlight = new HashMap<>();
+		private Set<RegionRequest> unused = new LinkedHashSet<>();
+		
+		private long nSubmitted, nCompleted, nCancelled, nHits, nUnused;
+		
+		TilePrefetcher(final int nThreads) {
+			this.nThreads = nThreads;
+			this.prefetchPool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("region-store-prefetch-", true, Thread.MIN_PRIORITY));
+		}
+		
+		/**
+		 * Update the prefetch requests according to the latest visible region.
+		 */
+		synchronized void update(final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
+			// Generated images are usually cheap, and can change often
+			if (server == null || clipShape == null || server instanceof GeneratingImageServer)
+				return;
+			long now = System.currentTimeMillis();
+			if (!server.getPath().equals(serverPath) || zPosition != this.zPosition || tPosition != this.tPosition) {
+				predictor.reset();
+				this.serverPath = server.getPath();
+				this.zPosition = zPosition;
+				this.tPosition = tPosition;
+			}
+			this.server = server;
+			var bounds = clipShape.getBounds2D();
+			predictor.update(bounds, downsampleFactor, now);
+			
+			// Record whether previously-prefetched tiles are now being used
+			var visible = new HashSet<>(ImageRegionStoreHelpers.getTilesToRequest(server, clipShape, downsampleFactor, zPosition, tPosition, null));
+			for (var request : visible) {
+				if (unused.remove(request))
+					nHits++;
+			}
+			
+			// Request tiles along the direction of motion, then neighboring tiles, then the next resolution if zooming
+			Set<RegionRequest> wanted = new LinkedHashSet<>();
+			var predicted = predictor.predictBounds(HORIZON_MILLIS);
+			if (predictor.isPanning(now))
+				addTiles(wanted, predicted, downsampleFactor);
+			if (!visible.isEmpty()) {
+				var tile = visible.iterator().next();
+				var expanded = new Rectangle2D.Double(
+						bounds.getX() - tile.getWidth(), bounds.getY() - tile.getHeight(),
+						bounds.getWidth() + tile.getWidth() * 2, bounds.getHeight() + tile.getHeight() * 2);
+				addTiles(wanted, expanded, downsampleFactor);
+			}
+			int zoomDirection = predictor.getZoomDirection(now);
+			if (zoomDirection != 0) {
+				double nextDownsample = getNextDownsample(server, downsampleFactor, zoomDirection);
+				if (nextDownsample > 0)
+					addTiles(wanted, predicted, nextDownsample);
+			}
+			wanted.removeAll(visible);
+			wanted.removeIf(r -> cache.containsKey(r));
+			
+			// Cancel anything that is no longer needed
+			pending.clear();
+			List<TileWorker<T>> stale = new ArrayList<>();
+			var iter = inFlight.entrySet().iterator();
+			while (iter.hasNext()) {
+				var entry = iter.next();
+				if (!wanted.contains(entry.getKey()) && !visible.contains(entry.getKey())) {
+					stale.add(entry.getValue());
+					iter.remove();
+				}
+			}
+			for (var worker : stale) {
+				worker.cancel(true);
+				waitingMap.remove(worker.getRequest(), worker);
+				nCancelled++;
+			}
+			
+			for (var request : wanted) {
+				if (pending.size() >= MAX_TILES)
+					break;
+				if (!inFlight.containsKey(request))
+					pending.add(request);
+			}
+			submitPending();
+		}
+		
+		private void addTiles(Set<RegionRequest> wanted, Rectangle2D region, double downsample) {
+			var imageBounds = new Rectangle2D.Double(0, 0, server.getWidth(), server.getHeight());
+			var clipped = region.createIntersection(imageBounds);
+			if (clipped.isEmpty())
+				return;
+			wanted.addAll(ImageRegionStoreHelpers.getTilesToRequest(server, clipped, downsample, zPosition, tPosition, null));
+		}
+		
+		/**
+		 * Get the next preferred downsample when zooming in (direction &lt; 0) or out (direction &gt; 0), 
+		 * or -1 if there is no other resolution available.
+		 */
+		private double getNextDownsample(ImageServer<T> server, double downsample, int direction) {
+			double[] downsamples = server.getPreferredDownsamples().clone();
+			Arrays.sort(downsamples);
+			if (direction < 0) {
+				for (int i = downsamples.length-1; i >= 0; i--) {
+					if (downsamples[i] < downsample / 1.01)
+						return downsamples[i];
+				}
+			} else {
+				for (double d : downsamples) {
+					if (d > downsample * 1.01)
+						return d;
+				}
+			}
+			return -1;
+		}
+		
+		/**
+		 * Submit pending requests, if there are idle prefetch threads and visible requests aren't waiting.
+		 */
+		private void submitPending() {
+			while (inFlight.size() < nThreads && !pending.isEmpty() && !prefetchPool.isShutdown()) {
+				if (waitingMap.size() - inFlight.size() >= nPoolThreads)
+					return;
+				var request = pending.remove(0);
+				if (cache.containsKey(request) || waitingMap.containsKey(request))
+					continue;
+				var worker = createTileWorker(server, request, cache, false);
+				waitingMap.put(request, worker);
+				inFlight.put(request, worker);
+				workers.add(worker);
+				nSubmitted++;
+				prefetchPool.execute(worker);
+			}
+		}
+		
+		synchronized void taskCompleted(final TileWorker<T> worker) {
+			var request = worker.getRequest();
+			if (inFlight.remove(request, worker) && !worker.isCancelled()) {
+				nCompleted++;
+				unused.add(request);
+				if (unused.size() > MAX_TRACKED) {
+					var iter = unused.iterator();
+					iter.next();
+					iter.remove();
+					nUnused++;
+				}
+			}
+			submitPending();
+		}
+		
+		synchronized TilePrefetchStatistics getStatistics() {
+			return new TilePrefetchStatistics(nSubmitted, nCompleted, nCancelled, nHits, nUnused);
+		}
+		
+		synchronized void close() {
+			pending.clear();
+			for (var worker : inFlight.values())
+				worker.cancel(true);
+			inFlight.clear();
+			prefetchPool.shutdownNow();
+		}
+		
+	}
+	
+	
+	
 	static class TileRequestCollection<T> {
 		
 		private long timestamp;
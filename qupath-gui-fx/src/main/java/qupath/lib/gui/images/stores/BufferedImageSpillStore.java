@@ -0,0 +1,547 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * {@link RegionSpillStore} for {@link BufferedImage} tiles, which keeps pixels outside the Java heap.
+ * <p>
+ * Pixels are first copied to direct byte buffers. When these exceed the off-heap limit, the least recently
+ * used tiles are written to temporary files, up to a separate disk limit - beyond which the least recently used
+ * tiles are discarded.
+ * The color model and sample model are retained on the heap, so that the original image can be recreated exactly.
+ * <p>
+ * Only images whose raster is not a child raster are supported; other images are silently discarded.
+ * Files are written and deleted without holding the lock used to access the store.
+ */
+class BufferedImageSpillStore implements RegionSpillStore<BufferedImage> {
+
+	private static final Logger logger = LoggerFactory.getLogger(BufferedImageSpillStore.class);
+
+	private final long maxOffHeapBytes;
+	private final long maxDiskBytes;
+
+	// Access-order, so that the first entry is the least recently used
+	private final Map<RegionRequest, SpilledTile> map = new LinkedHashMap<>(16, 0.75f, true);
+
+	// Bytes are counted towards the disk as soon as a tile is scheduled to be written
+	private long offHeapBytes = 0;
+	private long diskBytes = 0;
+
+	private final Object dirLock = new Object();
+	private volatile Path dir;
+	private final AtomicLong fileCounter = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * @param maxOffHeapBytes maximum number of bytes to store in direct buffers
+	 * @param maxDiskBytes maximum number of bytes to write to temporary files; if &le; 0, the disk will not be used
+	 */
+	BufferedImageSpillStore(long maxOffHeapBytes, long maxDiskBytes) {
+		this.maxOffHeapBytes = Math.max(0, maxOffHeapBytes);
+		this.maxDiskBytes = Math.max(0, maxDiskBytes);
+	}
+
+	@Override
+	public void put(RegionRequest request, BufferedImage img) {
+		var tile = SpilledTile.create(request, img);
+		if (tile == null || tile.nBytes > Math.max(maxOffHeapBytes, maxDiskBytes)) {
+			remove(request);
+			return;
+		}
+		// Copy (and if necessary write) the pixels before synchronizing
+		boolean offHeap = tile.nBytes <= maxOffHeapBytes;
+		var buffer = tile.encode(offHeap ? ByteBuffer.allocateDirect((int)tile.nBytes) : ByteBuffer.allocate((int)tile.nBytes));
+		Path file = null;
+		if (!offHeap) {
+			file = writeToDisk(buffer);
+			if (file == null) {
+				remove(request);
+				return;
+			}
+		}
+		List<SpilledTile> toWrite = new ArrayList<>();
+		List<Path> toDelete = new ArrayList<>();
+		synchronized (this) {
+			removeTile(map.remove(request), toDelete);
+			if (offHeap) {
+				tile.buffer = buffer;
+				offHeapBytes += tile.nBytes;
+			} else {
+				tile.file = file;
+				tile.onDisk = true;
+				diskBytes += tile.nBytes;
+			}
+			map.put(request, tile);
+			ensureWithinLimits(toWrite, toDelete);
+		}
+		moveToDisk(toWrite, toDelete);
+		deleteFiles(toDelete);
+	}
+
+	@Override
+	public BufferedImage get(RegionRequest request) {
+		SpilledTile tile;
+		ByteBuffer buffer;
+		Path file;
+		synchronized (this) {
+			tile = map.get(request);
+			if (tile == null)
+				return null;
+			buffer = tile.buffer == null ? null : tile.buffer.duplicate();
+			file = tile.file;
+		}
+		try {
+			if (buffer == null) {
+				buffer = ByteBuffer.allocate((int)tile.nBytes);
+				try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer) < 0)
+							throw new IOException("Unexpected end of file " + file);
+					}
+				}
+				buffer.flip();
+			}
+			return tile.decode(buffer);
+		} catch (IOException e) {
+			// The file may have been removed by another thread - which isn't a problem
+			logger.debug("Unable to read spilled tile: {}", e.getLocalizedMessage());
+			List<Path> toDelete = new ArrayList<>();
+			synchronized (this) {
+				if (map.remove(request, tile))
+					removeTile(tile, toDelete);
+			}
+			deleteFiles(toDelete);
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized boolean containsKey(RegionRequest request) {
+		return map.containsKey(request);
+	}
+
+	@Override
+	public void remove(RegionRequest request) {
+		List<Path> toDelete = new ArrayList<>();
+		synchronized (this) {
+			removeTile(map.remove(request), toDelete);
+		}
+		deleteFiles(toDelete);
+	}
+
+	@Override
+	public synchronized Collection<RegionRequest> keys() {
+		return new ArrayList<>(map.keySet());
+	}
+
+	@Override
+	public synchronized int size() {
+		return map.size();
+	}
+
+	@Override
+	public void clear() {
+		List<Path> toDelete = new ArrayList<>();
+		synchronized (this) {
+			for (var tile : map.values())
+				removeTile(tile, toDelete);
+			map.clear();
+		}
+		deleteFiles(toDelete);
+	}
+
+	/**
+	 * Get the number of bytes currently stored in direct buffers.
+	 * @return
+	 */
+	synchronized long getOffHeapBytes() {
+		return offHeapBytes;
+	}
+
+	/**
+	 * Get the number of bytes currently stored on disk.
+	 * @return
+	 */
+	synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	/**
+	 * Schedule tiles to be moved from direct buffers to disk, and discard tiles from disk, until we are within our limits.
+	 * This only updates the bookkeeping; files are written and deleted later, without holding the lock.
+	 * @param toWrite list to which tiles that should be written to disk are added
+	 * @param toDelete list to which files that should be deleted are added
+	 */
+	private void ensureWithinLimits(List<SpilledTile> toWrite, List<Path> toDelete) {
+		if (offHeapBytes > maxOffHeapBytes) {
+			Iterator<SpilledTile> iter = map.values().iterator();
+			while (offHeapBytes > maxOffHeapBytes && iter.hasNext()) {
+				var tile = iter.next();
+				if (tile.onDisk)
+					continue;
+				if (tile.nBytes > maxDiskBytes) {
+					iter.remove();
+					removeTile(tile, toDelete);
+					continue;
+				}
+				// Keep the buffer until the file has been written, so that the tile can still be read
+				tile.onDisk = true;
+				offHeapBytes -= tile.nBytes;
+				diskBytes += tile.nBytes;
+				toWrite.add(tile);
+			}
+		}
+		if (diskBytes > maxDiskBytes) {
+			Iterator<SpilledTile> iter = map.values().iterator();
+			while (diskBytes > maxDiskBytes && iter.hasNext()) {
+				var tile = iter.next();
+				if (!tile.onDisk)
+					continue;
+				iter.remove();
+				removeTile(tile, toDelete);
+			}
+		}
+	}
+
+	/**
+	 * Write tiles that have been scheduled to move to disk, then release their direct buffers.
+	 * Any tiles that were removed in the meantime have their files deleted instead.
+	 */
+	private void moveToDisk(List<SpilledTile> tiles, List<Path> toDelete) {
+		for (var tile : tiles) {
+			ByteBuffer buffer;
+			synchronized (this) {
+				if (tile.removed)
+					continue;
+				buffer = tile.buffer.duplicate();
+			}
+			var file = writeToDisk(buffer);
+			synchronized (this) {
+				if (tile.removed) {
+					if (file != null)
+						toDelete.add(file);
+				} else if (file == null) {
+					map.remove(tile.request, tile);
+					removeTile(tile, toDelete);
+				} else {
+					tile.file = file;
+					tile.buffer = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a buffer to a new temporary file.
+	 * @return the file, or null if the buffer could not be written
+	 */
+	private Path writeToDisk(ByteBuffer buffer) {
+		if (maxDiskBytes <= 0)
+			return null;
+		Path file = null;
+		try {
+			file = getDirectory().resolve("tile-" + fileCounter.getAndIncrement() + ".bin");
+			try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				buffer.rewind();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+			return file;
+		} catch (IOException e) {
+			logger.warn("Unable to write tile to disk cache: {}", e.getLocalizedMessage());
+			logger.debug(e.getLocalizedMessage(), e);
+			if (file != null)
+				deleteFiles(Collections.singletonList(file));
+			return null;
+		}
+	}
+
+	/**
+	 * Update the bookkeeping for a tile that has been removed from the map.
+	 * @param tile the tile (may be null)
+	 * @param toDelete list to which any file that should be deleted is added
+	 */
+	private void removeTile(SpilledTile tile, List<Path> toDelete) {
+		if (tile == null || tile.removed)
+			return;
+		tile.removed = true;
+		if (tile.onDisk)
+			diskBytes -= tile.nBytes;
+		else
+			offHeapBytes -= tile.nBytes;
+		tile.buffer = null;
+		if (tile.file != null) {
+			toDelete.add(tile.file);
+			tile.file = null;
+		}
+	}
+
+	private static void deleteFiles(List<Path> files) {
+		for (var file : files) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				logger.debug("Unable to delete {}: {}", file, e.getLocalizedMessage());
+			}
+		}
+	}
+
+	private Path getDirectory() throws IOException {
+		var path = dir;
+		if (path == null) {
+			synchronized (dirLock) {
+				path = dir;
+				if (path == null) {
+					var temp = Files.createTempDirectory("qupath-tiles");
+					Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteDirectory(temp)));
+					dir = path = temp;
+				}
+			}
+		}
+		return path;
+	}
+
+	private static void deleteDirectory(Path path) {
+		try (var stream = Files.walk(path)) {
+			stream.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		} catch (IOException e) {
+			logger.debug("Unable to delete tile cache directory: {}", e.getLocalizedMessage());
+		}
+	}
+
+
+	/**
+	 * Everything needed to recreate a BufferedImage, except the pixel values themselves.
+	 */
+	private static class SpilledTile {
+
+		private final RegionRequest request;
+		private final ColorModel colorModel;
+		private final SampleModel sampleModel;
+		private final int dataType;
+		private final int[] offsets;
+		private final int[] bankLengths;
+		private final int size;
+		private final int bytesPerElement;
+		private final long nBytes;
+
+		// Only used during encoding
+		private DataBuffer dataBuffer;
+
+		// At least one of these should be non-null while the tile is stored
+		// (both may be briefly set while the tile is being written to disk)
+		private ByteBuffer buffer;
+		private Path file;
+
+		// True if the tile is counted towards the disk limit, false if it is counted towards the off-heap limit
+		private boolean onDisk;
+		// True if the tile has been removed from the store
+		private boolean removed;
+
+		private SpilledTile(RegionRequest request, ColorModel colorModel, SampleModel sampleModel, DataBuffer dataBuffer) {
+			this.request = request;
+			this.colorModel = colorModel;
+			this.sampleModel = sampleModel;
+			this.dataBuffer = dataBuffer;
+			this.dataType = dataBuffer.getDataType();
+			this.offsets = dataBuffer.getOffsets();
+			this.size = dataBuffer.getSize();
+			this.bytesPerElement = DataBuffer.getDataTypeSize(dataType) / 8;
+			this.bankLengths = new int[dataBuffer.getNumBanks()];
+			long n = 0;
+			for (int b = 0; b < bankLengths.length; b++) {
+				bankLengths[b] = bankLength(dataBuffer, b);
+				n += (long)bankLengths[b] * bytesPerElement;
+			}
+			this.nBytes = n;
+		}
+
+		static SpilledTile create(RegionRequest request, BufferedImage img) {
+			if (img == null)
+				return null;
+			var raster = img.getRaster();
+			if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+				return null;
+			var db = raster.getDataBuffer();
+			if (bankLength(db, 0) < 0)
+				return null;
+			var tile = new SpilledTile(request, img.getColorModel(), raster.getSampleModel(), db);
+			if (tile.nBytes > Integer.MAX_VALUE)
+				return null;
+			return tile;
+		}
+
+		ByteBuffer encode(ByteBuffer buffer) {
+			buffer.order(ByteOrder.nativeOrder());
+			for (int b = 0; b < bankLengths.length; b++) {
+				int pos = buffer.position();
+				switch (dataType) {
+				case DataBuffer.TYPE_BYTE:
+					buffer.put(((DataBufferByte)dataBuffer).getData(b));
+					break;
+				case DataBuffer.TYPE_USHORT:
+					buffer.asShortBuffer().put(((DataBufferUShort)dataBuffer).getData(b));
+					break;
+				case DataBuffer.TYPE_SHORT:
+					buffer.asShortBuffer().put(((DataBufferShort)dataBuffer).getData(b));
+					break;
+				case DataBuffer.TYPE_INT:
+					buffer.asIntBuffer().put(((DataBufferInt)dataBuffer).getData(b));
+					break;
+				case DataBuffer.TYPE_FLOAT:
+					buffer.asFloatBuffer().put(((DataBufferFloat)dataBuffer).getData(b));
+					break;
+				case DataBuffer.TYPE_DOUBLE:
+					buffer.asDoubleBuffer().put(((DataBufferDouble)dataBuffer).getData(b));
+					break;
+				default:
+					throw new IllegalArgumentException("Unsupported data type " + dataType);
+				}
+				buffer.position(pos + bankLengths[b] * bytesPerElement);
+			}
+			buffer.flip();
+			// We no longer need the original pixels
+			dataBuffer = null;
+			return buffer;
+		}
+
+		BufferedImage decode(ByteBuffer buffer) {
+			buffer.order(ByteOrder.nativeOrder());
+			int nBanks = bankLengths.length;
+			DataBuffer db;
+			switch (dataType) {
+			case DataBuffer.TYPE_BYTE:
+				var bytes = new byte[nBanks][];
+				for (int b = 0; b < nBanks; b++) {
+					bytes[b] = new byte[bankLengths[b]];
+					buffer.get(bytes[b]);
+				}
+				db = new DataBufferByte(bytes, size, offsets);
+				break;
+			case DataBuffer.TYPE_USHORT:
+				var ushorts = new short[nBanks][];
+				for (int b = 0; b < nBanks; b++) {
+					ushorts[b] = new short[bankLengths[b]];
+					buffer.asShortBuffer().get(ushorts[b]);
+					buffer.position(buffer.position() + bankLengths[b] * bytesPerElement);
+				}
+				db = new DataBufferUShort(ushorts, size, offsets);
+				break;
+			case DataBuffer.TYPE_SHORT:
+				var shorts = new short[nBanks][];
+				for (int b = 0; b < nBanks; b++) {
+					shorts[b] = new short[bankLengths[b]];
+					buffer.asShortBuffer().get(shorts[b]);
+					buffer.position(buffer.position() + bankLengths[b] * bytesPerElement);
+				}
+				db = new DataBufferShort(shorts, size, offsets);
+				break;
+			case DataBuffer.TYPE_INT:
+				var ints = new int[nBanks][];
+				for (int b = 0; b < nBanks; b++) {
+					ints[b] = new int[bankLengths[b]];
+					buffer.asIntBuffer().get(ints[b]);
+					buffer.position(buffer.position() + bankLengths[b] * bytesPerElement);
+				}
+				db = new DataBufferInt(ints, size, offsets);
+				break;
+			case DataBuffer.TYPE_FLOAT:
+				var floats = new float[nBanks][];
+				for (int b = 0; b < nBanks; b++) {
+					floats[b] = new float[bankLengths[b]];
+					buffer.asFloatBuffer().get(floats[b]);
+					buffer.position(buffer.position() + bankLengths[b] * bytesPerElement);
+				}
+				db = new DataBufferFloat(floats, size, offsets);
+				break;
+			case DataBuffer.TYPE_DOUBLE:
+				var doubles = new double[nBanks][];
+				for (int b = 0; b < nBanks; b++) {
+					doubles[b] = new double[bankLengths[b]];
+					buffer.asDoubleBuffer().get(doubles[b]);
+					buffer.position(buffer.position() + bankLengths[b] * bytesPerElement);
+				}
+				db = new DataBufferDouble(doubles, size, offsets);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported data type " + dataType);
+			}
+			WritableRaster raster = Raster.createWritableRaster(sampleModel, db, null);
+			return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+		}
+
+		/**
+		 * Get the length of the array backing a bank, or -1 if the data buffer type isn't supported.
+		 */
+		private static int bankLength(DataBuffer db, int bank) {
+			if (db instanceof DataBufferByte)
+				return ((DataBufferByte)db).getData(bank).length;
+			if (db instanceof DataBufferUShort)
+				return ((DataBufferUShort)db).getData(bank).length;
+			if (db instanceof DataBufferShort)
+				return ((DataBufferShort)db).getData(bank).length;
+			if (db instanceof DataBufferInt)
+				return ((DataBufferInt)db).getData(bank).length;
+			if (db instanceof DataBufferFloat)
+				return ((DataBufferFloat)db).getData(bank).length;
+			if (db instanceof DataBufferDouble)
+				return ((DataBufferDouble)db).getData(bank).length;
+			return -1;
+		}
+
+	}
+
+}
@@ -63,8 +63,15 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	
 	private static boolean DEBUG_TILES = false;
 
+	/**
+	 * Maximum number of bytes used to store tiles evicted from the cache in temporary files.
+	 * Tiles are first moved outside the Java heap, and only written to disk when this is also full.
+	 */
+	private static final long TILE_CACHE_DISK_BYTES = Long.getLong("qupath.tileCache.diskBytes", 2L * 1024L * 1024L * 1024L);
+
 	DefaultImageRegionStore(int thumbnailWidth, long tileCacheSize) {
-		super(new BufferedImageSizeEstimator(), thumbnailWidth, tileCacheSize);
+		super(new BufferedImageSizeEstimator(), thumbnailWidth, tileCacheSize,
+				new BufferedImageSpillStore(tileCacheSize / 2, TILE_CACHE_DISK_BYTES));
 	}
 
 	DefaultImageRegionStore(long tileCacheSize) {
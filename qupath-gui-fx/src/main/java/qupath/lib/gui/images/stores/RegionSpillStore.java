@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.util.Collection;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Secondary storage for tiles that have been evicted from a {@link ShardedRegionCache}.
+ * <p>
+ * Implementations should be thread-safe, and are free to discard entries at any time
+ * (e.g. to remain within a memory or disk budget).
+ *
+ * @param <T>
+ */
+interface RegionSpillStore<T> {
+
+	/**
+	 * Store a value, replacing any existing value for the same request.
+	 * The value may be silently discarded if it cannot be stored.
+	 * @param request
+	 * @param value
+	 */
+	void put(RegionRequest request, T value);
+
+	/**
+	 * Get a copy of the stored value, or null if no value is available.
+	 * @param request
+	 * @return
+	 */
+	T get(RegionRequest request);
+
+	/**
+	 * Query whether a value is stored for the request.
+	 * @param request
+	 * @return
+	 */
+	boolean containsKey(RegionRequest request);
+
+	/**
+	 * Remove any value stored for the request.
+	 * @param request
+	 */
+	void remove(RegionRequest request);
+
+	/**
+	 * Get a snapshot of all the requests with stored values.
+	 * @return
+	 */
+	Collection<RegionRequest> keys();
+
+	/**
+	 * Get the number of stored values.
+	 * @return
+	 */
+	int size();
+
+	/**
+	 * Remove all stored values.
+	 */
+	void clear();
+
+}
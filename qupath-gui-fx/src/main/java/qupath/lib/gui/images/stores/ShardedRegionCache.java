@@ -0,0 +1,584 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Map for storing image tiles, bounded by the approximate memory required for the tiles.
+ * <p>
+ * Entries are split across independently-locked shards, so that concurrent tile requests
+ * don't need to contend for a single lock.
+ * Within each shard, new tiles enter a small LRU window; tiles leaving the window are only admitted
+ * to the main region if they have been requested more often than the tile they would replace
+ * (estimated using a {@link FrequencySketch}).
+ * This helps prevent a single pan across a large image from flushing tiles that are used repeatedly.
+ * <p>
+ * Evicted tiles may optionally be passed to a {@link RegionSpillStore}, from which they are
+ * restored if requested again.
+ * Keys in the spill store are included when querying the size, keys or entries of the map.
+ * <p>
+ * The memory limit applies to the total for all shards; a single tile larger than the limit is not cached.
+ * Tiles are held using soft references, so that they can still be released if memory is low.
+ * Null keys and values are not supported.
+ *
+ * @param <T>
+ */
+class ShardedRegionCache<T> extends AbstractMap<RegionRequest, T> {
+
+	private static final int N_SHARDS = 16;
+
+	/**
+	 * Proportion of the memory limit used for the admission window.
+	 */
+	private static final double WINDOW_PROPORTION = 0.01;
+
+	private final SizeEstimator<T> sizeEstimator;
+	private final RegionSpillStore<T> spillStore;
+	private final long maxWeight;
+	private final AtomicLong weight = new AtomicLong();
+	private final List<Shard> shards = new ArrayList<>();
+	private final ReferenceQueue<T> collected = new ReferenceQueue<>();
+
+	/**
+	 * Constructor.
+	 * @param sizeEstimator estimator for the memory required by each tile
+	 * @param maxSizeBytes maximum memory to use for cached tiles, in bytes
+	 * @param spillStore optional store to receive evicted tiles; may be null
+	 */
+	ShardedRegionCache(final SizeEstimator<T> sizeEstimator, final long maxSizeBytes, final RegionSpillStore<T> spillStore) {
+		this.sizeEstimator = sizeEstimator;
+		this.maxWeight = Math.max(1, maxSizeBytes);
+		this.spillStore = spillStore;
+		// Rough estimate of the number of tiles we might need to count, assuming 256x256 RGB.
+		// The sketch also needs to count tiles that aren't admitted, so shouldn't be too small - 
+		// otherwise collisions make one-off requests look as frequent as tiles that are reused
+		int expectedSize = (int)Math.min(1 << 20, maxWeight / (256 * 256 * 4) / N_SHARDS + 64);
+		long maxWindowWeight = Math.max(1, (long)(maxWeight * WINDOW_PROPORTION / N_SHARDS));
+		for (int i = 0; i < N_SHARDS; i++)
+			shards.add(new Shard(expectedSize, maxWindowWeight));
+	}
+
+	/**
+	 * Get the maximum memory that may be used by tiles in the cache, in bytes.
+	 * @return
+	 */
+	long getMaxSizeBytes() {
+		return maxWeight;
+	}
+
+	/**
+	 * Get the approximate memory currently used by tiles in the cache, in bytes.
+	 * This excludes any tiles in the spill store.
+	 * @return
+	 */
+	long getSizeBytes() {
+		return weight.get();
+	}
+
+	@Override
+	public T put(RegionRequest key, T value) {
+		Objects.requireNonNull(key, "Cache key must not be null");
+		Objects.requireNonNull(value, "Cache value must not be null");
+		long w = Math.max(1, sizeEstimator.getApproxImageSize(value));
+		if (spillStore != null)
+			spillStore.remove(key);
+		purgeCollected();
+		var shard = shardFor(key);
+		List<Node<T>> evicted = new ArrayList<>();
+		T previous = null;
+		shard.lock.lock();
+		try {
+			shard.sketch.increment(key);
+			var old = shard.removeNode(key);
+			if (old != null)
+				previous = old.get();
+			if (w > maxWeight)
+				return previous;
+			var node = new Node<>(key, value, w, collected);
+			shard.window.put(key, node);
+			shard.windowWeight += w;
+			weight.addAndGet(w);
+			shard.drainWindow(evicted);
+			while (weight.get() > maxWeight && shard.evictOne(evicted, key))
+				continue;
+		} finally {
+			shard.lock.unlock();
+		}
+		if (weight.get() > maxWeight)
+			evictFromOtherShards(shard, evicted);
+		spill(evicted);
+		return previous;
+	}
+
+	@Override
+	public T get(Object key) {
+		if (!(key instanceof RegionRequest))
+			return null;
+		var request = (RegionRequest)key;
+		var shard = shardFor(request);
+		shard.lock.lock();
+		try {
+			shard.sketch.increment(request);
+			var value = shard.getValue(request);
+			if (value != null)
+				return value;
+		} finally {
+			shard.lock.unlock();
+		}
+		if (spillStore == null)
+			return null;
+		// Restore from the spill store, if we can
+		T value = spillStore.get(request);
+		if (value != null)
+			put(request, value);
+		return value;
+	}
+
+	/**
+	 * Get a value without recording the access or restoring it from the spill store.
+	 * @param request
+	 * @return
+	 */
+	private T peek(RegionRequest request) {
+		var shard = shardFor(request);
+		shard.lock.lock();
+		try {
+			var value = shard.getValue(request);
+			if (value != null)
+				return value;
+		} finally {
+			shard.lock.unlock();
+		}
+		return spillStore == null ? null : spillStore.get(request);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof RegionRequest))
+			return false;
+		var request = (RegionRequest)key;
+		var shard = shardFor(request);
+		shard.lock.lock();
+		try {
+			if (shard.getValue(request) != null)
+				return true;
+		} finally {
+			shard.lock.unlock();
+		}
+		return spillStore != null && spillStore.containsKey(request);
+	}
+
+	/**
+	 * Remove a tile from the cache and any spill store.
+	 * Only tiles removed from memory are returned; for tiles in the spill store, the return value is null.
+	 */
+	@Override
+	public T remove(Object key) {
+		if (!(key instanceof RegionRequest))
+			return null;
+		var request = (RegionRequest)key;
+		var shard = shardFor(request);
+		T previous = null;
+		shard.lock.lock();
+		try {
+			var node = shard.removeNode(request);
+			if (node != null)
+				previous = node.get();
+		} finally {
+			shard.lock.unlock();
+		}
+		if (spillStore != null)
+			spillStore.remove(request);
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		for (var shard : shards) {
+			shard.lock.lock();
+			try {
+				shard.clear();
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		if (spillStore != null)
+			spillStore.clear();
+	}
+
+	@Override
+	public int size() {
+		purgeCollected();
+		int size = 0;
+		for (var shard : shards) {
+			shard.lock.lock();
+			try {
+				size += shard.window.size() + shard.main.size();
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		if (spillStore != null)
+			size += spillStore.size();
+		return size;
+	}
+
+	/**
+	 * Get a view of the entries.
+	 * Iteration is performed on a snapshot of the keys, and values are retrieved lazily -
+	 * therefore {@link java.util.Map.Entry#getValue()} can return null if the tile is removed during iteration.
+	 */
+	@Override
+	public Set<Entry<RegionRequest, T>> entrySet() {
+		return new AbstractSet<>() {
+
+			@Override
+			public Iterator<Entry<RegionRequest, T>> iterator() {
+				return new EntryIterator(snapshotKeys());
+			}
+
+			@Override
+			public int size() {
+				return ShardedRegionCache.this.size();
+			}
+
+		};
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Cache: %d tiles, %.1f/%.1f MB", size(), weight.get()/1024.0/1024.0, maxWeight/1024.0/1024.0);
+	}
+
+	private List<RegionRequest> snapshotKeys() {
+		purgeCollected();
+		Set<RegionRequest> keys = new LinkedHashSet<>();
+		for (var shard : shards) {
+			shard.lock.lock();
+			try {
+				keys.addAll(shard.window.keySet());
+				keys.addAll(shard.main.keySet());
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		if (spillStore != null)
+			keys.addAll(spillStore.keys());
+		return new ArrayList<>(keys);
+	}
+
+	/**
+	 * Evict tiles from shards other than the one specified, until we are within the memory limit.
+	 * Shards that are currently locked are skipped, so this may not always succeed.
+	 */
+	private void evictFromOtherShards(Shard current, List<Node<T>> evicted) {
+		int start = shards.indexOf(current);
+		boolean changed = true;
+		while (changed && weight.get() > maxWeight) {
+			changed = false;
+			for (int i = 1; i < N_SHARDS && weight.get() > maxWeight; i++) {
+				var shard = shards.get((start + i) % N_SHARDS);
+				if (!shard.lock.tryLock())
+					continue;
+				try {
+					changed |= shard.evictOne(evicted, null);
+				} finally {
+					shard.lock.unlock();
+				}
+			}
+		}
+	}
+
+	private void spill(List<Node<T>> evicted) {
+		if (spillStore == null)
+			return;
+		for (var node : evicted) {
+			// Tiles that have already been collected can't be spilled
+			T value = node.get();
+			if (value != null)
+				spillStore.put(node.key, value);
+		}
+	}
+
+	/**
+	 * Remove entries for tiles that have been garbage collected, so that they no longer count towards the memory used.
+	 */
+	@SuppressWarnings("unchecked")
+	private void purgeCollected() {
+		Node<T> node;
+		while ((node = (Node<T>)collected.poll()) != null) {
+			var shard = shardFor(node.key);
+			shard.lock.lock();
+			try {
+				shard.removeNode(node);
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+	}
+
+	private Shard shardFor(RegionRequest request) {
+		int h = request.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x45d9f3b;
+		h ^= (h >>> 16);
+		return shards.get(h & (N_SHARDS - 1));
+	}
+
+	private static <K, V> V pollFirst(Map<K, V> map) {
+		var iter = map.values().iterator();
+		var value = iter.next();
+		iter.remove();
+		return value;
+	}
+
+	private static <K, V> V peekFirst(Map<K, V> map) {
+		return map.values().iterator().next();
+	}
+
+
+	private static class Node<T> extends SoftReference<T> {
+
+		private final RegionRequest key;
+		private final long weight;
+
+		private Node(RegionRequest key, T value, long weight, ReferenceQueue<T> queue) {
+			super(value, queue);
+			this.key = key;
+			this.weight = weight;
+		}
+
+	}
+
+
+	/**
+	 * A single shard. All methods should be called while holding the lock.
+	 */
+	private class Shard {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final FrequencySketch sketch;
+
+		// Both maps use access-order, so that the first entry is the least recently used
+		private final Map<RegionRequest, Node<T>> window = new LinkedHashMap<>(16, 0.75f, true);
+		private final Map<RegionRequest, Node<T>> main = new LinkedHashMap<>(16, 0.75f, true);
+
+		private final long maxWindowWeight;
+		private long windowWeight = 0;
+
+		private Shard(int expectedSize, long maxWindowWeight) {
+			this.sketch = new FrequencySketch(expectedSize);
+			this.maxWindowWeight = maxWindowWeight;
+		}
+
+		/**
+		 * Get the value for a tile, removing its entry if the tile has been garbage collected.
+		 */
+		private T getValue(RegionRequest request) {
+			var node = window.get(request);
+			if (node == null)
+				node = main.get(request);
+			if (node == null)
+				return null;
+			T value = node.get();
+			if (value == null)
+				removeNode(node);
+			return value;
+		}
+
+		private Node<T> removeNode(RegionRequest request) {
+			var node = window.remove(request);
+			if (node != null)
+				windowWeight -= node.weight;
+			else
+				node = main.remove(request);
+			if (node != null)
+				weight.addAndGet(-node.weight);
+			return node;
+		}
+
+		/**
+		 * Remove a specific node, if it is still in the shard.
+		 */
+		private void removeNode(Node<T> node) {
+			if (window.remove(node.key, node))
+				windowWeight -= node.weight;
+			else if (!main.remove(node.key, node))
+				return;
+			weight.addAndGet(-node.weight);
+		}
+
+		/**
+		 * Move tiles out of the window, either into the main region or to be evicted
+		 * (depending upon how frequently they have been requested).
+		 * The most recently added tile always remains in the window.
+		 */
+		private void drainWindow(List<Node<T>> evicted) {
+			while (windowWeight > maxWindowWeight && window.size() > 1) {
+				var candidate = pollFirst(window);
+				windowWeight -= candidate.weight;
+				if (weight.get() <= maxWeight || main.isEmpty()) {
+					main.put(candidate.key, candidate);
+					continue;
+				}
+				var victim = peekFirst(main);
+				if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+					main.remove(victim.key);
+					evict(victim, evicted);
+					main.put(candidate.key, candidate);
+				} else
+					evict(candidate, evicted);
+			}
+		}
+
+		/**
+		 * Evict the least recently used tile, preferring the main region over the window.
+		 * @param evicted list to which the evicted tile should be added
+		 * @param keep key of a tile that should not be evicted, or null
+		 * @return true if a tile was evicted, false otherwise
+		 */
+		private boolean evictOne(List<Node<T>> evicted, RegionRequest keep) {
+			if (!main.isEmpty()) {
+				evict(pollFirst(main), evicted);
+				return true;
+			}
+			if (window.isEmpty())
+				return false;
+			if (keep != null && window.size() == 1 && window.containsKey(keep))
+				return false;
+			var node = pollFirst(window);
+			windowWeight -= node.weight;
+			evict(node, evicted);
+			return true;
+		}
+
+		private void evict(Node<T> node, List<Node<T>> evicted) {
+			weight.addAndGet(-node.weight);
+			evicted.add(node);
+		}
+
+		private void clear() {
+			long total = 0;
+			for (var node : window.values())
+				total += node.weight;
+			for (var node : main.values())
+				total += node.weight;
+			weight.addAndGet(-total);
+			window.clear();
+			main.clear();
+			windowWeight = 0;
+		}
+
+	}
+
+
+	private class EntryIterator implements Iterator<Entry<RegionRequest, T>> {
+
+		private final Iterator<RegionRequest> keys;
+		private RegionRequest current;
+
+		private EntryIterator(List<RegionRequest> keys) {
+			this.keys = keys.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return keys.hasNext();
+		}
+
+		@Override
+		public Entry<RegionRequest, T> next() {
+			current = keys.next();
+			return new LazyEntry(current);
+		}
+
+		@Override
+		public void remove() {
+			if (current == null)
+				throw new IllegalStateException();
+			ShardedRegionCache.this.remove(current);
+			current = null;
+		}
+
+	}
+
+
+	private class LazyEntry implements Entry<RegionRequest, T> {
+
+		private final RegionRequest key;
+
+		private LazyEntry(RegionRequest key) {
+			this.key = key;
+		}
+
+		@Override
+		public RegionRequest getKey() {
+			return key;
+		}
+
+		@Override
+		public T getValue() {
+			return peek(key);
+		}
+
+		@Override
+		public T setValue(T value) {
+			return put(key, value);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry))
+				return false;
+			var other = (Entry<?, ?>)o;
+			return Objects.equals(key, other.getKey()) && Objects.equals(getValue(), other.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(key) ^ Objects.hashCode(getValue());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + getValue();
+		}
+
+	}
+
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+/**
+ * Snapshot of statistics describing the effectiveness of tile prefetching.
+ *
+ * @since v0.5.1
+ * @see DefaultImageRegionStore#getPrefetchStatistics()
+ */
+public final class TilePrefetchStatistics {
+
+	private final long nSubmitted;
+	private final long nCompleted;
+	private final long nCancelled;
+	private final long nHits;
+	private final long nUnused;
+
+	TilePrefetchStatistics(long nSubmitted, long nCompleted, long nCancelled, long nHits, long nUnused) {
+		this.nSubmitted = nSubmitted;
+		this.nCompleted = nCompleted;
+		this.nCancelled = nCancelled;
+		this.nHits = nHits;
+		this.nUnused = nUnused;
+	}
+
+	/**
+	 * Get the number of prefetch requests that were submitted for decoding.
+	 * @return
+	 */
+	public long getSubmittedCount() {
+		return nSubmitted;
+	}
+
+	/**
+	 * Get the number of prefetch requests that completed successfully.
+	 * @return
+	 */
+	public long getCompletedCount() {
+		return nCompleted;
+	}
+
+	/**
+	 * Get the number of prefetch requests that were cancelled because they became stale.
+	 * @return
+	 */
+	public long getCancelledCount() {
+		return nCancelled;
+	}
+
+	/**
+	 * Get the number of prefetched tiles that were subsequently requested for display.
+	 * @return
+	 */
+	public long getHitCount() {
+		return nHits;
+	}
+
+	/**
+	 * Get the number of wasted decodes, i.e. prefetch requests that were cancelled or whose tiles
+	 * were not requested for display soon afterwards.
+	 * @return
+	 */
+	public long getWastedCount() {
+		return nCancelled + nUnused;
+	}
+
+	/**
+	 * Get the proportion of completed prefetch requests that were subsequently requested for display.
+	 * @return the hit rate, or NaN if no prefetch requests have completed
+	 */
+	public double getHitRate() {
+		return nCompleted == 0 ? Double.NaN : (double)nHits / nCompleted;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Tile prefetch: %d submitted, %d completed, %d hits (%.1f%%), %d wasted",
+				nSubmitted, nCompleted, nHits, getHitRate() * 100, getWastedCount());
+	}
+
+}
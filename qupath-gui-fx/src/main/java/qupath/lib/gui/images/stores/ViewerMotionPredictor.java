@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Estimate how the visible region of a viewer is changing, based upon the regions it has recently requested.
+ * <p>
+ * Pan velocity is estimated from the center of the visible region, and zoom velocity from the log of the downsample.
+ * Both are smoothed exponentially, and are reset if there is a long pause between updates.
+ */
+class ViewerMotionPredictor {
+
+	/**
+	 * Weight of the most recent velocity estimate.
+	 */
+	private static final double SMOOTHING = 0.5;
+
+	/**
+	 * If updates are further apart than this, we assume the viewer stopped moving in between.
+	 */
+	private static final long MAX_INTERVAL_MILLIS = 250;
+
+	/**
+	 * Minimum speed (in visible regions per second) to be considered moving.
+	 */
+	private static final double MIN_PAN_SPEED = 0.05;
+
+	/**
+	 * Minimum zoom speed (in log downsample per second) to be considered zooming.
+	 */
+	private static final double MIN_ZOOM_SPEED = 0.05;
+
+	private Rectangle2D lastBounds;
+	private double lastLogDownsample;
+	private long lastTime = Long.MIN_VALUE;
+
+	// Velocities per millisecond
+	private double vx, vy, vZoom;
+	private boolean hasVelocity = false;
+
+	/**
+	 * Update with the latest visible region.
+	 * @param bounds visible bounds, in the full-resolution image space
+	 * @param downsample the current downsample
+	 * @param timeMillis the time of the update
+	 */
+	void update(Rectangle2D bounds, double downsample, long timeMillis) {
+		double logDownsample = Math.log(downsample);
+		long dt = timeMillis - lastTime;
+		if (lastBounds == null || dt > MAX_INTERVAL_MILLIS) {
+			vx = 0;
+			vy = 0;
+			vZoom = 0;
+			hasVelocity = false;
+		} else if (dt > 0) {
+			double vxNew = (bounds.getCenterX() - lastBounds.getCenterX()) / dt;
+			double vyNew = (bounds.getCenterY() - lastBounds.getCenterY()) / dt;
+			double vZoomNew = (logDownsample - lastLogDownsample) / dt;
+			if (hasVelocity) {
+				vx = smooth(vx, vxNew);
+				vy = smooth(vy, vyNew);
+				vZoom = smooth(vZoom, vZoomNew);
+			} else {
+				vx = vxNew;
+				vy = vyNew;
+				vZoom = vZoomNew;
+				hasVelocity = true;
+			}
+		} else
+			return;
+		lastBounds = bounds;
+		lastLogDownsample = logDownsample;
+		lastTime = timeMillis;
+	}
+
+	/**
+	 * Reset the predictor, e.g. when the image has changed.
+	 */
+	void reset() {
+		lastBounds = null;
+		lastTime = Long.MIN_VALUE;
+		vx = 0;
+		vy = 0;
+		vZoom = 0;
+		hasVelocity = false;
+	}
+
+	private static double smooth(double previous, double current) {
+		return previous * (1 - SMOOTHING) + current * SMOOTHING;
+	}
+
+	/**
+	 * Query whether the viewer appears to be panning.
+	 * @param timeMillis the current time
+	 * @return
+	 */
+	boolean isPanning(long timeMillis) {
+		if (lastBounds == null || timeMillis - lastTime > MAX_INTERVAL_MILLIS)
+			return false;
+		double size = Math.max(lastBounds.getWidth(), lastBounds.getHeight());
+		return Math.hypot(vx, vy) * 1000 > MIN_PAN_SPEED * size;
+	}
+
+	/**
+	 * Get the direction of zooming, if the viewer appears to be zooming.
+	 * @param timeMillis the current time
+	 * @return -1 if zooming in, 1 if zooming out, 0 otherwise
+	 */
+	int getZoomDirection(long timeMillis) {
+		if (lastBounds == null || timeMillis - lastTime > MAX_INTERVAL_MILLIS)
+			return 0;
+		if (vZoom * 1000 < -MIN_ZOOM_SPEED)
+			return -1;
+		if (vZoom * 1000 > MIN_ZOOM_SPEED)
+			return 1;
+		return 0;
+	}
+
+	/**
+	 * Predict the visible bounds after a specified time, assuming that panning and zooming continue at their current rates.
+	 * @param horizonMillis
+	 * @return the predicted bounds, or null if no update has been made
+	 */
+	Rectangle2D predictBounds(long horizonMillis) {
+		if (lastBounds == null)
+			return null;
+		double scale = Math.exp(vZoom * horizonMillis);
+		double w = lastBounds.getWidth() * scale;
+		double h = lastBounds.getHeight() * scale;
+		double cx = lastBounds.getCenterX() + vx * horizonMillis;
+		double cy = lastBounds.getCenterY() + vy * horizonMillis;
+		return new Rectangle2D.Double(cx - w/2, cy - h/2, w, h);
+	}
+
+}
@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -24,11 +24,14 @@
 package qupath.lib.gui.measure;
 
 import java.awt.image.BufferedImage;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -36,7 +39,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.function.IntBinaryOperator;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,9 +54,9 @@ import javafx.beans.binding.IntegerBinding;
 import javafx.beans.binding.ObjectBinding;
 import javafx.beans.binding.StringBinding;
 import javafx.beans.property.ReadOnlyListWrapper;
-import javafx.beans.value.ObservableDoubleValue;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
 import qupath.lib.common.GeneralTools;
@@ -105,8 +110,19 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	private DerivedMeasurementManager manager;
 	private Map<String, MeasurementBuilder<?>> builderMap = new LinkedHashMap<>();
 	
+	// Cached values of numeric columns for all the entries, used for sorting & histograms
+	private Map<String, double[]> columnValues = new HashMap<>();
+	private Map<PathObject, Integer> rowIndices;
+	
 	private static final String KEY_PIXEL_LAYER = "PIXEL_LAYER";
 	
+	/**
+	 * Constructor.
+	 */
+	public ObservableMeasurementTableData() {
+		list.addListener((ListChangeListener<PathObject>)c -> resetCachedValues());
+	}
+	
 	/**
 	 * Set the {@link ImageData} and a collection of objects to measure.
 	 * @param imageData the {@link ImageData}, required to determine many dynamic measurements
@@ -169,6 +185,7 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		
 //		PathPrefs.setAllredMinPercentagePositive(0);
 		
+		resetCachedValues();
 		builderMap.clear();
 		
 		// Add the image name
@@ -404,6 +421,121 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		// Clear the cached map to force updates
 		if (manager != null)
 			manager.map.clear();
+		resetCachedValues();
+	}
+	
+	private synchronized void resetCachedValues() {
+		columnValues.clear();
+		rowIndices = null;
+	}
+	
+	private synchronized Map<PathObject, Integer> getRowIndices() {
+		if (rowIndices == null) {
+			var map = new IdentityHashMap<PathObject, Integer>(list.size());
+			for (int i = 0; i < list.size(); i++)
+				map.putIfAbsent(list.get(i), i);
+			rowIndices = map;
+		}
+		return rowIndices;
+	}
+	
+	/**
+	 * Get the values of a numeric column for all entries (ignoring any predicate).
+	 * The values are computed in parallel, and cached until the entries are refreshed.
+	 */
+	private synchronized double[] getColumnValues(final String column) {
+		double[] values = columnValues.get(column);
+		if (values == null) {
+			var entries = new ArrayList<>(list);
+			double[] temp = new double[entries.size()];
+			var stream = IntStream.range(0, temp.length);
+			if (canComputeInParallel(column))
+				stream = stream.parallel();
+			stream.forEach(i -> temp[i] = computeNumericValue(entries.get(i), column));
+			values = temp;
+			columnValues.put(column, values);
+		}
+		return values;
+	}
+	
+	/**
+	 * Pixel classifier measurements rely on cached tiles, and aren't computed in parallel.
+	 */
+	private boolean canComputeInParallel(final String column) {
+		return !(builderMap.get(column) instanceof PixelClassifierMeasurementBuilder);
+	}
+	
+	/**
+	 * Create a comparator to sort objects according to the values in a column.
+	 * <p>
+	 * The values of all entries are ranked when the comparator is created, so that sorting only needs to 
+	 * compare ranks rather than recompute any measurements.
+	 * Numeric values are compared using {@link Double#compare(double, double)}, and so NaNs are 
+	 * sorted after all other values. String values are compared using a {@link Collator} for the 
+	 * default locale, with missing values sorted first. Any objects that are not entries of the table are sorted last.
+	 * 
+	 * @param column the column name
+	 * @param ascending if true, sort in ascending order; otherwise, sort in descending order
+	 * @return
+	 * @since v0.5.1
+	 */
+	public Comparator<PathObject> createComparator(final String column, final boolean ascending) {
+		IntBinaryOperator comparator;
+		int n;
+		if (isStringMeasurement(column)) {
+			var entries = new ArrayList<>(list);
+			String[] values = new String[entries.size()];
+			IntStream.range(0, values.length).parallel().forEach(i -> values[i] = getStringValue(entries.get(i), column));
+			var stringComparator = Comparator.nullsFirst(Collator.getInstance());
+			comparator = (i, j) -> stringComparator.compare(values[i], values[j]);
+			n = values.length;
+		} else {
+			double[] values = getColumnValues(column);
+			comparator = (i, j) -> Double.compare(values[i], values[j]);
+			n = values.length;
+		}
+		int[] order = sortIndices(n, comparator);
+		int[] ranks = new int[n];
+		for (int k = 0; k < n; k++) {
+			if (k > 0 && comparator.applyAsInt(order[k-1], order[k]) == 0)
+				ranks[order[k]] = ranks[order[k-1]];
+			else
+				ranks[order[k]] = ascending ? k : n - k;
+		}
+		var rows = getRowIndices();
+		return Comparator.comparingInt(p -> {
+			Integer ind = rows.get(p);
+			return ind == null || ind >= n ? Integer.MAX_VALUE : ranks[ind];
+		});
+	}
+	
+	/**
+	 * Sort the indices 0 to n-1 using a stable merge sort, without boxing.
+	 * @param n the number of indices
+	 * @param comparator comparator for indices
+	 * @return the sorted indices
+	 */
+	static int[] sortIndices(final int n, final IntBinaryOperator comparator) {
+		int[] indices = IntStream.range(0, n).toArray();
+		int[] temp = new int[n];
+		for (int width = 1; width < n; width *= 2) {
+			for (int lo = 0; lo < n - width; lo += 2 * width) {
+				int mid = lo + width;
+				int hi = Math.min(lo + 2 * width, n);
+				// Skip if already in order
+				if (comparator.applyAsInt(indices[mid-1], indices[mid]) <= 0)
+					continue;
+				System.arraycopy(indices, lo, temp, lo, hi - lo);
+				int i = lo, j = mid, k = lo;
+				while (i < mid && j < hi)
+					indices[k++] = comparator.applyAsInt(temp[i], temp[j]) <= 0 ? temp[i++] : temp[j++];
+				while (i < mid)
+					indices[k++] = temp[i++];
+				while (j < hi)
+					indices[k++] = temp[j++];
+			}
+		}
+		return indices;
 	}
 	
 	/**
@@ -473,28 +605,37 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	
 	@Override
 	public double[] getDoubleValues(final String column) {
+		double[] allValues = getColumnValues(column);
 		double[] values = new double[filterList.size()];
-		if (builderMap.containsKey(column)) {
-			for (int i = 0; i < filterList.size(); i++)
-				values[i] = getNumericValue(filterList.get(i), column);
-			return values;
-		}
-		// Good news! We just need a regular measurement
 		for (int i = 0; i < filterList.size(); i++)
-			values[i] = filterList.get(i).getMeasurementList().get(column);
+			values[i] = allValues[filterList.getSourceIndex(i)];
 		return values;
 	}
 	
 	@Override
 	public double getNumericValue(final PathObject pathObject, final String column) {
-		if (builderMap.containsKey(column)) {
+		// Use cached values if we have them
+		double[] values;
+		synchronized (this) {
+			values = columnValues.get(column);
+		}
+		if (values != null) {
+			Integer ind = getRowIndices().get(pathObject);
+			if (ind != null && ind < values.length)
+				return values[ind];
+		}
+		return computeNumericValue(pathObject, column);
+	}
+	
+	private double computeNumericValue(final PathObject pathObject, final String column) {
+		MeasurementBuilder<?> builder = builderMap.get(column);
+		if (builder != null) {
 			// Don't derive a measurement for a core marked as missing
 			if (pathObject instanceof TMACoreObject && ((TMACoreObject)pathObject).isMissing())
 				return Double.NaN;
 			
-			MeasurementBuilder<?> builder = builderMap.get(column);
 			if (builder instanceof NumericMeasurementBuilder)
-				return ((NumericMeasurementBuilder)builder).createMeasurement(pathObject).getValue().doubleValue();
+				return ((NumericMeasurementBuilder)builder).computeValue(pathObject);
 			else
 				return Double.NaN;
 		}
@@ -620,7 +761,7 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		private List<MeasurementBuilder<?>> builders = new ArrayList<>();
 		
 		// Map to store cached counts, will be reset when the hierarchy changes (in any way)
-		private Map<PathObject, DetectionPathClassCounts> map = new WeakHashMap<>();
+		private Map<PathObject, DetectionPathClassCounts> map = Collections.synchronizedMap(new WeakHashMap<>());
 		
 		private boolean containsAnnotations;
 		
@@ -727,31 +868,20 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 
 		
 		
-		class ClassCountMeasurement extends IntegerBinding {
-			
-			private PathObject pathObject;
-			private PathClass pathClass;
-			private boolean baseClassification;
-			
-			public ClassCountMeasurement(final PathObject pathObject, final PathClass pathClass, final boolean baseClassification) {
-				this.pathObject = pathObject;
-				this.pathClass = pathClass;
-				this.baseClassification = baseClassification;
-			}
-
-			@Override
-			protected int computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				if (baseClassification)
-					return counts.getCountForAncestor(pathClass);
-				else
-					return counts.getDirectCount(pathClass);
+		/**
+		 * Get the detection counts for an object, computing them if necessary.
+		 * This may be called from multiple threads.
+		 * @param pathObject
+		 * @return
+		 */
+		DetectionPathClassCounts getCounts(final PathObject pathObject) {
+			DetectionPathClassCounts counts = map.get(pathObject);
+			if (counts == null) {
+				// Counts might occasionally be computed twice for the same object, but that's preferable to blocking
+				counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
+				map.put(pathObject, counts);
 			}
-			
+			return counts;
 		}
 		
 		
@@ -783,12 +913,7 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 				if (pathObjectTemp == null || !(pathObjectTemp.isAnnotation() || pathObjectTemp.isRootObject()))
 					return Double.NaN;
 				
-				DetectionPathClassCounts counts = map.get(pathObjectTemp);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObjectTemp);
-					map.put(pathObject, counts);
-				}
-				int n = counts.getCountForAncestor(pathClass);
+				int n = getCounts(pathObjectTemp).getCountForAncestor(pathClass);
 				ROI roi = pathObjectTemp.getROI();
 				// For the root, we can measure density only for 2D images of a single time-point
 				if (pathObjectTemp.isRootObject() && server.nZSlices() == 1 && server.nTimepoints() == 1)
@@ -810,126 +935,6 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		}
 		
 		
-		class HScore extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			
-			public HScore(final PathObject pathObject, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getHScore(pathClasses);
-			}
-			
-		}
-		
-		
-		class AllredIntensityScore extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			private ObservableDoubleValue minPositivePercentage;
-			
-			public AllredIntensityScore(final PathObject pathObject, final ObservableDoubleValue minPositivePercentage, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-				this.minPositivePercentage = minPositivePercentage;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getAllredIntensity(minPositivePercentage.doubleValue() / 100, pathClasses);
-			}
-			
-		}
-		
-		
-		class AllredProportionScore extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			private ObservableDoubleValue minPositivePercentage;
-			
-			public AllredProportionScore(final PathObject pathObject, final ObservableDoubleValue minPositivePercentage, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-				this.minPositivePercentage = minPositivePercentage;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getAllredProportion(minPositivePercentage.doubleValue() / 100, pathClasses);
-			}
-			
-		}
-		
-		class AllredScore extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			private ObservableDoubleValue minPositivePercentage;
-			
-			public AllredScore(final PathObject pathObject, final ObservableDoubleValue minPositivePercentage, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-				this.minPositivePercentage = minPositivePercentage;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getAllredScore(minPositivePercentage.doubleValue() / 100, pathClasses);
-			}
-			
-		}
-		
-		
-		class PositivePercentage extends DoubleBinding {
-			
-			private PathObject pathObject;
-			private PathClass[] pathClasses;
-			
-			public PositivePercentage(final PathObject pathObject, final PathClass... pathClasses) {
-				this.pathObject = pathObject;
-				this.pathClasses = pathClasses;
-			}
-
-			@Override
-			protected double computeValue() {
-				DetectionPathClassCounts counts = map.get(pathObject);
-				if (counts == null) {
-					counts = new DetectionPathClassCounts(imageData.getHierarchy(), pathObject);
-					map.put(pathObject, counts);
-				}
-				return counts.getPositivePercentage(pathClasses);
-			}
-			
-		}
-		
-		
 		class ClassCountMeasurementBuilder extends NumericMeasurementBuilder {
 			
 			private PathClass pathClass;
@@ -957,7 +962,20 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			
 			@Override
 			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new ClassCountMeasurement(pathObject, pathClass, baseClassification);
+				return Bindings.createIntegerBinding(() -> getCount(pathObject));
+			}
+			
+			@Override
+			public double computeValue(final PathObject pathObject) {
+				return getCount(pathObject);
+			}
+			
+			private int getCount(final PathObject pathObject) {
+				var counts = getCounts(pathObject);
+				if (baseClassification)
+					return counts.getCountForAncestor(pathClass);
+				else
+					return counts.getDirectCount(pathClass);
 			}
 			
 			@Override
@@ -1018,7 +1036,12 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			
 			@Override
 			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new PositivePercentage(pathObject, parentClasses);
+				return Bindings.createDoubleBinding(() -> computeValue(pathObject));
+			}
+			
+			@Override
+			public double computeValue(final PathObject pathObject) {
+				return getCounts(pathObject).getPositivePercentage(parentClasses);
 			}
 			
 		}
@@ -1070,7 +1093,12 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			
 			@Override
 			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new HScore(pathObject, pathClasses);
+				return Bindings.createDoubleBinding(() -> computeValue(pathObject));
+			}
+			
+			@Override
+			public double computeValue(final PathObject pathObject) {
+				return getCounts(pathObject).getHScore(pathClasses);
 			}
 			
 		}
@@ -1097,7 +1125,13 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			
 			@Override
 			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new AllredIntensityScore(pathObject, PathPrefs.allredMinPercentagePositiveProperty(), pathClasses);
+				return Bindings.createDoubleBinding(() -> computeValue(pathObject));
+			}
+			
+			@Override
+			public double computeValue(final PathObject pathObject) {
+				double minPositivePercentage = PathPrefs.allredMinPercentagePositiveProperty().get();
+				return getCounts(pathObject).getAllredIntensity(minPositivePercentage / 100, pathClasses);
 			}
 			
 		}
@@ -1123,7 +1157,13 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			
 			@Override
 			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new AllredProportionScore(pathObject, PathPrefs.allredMinPercentagePositiveProperty(), pathClasses);
+				return Bindings.createDoubleBinding(() -> computeValue(pathObject));
+			}
+			
+			@Override
+			public double computeValue(final PathObject pathObject) {
+				double minPositivePercentage = PathPrefs.allredMinPercentagePositiveProperty().get();
+				return getCounts(pathObject).getAllredProportion(minPositivePercentage / 100, pathClasses);
 			}
 			
 		}
@@ -1149,7 +1189,13 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 			
 			@Override
 			public Binding<Number> createMeasurement(final PathObject pathObject) {
-				return new AllredScore(pathObject, PathPrefs.allredMinPercentagePositiveProperty(), pathClasses);
+				return Bindings.createDoubleBinding(() -> computeValue(pathObject));
+			}
+			
+			@Override
+			public double computeValue(final PathObject pathObject) {
+				double minPositivePercentage = PathPrefs.allredMinPercentagePositiveProperty().get();
+				return getCounts(pathObject).getAllredScore(minPositivePercentage / 100, pathClasses);
 			}
 			
 		}
@@ -238,6 +238,9 @@ public class PreferencePane {
 		@DoublePref("Prefs.General.tileCache")
 		public final DoubleProperty tileCache = PathPrefs.tileCachePercentageProperty();
 
+		@IntegerPref("Prefs.General.projectTileCache")
+		public final IntegerProperty projectTileCache = PathPrefs.projectTileCacheSizeMBProperty();
+
 		@BooleanPref("Prefs.General.showImageNameInTitle")
 		public final BooleanProperty showImageNameInTitle = PathPrefs.showImageNameInTitleProperty();
 
@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -1163,6 +1163,20 @@ public class PathPrefs {
 	}
 	
 	
+	private static IntegerProperty projectTileCacheSizeMB = createPersistentPreference("projectTileCacheSizeMB", 0);
+	
+	/**
+	 * Maximum size of the persistent tile cache stored within each project, in MB.
+	 * This is used to avoid decoding the same image tiles again in later sessions.
+	 * If &le; 0 (the default), no persistent cache is used.
+	 * @return
+	 * @since v0.5.1
+	 */
+	public static IntegerProperty projectTileCacheSizeMBProperty() {
+		return projectTileCacheSizeMB;
+	}
+	
+	
 	private static BooleanProperty useCalibratedLocationString = createPersistentPreference("useCalibratedLocationString", true);
 	
 	/**
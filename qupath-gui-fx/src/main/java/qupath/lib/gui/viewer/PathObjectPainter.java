@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -349,6 +349,21 @@ public class PathObjectPainter {
 	
 
 
+	/**
+	 * Get the color used to display an unselected object, taking into account any hidden classes or measurement mapper.
+	 * 
+	 * @param pathObject the object
+	 * @param overlayOptions the overlay options defining how objects should be painted
+	 * @return the color, or null if the object should not be painted
+	 * @since v0.5.1
+	 */
+	public static Color getDisplayedColor(PathObject pathObject, OverlayOptions overlayOptions) {
+		if ((overlayOptions.isPathClassHidden(pathObject.getPathClass()) && !pathObject.isTMACore())
+				|| isHiddenObjectType(pathObject, overlayOptions))
+			return null;
+		return getBaseObjectColor(pathObject, overlayOptions, false);
+	}
+
 	private static Color getBaseObjectColor(PathObject pathObject, OverlayOptions overlayOptions, boolean isSelected) {
 		Color color = null;
 		if (isSelected)
@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2022 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -43,8 +43,10 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.awt.image.LookupOp;
 import java.awt.image.ByteLookupTable;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.IntBuffer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -87,12 +89,13 @@ import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ListChangeListener.Change;
 import javafx.collections.ObservableList;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.event.EventHandler;
 import javafx.scene.Cursor;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Tooltip;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
@@ -258,11 +261,18 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	
 	private boolean repaintRequested = false;
 	
+	// Region to repaint in component coordinates, or null if the entire viewer should be repainted
+	private Rectangle repaintBounds = null;
+	// Flag that the entire viewer should be repainted, so that a request for part of the viewer doesn't replace it
+	private boolean fullRepaintRequested = false;
+	private final Object repaintLock = new Object();
+	
 	private double mouseX, mouseY;
 	
 	private StackPane pane;
 	private Canvas canvas;
 	private BufferedImage imgCache;
+	private PixelBuffer<IntBuffer> imgCachePixels;
 	private WritableImage imgCacheFX;
 	
 	private double borderLineWidth = 5;
@@ -380,7 +390,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	 */
 	public void resetMinimumRepaintSpacingMillis() {
 		this.minimumRepaintSpacingMillis = -1;
-		repaintRequested = false;
+		synchronized (repaintLock) {
+			repaintRequested = false;
+		}
 		repaint();
 	}
 
@@ -388,13 +400,15 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	void paintCanvas() {
 		// Ensure there's always a repaint requested whenever the image is updated
 		// (Should be the case anyway)
-		if (imageUpdated) {
-			repaintRequested = true;
-		}
-		
-		if (!repaintRequested || canvas == null || canvas.getWidth() <= 0 || canvas.getHeight() <= 0) {
-			repaintRequested = false;
-			return;
+		synchronized (repaintLock) {
+			if (imageUpdated) {
+				repaintRequested = true;
+			}
+			
+			if (!repaintRequested || canvas == null || canvas.getWidth() <= 0 || canvas.getHeight() <= 0) {
+				repaintRequested = false;
+				return;
+			}
 		}
 		
 //		if (canvas == null || !canvas.isVisible())
@@ -412,29 +426,54 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 				return;
 		}
 		
+		Rectangle bounds;
+		synchronized (repaintLock) {
+			bounds = fullRepaintRequested ? null : repaintBounds;
+			repaintBounds = null;
+			fullRepaintRequested = false;
+			// Reset repaint flag
+			repaintRequested = false;
+		}
+		
+		// Share the pixels of the cached image with JavaFX, so that we only need to upload the region that has changed
 		if (imgCache == null || imgCache.getWidth() < canvas.getWidth() || imgCache.getHeight() < canvas.getHeight()) {
 			int w = (int)(canvas.getWidth() + 1);
 			int h = (int)(canvas.getHeight() + 1);
 			imgCache = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
-			imgCacheFX = new WritableImage(w, h);
-//			imgCacheFX = SwingFXUtils.toFXImage(imgCache, imgCacheFX);
-		}
-		
-		// Reset repaint flag
-		repaintRequested = false;
+			int[] pixels = ((DataBufferInt)imgCache.getRaster().getDataBuffer()).getData();
+			imgCachePixels = new PixelBuffer<>(w, h, IntBuffer.wrap(pixels), PixelFormat.getIntArgbPreInstance());
+			imgCacheFX = new WritableImage(imgCachePixels);
+			bounds = null;
+		}
+		
+		// We can only repaint part of the viewer if nothing else has changed
+		int w = getWidth();
+		int h = getHeight();
+		if (bounds != null && (locationUpdated || imgBuffer == null || imgBuffer.getWidth() != w || imgBuffer.getHeight() != h))
+			bounds = null;
+		if (bounds == null)
+			bounds = new Rectangle(0, 0, w, h);
+		else
+			bounds = bounds.intersection(new Rectangle(0, 0, w, h));
+		Rectangle clip = bounds.intersection(new Rectangle(0, 0, imgCache.getWidth(), imgCache.getHeight()));
 		
 		GraphicsContext context = canvas.getGraphicsContext2D();
 
 		long startTime = System.currentTimeMillis();
 
-		Graphics2D g = imgCache.createGraphics();
-		paintViewer(g, getWidth(), getHeight());
-		g.dispose();
+		if (!clip.isEmpty()) {
+			imgCachePixels.updateBuffer(b -> {
+				Graphics2D g = imgCache.createGraphics();
+				g.setClip(clip);
+				paintViewer(g, w, h);
+				g.dispose();
+				return new javafx.geometry.Rectangle2D(clip.x, clip.y, clip.width, clip.height);
+			});
+		}
 
 		long endTime = System.currentTimeMillis();
-		logger.trace("Viewer painting: {} ms", endTime - startTime);
+		logger.trace("Viewer painting: {} ms ({})", endTime - startTime, clip);
 
-		imgCacheFX = SwingFXUtils.toFXImage(imgCache, imgCacheFX);
 		context.drawImage(imgCacheFX, 0, 0);
 		
 		if (borderColor != null) {
@@ -489,7 +528,10 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	public void setBorderColor(final javafx.scene.paint.Color color) {
 		this.borderColor = color;
 		if (Platform.isFxApplicationThread()) {
-			repaintRequested = true;
+			synchronized (repaintLock) {
+				fullRepaintRequested = true;
+				repaintRequested = true;
+			}
 			paintCanvas();
 		} else
 			repaint();
@@ -521,8 +563,12 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	 * @see #repaintEntireImage()
 	 */
 	public void repaint() {
-		if (repaintRequested && minimumRepaintSpacingMillis <= 0)
-			return;
+		synchronized (repaintLock) {
+			fullRepaintRequested = true;
+			repaintBounds = null;
+			if (repaintRequested && minimumRepaintSpacingMillis <= 0)
+				return;
+		}
 
 		// We need to repaint everything if the display changed
 		if (imageDisplay != null && (lastDisplayChangeTimestamp != imageDisplay.getLastChangeTimestamp())) {
@@ -531,7 +577,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		}
 		
 		logger.trace("Repaint requested!");
-		repaintRequested = true;
+		synchronized (repaintLock) {
+			repaintRequested = true;
+		}
 
 		Platform.runLater(() -> paintCanvas());
 	}
@@ -820,6 +868,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		allOverlayLayers.addListener((Change<? extends PathOverlay> e) -> repaint());
 		
 		hierarchyOverlay = new HierarchyOverlay(this.regionStore, overlayOptions, null);
+		hierarchyOverlay.setOnUpdate(this::repaint);
 		tmaGridOverlay = new TMAGridOverlay(overlayOptions);
 		gridOverlay = new GridOverlay(overlayOptions);
 //		pixelLayerOverlay = new PixelLayerOverlay(this);
@@ -1714,11 +1763,42 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		if (clipBounds.intersects(0, 0, getWidth(), getHeight())) {
 			if (updateImage)
 				imageUpdated = true;
-//			repaint(clipBounds);
-			repaint();
+			// Pad the bounds slightly to allow for antialiasing
+			clipBounds.grow(2, 2);
+			repaint(clipBounds);
 		}
 	}
 	
+	/**
+	 * Request that part of the viewer is repainted, using component coordinates.
+	 * If a repaint is already pending, the region is added to it.
+	 * @param bounds
+	 */
+	private void repaint(Rectangle bounds) {
+		synchronized (repaintLock) {
+			// Never replace a pending full repaint with a partial one
+			if (!fullRepaintRequested) {
+				if (!repaintRequested)
+					repaintBounds = new Rectangle(bounds);
+				else if (repaintBounds != null)
+					repaintBounds.add(bounds);
+			}
+			if (repaintRequested && minimumRepaintSpacingMillis <= 0)
+				return;
+		}
+		
+		// We need to repaint everything if the display changed
+		if (imageDisplay != null && (lastDisplayChangeTimestamp != imageDisplay.getLastChangeTimestamp())) {
+			repaintEntireImage();
+			return;
+		}
+		
+		synchronized (repaintLock) {
+			repaintRequested = true;
+		}
+		Platform.runLater(() -> paintCanvas());
+	}
+	
 	
 	/**
 	 * Request that the entire image is repainted, including the thumbnail.
@@ -1995,7 +2075,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 				// However do always paint detections, since they are otherwise painted (unselected) 
 				// in a cached way
 				if ((selectedObject.isDetection() && PathPrefs.useSelectedColorProperty().get()) || !PathObjectTools.hierarchyContainsObject(hierarchy, selectedObject)) {
-					g2d.setClip(shapeRegion);
+					g2d.clip(shapeRegion);
 					PathObjectPainter.paintObject(selectedObject, g2d, overlayOptions, getHierarchy().getSelectionModel(), downsample);
 				}
 				// Paint ROI handles, if required
@@ -0,0 +1,751 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.viewer.overlays;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * A small pyramid of density rasters, used to display large numbers of detections at low magnifications.
+ * <p>
+ * Each pixel ('bin') of a raster stores the average color of the detections with centroids inside it,
+ * premultiplied by the proportion of the bin covered by the detections.
+ * The bins at each level are twice the size of the bins at the level below, and are grouped into square blocks
+ * that are computed lazily and cached.
+ * Blocks are computed by aggregating the four blocks of the level below if these are available,
+ * or by querying the hierarchy otherwise.
+ * <p>
+ * Blocks are only ever computed using the executor passed to the constructor, so that painting never needs to
+ * query the hierarchy.
+ * Until the blocks required for painting are available, the last image painted is reused (if there is one).
+ * <p>
+ * Blocks are not updated automatically when the hierarchy changes; rather, {@link #invalidate(ImageRegion)} or
+ * {@link #invalidateAll()} should be called in response to hierarchy events.
+ * Invalidated blocks continue to be painted until they have been updated, which is done by recomputing
+ * blocks at the first level and then aggregating these to update the levels above.
+ */
+class DetectionDensityPyramid {
+
+	static final int BLOCK_SIZE = 64;
+
+	private static final int MAX_CACHED_BLOCKS = 4096;
+
+	/**
+	 * Maximum number of detections to use when estimating the detection size before computing any blocks.
+	 */
+	private static final int MAX_SAMPLE_DETECTIONS = 1000;
+
+	/**
+	 * Minimum interval between notifications that blocks have been updated, in milliseconds.
+	 */
+	private static final long NOTIFY_INTERVAL = 250;
+
+	private static final int[] EMPTY = new int[0];
+
+	private final PathObjectHierarchy hierarchy;
+	private final Function<PathObject, Integer> colorFunction;
+	private final int width, height;
+	private final double baseBinSize;
+	private final int nLevels;
+
+	private final Executor executor;
+	private final Runnable onUpdate;
+
+	private final Map<BlockKey, int[]> blocks = new LinkedHashMap<>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<BlockKey, int[]> eldest) {
+			return size() > MAX_CACHED_BLOCKS;
+		}
+	};
+
+	// Cached blocks that need to be updated, with the region that has changed
+	private final Map<BlockKey, Rectangle> dirty = new HashMap<>();
+	// Blocks that are required for painting, but are not yet available
+	private final Set<BlockKey> requested = new LinkedHashSet<>();
+	// Region in which detections should be sampled to estimate their size
+	private ImageRegion estimateRequest;
+	private ImageRegion lastEstimateRegion;
+
+	// The block currently being computed, and whether it was invalidated during the computation
+	private BlockKey building;
+	private boolean buildingInvalidated = false;
+
+	private final Object updateLock = new Object();
+	private boolean updateScheduled = false;
+	private boolean closed = false;
+
+	// Incremented whenever blocks are added or updated, to identify when a cached image is out of date
+	private long version = 0;
+	private ImageKey lastImageKey;
+	private BufferedImage lastImage;
+
+	// Used to estimate the typical size of a detection
+	private long nDetections = 0;
+	private double sumDetectionSize = 0;
+
+	/**
+	 * Create a new density pyramid.
+	 * @param hierarchy the hierarchy containing the detections
+	 * @param width the image width
+	 * @param height the image height
+	 * @param baseBinSize the size of a bin at the first level of the pyramid, in image pixels
+	 * @param colorFunction function returning the packed RGB color of a detection, or null if the detection shouldn't be displayed
+	 * @param executor executor used to compute blocks
+	 * @param onUpdate optional function to call (from the executor) when blocks have been computed or updated, 
+	 *                 and so the density should be repainted
+	 */
+	DetectionDensityPyramid(PathObjectHierarchy hierarchy, int width, int height, double baseBinSize, Function<PathObject, Integer> colorFunction,
+			Executor executor, Runnable onUpdate) {
+		Objects.requireNonNull(hierarchy);
+		Objects.requireNonNull(colorFunction);
+		Objects.requireNonNull(executor);
+		if (!(baseBinSize > 0))
+			throw new IllegalArgumentException("Bin size must be > 0");
+		this.hierarchy = hierarchy;
+		this.width = width;
+		this.height = height;
+		this.baseBinSize = baseBinSize;
+		this.colorFunction = colorFunction;
+		this.executor = executor;
+		this.onUpdate = onUpdate;
+		int n = 1;
+		while (BLOCK_SIZE * getBinSize(n - 1) < Math.max(width, height))
+			n++;
+		this.nLevels = n;
+	}
+
+	/**
+	 * Get the number of levels in the pyramid.
+	 * The final level is represented by a single block.
+	 * @return
+	 */
+	int nLevels() {
+		return nLevels;
+	}
+
+	/**
+	 * Get the size of a bin at the specified level, in image pixels.
+	 * @param level
+	 * @return
+	 */
+	double getBinSize(int level) {
+		return baseBinSize * (1L << level);
+	}
+
+	/**
+	 * Get the coarsest level for which the bins are no larger than the specified downsample.
+	 * @param downsample
+	 * @return
+	 */
+	int getLevelForDownsample(double downsample) {
+		int level = 0;
+		while (level < nLevels - 1 && getBinSize(level + 1) <= downsample)
+			level++;
+		return level;
+	}
+
+	/**
+	 * Get the mean size of the detections that have been sampled or binned so far, defined in terms of the larger side
+	 * of the bounding box.
+	 * @return the mean size in image pixels, or NaN if no detections have been found
+	 */
+	synchronized double getMeanDetectionSize() {
+		return nDetections == 0 ? Double.NaN : sumDetectionSize / nDetections;
+	}
+
+	/**
+	 * Mark all cached blocks as needing to be updated.
+	 * The blocks continue to be used for painting until they have been recomputed.
+	 */
+	void invalidateAll() {
+		synchronized (this) {
+			for (var key : blocks.keySet())
+				addDirty(key, getBlockBounds(key));
+			if (building != null)
+				buildingInvalidated = true;
+		}
+		scheduleUpdate();
+	}
+
+	/**
+	 * Mark cached blocks overlapping a region at all levels as needing to be updated.
+	 * The blocks continue to be used for painting until they have been recomputed.
+	 * @param region
+	 */
+	void invalidate(ImageRegion region) {
+		var rect = new Rectangle(region.getX(), region.getY(), region.getWidth(), region.getHeight());
+		synchronized (this) {
+			for (var key : blocks.keySet()) {
+				if (intersects(key, region))
+					addDirty(key, rect);
+			}
+			if (building != null && intersects(building, region))
+				buildingInvalidated = true;
+		}
+		scheduleUpdate();
+	}
+
+	/**
+	 * Stop computing blocks, and remove all cached blocks.
+	 */
+	synchronized void close() {
+		closed = true;
+		blocks.clear();
+		dirty.clear();
+		requested.clear();
+		estimateRequest = null;
+		lastImageKey = null;
+		lastImage = null;
+	}
+
+	private boolean intersects(BlockKey key, ImageRegion region) {
+		return key.z == region.getZ() && key.t == region.getT() && getBlockRegion(key).intersects(region);
+	}
+
+	private void addDirty(BlockKey key, Rectangle rect) {
+		var previous = dirty.get(key);
+		dirty.put(key, previous == null ? new Rectangle(rect) : previous.union(rect));
+	}
+
+	/**
+	 * Paint the density raster for a region, if the detections are small enough.
+	 * <p>
+	 * This never computes blocks directly, but rather requests any missing blocks be computed using the executor.
+	 * @param g2d graphics object, with a transform so that drawing uses image coordinates
+	 * @param bounds the region to paint, in image coordinates
+	 * @param plane the image plane
+	 * @param downsample the downsample at which the image is displayed
+	 * @param maxDisplaySize the maximum mean detection size, in display pixels, for which the density should be painted
+	 * @return true if the density was painted (or there was nothing to paint), false if the density isn't available or the 
+	 *         detections are too large, and so the detections should be painted in another way
+	 */
+	boolean paint(Graphics2D g2d, Rectangle bounds, ImagePlane plane, double downsample, double maxDisplaySize) {
+		BufferedImage img;
+		ImageKey imgKey;
+		synchronized (this) {
+			if (closed)
+				return false;
+			// Decide whether to use the density before computing any blocks
+			double meanSize = getMeanDetectionSize();
+			if (meanSize / downsample > maxDisplaySize)
+				return false;
+			if (Double.isNaN(meanSize)) {
+				// Estimate the size from a sample of detections; until then, the detections should be painted in another way
+				var region = ImageRegion.createInstance(bounds.x, bounds.y, bounds.width, bounds.height, plane.getZ(), plane.getT());
+				if (!region.equals(lastEstimateRegion)) {
+					lastEstimateRegion = region;
+					estimateRequest = region;
+				}
+				img = null;
+				imgKey = null;
+			} else {
+				int level = getLevelForDownsample(downsample);
+				double blockSize = BLOCK_SIZE * getBinSize(level);
+				int bx1 = (int)Math.max(0, Math.floor(bounds.getMinX() / blockSize));
+				int by1 = (int)Math.max(0, Math.floor(bounds.getMinY() / blockSize));
+				int bx2 = (int)Math.min(Math.ceil(width / blockSize), Math.ceil(bounds.getMaxX() / blockSize));
+				int by2 = (int)Math.min(Math.ceil(height / blockSize), Math.ceil(bounds.getMaxY() / blockSize));
+				if (bx2 <= bx1 || by2 <= by1)
+					return true;
+
+				var key = new ImageKey(plane.getZ(), plane.getT(), level, bx1, by1, bx2, by2, version);
+				if (!key.equals(lastImageKey)) {
+					List<BlockKey> missing = new ArrayList<>();
+					var imgNew = createImage(plane, level, bx1, by1, bx2, by2, missing);
+					// Only request the blocks needed for the current view
+					requested.clear();
+					requested.addAll(missing);
+					if (missing.isEmpty()) {
+						lastImageKey = key;
+						lastImage = imgNew;
+					}
+				}
+				// Use the last image until all the blocks are available, if it is for the same plane
+				if (lastImageKey != null && lastImageKey.z == plane.getZ() && lastImageKey.t == plane.getT()) {
+					img = lastImage;
+					imgKey = lastImageKey;
+				} else {
+					img = null;
+					imgKey = null;
+				}
+			}
+		}
+		scheduleUpdate();
+		
+		if (imgKey == null)
+			return false;
+		if (img == null)
+			return true;
+
+		double binSize = getBinSize(imgKey.level);
+		double blockSize = BLOCK_SIZE * binSize;
+		var transform = new AffineTransform();
+		transform.translate(imgKey.bx1 * blockSize, imgKey.by1 * blockSize);
+		transform.scale(binSize, binSize);
+		var interpolation = g2d.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		g2d.drawImage(img, transform, null);
+		if (interpolation != null)
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+		return true;
+	}
+
+	/**
+	 * Create an image containing the bins of a range of cached blocks.
+	 * @param missing list to which the keys of any blocks that aren't cached should be added
+	 * @return the image, or null if all the cached blocks are empty
+	 */
+	private BufferedImage createImage(ImagePlane plane, int level, int bx1, int by1, int bx2, int by2, List<BlockKey> missing) {
+		BufferedImage img = null;
+		int[] pixels = null;
+		int w = (bx2 - bx1) * BLOCK_SIZE;
+		for (int by = by1; by < by2; by++) {
+			for (int bx = bx1; bx < bx2; bx++) {
+				var key = new BlockKey(plane.getZ(), plane.getT(), level, bx, by);
+				int[] block = blocks.get(key);
+				if (block == null) {
+					missing.add(key);
+					continue;
+				}
+				if (block == EMPTY)
+					continue;
+				if (img == null) {
+					img = new BufferedImage(w, (by2 - by1) * BLOCK_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+					pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+				}
+				int offset = (by - by1) * BLOCK_SIZE * w + (bx - bx1) * BLOCK_SIZE;
+				for (int y = 0; y < BLOCK_SIZE; y++)
+					System.arraycopy(block, y * BLOCK_SIZE, pixels, offset + y * w, BLOCK_SIZE);
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * Get the bins for a block, requesting that they are computed if necessary.
+	 * @return packed premultiplied ARGB values for the bins in the block, a zero-length array if the block is empty, 
+	 *         or null if the block is not yet available
+	 */
+	int[] getBlock(int z, int t, int level, int bx, int by) {
+		var key = new BlockKey(z, t, level, bx, by);
+		synchronized (this) {
+			if (!blocks.containsKey(key))
+				requested.add(key);
+		}
+		scheduleUpdate();
+		synchronized (this) {
+			return blocks.get(key);
+		}
+	}
+
+	private void scheduleUpdate() {
+		synchronized (this) {
+			if (updateScheduled || closed)
+				return;
+			if (estimateRequest == null && dirty.isEmpty() && requested.isEmpty())
+				return;
+			updateScheduled = true;
+		}
+		executor.execute(this::processUpdates);
+	}
+
+	/**
+	 * Compute requested blocks and update invalidated blocks, until there is nothing left to do.
+	 */
+	private void processUpdates() {
+		synchronized (updateLock) {
+			boolean changed = false;
+			long lastNotify = System.currentTimeMillis();
+			while (true) {
+				ImageRegion estimateRegion = null;
+				BlockKey key = null;
+				Rectangle rect = null;
+				int[] existing = null;
+				synchronized (this) {
+					if (closed) {
+						updateScheduled = false;
+						return;
+					}
+					if (estimateRequest != null) {
+						estimateRegion = estimateRequest;
+						estimateRequest = null;
+					} else if (!dirty.isEmpty()) {
+						// Update the lowest levels first, so that the levels above can be aggregated
+						for (var k : dirty.keySet()) {
+							if (key == null || k.level < key.level)
+								key = k;
+						}
+						rect = dirty.remove(key);
+						existing = blocks.get(key);
+						if (existing == null)
+							continue;
+					} else if (!requested.isEmpty()) {
+						var iter = requested.iterator();
+						key = iter.next();
+						iter.remove();
+						if (blocks.containsKey(key))
+							continue;
+					} else {
+						updateScheduled = false;
+						break;
+					}
+					building = key;
+					buildingInvalidated = false;
+				}
+				if (estimateRegion != null) {
+					changed = sampleDetectionSize(estimateRegion) || changed;
+				} else {
+					var block = existing == null ? computeBlock(key) : updateBlock(key, existing, rect);
+					synchronized (this) {
+						// Don't restore a block that was removed while it was being updated
+						if (existing == null || blocks.containsKey(key)) {
+							blocks.put(key, block);
+							version++;
+							changed = true;
+						}
+						if (buildingInvalidated)
+							addDirty(key, getBlockBounds(key));
+						building = null;
+					}
+				}
+				if (changed && System.currentTimeMillis() - lastNotify > NOTIFY_INTERVAL) {
+					notifyUpdate();
+					changed = false;
+					lastNotify = System.currentTimeMillis();
+				}
+			}
+			if (changed)
+				notifyUpdate();
+		}
+	}
+
+	private void notifyUpdate() {
+		if (onUpdate != null)
+			onUpdate.run();
+	}
+
+	/**
+	 * Estimate the detection size by sampling a few small regions, which is much faster than computing blocks.
+	 * @return true if any detections were found
+	 */
+	private boolean sampleDetectionSize(ImageRegion region) {
+		int n = 4;
+		int sampleSize = (int)Math.ceil(BLOCK_SIZE * baseBinSize);
+		long count = 0;
+		double sum = 0;
+		for (int j = 0; j < n && count < MAX_SAMPLE_DETECTIONS; j++) {
+			for (int i = 0; i < n && count < MAX_SAMPLE_DETECTIONS; i++) {
+				int cx = (int)(region.getX() + (i + 0.5) * region.getWidth() / n);
+				int cy = (int)(region.getY() + (j + 0.5) * region.getHeight() / n);
+				var sample = ImageRegion.createInstance(cx - sampleSize/2, cy - sampleSize/2, sampleSize, sampleSize, region.getZ(), region.getT());
+				for (var pathObject : hierarchy.getObjectsForRegion(PathDetectionObject.class, sample, null)) {
+					var roi = pathObject.getROI();
+					if (roi == null)
+						continue;
+					sum += Math.max(roi.getBoundsWidth(), roi.getBoundsHeight());
+					count++;
+				}
+			}
+		}
+		if (count == 0)
+			return false;
+		synchronized (this) {
+			nDetections += count;
+			sumDetectionSize += sum;
+		}
+		return true;
+	}
+
+	/**
+	 * Compute the bins of a block, by aggregating the level below if possible, or querying the hierarchy otherwise.
+	 */
+	private int[] computeBlock(BlockKey key) {
+		var children = getChildren(key);
+		if (children != null)
+			return aggregateBlock(children);
+		return computeBins(key, null, 0, 0, BLOCK_SIZE, BLOCK_SIZE);
+	}
+
+	/**
+	 * Update the bins of a cached block that overlap a changed region.
+	 * Blocks at the first level are recomputed, while blocks at higher levels are aggregated from the level below
+	 * (which has already been updated), or recomputed only for the changed region if the level below isn't available.
+	 */
+	private int[] updateBlock(BlockKey key, int[] existing, Rectangle rect) {
+		if (key.level == 0)
+			return computeBins(key, existing, 0, 0, BLOCK_SIZE, BLOCK_SIZE);
+		var children = getChildren(key);
+		if (children != null)
+			return aggregateBlock(children);
+		double binSize = getBinSize(key.level);
+		double x0 = key.bx * BLOCK_SIZE * binSize;
+		double y0 = key.by * BLOCK_SIZE * binSize;
+		// Include the bin containing the far edge of the region, since a centroid may be on the edge
+		int x1 = clipBin(Math.floor((rect.getMinX() - x0) / binSize));
+		int y1 = clipBin(Math.floor((rect.getMinY() - y0) / binSize));
+		int x2 = clipBin(Math.floor((rect.getMaxX() - x0) / binSize) + 1);
+		int y2 = clipBin(Math.floor((rect.getMaxY() - y0) / binSize) + 1);
+		if (x2 <= x1 || y2 <= y1)
+			return existing;
+		return computeBins(key, existing, x1, y1, x2, y2);
+	}
+
+	private static int clipBin(double bin) {
+		return (int)Math.max(0, Math.min(BLOCK_SIZE, bin));
+	}
+
+	private ImageRegion getBlockRegion(BlockKey key) {
+		var bounds = getBlockBounds(key);
+		return ImageRegion.createInstance(bounds.x, bounds.y, bounds.width, bounds.height, key.z, key.t);
+	}
+
+	private Rectangle getBlockBounds(BlockKey key) {
+		double blockSize = BLOCK_SIZE * getBinSize(key.level);
+		int x = (int)Math.floor(key.bx * blockSize);
+		int y = (int)Math.floor(key.by * blockSize);
+		int x2 = (int)Math.ceil((key.bx + 1) * blockSize);
+		int y2 = (int)Math.ceil((key.by + 1) * blockSize);
+		return new Rectangle(x, y, x2 - x, y2 - y);
+	}
+
+	/**
+	 * Get the four blocks of the level below, if these are all cached and up to date.
+	 * @return the blocks, or null if any of the blocks of the level below are not available
+	 */
+	private synchronized int[][] getChildren(BlockKey key) {
+		if (key.level == 0)
+			return null;
+		int[][] children = new int[4][];
+		double childBlockSize = BLOCK_SIZE * getBinSize(key.level - 1);
+		for (int i = 0; i < 4; i++) {
+			int cx = key.bx * 2 + (i % 2);
+			int cy = key.by * 2 + (i / 2);
+			if (cx * childBlockSize >= width || cy * childBlockSize >= height)
+				children[i] = EMPTY;
+			else {
+				var childKey = new BlockKey(key.z, key.t, key.level - 1, cx, cy);
+				if (dirty.containsKey(childKey))
+					return null;
+				children[i] = blocks.get(childKey);
+			}
+			if (children[i] == null)
+				return null;
+		}
+		return children;
+	}
+
+	/**
+	 * Compute the bins of a block from the four blocks of the level below.
+	 */
+	private static int[] aggregateBlock(int[][] children) {
+		int[] block = new int[BLOCK_SIZE * BLOCK_SIZE];
+		boolean isEmpty = true;
+		int half = BLOCK_SIZE / 2;
+		for (int y = 0; y < BLOCK_SIZE; y++) {
+			for (int x = 0; x < BLOCK_SIZE; x++) {
+				int[] child = children[(y / half) * 2 + x / half];
+				if (child == EMPTY)
+					continue;
+				int ind = (y % half) * 2 * BLOCK_SIZE + (x % half) * 2;
+				int val = average(child[ind], child[ind + 1], child[ind + BLOCK_SIZE], child[ind + BLOCK_SIZE + 1]);
+				block[y * BLOCK_SIZE + x] = val;
+				if (val != 0)
+					isEmpty = false;
+			}
+		}
+		return isEmpty ? EMPTY : block;
+	}
+
+	private static int average(int v1, int v2, int v3, int v4) {
+		int val = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			int sum = ((v1 >>> shift) & 0xFF) + ((v2 >>> shift) & 0xFF) + ((v3 >>> shift) & 0xFF) + ((v4 >>> shift) & 0xFF);
+			val |= ((sum + 2) / 4) << shift;
+		}
+		return val;
+	}
+
+	/**
+	 * Compute a range of bins in a block by querying the hierarchy for detections.
+	 * @param key the block
+	 * @param existing existing bins for the block, which are retained outside the range; if null, all other bins are empty
+	 * @param x1 first bin column (inclusive)
+	 * @param y1 first bin row (inclusive)
+	 * @param x2 last bin column (exclusive)
+	 * @param y2 last bin row (exclusive)
+	 */
+	private int[] computeBins(BlockKey key, int[] existing, int x1, int y1, int x2, int y2) {
+		double binSize = getBinSize(key.level);
+		double binArea = binSize * binSize;
+		double x0 = key.bx * BLOCK_SIZE * binSize;
+		double y0 = key.by * BLOCK_SIZE * binSize;
+		int rx = (int)Math.floor(x0 + x1 * binSize);
+		int ry = (int)Math.floor(y0 + y1 * binSize);
+		var region = ImageRegion.createInstance(rx, ry,
+				(int)Math.ceil(x0 + x2 * binSize) - rx, (int)Math.ceil(y0 + y2 * binSize) - ry, key.z, key.t);
+		var pathObjects = hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null);
+
+		int n = BLOCK_SIZE * BLOCK_SIZE;
+		int[] block = existing == null || existing == EMPTY ? new int[n] : existing.clone();
+		for (int y = y1; y < y2; y++) {
+			for (int x = x1; x < x2; x++)
+				block[y * BLOCK_SIZE + x] = 0;
+		}
+		// Accumulate the area-weighted red, green & blue values, followed by the area
+		double[] sums = new double[n * 4];
+		long count = 0;
+		double sumSize = 0;
+		for (var pathObject : pathObjects) {
+			var roi = pathObject.getROI();
+			if (roi == null)
+				continue;
+			// Assign each detection to the bin containing its centroid, so that it is counted only once
+			int x = (int)Math.floor((roi.getCentroidX() - x0) / binSize);
+			int y = (int)Math.floor((roi.getCentroidY() - y0) / binSize);
+			if (x < x1 || y < y1 || x >= x2 || y >= y2)
+				continue;
+			Integer rgb = colorFunction.apply(pathObject);
+			if (rgb == null)
+				continue;
+			double area = roi.getArea();
+			if (!(area > 0))
+				area = 1.0;
+			count++;
+			sumSize += Math.max(roi.getBoundsWidth(), roi.getBoundsHeight());
+			int ind = (y * BLOCK_SIZE + x) * 4;
+			sums[ind] += ((rgb >> 16) & 0xFF) * area;
+			sums[ind+1] += ((rgb >> 8) & 0xFF) * area;
+			sums[ind+2] += (rgb & 0xFF) * area;
+			sums[ind+3] += area;
+		}
+		// Only use complete blocks for the size estimate, to avoid counting detections repeatedly
+		if (existing == null) {
+			synchronized (this) {
+				nDetections += count;
+				sumDetectionSize += sumSize;
+			}
+		}
+
+		boolean isEmpty = true;
+		for (int i = 0; i < n; i++) {
+			double area = sums[i*4+3];
+			if (area > 0) {
+				// If the detections cover more than the bin, use their average color
+				double scale = 1.0 / Math.max(area, binArea);
+				int a = (int)Math.round(Math.min(area / binArea, 1.0) * 255);
+				int r = Math.min(a, (int)Math.round(sums[i*4] * scale));
+				int g = Math.min(a, (int)Math.round(sums[i*4+1] * scale));
+				int b = Math.min(a, (int)Math.round(sums[i*4+2] * scale));
+				block[i] = (a << 24) | (r << 16) | (g << 8) | b;
+			}
+			if (block[i] != 0)
+				isEmpty = false;
+		}
+		return isEmpty ? EMPTY : block;
+	}
+
+
+	private static class BlockKey {
+
+		private final int z, t, level, bx, by;
+
+		private BlockKey(int z, int t, int level, int bx, int by) {
+			this.z = z;
+			this.t = t;
+			this.level = level;
+			this.bx = bx;
+			this.by = by;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(z, t, level, bx, by);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof BlockKey other))
+				return false;
+			return z == other.z && t == other.t && level == other.level && bx == other.bx && by == other.by;
+		}
+
+	}
+
+
+	private static class ImageKey {
+
+		private final int z, t, level, bx1, by1, bx2, by2;
+		private final long version;
+
+		private ImageKey(int z, int t, int level, int bx1, int by1, int bx2, int by2, long version) {
+			this.z = z;
+			this.t = t;
+			this.level = level;
+			this.bx1 = bx1;
+			this.by1 = by1;
+			this.bx2 = bx2;
+			this.by2 = by2;
+			this.version = version;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(z, t, level, bx1, by1, bx2, by2, version);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ImageKey other))
+				return false;
+			return z == other.z && t == other.t && level == other.level &&
+					bx1 == other.bx1 && by1 == other.by1 && bx2 == other.bx2 && by2 == other.by2 &&
+					version == other.version;
+		}
+
+	}
+
+}
@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -39,6 +39,8 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +48,7 @@ import org.slf4j.LoggerFactory;
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.color.ColorToolsAwt;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.gui.images.servers.PathHierarchyImageServer;
 import qupath.lib.gui.images.stores.DefaultImageRegionStore;
 import qupath.lib.gui.prefs.PathPrefs;
@@ -73,9 +76,27 @@ import qupath.lib.regions.RegionRequest;
 public class HierarchyOverlay extends AbstractOverlay {
 	
 	private static final Logger logger = LoggerFactory.getLogger(HierarchyOverlay.class);
+	
+	/**
+	 * Minimum downsample at which detections may be painted using a density raster, rather than individually.
+	 */
+	private static final double MIN_DENSITY_DOWNSAMPLE = 4.0;
+	
+	/**
+	 * Maximum mean size of a detection (in display pixels) for which a density raster should be used.
+	 */
+	private static final double MAX_DENSITY_DETECTION_SIZE = 2.0;
+	
+	/**
+	 * Executor used to compute detection densities, shared across viewers.
+	 */
+	private static final ExecutorService densityPool = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("detection-density-", true));
 
 	private ImageData<BufferedImage> imageData;
 	private PathHierarchyImageServer overlayServer = null;
+	private DetectionDensityPyramid densityPyramid = null;
+	
+	private volatile Runnable onUpdate = null;
 
 	private DefaultImageRegionStore regionStore = null;
 	
@@ -106,13 +127,39 @@ public class HierarchyOverlay extends AbstractOverlay {
 	}
 	
 	
+	/**
+	 * Set a function to call whenever part of the overlay has been updated in the background, 
+	 * and so the overlay should be repainted.
+	 * This may be called from any thread.
+	 * @param onUpdate
+	 * @since v0.5.1
+	 */
+	public void setOnUpdate(Runnable onUpdate) {
+		this.onUpdate = onUpdate;
+	}
+	
+	private void fireUpdate() {
+		var onUpdate = this.onUpdate;
+		if (onUpdate != null)
+			onUpdate.run();
+	}
+	
 	private void updateOverlayServer() {
 		clearCachedOverlay();
-		if (imageData == null)
+		if (densityPyramid != null)
+			densityPyramid.close();
+		if (imageData == null) {
 			overlayServer = null;
-		else {
+			densityPyramid = null;
+		} else {
 			// If the image is small, don't really need a server at all...
 			overlayServer = new PathHierarchyImageServer(imageData, getOverlayOptions());
+			var server = imageData.getServer();
+			densityPyramid = new DetectionDensityPyramid(imageData.getHierarchy(), server.getWidth(), server.getHeight(), MIN_DENSITY_DOWNSAMPLE,
+					p -> {
+						var color = PathObjectPainter.getDisplayedColor(p, getOverlayOptions());
+						return color == null ? null : color.getRGB();
+					}, densityPool, this::fireUpdate);
 		}
 	}
 
@@ -154,6 +201,9 @@ public class HierarchyOverlay extends AbstractOverlay {
 		if (overlayOptionsTimestamp != timestamp || pointRadius != lastPointRadius) {
 			lastPointRadius = pointRadius;
 			overlayOptionsTimestamp = timestamp;
+			// Colors or visible classes may have changed
+			if (densityPyramid != null)
+				densityPyramid.invalidateAll();
 		}
 		
 		int t = imageRegion.getT();
@@ -215,6 +265,10 @@ public class HierarchyOverlay extends AbstractOverlay {
 											imageRegion.getImagePlane());
 				}
 				
+			} else if (canPaintDensity(imageData, overlayOptions, downsampleFactor) && 
+					densityPyramid.paint(g2d, boundsDisplayed, imageRegion.getImagePlane(), downsampleFactor, MAX_DENSITY_DETECTION_SIZE)) {
+				// With many small detections, painting the density is much faster than painting (or caching) every object
+				logger.trace("Painted detection density at downsample {}", downsampleFactor);
 			} else {					
 				// If the image hasn't been updated, then we are viewing the stationary image - we want to wait for a full repaint then to avoid flickering;
 				// On the other hand, if a large image has been updated then we may be browsing quickly - better to repaint quickly while tiles may still be loading
@@ -325,12 +379,22 @@ public class HierarchyOverlay extends AbstractOverlay {
 		
 	}
 	
+	private boolean canPaintDensity(ImageData<BufferedImage> imageData, OverlayOptions overlayOptions, double downsampleFactor) {
+		if (densityPyramid == null || downsampleFactor < MIN_DENSITY_DOWNSAMPLE)
+			return false;
+		// Connections can't be represented by the density
+		return !overlayOptions.getShowConnections() || imageData.getProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS) == null;
+	}
+	
 	/**
 	 * Clear previously-cached tiles for this overlay.
+	 * Any detection densities are updated in the background, and continue to be painted until the update is complete.
 	 */
 	public void clearCachedOverlay() {
 		if (regionStore != null && overlayServer != null)
 			regionStore.clearCacheForServer(overlayServer);
+		if (densityPyramid != null)
+			densityPyramid.invalidateAll();
 	}
 	
 	/**
@@ -340,6 +404,8 @@ public class HierarchyOverlay extends AbstractOverlay {
 	public void clearCachedOverlayForRegion(ImageRegion region) {
 		if (regionStore != null && overlayServer != null)
 			regionStore.clearCacheForRequestOverlap(RegionRequest.createInstance(overlayServer.getPath(), 1, region));
+		if (densityPyramid != null)
+			densityPyramid.invalidate(region);
 	}
 
 	
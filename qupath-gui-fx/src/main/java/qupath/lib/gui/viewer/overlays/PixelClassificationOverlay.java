@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -55,15 +55,17 @@ import java.awt.image.DataBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import org.slf4j.Logger;
@@ -87,12 +89,20 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
     private ObjectProperty<ImageRenderer> renderer = new SimpleObjectProperty<>();
     private long rendererLastTimestamp = 0L;
 
+    // Raw classifier output is cached separately from the rendered version, 
+    // so that changing the display doesn't require reclassification
+    private Map<RegionRequest, BufferedImage> cacheRaw = Collections.synchronizedMap(new RawTileCache(Runtime.getRuntime().maxMemory() / 16));
     private Map<RegionRequest, BufferedImage> cacheRGB = Collections.synchronizedMap(new HashMap<>());
+    
+    // Rendered tiles from a previous overlay, which may be shown until they are replaced
+    private Map<ImageData<BufferedImage>, Map<RegionRequest, BufferedImage>> staleRGB = Collections.synchronizedMap(new WeakHashMap<>());
+    
     private Set<TileRequest> pendingRequests = Collections.synchronizedSet(new HashSet<>());
     private Set<TileRequest> currentRequests = Collections.synchronizedSet(new HashSet<>());
     
     private int maxThreads = ThreadTools.getParallelism();
     private ThreadPoolExecutor pool;
+    private AtomicLong requestCounter = new AtomicLong();
     
     private Function<ImageData<BufferedImage>, ImageServer<BufferedImage>> fun;
     
@@ -118,8 +128,9 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
         
         if (nThreads > 0)
         	maxThreads = nThreads;
-        pool = (ThreadPoolExecutor)Executors.newFixedThreadPool(
-        		maxThreads, threadFactory);
+        // Use a priority queue, so that tiles closest to the center of the viewer are classified first
+        pool = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS,
+        		new PriorityBlockingQueue<>(), threadFactory);
         
         this.renderer.addListener((v, o, n) -> cacheRGB.clear());
         
@@ -419,19 +430,13 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
         
         Collection<TileRequest> tiles = server.getTileRequestManager().getTileRequests(fullRequest);
         
-        if (fullRequest != null) {
-        	double x = (Math.max(0, fullRequest.getMinX()) + Math.min(server.getWidth(), fullRequest.getMaxX())) / 2.0;
-        	double y = (Math.max(0, fullRequest.getMinY()) + Math.min(server.getHeight(), fullRequest.getMaxY())) / 2.0;
-        	var p = new Point2(x, y);
-        	tiles = new ArrayList<>(tiles);
-        	((List<TileRequest>)tiles).sort(
-        			Comparator.comparingDouble((TileRequest t) -> p.distanceSq(t.getImageX() + t.getImageWidth() / 2.0, t.getImageY() + t.getImageHeight() / 2.0))
-//        			.reversed()
-        			);
-        }
+    	double x = (Math.max(0, fullRequest.getMinX()) + Math.min(server.getWidth(), fullRequest.getMaxX())) / 2.0;
+    	double y = (Math.max(0, fullRequest.getMinY()) + Math.min(server.getHeight(), fullRequest.getMaxY())) / 2.0;
+    	var center = new Point2(x, y);
 
-        // Clear pending requests, since we'll insert new ones (perhaps in a different order)
+        // Clear pending requests, since we'll insert new ones (perhaps with different priorities)
     	this.pendingRequests.clear();
+    	this.pool.getQueue().clear();
 
 //        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
 
@@ -456,9 +461,15 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
                 continue;
             }
             
+            // Show a tile from a previous overlay, if we have one
+            var imgStale = getStaleTileRGB(imageData, request);
+            if (imgStale != null)
+            	gCopy.drawImage(imgStale, request.getX(), request.getY(), request.getWidth(), request.getHeight(), null);
+            
             // Request a tile
             if (livePrediction) {
-            	requestTile(tile, imageData, server);
+            	double priority = center.distanceSq(tile.getImageX() + tile.getImageWidth() / 2.0, tile.getImageY() + tile.getImageHeight() / 2.0);
+            	requestTile(tile, imageData, server, priority);
             }
         }
         gCopy.dispose();
@@ -477,7 +488,12 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
     	if (imgRGB != null || server == null)
     		return imgRGB;
         // If we have a tile that isn't RGB, then create the RGB version we need
-    	var img = server.getCachedTile(request);
+    	var img = cacheRaw.get(request.getRegionRequest());
+    	if (img == null) {
+    		img = server.getCachedTile(request);
+    		if (img != null)
+    			cacheRaw.put(request.getRegionRequest(), img);
+    	}
     	var renderer = this.renderer.get();
         if (img != null) {
             if (img.getType() == BufferedImage.TYPE_INT_ARGB ||
@@ -498,13 +514,75 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
             	}
             }
             cacheRGB.put(request.getRegionRequest(), imgRGB);
+            // We don't need any stale tile for the same region any more
+            if (!staleRGB.isEmpty()) {
+            	var staleKey = toStaleKey(request.getRegionRequest());
+            	synchronized (staleRGB) {
+            		for (var staleMap : staleRGB.values())
+            			staleMap.remove(staleKey);
+            	}
+            }
         }
         return imgRGB;
     }
-    
+     
+     private BufferedImage getStaleTileRGB(ImageData<BufferedImage> imageData, RegionRequest request) {
+    	 if (staleRGB.isEmpty())
+    		 return null;
+    	 var staleMap = staleRGB.get(imageData);
+    	 return staleMap == null ? null : staleMap.get(toStaleKey(request));
+     }
+     
+     /**
+      * Stale tiles are generated using a different server, so we need to remove the server path from the key.
+      * @param request
+      * @return
+      */
+     private static RegionRequest toStaleKey(RegionRequest request) {
+    	 return request.updatePath("");
+     }
      
      /**
-      * Clear any cached tiles.
+      * Retain the rendered tiles from a previous overlay, so that they can be displayed until they are replaced 
+      * by new tiles.
+      * <p>
+      * This is intended for use whenever a classifier is retrained, so that the previous classification remains visible 
+      * while the new classification is computed. Tiles are marked as 'dirty' rather than being discarded, 
+      * and are only reused for the same image, location and resolution.
+      * 
+      * @param previous the previous overlay; this should be called before the previous overlay is stopped
+      * @since v0.5.1
+      */
+     public void retainTilesFrom(PixelClassificationOverlay previous) {
+    	 if (previous == null || previous == this)
+    		 return;
+    	 Map<String, ImageData<BufferedImage>> previousPaths = new HashMap<>();
+    	 synchronized (previous.cachedServers) {
+    		 for (var entry : previous.cachedServers.entrySet()) {
+    			 if (entry.getValue() != null)
+    				 previousPaths.put(entry.getValue().getPath(), entry.getKey());
+    		 }
+    	 }
+    	 // Include any tiles that are already stale, if they haven't been replaced
+    	 synchronized (previous.staleRGB) {
+    		 for (var entry : previous.staleRGB.entrySet())
+    			 staleRGB.computeIfAbsent(entry.getKey(), k -> Collections.synchronizedMap(new HashMap<>())).putAll(entry.getValue());
+    	 }
+    	 synchronized (previous.cacheRGB) {
+    		 for (var entry : previous.cacheRGB.entrySet()) {
+    			 var imageData = previousPaths.get(entry.getKey().getPath());
+    			 if (imageData != null && entry.getValue() != null)
+    				 staleRGB.computeIfAbsent(imageData, k -> Collections.synchronizedMap(new HashMap<>()))
+    				 	.put(toStaleKey(entry.getKey()), entry.getValue());
+    		 }
+    	 }
+    	 logger.debug("Retained tiles from previous overlay for {} image(s)", staleRGB.size());
+     }
+     
+     
+     /**
+      * Clear any cached RGB tiles.
+      * Raw classifier output is retained, so that tiles can be rendered again without being reclassified.
       */
      public void clearCache() {
     	 cacheRGB.clear();
@@ -517,6 +595,8 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
     public void stop() {
     	List<Runnable> pending = this.pool.shutdownNow();
     	clearCache();
+    	cacheRaw.clear();
+    	staleRGB.clear();
     	logger.debug("Stopped classification overlay, dropped {} requests", pending.size());
     }
     
@@ -530,21 +610,31 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
     }
     
 
-    void requestTile(TileRequest tile, ImageData<BufferedImage> imageData, ImageServer<BufferedImage> classifierServer) {
+    /**
+     * Request a tile classification.
+     * @param tile the tile to request
+     * @param imageData the image
+     * @param classifierServer the server that performs the classification
+     * @param priority priority of the request; tiles with lower values are requested first
+     */
+    void requestTile(TileRequest tile, ImageData<BufferedImage> imageData, ImageServer<BufferedImage> classifierServer, double priority) {
         // Make the request, if it isn't already pending
         if (!pool.isShutdown() && pendingRequests.add(tile)) {
-            pool.submit(() -> {
+            pool.execute(new PrioritizedTask(priority, requestCounter.incrementAndGet(), () -> {
             	if (pool.isShutdown())
             		return;
             	// Check we still need to make the request
-            	if (!pendingRequests.contains(tile) || !currentRequests.add(tile)) {
+            	if (!pendingRequests.contains(tile) || cacheRaw.containsKey(tile.getRegionRequest()) || !currentRequests.add(tile)) {
+            		pendingRequests.remove(tile);
             		return;
             	}
 //            	System.err.println(tile.hashCode() + " - " + ImageRegion.createInstance(tile.getImageX(), tile.getImageY(), tile.getImageWidth(), tile.getImageHeight(), tile.getZ(), tile.getT()));
             	var changed = new ArrayList<PathObject>();
                 var hierarchy = imageData == null ? null : imageData.getHierarchy();
                 try {
-                	classifierServer.readRegion(tile.getRegionRequest());
+                	var img = classifierServer.readRegion(tile.getRegionRequest());
+                	if (img != null)
+                		cacheRaw.put(tile.getRegionRequest(), img);
                 	repaintAllViewers();
                     var channelType = classifierServer.getMetadata().getChannelType();
                     if (channelType == ChannelType.CLASSIFICATION || channelType == ChannelType.PROBABILITY || channelType == ChannelType.MULTICLASS_PROBABILITY) {
@@ -568,11 +658,92 @@ public class PixelClassificationOverlay extends AbstractImageOverlay  {
 	                	});
                     }
                 }
-            });
+            }));
         }
     }
     
     
+    /**
+     * Task that can be used with a {@link PriorityBlockingQueue}, where tasks with lower priority values are run first.
+     * Tasks with the same priority are run in the order in which they were created.
+     */
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+    	
+    	private final double priority;
+    	private final long sequence;
+    	private final Runnable runnable;
+    	
+    	private PrioritizedTask(double priority, long sequence, Runnable runnable) {
+    		this.priority = priority;
+    		this.sequence = sequence;
+    		this.runnable = runnable;
+    	}
+
+		@Override
+		public void run() {
+			runnable.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedTask o) {
+			int cmp = Double.compare(priority, o.priority);
+			return cmp != 0 ? cmp : Long.compare(sequence, o.sequence);
+		}
+    	
+    }
+    
+    
+    /**
+     * Least-recently-used cache for raw tiles, with a maximum size in bytes.
+     */
+    private static class RawTileCache extends LinkedHashMap<RegionRequest, BufferedImage> {
+    	
+		private static final long serialVersionUID = 1L;
+		
+		private final long maxBytes;
+    	private long currentBytes = 0L;
+    	
+    	private RawTileCache(long maxBytes) {
+    		super(16, 0.75f, true);
+    		this.maxBytes = maxBytes;
+    	}
+    	
+    	@Override
+    	public BufferedImage put(RegionRequest key, BufferedImage value) {
+    		var previous = super.put(key, value);
+    		currentBytes += estimateBytes(value) - estimateBytes(previous);
+    		var iter = entrySet().iterator();
+    		while (currentBytes > maxBytes && size() > 1 && iter.hasNext()) {
+    			var entry = iter.next();
+    			currentBytes -= estimateBytes(entry.getValue());
+    			iter.remove();
+    		}
+    		return previous;
+    	}
+    	
+    	@Override
+    	public BufferedImage remove(Object key) {
+    		var previous = super.remove(key);
+    		currentBytes -= estimateBytes(previous);
+    		return previous;
+    	}
+    	
+    	@Override
+    	public void clear() {
+    		super.clear();
+    		currentBytes = 0L;
+    	}
+    	
+    	private static long estimateBytes(BufferedImage img) {
+    		if (img == null)
+    			return 0L;
+    		var buffer = img.getRaster().getDataBuffer();
+    		return (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    	}
+    	
+    }
+    
+    
     private void repaintAllViewers() {
     	var qupath = QuPathGUI.getInstance();
     	if (qupath != null)
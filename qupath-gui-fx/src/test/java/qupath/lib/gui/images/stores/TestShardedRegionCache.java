@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.awt.common.BufferedImageTools;
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestShardedRegionCache {
+
+	private static final SizeEstimator<BufferedImage> estimator = new BufferedImageSizeEstimator();
+
+	@Test
+	public void test_putGet() {
+		var cache = new ShardedRegionCache<>(estimator, 1024L * 1024L, null);
+		var request = createRequest("image", 0);
+		var img = createImage(16, 16, 1);
+		assertNull(cache.get(request));
+		cache.put(request, img);
+		assertTrue(cache.containsKey(request));
+		assertEquals(img, cache.get(request));
+		assertEquals(1, cache.size());
+		assertEquals(16 * 16 * 4, cache.getSizeBytes());
+		assertEquals(img, cache.remove(request));
+		assertFalse(cache.containsKey(request));
+		assertEquals(0, cache.getSizeBytes());
+		assertThrows(NullPointerException.class, () -> cache.put(request, null));
+	}
+
+	@Test
+	public void test_memoryLimit() {
+		long tileBytes = 32 * 32 * 4;
+		var cache = new ShardedRegionCache<>(estimator, tileBytes * 10, null);
+		for (int i = 0; i < 100; i++) {
+			cache.put(createRequest("image", i), createImage(32, 32, i));
+			assertTrue(cache.getSizeBytes() <= cache.getMaxSizeBytes());
+		}
+		assertTrue(cache.size() <= 10);
+		assertTrue(cache.size() > 0);
+
+		// Tiles larger than the cache can't be stored
+		var request = createRequest("large", 0);
+		cache.put(request, createImage(128, 128, 0));
+		assertFalse(cache.containsKey(request));
+	}
+
+	@Test
+	public void test_frequentTilesRetained() {
+		long tileBytes = 32 * 32 * 4;
+		var cache = new ShardedRegionCache<>(estimator, tileBytes * 200, null);
+		List<RegionRequest> frequent = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			var request = createRequest("frequent", i);
+			frequent.add(request);
+			cache.put(request, createImage(32, 32, i));
+		}
+		for (int k = 0; k < 5; k++) {
+			for (var request : frequent)
+				cache.get(request);
+		}
+		// A long scan of tiles that are only requested once shouldn't flush the frequently-used tiles
+		for (int i = 0; i < 2000; i++) {
+			var request = createRequest("scan", i);
+			cache.get(request);
+			cache.put(request, createImage(32, 32, i));
+		}
+		long nRetained = frequent.stream().filter(cache::containsKey).count();
+		assertTrue(nRetained >= frequent.size() / 2, "Only " + nRetained + " frequent tiles retained");
+	}
+
+	@Test
+	public void test_spill() {
+		long tileBytes = 32 * 32 * 4;
+		var spill = new BufferedImageSpillStore(tileBytes * 5, tileBytes * 20);
+		var cache = new ShardedRegionCache<>(estimator, tileBytes * 5, spill);
+		List<RegionRequest> requests = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			var request = createRequest("image", i);
+			requests.add(request);
+			cache.put(request, createImage(32, 32, i));
+		}
+		assertTrue(spill.size() > 0);
+		assertTrue(spill.getOffHeapBytes() <= tileBytes * 5);
+		assertTrue(spill.getDiskBytes() <= tileBytes * 20);
+
+		// Tiles should be restored with the same pixels
+		int nRestored = 0;
+		for (int i = 0; i < requests.size(); i++) {
+			var request = requests.get(i);
+			if (!cache.containsKey(request))
+				continue;
+			var img = cache.get(request);
+			assertNotNull(img);
+			assertEquals(i, img.getRGB(5, 5) & 0xffffff);
+			nRestored++;
+		}
+		assertTrue(nRestored > 5);
+
+		// Removing via the entry set should also remove spilled tiles
+		var iter = cache.entrySet().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().getKey().getPath().equals("image"))
+				iter.remove();
+		}
+		assertEquals(0, cache.size());
+		assertEquals(0, spill.size());
+		assertEquals(0, spill.getOffHeapBytes());
+		assertEquals(0, spill.getDiskBytes());
+	}
+
+	@Test
+	public void test_spillDiskOnly() {
+		long tileBytes = 32 * 32 * 4;
+		// Tiles too large for the off-heap limit should be written directly to disk
+		var spill = new BufferedImageSpillStore(tileBytes / 2, tileBytes * 2);
+		for (int i = 0; i < 3; i++)
+			spill.put(createRequest("image", i), createImage(32, 32, i));
+		assertEquals(0, spill.getOffHeapBytes());
+		assertEquals(tileBytes * 2, spill.getDiskBytes());
+		assertEquals(2, spill.size());
+		assertFalse(spill.containsKey(createRequest("image", 0)));
+		assertEquals(2, spill.get(createRequest("image", 2)).getRGB(5, 5) & 0xffffff);
+		spill.clear();
+		assertEquals(0, spill.getDiskBytes());
+	}
+
+	@Test
+	public void test_spillPixelTypes() {
+		var spill = new BufferedImageSpillStore(1024L * 1024L, 1024L * 1024L);
+		for (var pixelType : PixelType.values()) {
+			if (pixelType == PixelType.INT8 || pixelType == PixelType.UINT32)
+				continue;
+			var cm = ColorModelFactory.createColorModel(pixelType, ImageChannel.getDefaultChannelList(3));
+			var raster = cm.createCompatibleWritableRaster(20, 10);
+			for (int b = 0; b < 3; b++) {
+				for (int y = 0; y < 10; y++) {
+					for (int x = 0; x < 20; x++)
+						raster.setSample(x, y, b, x + y * 2 + b);
+				}
+			}
+			var img = new BufferedImage(cm, raster, false, null);
+			var request = createRequest(pixelType.toString(), 0);
+			spill.put(request, img);
+			var img2 = spill.get(request);
+			assertNotNull(img2);
+			assertEquals(img.getRaster().getDataBuffer().getDataType(), img2.getRaster().getDataBuffer().getDataType());
+			for (int b = 0; b < 3; b++) {
+				assertArrayEquals(
+						img.getRaster().getSamples(0, 0, 20, 10, b, (double[])null),
+						img2.getRaster().getSamples(0, 0, 20, 10, b, (double[])null));
+			}
+		}
+		// Check an 8-bit RGB image too
+		var rgb = new BufferedImage(20, 10, BufferedImage.TYPE_3BYTE_BGR);
+		rgb.setRGB(3, 4, 0x102030);
+		var request = createRequest("rgb", 0);
+		spill.put(request, rgb);
+		assertEquals(DataBuffer.TYPE_BYTE, spill.get(request).getRaster().getDataBuffer().getDataType());
+		assertEquals(0x102030, spill.get(request).getRGB(3, 4) & 0xffffff);
+		assertTrue(BufferedImageTools.is8bitColorType(spill.get(request).getType()));
+		spill.clear();
+		assertEquals(0, spill.size());
+	}
+
+	@Test
+	public void test_sketch() {
+		var sketch = new FrequencySketch(64);
+		var frequent = "frequent";
+		for (int i = 0; i < 10; i++)
+			sketch.increment(frequent);
+		sketch.increment("rare");
+		assertTrue(sketch.frequency(frequent) > sketch.frequency("rare"));
+		assertEquals(0, sketch.frequency("missing"));
+		// Counts saturate at 15
+		for (int i = 0; i < 100; i++)
+			sketch.increment(frequent);
+		assertTrue(sketch.frequency(frequent) <= 15);
+	}
+
+	private static RegionRequest createRequest(String path, int i) {
+		return RegionRequest.createInstance(path, 1.0, i * 32, 0, 32, 32);
+	}
+
+	private static BufferedImage createImage(int width, int height, int rgb) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, rgb);
+		}
+		return img;
+	}
+
+}
@@ -0,0 +1,70 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestViewerMotionPredictor {
+
+	@Test
+	public void test_panning() {
+		var predictor = new ViewerMotionPredictor();
+		// Pan to the right at 1 pixel per millisecond
+		for (int t = 0; t <= 100; t += 20)
+			predictor.update(new Rectangle2D.Double(t, 0, 100, 100), 1.0, t);
+		assertTrue(predictor.isPanning(100));
+		assertEquals(0, predictor.getZoomDirection(100));
+		var predicted = predictor.predictBounds(100);
+		assertEquals(200, predicted.getX(), 1e-6);
+		assertEquals(0, predicted.getY(), 1e-6);
+		assertEquals(100, predicted.getWidth(), 1e-6);
+
+		// Motion should be forgotten after a pause
+		assertFalse(predictor.isPanning(1000));
+		predictor.update(new Rectangle2D.Double(100, 0, 100, 100), 1.0, 1000);
+		assertFalse(predictor.isPanning(1000));
+	}
+
+	@Test
+	public void test_zooming() {
+		var predictor = new ViewerMotionPredictor();
+		double downsample = 8;
+		for (int t = 0; t <= 100; t += 20) {
+			double size = 100 * downsample;
+			predictor.update(new Rectangle2D.Double(500 - size/2, 500 - size/2, size, size), downsample, t);
+			downsample *= 0.9;
+		}
+		assertEquals(-1, predictor.getZoomDirection(100));
+		assertFalse(predictor.isPanning(100));
+		var predicted = predictor.predictBounds(100);
+		assertTrue(predicted.getWidth() < 100 * downsample / 0.9);
+		assertEquals(500, predicted.getCenterX(), 1e-6);
+	}
+
+}
@@ -4,7 +4,7 @@
  * %%
  * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
  * Contact: IP Management (ipmanagement@qub.ac.uk)
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2024 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -26,7 +26,11 @@ package qupath.lib.gui.measure;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.awt.image.BufferedImage;
+import java.text.Collator;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.jupiter.api.Test;
 
@@ -165,4 +169,82 @@ public class TestObservableMeasurementTableData {
 		}
 	}
 
+	@SuppressWarnings("javadoc")
+	@Test
+	public void test_sortIndices() {
+		var random = new Random(100);
+		int[] values = new int[1001];
+		for (int i = 0; i < values.length; i++)
+			values[i] = random.nextInt(20);
+		int[] order = ObservableMeasurementTableData.sortIndices(values.length, (i, j) -> Integer.compare(values[i], values[j]));
+		assertEquals(values.length, order.length);
+		for (int k = 1; k < order.length; k++) {
+			assertTrue(values[order[k-1]] <= values[order[k]]);
+			// Sort should be stable
+			if (values[order[k-1]] == values[order[k]])
+				assertTrue(order[k-1] < order[k]);
+		}
+		assertEquals(0, ObservableMeasurementTableData.sortIndices(0, (i, j) -> 0).length);
+	}
+	
+	@SuppressWarnings("javadoc")
+	@Test
+	public void test_comparator() {
+		ImageData<BufferedImage> imageData = new ImageData<>(null);
+		var random = new Random(100);
+		String[] names = {"apple", "Apple", "banana", "Banana", "cherry", "Cherry", "date"};
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			var pathObject = PathObjects.createDetectionObject(ROIs.createRectangleROI(i, i, 1, 1, ImagePlane.getDefaultPlane()));
+			// Include some NaNs and ties
+			pathObject.getMeasurementList().put("Value", i % 50 == 0 ? Double.NaN : random.nextInt(100));
+			// Include mixed-case names, and some without a name
+			if (i % 40 != 0)
+				pathObject.setName(names[random.nextInt(names.length)]);
+			pathObjects.add(pathObject);
+		}
+		imageData.getHierarchy().addObjects(pathObjects);
+		
+		ObservableMeasurementTableData model = new ObservableMeasurementTableData();
+		model.setImageData(imageData, pathObjects);
+		
+		var sorted = new ArrayList<>(model.getItems());
+		sorted.sort(model.createComparator("Value", true));
+		for (int k = 1; k < sorted.size(); k++)
+			assertTrue(Double.compare(model.getNumericValue(sorted.get(k-1), "Value"), model.getNumericValue(sorted.get(k), "Value")) <= 0);
+		assertTrue(Double.isNaN(model.getNumericValue(sorted.get(sorted.size()-1), "Value")));
+		
+		sorted.sort(model.createComparator("Value", false));
+		for (int k = 1; k < sorted.size(); k++)
+			assertTrue(Double.compare(model.getNumericValue(sorted.get(k-1), "Value"), model.getNumericValue(sorted.get(k), "Value")) >= 0);
+		
+		// Strings should be sorted with a collator, rather than by case
+		var collator = Collator.getInstance();
+		sorted.sort(model.createComparator("Name", true));
+		assertNull(model.getStringValue(sorted.get(0), "Name"));
+		for (int k = 1; k < sorted.size(); k++) {
+			String previous = model.getStringValue(sorted.get(k-1), "Name");
+			String current = model.getStringValue(sorted.get(k), "Name");
+			if (previous == null)
+				continue;
+			assertNotNull(current);
+			assertTrue(collator.compare(previous, current) <= 0);
+			// 'banana' should never come after 'Cherry', as it would with natural ordering
+			assertTrue(previous.compareToIgnoreCase(current) <= 0);
+		}
+		assertEquals("date", model.getStringValue(sorted.get(sorted.size()-1), "Name"));
+
+		// Cached values should respect the predicate
+		model.setPredicate(p -> p.getROI().getBoundsX() < 100);
+		double[] values = model.getDoubleValues("Value");
+		assertEquals(100, values.length);
+		for (int i = 0; i < values.length; i++)
+			assertEquals(pathObjects.get(i).getMeasurementList().get("Value"), values[i]);
+		
+		// Cached values should be updated after a refresh
+		pathObjects.get(1).getMeasurementList().put("Value", -1);
+		model.refreshEntries();
+		assertEquals(-1, model.getDoubleValues("Value")[1]);
+	}
+
 }
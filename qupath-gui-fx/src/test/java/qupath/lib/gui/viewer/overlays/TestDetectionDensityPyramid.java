@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2024 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.viewer.overlays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestDetectionDensityPyramid {
+
+	private static final int RED = 0xFF0000;
+
+	@Test
+	public void test_levels() {
+		var pyramid = createPyramid(new PathObjectHierarchy());
+		// 4 * 64 * 4 = 1024 is the first level represented by one block
+		assertEquals(3, pyramid.nLevels());
+		assertEquals(0, pyramid.getLevelForDownsample(1));
+		assertEquals(0, pyramid.getLevelForDownsample(7.9));
+		assertEquals(1, pyramid.getLevelForDownsample(8));
+		assertEquals(2, pyramid.getLevelForDownsample(100));
+	}
+
+	@Test
+	public void test_bins() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		// Covers one bin completely
+		hierarchy.addObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(0, 0, 4, 4, plane)));
+		// Covers half a bin, but centroid is in the next bin
+		hierarchy.addObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(6, 0, 4, 2, plane)));
+		var pyramid = createPyramid(hierarchy);
+
+		int[] block = pyramid.getBlock(0, 0, 0, 0, 0);
+		assertEquals(0xFFFF0000, block[0]);
+		assertEquals(0x80800000, block[2]);
+		assertEquals(0, block[1]);
+		assertEquals(4, pyramid.getMeanDetectionSize(), 1e-6);
+
+		// Changes should only be visible after invalidating
+		hierarchy.addObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(4, 0, 4, 4, plane)));
+		assertEquals(0, pyramid.getBlock(0, 0, 0, 0, 0)[1]);
+		pyramid.invalidate(ImageRegion.createInstance(4, 0, 4, 4, 0, 0));
+		assertEquals(0xFFFF0000, pyramid.getBlock(0, 0, 0, 0, 0)[1]);
+		assertEquals(4, pyramid.getMeanDetectionSize(), 1e-6);
+
+		// Different planes should be independent
+		assertEquals(0, pyramid.getBlock(1, 0, 0, 0, 0).length);
+	}
+
+	@Test
+	public void test_aggregate() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var random = new Random(100);
+		for (int i = 0; i < 2000; i++) {
+			// Small detections never cover more than a bin, so aggregation should be exact (apart from rounding)
+			double x = random.nextInt(1000 / 4) * 4;
+			double y = random.nextInt(500 / 4) * 4;
+			hierarchy.addObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(x, y, 2, 1 + random.nextInt(2), plane)));
+		}
+		// Compute the top level from the hierarchy
+		var pyramidDirect = createPyramid(hierarchy);
+		int top = pyramidDirect.nLevels() - 1;
+		int[] expected = pyramidDirect.getBlock(0, 0, top, 0, 0);
+
+		// Compute the top level by aggregating all the levels below
+		var pyramid = createPyramid(hierarchy);
+		for (int level = 0; level <= top; level++) {
+			double blockSize = DetectionDensityPyramid.BLOCK_SIZE * pyramid.getBinSize(level);
+			for (int by = 0; by < Math.ceil(500 / blockSize); by++) {
+				for (int bx = 0; bx < Math.ceil(1000 / blockSize); bx++)
+					pyramid.getBlock(0, 0, level, bx, by);
+			}
+		}
+		int[] aggregated = pyramid.getBlock(0, 0, top, 0, 0);
+		assertEquals(expected.length, aggregated.length);
+		long sumAlpha = 0;
+		for (int i = 0; i < expected.length; i++) {
+			// Allow for rounding errors accumulating across levels
+			assertTrue(Math.abs((expected[i] >>> 24) - (aggregated[i] >>> 24)) <= top, "Unexpected alpha at bin " + i);
+			assertEquals(0, expected[i] & 0xFFFF);
+			sumAlpha += expected[i] >>> 24;
+		}
+		assertTrue(sumAlpha > 0);
+		
+		// Invalidating should recompute the first level and aggregate the levels above
+		hierarchy.addObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(0, 0, 16, 16, plane)));
+		assertEquals(aggregated[0], pyramid.getBlock(0, 0, top, 0, 0)[0]);
+		pyramid.invalidate(ImageRegion.createInstance(0, 0, 16, 16, 0, 0));
+		assertEquals(0xFFFF0000, pyramid.getBlock(0, 0, 0, 0, 0)[2 * DetectionDensityPyramid.BLOCK_SIZE + 2]);
+		assertTrue((pyramid.getBlock(0, 0, top, 0, 0)[0] >>> 24) > (aggregated[0] >>> 24));
+	}
+	
+	@Test
+	public void test_paint() {
+		var plane = ImagePlane.getDefaultPlane();
+		var bounds = new Rectangle(0, 0, 1000, 500);
+		var img = new BufferedImage(1000, 500, BufferedImage.TYPE_INT_ARGB);
+		
+		var hierarchy = new PathObjectHierarchy();
+		for (int i = 0; i < 100; i++)
+			hierarchy.addObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, i * 5, 4, 4, plane)));
+		var pyramid = createPyramid(hierarchy);
+		var g2d = img.createGraphics();
+		// Painting requires the detection size to be estimated, then the blocks to be computed
+		assertFalse(pyramid.paint(g2d, bounds, plane, 8, 2));
+		assertEquals(4, pyramid.getMeanDetectionSize(), 1e-6);
+		assertFalse(pyramid.paint(g2d, bounds, plane, 8, 2));
+		assertTrue(pyramid.paint(g2d, bounds, plane, 8, 2));
+		g2d.dispose();
+		assertTrue((img.getRGB(0, 0) >>> 24) > 0);
+		
+		// Large detections shouldn't be painted as a density
+		var hierarchyLarge = new PathObjectHierarchy();
+		for (int i = 0; i < 100; i++)
+			hierarchyLarge.addObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, i * 5, 40, 40, plane)));
+		var pyramidLarge = createPyramid(hierarchyLarge);
+		g2d = img.createGraphics();
+		assertFalse(pyramidLarge.paint(g2d, bounds, plane, 8, 2));
+		assertEquals(40, pyramidLarge.getMeanDetectionSize(), 1e-6);
+		assertFalse(pyramidLarge.paint(g2d, bounds, plane, 8, 2));
+		g2d.dispose();
+	}
+	
+	/**
+	 * Create a pyramid that computes blocks immediately in the calling thread.
+	 */
+	private static DetectionDensityPyramid createPyramid(PathObjectHierarchy hierarchy) {
+		return new DetectionDensityPyramid(hierarchy, 1000, 500, 4, p -> RED, Runnable::run, null);
+	}
+
+}